@@ -14,6 +14,9 @@
 
 # AdvertisingIdClient and the like are optional, don't warn
 -dontwarn com.google.android.gms.ads.identifier.**
+# OkHttp is optional too
+-dontwarn okhttp3.**
+-dontwarn okio.**
 
 ## For easier debugging, we strongly recommend keeping WonderPush class names unobfuscated
 #-keepattributes SourceFile,LineNumberTable
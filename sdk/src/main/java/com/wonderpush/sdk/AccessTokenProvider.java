@@ -0,0 +1,134 @@
+package com.wonderpush.sdk;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches anonymous access tokens, at most one request at a time per user.
+ *
+ * <p>
+ *     Callers asking for the token of a user while a request is already in flight for that user
+ *     share its outcome instead of sending their own request.
+ *     Safe to use from any thread.
+ * </p>
+ */
+class AccessTokenProvider {
+
+    /**
+     * Performs the actual access token request.
+     */
+    interface Fetcher {
+
+        /**
+         * Fetches and stores an access token for the given user.
+         * The handler must be called exactly once, with the response containing the {@code token} on success.
+         */
+        void fetch(String userId, ResponseHandler handler);
+
+    }
+
+    /**
+     * A request in flight and the handlers waiting for it.
+     */
+    private static class Flight {
+
+        final DeferredFuture<String> deferred = new DeferredFuture<>();
+        final List<ResponseHandler> handlers = new ArrayList<>();
+
+    }
+
+    private final Fetcher mFetcher;
+    private final Map<String, Flight> mFlights = new HashMap<>();
+
+    AccessTokenProvider(Fetcher fetcher) {
+        mFetcher = fetcher;
+    }
+
+    /**
+     * Fetches an access token for the given user, joining the request in flight if any.
+     *
+     * @param handler
+     *            Called once the token is fetched or could not be, may be {@code null}
+     * @return A future resolving to the fetched access token
+     */
+    Future<String> fetch(final String userId, ResponseHandler handler) {
+        final String key = userId == null ? "" : userId;
+        final Flight flight;
+        boolean start = false;
+        synchronized (this) {
+            Flight existing = mFlights.get(key);
+            if (existing == null) {
+                existing = new Flight();
+                mFlights.put(key, existing);
+                start = true;
+            }
+            flight = existing;
+            if (handler != null) {
+                flight.handlers.add(handler);
+            }
+        }
+        if (!start) {
+            WonderPush.logDebug("Joining the access token request in flight for user " + userId);
+            return flight.deferred.getFuture();
+        }
+
+        try {
+            mFetcher.fetch(userId, new ResponseHandler() {
+                @Override
+                public void onFailure(Throwable e, Response errorResponse) {
+                    flight.deferred.setException(e != null ? e : new IllegalStateException("Could not fetch access token"));
+                    for (ResponseHandler handler : land(key, flight)) {
+                        handler.onFailure(e, errorResponse);
+                    }
+                }
+
+                @Override
+                public void onSuccess(Response response) {
+                    onSuccess(200, response);
+                }
+
+                @Override
+                public void onSuccess(int statusCode, Response response) {
+                    JSONObject json = response == null ? null : response.getJSONObject();
+                    flight.deferred.set(json == null ? null : JSONUtil.getString(json, "token"));
+                    for (ResponseHandler handler : land(key, flight)) {
+                        handler.onSuccess(statusCode, response);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            flight.deferred.setException(ex);
+            for (ResponseHandler waiting : land(key, flight)) {
+                waiting.onFailure(ex, null);
+            }
+        }
+        return flight.deferred.getFuture();
+    }
+
+    /**
+     * Whether a request is in flight for the given user.
+     */
+    synchronized boolean isFetching(String userId) {
+        return mFlights.containsKey(userId == null ? "" : userId);
+    }
+
+    /**
+     * Ends a flight, the next call to {@link #fetch(String, ResponseHandler)} will start a new request.
+     *
+     * @return The handlers to notify, outside of the lock
+     */
+    private synchronized List<ResponseHandler> land(String key, Flight flight) {
+        if (mFlights.get(key) == flight) {
+            mFlights.remove(key);
+        }
+        List<ResponseHandler> rtn = new ArrayList<>(flight.handlers);
+        flight.handlers.clear();
+        return rtn;
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.wonderpush.sdk;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link ConnectivityMonitor} backed by {@link ConnectivityManager}.
+ *
+ * <p>
+ *     Uses network callbacks when available, and falls back to the {@link ConnectivityManager#CONNECTIVITY_ACTION}
+ *     broadcast on older devices.
+ *     Without the {@code ACCESS_NETWORK_STATE} permission, the network is assumed to be always available.
+ * </p>
+ */
+class AndroidConnectivityMonitor implements ConnectivityMonitor {
+
+    private static final String TAG = WonderPush.TAG;
+
+    private final ConnectivityManager mConnectivityManager;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean mConnected = true;
+
+    AndroidConnectivityMonitor(Context context) {
+        ConnectivityManager connectivityManager = null;
+        if (context.getPackageManager().checkPermission(android.Manifest.permission.ACCESS_NETWORK_STATE, context.getPackageName()) != PackageManager.PERMISSION_GRANTED) {
+            WonderPush.logDebug("Missing ACCESS_NETWORK_STATE permission, queued requests will not wait for the network to be available");
+        } else {
+            connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        }
+        mConnectivityManager = connectivityManager;
+        if (mConnectivityManager == null) {
+            return;
+        }
+
+        mConnected = readConnected();
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                mConnectivityManager.registerDefaultNetworkCallback(createNetworkCallback());
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                NetworkRequest request = new NetworkRequest.Builder()
+                        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                        .build();
+                mConnectivityManager.registerNetworkCallback(request, createNetworkCallback());
+            } else {
+                registerConnectivityReceiver(context.getApplicationContext());
+            }
+        } catch (Exception e) {
+            // Some devices are known to throw SecurityException despite the permission
+            Log.e(TAG, "Could not monitor network connectivity", e);
+            mConnected = true;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void registerConnectivityReceiver(Context context) {
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                update(readConnected());
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ConnectivityManager.NetworkCallback createNetworkCallback() {
+        return new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                update(true);
+            }
+
+            @Override
+            public void onLost(Network network) {
+                // Another network may still be available
+                update(readConnected());
+            }
+        };
+    }
+
+    private boolean readConnected() {
+        try {
+            NetworkInfo networkInfo = mConnectivityManager.getActiveNetworkInfo();
+            return networkInfo != null && networkInfo.isConnected();
+        } catch (Exception e) {
+            Log.e(TAG, "Could not read network connectivity", e);
+            return true;
+        }
+    }
+
+    private synchronized void update(boolean connected) {
+        if (connected == mConnected) return;
+        mConnected = connected;
+        WonderPush.logDebug("Network connectivity changed: " + (connected ? "connected" : "disconnected"));
+        for (Listener listener : mListeners) {
+            try {
+                listener.onConnectivityChanged(connected);
+            } catch (Exception e) {
+                Log.e(TAG, "Unexpected error while notifying a connectivity change", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+}
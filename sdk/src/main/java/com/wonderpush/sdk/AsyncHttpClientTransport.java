@@ -0,0 +1,98 @@
+package com.wonderpush.sdk;
+
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.entity.ByteArrayEntity;
+import cz.msebera.android.httpclient.message.BasicHeader;
+
+/**
+ * An {@link HttpTransport} using the android-async-http library, the historical client of the SDK.
+ */
+class AsyncHttpClientTransport implements HttpTransport {
+
+    private final AsyncHttpClient mClient = new AsyncHttpClient(); // to allow any HTTPS certificate use: new AsyncHttpClient(true, 80, 443);
+
+    /**
+     * @param connectTimeout
+     *            Connect timeout, in milliseconds
+     * @param readTimeout
+     *            Response timeout, in milliseconds
+     */
+    AsyncHttpClientTransport(int connectTimeout, int readTimeout) {
+        mClient.setConnectTimeout(connectTimeout);
+        mClient.setResponseTimeout(readTimeout);
+    }
+
+    @Override
+    public String getName() {
+        return "AsyncHttpClient";
+    }
+
+    @Override
+    public void execute(Request request, final Callback callback) {
+        Header[] headers = new Header[request.headers.size()];
+        int i = 0;
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            headers[i++] = new BasicHeader(header.getKey(), header.getValue());
+        }
+        ByteArrayEntity entity = request.body == null ? null : new ByteArrayEntity(request.body);
+
+        // Deliver the response on the library's thread, our caller does not need the looper
+        AsyncHttpResponseHandler handler = new AsyncHttpResponseHandler(true) {
+            @Override
+            public void onProgress(long bytesWritten, long totalSize) {
+                // mute this
+            }
+
+            @Override
+            public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+                callback.onResponse(statusCode, toMap(headers), responseBody);
+            }
+
+            @Override
+            public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+                if (statusCode > 0) {
+                    // The server answered with an error status
+                    callback.onResponse(statusCode, toMap(headers), responseBody);
+                } else {
+                    callback.onFailure(error);
+                }
+            }
+        };
+        switch (request.method) {
+            case "GET":
+                mClient.get(null, request.url, headers, null, handler);
+                break;
+            case "PUT":
+                mClient.put(null, request.url, headers, entity, request.contentType, handler);
+                break;
+            case "POST":
+                mClient.post(null, request.url, headers, entity, request.contentType, handler);
+                break;
+            case "PATCH":
+                mClient.patch(null, request.url, headers, entity, request.contentType, handler);
+                break;
+            case "DELETE":
+                mClient.delete(null, request.url, headers, null, handler);
+                break;
+            default:
+                callback.onFailure(new UnsupportedOperationException("Unhandled method " + request.method));
+        }
+    }
+
+    private static Map<String, String> toMap(Header[] headers) {
+        Map<String, String> rtn = new HashMap<>();
+        if (headers != null) {
+            for (Header header : headers) {
+                rtn.put(header.getName().toLowerCase(), header.getValue());
+            }
+        }
+        return rtn;
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.wonderpush.sdk;
+
+import android.os.SystemClock;
+
+/**
+ * Tells the time elapsed since boot, so that tests can control it.
+ */
+interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    /**
+     * @see SystemClock#elapsedRealtime()
+     */
+    long elapsedRealtime();
+
+}
@@ -0,0 +1,180 @@
+package com.wonderpush.sdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the last response of a few GET resources along with their validators,
+ * so that they can be revalidated with a conditional request, and served again on {@code 304 Not Modified}.
+ *
+ * <p>
+ *     Entries are kept in memory, per user, resource and query parameters,
+ *     and evicted in least recently used order once {@link #MAX_BYTES} is reached.
+ * </p>
+ */
+class ConditionalGetCache {
+
+    static final int MAX_BYTES = 256 * 1024;
+    static final int HTTP_NOT_MODIFIED = 304;
+
+    /**
+     * Resources whose responses are worth revalidating.
+     */
+    private static final String[] CACHEABLE_RESOURCES = {"/installation", "/user"};
+
+    private static class Entry {
+
+        final String etag;
+        final String lastModified;
+        final byte[] body;
+
+        Entry(String etag, String lastModified, byte[] body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+    }
+
+    private final int mMaxBytes;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mBytes;
+
+    ConditionalGetCache() {
+        this(MAX_BYTES);
+    }
+
+    ConditionalGetCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    static boolean isCacheable(String resource) {
+        for (String cacheable : CACHEABLE_RESOURCES) {
+            if (cacheable.equals(resource)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Query parameters that do not select the response, and change over time.
+     */
+    private static final String[] IGNORED_PARAMS = {"accessToken"};
+
+    static String getKey(String userId, String resource) {
+        return getKey(userId, resource, null);
+    }
+
+    /**
+     * @param queryString
+     *            The URL encoded query parameters, in any order, may be {@code null}
+     */
+    static String getKey(String userId, String resource, String queryString) {
+        List<String> params = new ArrayList<>();
+        if (queryString != null) {
+            for (String param : queryString.split("&")) {
+                if (param.length() == 0 || isIgnored(param)) continue;
+                params.add(param);
+            }
+        }
+        Collections.sort(params);
+        StringBuilder rtn = new StringBuilder(getResourcePrefix(userId, resource));
+        for (int i = 0; i < params.size(); ++i) {
+            if (i > 0) rtn.append('&');
+            rtn.append(params.get(i));
+        }
+        return rtn.toString();
+    }
+
+    private static String getResourcePrefix(String userId, String resource) {
+        return userId + " " + resource + "?";
+    }
+
+    private static boolean isIgnored(String param) {
+        int equals = param.indexOf('=');
+        String name = equals < 0 ? param : param.substring(0, equals);
+        for (String ignored : IGNORED_PARAMS) {
+            if (ignored.equals(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the {@code If-None-Match} and {@code If-Modified-Since} headers for the cached response, if any.
+     */
+    synchronized void addConditionalHeaders(String key, Map<String, String> headers) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) return;
+        if (entry.etag != null) {
+            headers.put("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            headers.put("If-Modified-Since", entry.lastModified);
+        }
+    }
+
+    /**
+     * Updates the cache with a response.
+     *
+     * @param headers
+     *            The response headers, with lower case names
+     * @param body
+     *            The decompressed response body
+     * @return The body to use: the cached one on {@code 304 Not Modified}, the given one otherwise,
+     *         or {@code null} if a {@code 304} answered a request that had no cached response
+     */
+    synchronized byte[] onResponse(String key, int statusCode, Map<String, String> headers, byte[] body) {
+        if (statusCode == HTTP_NOT_MODIFIED) {
+            Entry entry = mEntries.get(key);
+            return entry == null ? null : entry.body;
+        }
+        remove(key);
+        String etag = headers.get("etag");
+        String lastModified = headers.get("last-modified");
+        if (statusCode >= 200 && statusCode < 300 && body != null && body.length <= mMaxBytes
+                && (etag != null || lastModified != null)) {
+            mEntries.put(key, new Entry(etag, lastModified, body));
+            mBytes += body.length;
+            trim();
+        }
+        return body;
+    }
+
+    synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mBytes -= entry.body.length;
+        }
+    }
+
+    /**
+     * Removes the responses of the given resource for the given user, whatever their query parameters.
+     */
+    synchronized void removeResource(String userId, String resource) {
+        String prefix = getResourcePrefix(userId, resource);
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                mBytes -= entry.getValue().body.length;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    private void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            mBytes -= it.next().body.length;
+            it.remove();
+        }
+    }
+
+}
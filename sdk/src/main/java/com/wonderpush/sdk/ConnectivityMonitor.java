@@ -0,0 +1,24 @@
+package com.wonderpush.sdk;
+
+/**
+ * Tells whether the device can currently reach the network.
+ */
+interface ConnectivityMonitor {
+
+    interface Listener {
+
+        void onConnectivityChanged(boolean connected);
+
+    }
+
+    /**
+     * Whether a network is currently available.
+     * Implementations that cannot tell should return {@code true}.
+     */
+    boolean isConnected();
+
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+}
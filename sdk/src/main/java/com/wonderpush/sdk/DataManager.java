@@ -14,7 +14,6 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -28,7 +27,8 @@ class DataManager {
 
     private static Future<String> export() {
         final DeferredFuture<String> deferred = new DeferredFuture<>();
-        WonderPush.safeDefer(new Runnable() {
+        // Each step posts the next one, so that they run in sequence even on the IO pool
+        WonderPush.safeDeferIo(new Runnable() {
             @Override
             public void run() {
                 final StringBuilder sb = new StringBuilder();
@@ -55,10 +55,10 @@ class DataManager {
                                 // That user was cleaned up, don't try to reach the API or it will re-create an accessToken
                                 continue;
                             }
-                            WonderPush.safeDefer(step1AccessToken.get(), 0);
+                            WonderPush.safeDeferIo(step1AccessToken.get());
                             return;
                         }
-                        WonderPush.safeDefer(finalizeAndResolve.get(), 0);
+                        WonderPush.safeDeferIo(finalizeAndResolve.get());
                     }
                 });
                 // Step 1 - Get accessToken
@@ -71,7 +71,7 @@ class DataManager {
                                 sb.append("{\"accessToken\":");
                                 sb.append(errorResponse.toString());
                                 sb.append("}\n");
-                                WonderPush.safeDefer(step2User.get(), 0);
+                                WonderPush.safeDeferIo(step2User.get());
                             }
 
                             @Override
@@ -79,7 +79,7 @@ class DataManager {
                                 sb.append("{\"accessToken\":");
                                 sb.append(response.toString());
                                 sb.append("}\n");
-                                WonderPush.safeDefer(step2User.get(), 0);
+                                WonderPush.safeDeferIo(step2User.get());
                             }
                         });
                     }
@@ -89,7 +89,7 @@ class DataManager {
                     @Override
                     public void run() {
                         if (currentUserId.get() == null) {
-                            WonderPush.safeDefer(step3Installation.get(), 0);
+                            WonderPush.safeDeferIo(step3Installation.get());
                             return;
                         }
                         WonderPushRestClient.requestForUser(currentUserId.get(), WonderPushRestClient.HttpMethod.GET, "/user", null, new ResponseHandler() {
@@ -98,7 +98,7 @@ class DataManager {
                                 sb.append("{\"user\":");
                                 sb.append(errorResponse.toString());
                                 sb.append("}\n");
-                                WonderPush.safeDefer(step3Installation.get(), 0);
+                                WonderPush.safeDeferIo(step3Installation.get());
                             }
 
                             @Override
@@ -106,7 +106,7 @@ class DataManager {
                                 sb.append("{\"user\":");
                                 sb.append(response.toString());
                                 sb.append("}\n");
-                                WonderPush.safeDefer(step3Installation.get(), 0);
+                                WonderPush.safeDeferIo(step3Installation.get());
                             }
                         });
                     }
@@ -121,7 +121,7 @@ class DataManager {
                                 sb.append("{\"installation\":");
                                 sb.append(errorResponse.toString());
                                 sb.append("}\n");
-                                WonderPush.safeDefer(step4EventPage.get(), 0);
+                                WonderPush.safeDeferIo(step4EventPage.get());
                             }
 
                             @Override
@@ -129,7 +129,7 @@ class DataManager {
                                 sb.append("{\"installation\":");
                                 sb.append(response.toString());
                                 sb.append("}\n");
-                                WonderPush.safeDefer(step4EventPage.get(), 0);
+                                WonderPush.safeDeferIo(step4EventPage.get());
                             }
                         });
                     }
@@ -145,7 +145,7 @@ class DataManager {
                                 sb.append("{\"eventsPage\":");
                                 sb.append(errorResponse.toString());
                                 sb.append("}\n");
-                                WonderPush.safeDefer(processNextUser.get(), 0);
+                                WonderPush.safeDeferIo(processNextUser.get());
                             }
 
                             @Override
@@ -157,7 +157,7 @@ class DataManager {
                                 JSONObject pagination = response.getJSONObject().optJSONObject("pagination");
                                 Uri next = pagination == null ? null : JSONUtil.optUri(pagination, "next");
                                 if (next == null) {
-                                    WonderPush.safeDefer(processNextUser.get(), 0);
+                                    WonderPush.safeDeferIo(processNextUser.get());
                                     return;
                                 }
                                 RequestParams nextParams = new RequestParams();
@@ -165,7 +165,7 @@ class DataManager {
                                     nextParams.put(key, next.getQueryParameter(key));
                                 }
                                 step4RequestParams.set(nextParams);
-                                WonderPush.safeDefer(step4EventPage.get(), 0);
+                                WonderPush.safeDeferIo(step4EventPage.get());
                             }
                         });
                     }
@@ -178,9 +178,9 @@ class DataManager {
                     }
                 });
                 // Start processing
-                WonderPush.safeDefer(processNextUser.get(), 0);
+                WonderPush.safeDeferIo(processNextUser.get());
             }
-        }, 0);
+        });
         return deferred.getFuture();
     }
 
@@ -255,9 +255,8 @@ class DataManager {
         try {
             JSONSyncInstallationCustom custom = JSONSyncInstallationCustom.forUser(userId);
             JSONObject diff = new JSONObject();
-            Iterator<String> it = custom.getSdkState().keys();
-            while (it.hasNext()) {
-                diff.put(it.next(), JSONObject.NULL);
+            for (String key : custom.getSdkStateSnapshot().keySet()) {
+                diff.put(key, JSONObject.NULL);
             }
             custom.put(diff);
             custom.flush();
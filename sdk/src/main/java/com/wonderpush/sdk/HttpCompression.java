@@ -0,0 +1,64 @@
+package com.wonderpush.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip helpers for request and response bodies.
+ */
+class HttpCompression {
+
+    static final String GZIP = "gzip";
+
+    /**
+     * Smaller bodies fit in a single packet anyway, and do not compress well.
+     */
+    static final int MIN_COMPRESSED_REQUEST_SIZE = 1024;
+
+    /**
+     * Whether a request body is worth compressing.
+     */
+    static boolean shouldCompress(byte[] body) {
+        return body != null && body.length >= MIN_COMPRESSED_REQUEST_SIZE;
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 32);
+        GZIPOutputStream output = new GZIPOutputStream(bytes);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Whether the given data starts with the gzip magic number.
+     * Some HTTP stacks inflate responses by themselves but leave the {@code Content-Encoding} header.
+     */
+    static boolean isGzipped(byte[] data) {
+        return data != null && data.length >= 2
+                && (data[0] & 0xff) == (GZIPInputStream.GZIP_MAGIC & 0xff)
+                && (data[1] & 0xff) == (GZIPInputStream.GZIP_MAGIC >> 8);
+    }
+
+    static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+}
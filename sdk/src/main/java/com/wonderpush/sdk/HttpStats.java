@@ -0,0 +1,83 @@
+package com.wonderpush.sdk;
+
+/**
+ * Counts the requests sent by {@link WonderPushRestClient}, their size on the wire and their duration.
+ */
+class HttpStats {
+
+    private long mRequests;
+    private long mFailures;
+    private long mRequestBytes;
+    private long mRequestBytesUncompressed;
+    private long mResponseBytes;
+    private long mResponseBytesDecompressed;
+    private long mTotalDuration;
+
+    /**
+     * @param wireBytes
+     *            Size of the body as sent
+     * @param uncompressedBytes
+     *            Size of the body before compression
+     */
+    synchronized void recordRequest(int wireBytes, int uncompressedBytes) {
+        ++mRequests;
+        mRequestBytes += wireBytes;
+        mRequestBytesUncompressed += uncompressedBytes;
+    }
+
+    /**
+     * @param wireBytes
+     *            Size of the body as received
+     * @param decompressedBytes
+     *            Size of the body after decompression
+     * @param duration
+     *            Time between sending the request and receiving the whole response, in milliseconds
+     */
+    synchronized void recordResponse(int wireBytes, int decompressedBytes, long duration) {
+        mResponseBytes += wireBytes;
+        mResponseBytesDecompressed += decompressedBytes;
+        mTotalDuration += duration;
+    }
+
+    synchronized void recordFailure(long duration) {
+        ++mFailures;
+        mTotalDuration += duration;
+    }
+
+    synchronized long getRequests() {
+        return mRequests;
+    }
+
+    synchronized long getFailures() {
+        return mFailures;
+    }
+
+    synchronized long getRequestBytes() {
+        return mRequestBytes;
+    }
+
+    synchronized long getRequestBytesUncompressed() {
+        return mRequestBytesUncompressed;
+    }
+
+    synchronized long getResponseBytes() {
+        return mResponseBytes;
+    }
+
+    synchronized long getResponseBytesDecompressed() {
+        return mResponseBytesDecompressed;
+    }
+
+    synchronized long getTotalDuration() {
+        return mTotalDuration;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mRequests + " requests (" + mFailures + " failed)"
+                + ", sent " + mRequestBytes + " bytes (" + mRequestBytesUncompressed + " uncompressed)"
+                + ", received " + mResponseBytes + " bytes (" + mResponseBytesDecompressed + " decompressed)"
+                + ", " + (mRequests == 0 ? 0 : mTotalDuration / mRequests) + "ms on average";
+    }
+
+}
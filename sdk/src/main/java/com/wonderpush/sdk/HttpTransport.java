@@ -0,0 +1,77 @@
+package com.wonderpush.sdk;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sends HTTP requests on behalf of {@link WonderPushRestClient}.
+ *
+ * <p>
+ *     Implementations own their threads and connection pool, and must be safe to use from any thread.
+ *     The callback is called exactly once, from any thread.
+ * </p>
+ */
+interface HttpTransport {
+
+    /**
+     * An HTTP request, ready to be sent.
+     */
+    class Request {
+
+        final String method;
+        final String url;
+        final Map<String, String> headers;
+        final String contentType;
+        final byte[] body;
+
+        /**
+         * @param method
+         *            The HTTP method, in upper case
+         * @param url
+         *            The absolute URL, including any query string
+         * @param contentType
+         *            The type of the body, or {@code null} if there is no body
+         * @param body
+         *            The body, or {@code null} for methods without one
+         */
+        Request(String method, String url, Map<String, String> headers, String contentType, byte[] body) {
+            this.method = method;
+            this.url = url;
+            this.headers = headers == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + url;
+        }
+
+    }
+
+    interface Callback {
+
+        /**
+         * Called when the server answered, whatever the status code.
+         *
+         * @param headers
+         *            The response headers, with lower case names
+         */
+        void onResponse(int statusCode, Map<String, String> headers, byte[] body);
+
+        /**
+         * Called when no response could be read from the server.
+         */
+        void onFailure(Throwable e);
+
+    }
+
+    /**
+     * A short name for logs.
+     */
+    String getName();
+
+    void execute(Request request, Callback callback);
+
+}
@@ -0,0 +1,152 @@
+package com.wonderpush.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link HttpTransport} using the platform {@link HttpURLConnection}.
+ *
+ * <p>
+ *     Connections are kept alive and reused by the platform, as long as responses are read to the end,
+ *     which this class always does.
+ *     {@code PATCH} is not supported by {@link HttpURLConnection},
+ *     such requests are handed to another transport that sends them as is.
+ * </p>
+ */
+class HttpURLConnectionTransport implements HttpTransport {
+
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+    private final HttpTransport mPatchTransport;
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param connectTimeout
+     *            Connect timeout, in milliseconds
+     * @param readTimeout
+     *            Read timeout, in milliseconds
+     * @param patchTransport
+     *            Sends the {@code PATCH} requests
+     */
+    HttpURLConnectionTransport(int connectTimeout, int readTimeout, HttpTransport patchTransport) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+        mPatchTransport = patchTransport;
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WonderPush-HTTP-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public String getName() {
+        return "HttpURLConnection";
+    }
+
+    @Override
+    public void execute(final Request request, final Callback callback) {
+        if ("PATCH".equals(request.method)) {
+            mPatchTransport.execute(request, callback);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int statusCode;
+                Map<String, String> headers;
+                byte[] body;
+                try {
+                    HttpURLConnection connection = (HttpURLConnection) new URL(request.url).openConnection();
+                    try {
+                        statusCode = send(connection, request);
+                        headers = readHeaders(connection);
+                        InputStream input = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                        body = readFully(input);
+                    } catch (IOException ex) {
+                        // The connection is in an unknown state, do not give it back to the pool
+                        connection.disconnect();
+                        throw ex;
+                    }
+                } catch (Exception ex) {
+                    callback.onFailure(ex);
+                    return;
+                }
+                callback.onResponse(statusCode, headers, body);
+            }
+        });
+    }
+
+    private int send(HttpURLConnection connection, Request request) throws IOException {
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+        connection.setUseCaches(false);
+        connection.setInstanceFollowRedirects(true);
+        connection.setRequestMethod(request.method);
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (request.body != null) {
+            connection.setDoOutput(true);
+            if (request.contentType != null) {
+                connection.setRequestProperty("Content-Type", request.contentType);
+            }
+            connection.setFixedLengthStreamingMode(request.body.length);
+            OutputStream output = connection.getOutputStream();
+            try {
+                output.write(request.body);
+            } finally {
+                output.close();
+            }
+        }
+        return connection.getResponseCode();
+    }
+
+    private static Map<String, String> readHeaders(HttpURLConnection connection) {
+        Map<String, String> rtn = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // The status line is listed under a null name
+            if (header.getKey() == null || header.getValue() == null || header.getValue().isEmpty()) continue;
+            rtn.put(header.getKey().toLowerCase(), header.getValue().get(header.getValue().size() - 1));
+        }
+        return rtn;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        if (input == null) return new byte[0];
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            // Closing the fully read stream gives the connection back to the keep-alive pool
+            input.close();
+        }
+    }
+
+}
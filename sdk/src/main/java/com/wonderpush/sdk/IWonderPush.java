@@ -60,6 +60,7 @@ interface IWonderPush {
     void addTag(String... tag);
     void removeTag(String... tag);
     void removeAllTags();
+    void applyPropertiesEditor(WonderPushPropertiesEditor editor, DeferredFuture<Boolean> ack);
     Set<String> getTags();
     boolean hasTag(String tag);
 
@@ -11,21 +11,15 @@ import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Currency;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicReference;
 
 class InstallationManager {
@@ -44,195 +38,109 @@ class InstallationManager {
      */
     protected static final long CACHED_INSTALLATION_CUSTOM_PROPERTIES_MAX_DELAY = 20 * 1000;
 
+    private static final TagIndex sTagIndex = new TagIndex();
+
     public static JSONObject getInstallationCustomProperties() {
         try {
-            JSONObject custom = JSONSyncInstallationCustom.forCurrentUser().getSdkState();
-            Iterator<String> it = custom.keys();
-            while (it.hasNext()) {
-                String key = it.next();
-                if (key.indexOf('_') < 0) {
-                    it.remove();
+            JSONDocument custom = JSONSyncInstallationCustom.forCurrentUser().getSdkStateSnapshot();
+            JSONObject rtn = new JSONObject();
+            for (String key : custom.keySet()) {
+                if (key.indexOf('_') >= 0) {
+                    rtn.put(key, JSONDocument.toJSON(custom.get(key)));
                 }
             }
-            return custom;
+            return rtn;
         } catch (JSONException ex) {
             Log.e(WonderPush.TAG, "Failed to read installation custom properties", ex);
             return new JSONObject();
         }
     }
 
-    public static synchronized void putInstallationCustomProperties(JSONObject customProperties) {
-        try {
-            customProperties = JSONUtil.deepCopy(customProperties);
-            Iterator<String> it = customProperties.keys();
-            while (it.hasNext()) {
-                String key = it.next();
-                if (key.indexOf('_') < 0) {
-                    Log.w(WonderPush.TAG, "Dropping installation property with no prefix: " + key);
-                    it.remove();
-                }
-            }
-            JSONSyncInstallationCustom.forCurrentUser().put(customProperties);
-        } catch (JSONException ex) {
-            Log.e(WonderPush.TAG, "Failed to put installation custom properties " + customProperties, ex);
-        }
+    public static void putInstallationCustomProperties(JSONObject customProperties) {
+        apply(new WonderPushPropertiesEditor().putProperties(customProperties), null);
     }
 
     public static void setProperty(String field, Object value) {
-        if (field == null) return;
-        value = JSONUtil.wrap(value);
-        try {
-            JSONObject diff = new JSONObject();
-            diff.put(field, value);
-            putInstallationCustomProperties(diff);
-        } catch (JSONException ex) {
-            Log.e(WonderPush.TAG, "Failed to setProperty(" + field + ", " + value + ")", ex);
-        }
+        apply(new WonderPushPropertiesEditor().setProperty(field, value), null);
     }
 
     public static void unsetProperty(String field) {
-        if (field == null) return;
-        try {
-            JSONObject diff = new JSONObject();
-            diff.put(field, JSONObject.NULL);
-            putInstallationCustomProperties(diff);
-        } catch (JSONException ex) {
-            Log.e(WonderPush.TAG, "Failed to unsetProperty(" + field + ")", ex);
-        }
+        apply(new WonderPushPropertiesEditor().unsetProperty(field), null);
     }
 
     public static void addProperty(String field, Object value) {
-        value = JSONUtil.wrap(value);
-        if (field == null || value == null || value == JSONObject.NULL) return;
-        // The contract is to actually append new values only, not shuffle or deduplicate everything,
-        // hence the array and the set.
-        List<Object> values = new ArrayList<>(getPropertyValues(field));
-        Set<Object> set = new HashSet<>(values);
-        JSONArray inputs = value instanceof JSONArray ? (JSONArray) value : new JSONArray().put(value);
-        for (int i = 0, e = inputs.length(); i < e; ++i) {
-            try {
-                Object input = inputs.get(i);
-                if (input == null || input == JSONObject.NULL) continue;
-                if (set.contains(input)) continue;
-                values.add(input);
-                set.add(input);
-            } catch (JSONException ex) {
-                Log.e(WonderPush.TAG, "Unexpected exception in addProperty", ex);
-            }
-        }
-        setProperty(field, values);
+        apply(new WonderPushPropertiesEditor().addProperty(field, value), null);
     }
 
     public static void removeProperty(String field, Object value) {
-        value = JSONUtil.wrap(value);
-        if (field == null || value == null) return; // Note: We accept removing JSONObject.NULL
-        // The contract is to actually remove every listed values (all duplicated appearances), not shuffle or deduplicate everything else
-        List<Object> values = getPropertyValues(field);
-        JSONArray inputs = value instanceof JSONArray ? (JSONArray) value : new JSONArray().put(value);
-        Set<Object> set = new HashSet<>(JSONUtil.JSONArrayToList(inputs, Object.class));
-        if (set.isEmpty()) return;
-        JSONArray newValues = new JSONArray();
-        for (Object item : values) {
-            if (item == null) continue;
-            if (set.contains(item)) continue;
-            newValues.put(item);
+        apply(new WonderPushPropertiesEditor().removeProperty(field, value), null);
+    }
+
+    /**
+     * Applies the changes of the given editor over the current state as a single put.
+     *
+     * @param ack
+     *            Settled once the server acknowledges the changes, see {@link JSONSync#put(JSONObject, DeferredFuture)}
+     */
+    static synchronized void apply(WonderPushPropertiesEditor editor, DeferredFuture<Boolean> ack) {
+        JSONSyncInstallationCustom sync = JSONSyncInstallationCustom.forCurrentUser();
+        try {
+            sync.put(editor.buildDiff(sync.getSdkStateSnapshot()), ack);
+        } catch (JSONException ex) {
+            Log.e(WonderPush.TAG, "Failed to apply installation custom changes", ex);
+            if (ack != null) ack.set(false);
         }
-        setProperty(field, newValues);
+    }
+
+    /**
+     * Reads a single installation custom property, without copying the others.
+     *
+     * @return The value as stored in a {@link JSONDocument}, or {@code null}
+     */
+    private static Object getPropertyDocumentValue(String field) {
+        if (field.indexOf('_') < 0) return null; // not a custom property
+        return JSONSyncInstallationCustom.forCurrentUser().getSdkStateSnapshot().get(field);
     }
 
     public static Object getPropertyValue(String field) {
         if (field == null) return JSONObject.NULL;
-        JSONObject properties = getInstallationCustomProperties();
-        Object value = properties.opt(field);
-        while (value instanceof JSONArray) { // Note, the documentation says *never* a JSONArray, so we use a while instead of an if to sure of that
-            value = ((JSONArray) value).length() > 0 ? ((JSONArray) value).opt(0) : null;
+        Object value = getPropertyDocumentValue(field);
+        while (value instanceof List) { // Note, the documentation says *never* a JSONArray, so we use a while instead of an if to sure of that
+            value = ((List<?>) value).size() > 0 ? ((List<?>) value).get(0) : null;
         }
         if (value == null) value = JSONObject.NULL;
-        return value;
+        try {
+            return JSONDocument.toJSON(value);
+        } catch (JSONException ex) {
+            Log.e(WonderPush.TAG, "Failed to read installation custom property " + field, ex);
+            return JSONObject.NULL;
+        }
     }
 
     public static List<Object> getPropertyValues(String field) {
         if (field == null) return Collections.emptyList();
-        JSONObject properties = getInstallationCustomProperties();
-        Object value = properties.opt(field);
-        if (value == null || value == JSONObject.NULL) {
+        try {
+            return WonderPushPropertiesEditor.getPropertyValues(JSONSyncInstallationCustom.forCurrentUser().getSdkStateSnapshot(), field);
+        } catch (JSONException ex) {
+            Log.e(WonderPush.TAG, "Failed to read installation custom property " + field, ex);
             return Collections.emptyList();
-        } else if (value instanceof JSONArray) {
-            return JSONUtil.JSONArrayToList((JSONArray) value, Object.class);
-        } else {
-            return Collections.singletonList(value);
         }
     }
 
     public static void addTag(String... tag) {
-        Set<String> tags = new TreeSet<>(getTags()); // use a sorted implementation to avoid useless diffs
-        for (String aTag : tag) {
-            if (aTag != null && !aTag.isEmpty()) {
-                tags.add(aTag);
-            } else {
-                Log.w(TAG, "Dropping invalid tag " + aTag);
-            }
-        }
-        try {
-            JSONObject diff = new JSONObject();
-            diff.putOpt("tags", new JSONArray(tags));
-            JSONSyncInstallationCustom.forCurrentUser().put(diff);
-        } catch (JSONException ex) {
-            Log.e(TAG, "Failed to addTag", ex);
-        }
+        apply(new WonderPushPropertiesEditor().addTag(tag), null);
     }
 
     public static void removeTag(String... tag) {
-        Set<String> tags = new TreeSet<>(getTags()); // use a sorted implementation to avoid useless diffs
-        tags.removeAll(Arrays.asList(tag));
-        try {
-            JSONObject diff = new JSONObject();
-            diff.putOpt("tags", new JSONArray(tags));
-            JSONSyncInstallationCustom.forCurrentUser().put(diff);
-        } catch (JSONException ex) {
-            Log.e(TAG, "Failed to addTag", ex);
-        }
+        apply(new WonderPushPropertiesEditor().removeTag(tag), null);
     }
 
     public static void removeAllTags() {
-        try {
-            JSONObject diff = new JSONObject();
-            diff.putOpt("tags", JSONObject.NULL);
-            JSONSyncInstallationCustom.forCurrentUser().put(diff);
-        } catch (JSONException ex) {
-            Log.e(TAG, "Failed to removeAllTags", ex);
-        }
+        apply(new WonderPushPropertiesEditor().removeAllTags(), null);
     }
 
     public static Set<String> getTags() {
-        JSONObject custom;
-        try {
-            custom = JSONSyncInstallationCustom.forCurrentUser().getSdkState();
-        } catch (JSONException ex) {
-            Log.e(WonderPush.TAG, "Failed to read installation custom properties", ex);
-            custom = new JSONObject();
-        }
-        JSONArray tags = custom.optJSONArray("tags");
-        if (tags == null) {
-            tags = new JSONArray();
-            // Recover from a potential scalar string value
-            String val = JSONUtil.optString(custom, "tags");
-            if (val != null) {
-                tags.put(val);
-            }
-        }
-        TreeSet<String> rtn = new TreeSet<>(); // use a sorted implementation to avoid useless diffs later on
-        for (int i = 0, l = tags.length(); i < l; ++i) {
-            try {
-                Object val = tags.get(i);
-                if (val instanceof String && !((String) val).isEmpty()) {
-                    rtn.add((String) val);
-                }
-            } catch (JSONException ex) {
-                Log.e(TAG, "Failed to get tags at position " + i + " from " + tags, ex);
-            }
-        }
-        return rtn;
+        return sTagIndex.get(JSONSyncInstallationCustom.forCurrentUser().getSdkStateSnapshot());
     }
 
     public static boolean hasTag(String tag) {
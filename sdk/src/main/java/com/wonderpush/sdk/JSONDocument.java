@@ -0,0 +1,161 @@
+package com.wonderpush.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable JSON object.
+ *
+ * <p>
+ *     Modifications return a new document sharing every branch they did not touch with the original one,
+ *     so that a document can be handed out as a snapshot in O(1), and a write only copies the objects along its path.
+ * </p>
+ *
+ * <p>
+ *     Values are {@link String}, {@link Number}, {@link Boolean}, {@link JSONObject#NULL},
+ *     nested {@code JSONDocument} for objects, and unmodifiable {@link List} for arrays.
+ *     Use {@link #toJSONObject()} or {@link #toJSON(Object)} to get mutable copies at the API edge.
+ * </p>
+ */
+class JSONDocument {
+
+    static final JSONDocument EMPTY = new JSONDocument(new LinkedHashMap<String, Object>());
+
+    private final Map<String, Object> mFields;
+
+    private JSONDocument(Map<String, Object> fields) {
+        mFields = fields;
+    }
+
+    static JSONDocument fromJSONObject(JSONObject object) {
+        if (object == null) return EMPTY;
+        Map<String, Object> fields = new LinkedHashMap<>();
+        Iterator<String> it = object.keys();
+        while (it.hasNext()) {
+            String key = it.next();
+            fields.put(key, fromJSON(object.opt(key)));
+        }
+        return new JSONDocument(fields);
+    }
+
+    private static Object fromJSON(Object value) {
+        if (value instanceof JSONObject) {
+            return fromJSONObject((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> rtn = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); ++i) {
+                rtn.add(fromJSON(array.opt(i)));
+            }
+            return Collections.unmodifiableList(rtn);
+        }
+        return value;
+    }
+
+    /**
+     * Converts a value read from a document to its mutable JSON counterpart.
+     */
+    static Object toJSON(Object value) throws JSONException {
+        if (value instanceof JSONDocument) {
+            return ((JSONDocument) value).toJSONObject();
+        } else if (value instanceof List) {
+            JSONArray rtn = new JSONArray();
+            for (Object item : (List<?>) value) {
+                rtn.put(toJSON(item));
+            }
+            return rtn;
+        }
+        return value;
+    }
+
+    JSONObject toJSONObject() throws JSONException {
+        JSONObject rtn = new JSONObject();
+        for (Map.Entry<String, Object> entry : mFields.entrySet()) {
+            rtn.put(entry.getKey(), toJSON(entry.getValue()));
+        }
+        return rtn;
+    }
+
+    boolean has(String key) {
+        return mFields.containsKey(key);
+    }
+
+    /**
+     * @return The value, or {@code null} if absent
+     */
+    Object get(String key) {
+        return mFields.get(key);
+    }
+
+    Set<String> keySet() {
+        return Collections.unmodifiableSet(mFields.keySet());
+    }
+
+    int size() {
+        return mFields.size();
+    }
+
+    /**
+     * Returns this document with the given diff merged in, like {@link JSONUtil#merge(JSONObject, JSONObject, boolean)}.
+     * Returns this same instance if the diff changes nothing.
+     */
+    JSONDocument merge(JSONObject diff, boolean nullFieldRemoves) {
+        if (diff == null) return this;
+        // Copied on the first change only
+        Map<String, Object> fields = null;
+        Iterator<String> it = diff.keys();
+        while (it.hasNext()) {
+            String key = it.next();
+            Object vDiff = diff.opt(key);
+            Object vBase = mFields.get(key);
+            boolean remove = false;
+            Object value;
+            if (!mFields.containsKey(key)) {
+                if ((vDiff == null || vDiff == JSONObject.NULL) && nullFieldRemoves) continue;
+                value = fromJSON(vDiff);
+            } else if (vDiff instanceof JSONObject) {
+                value = vBase instanceof JSONDocument
+                        ? ((JSONDocument) vBase).merge((JSONObject) vDiff, nullFieldRemoves)
+                        : fromJSON(vDiff);
+            } else if ((vDiff == null || vDiff == JSONObject.NULL) && nullFieldRemoves) {
+                remove = true;
+                value = null;
+            } else {
+                value = fromJSON(vDiff);
+            }
+            if (!remove && value == vBase) continue;
+            if (fields == null) {
+                fields = new LinkedHashMap<>(mFields);
+            }
+            if (remove) {
+                fields.remove(key);
+            } else {
+                fields.put(key, value);
+            }
+        }
+        return fields == null ? this : new JSONDocument(fields);
+    }
+
+    JSONDocument merge(JSONObject diff) {
+        return merge(diff, true);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return toJSONObject().toString();
+        } catch (JSONException ex) {
+            return "JSONDocument" + mFields;
+        }
+    }
+
+}
@@ -3,6 +3,30 @@ package com.wonderpush.sdk;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synchronizes a JSON object modified by the SDK with the server.
+ *
+ * <p>
+ *     The state is persisted through {@link Callbacks#save(JSONObject)} as a snapshot.
+ *     As {@link #put(JSONObject)} is the most frequent change, and the snapshot can grow large,
+ *     it only persists its diff through {@link Callbacks#saveJournalEntry(int, JSONObject)},
+ *     and a snapshot is taken on any other change, or every {@link #JOURNAL_MAX_ENTRIES} puts.
+ *     The journal entries saved since the last snapshot are replayed by {@link #fromSavedState(Callbacks, JSONObject, List)}.
+ * </p>
+ *
+ * <p>
+ *     The SDK state is a {@link JSONDocument}, so that {@link #getSdkStateSnapshot()} is O(1)
+ *     and a put only copies the objects it modifies.
+ * </p>
+ *
+ * <p>
+ *     A put can be given a {@link DeferredFuture} settled once its changes are acknowledged by the server.
+ *     These are kept in memory only, and follow the put accumulator through patch calls and their retries.
+ * </p>
+ */
 class JSONSync {
 
     interface ResponseHandler {
@@ -11,7 +35,17 @@ class JSONSync {
     }
 
     interface Callbacks {
+        /**
+         * Saves a snapshot of the state, discarding the journal entries saved so far.
+         */
         void save(JSONObject state);
+        /**
+         * Saves an entry to replay after the last snapshot.
+         *
+         * @param index
+         *            The number of entries saved since the last snapshot
+         */
+        void saveJournalEntry(int index, JSONObject entry);
         void schedulePatchCall();
         void serverPatchInstallation(JSONObject diff, ResponseHandler handler);
     }
@@ -25,15 +59,26 @@ class JSONSync {
     private static final String SAVED_STATE_FIELD_INFLIGHT_PUT_ACCUMULATOR = "inflightPutAccumulator";
     private static final String SAVED_STATE_FIELD_SCHEDULED_PATCH_CALL = "scheduledPatchCall";
     private static final String SAVED_STATE_FIELD_INFLIGHT_PATCH_CALL = "inflightPatchCall";
+    private static final String JOURNAL_ENTRY_FIELD_PUT = "put";
+
+    /**
+     * Number of journal entries after which a snapshot is taken, bounding the replay on restore.
+     */
+    static final int JOURNAL_MAX_ENTRIES = 32;
 
     private Callbacks callbacks;
-    private JSONObject sdkState;
+    private JSONDocument sdkState;
     private JSONObject serverState;
     private JSONObject putAccumulator;
     private JSONObject inflightDiff;
     private JSONObject inflightPutAccumulator;
     private boolean scheduledPatchCall;
     private boolean inflightPatchCall;
+    // Number of journal entries saved since the last snapshot
+    private int journalEntries;
+    // Settled with true once the server acknowledges the puts they were given with, not persisted
+    private List<DeferredFuture<Boolean>> putAcks = new ArrayList<>();
+    private List<DeferredFuture<Boolean>> inflightPutAcks = new ArrayList<>();
 
     JSONSync(Callbacks callbacks) {
         this(callbacks, null, null, null, null, null, false, false);
@@ -62,9 +107,19 @@ class JSONSync {
     }
 
     static JSONSync fromSavedState(Callbacks callbacks, JSONObject savedState) throws JSONException {
+        return fromSavedState(callbacks, savedState, null);
+    }
+
+    /**
+     * @param journal
+     *            The journal entries saved since the snapshot, in order
+     */
+    static JSONSync fromSavedState(Callbacks callbacks, JSONObject savedState, List<JSONObject> journal) throws JSONException {
         if (savedState == null) savedState = new JSONObject();
         int version = savedState.has(SAVED_STATE_FIELD_SDK_STATE) ? savedState.getInt(SAVED_STATE_FIELD__SYNC_STATE_VERSION) : SAVED_STATE_STATE_VERSION_1;
-        return new JSONSync(
+        boolean inflightPatchCall = savedState.has(SAVED_STATE_FIELD_INFLIGHT_PATCH_CALL) ? savedState.getBoolean(SAVED_STATE_FIELD_INFLIGHT_PATCH_CALL) : false;
+        // Replay the journal before failing the inflight call, as failing it takes a snapshot
+        JSONSync rtn = new JSONSync(
                 callbacks,
                 savedState.has(SAVED_STATE_FIELD_SDK_STATE)                ? savedState.getJSONObject(SAVED_STATE_FIELD_SDK_STATE)                : null,
                 savedState.has(SAVED_STATE_FIELD_SERVER_STATE)             ? savedState.getJSONObject(SAVED_STATE_FIELD_SERVER_STATE)             : null,
@@ -72,8 +127,28 @@ class JSONSync {
                 savedState.has(SAVED_STATE_FIELD_INFLIGHT_DIFF)            ? savedState.getJSONObject(SAVED_STATE_FIELD_INFLIGHT_DIFF)            : null,
                 savedState.has(SAVED_STATE_FIELD_INFLIGHT_PUT_ACCUMULATOR) ? savedState.getJSONObject(SAVED_STATE_FIELD_INFLIGHT_PUT_ACCUMULATOR) : null,
                 savedState.has(SAVED_STATE_FIELD_SCHEDULED_PATCH_CALL)     ? savedState.getBoolean(SAVED_STATE_FIELD_SCHEDULED_PATCH_CALL)        : true,
-                savedState.has(SAVED_STATE_FIELD_INFLIGHT_PATCH_CALL)      ? savedState.getBoolean(SAVED_STATE_FIELD_INFLIGHT_PATCH_CALL)         : false
+                false
         );
+        if (journal != null) {
+            rtn.replay(journal);
+        }
+        if (inflightPatchCall) {
+            rtn.inflightPatchCall = true;
+            rtn.callPatch_onFailure();
+        }
+        return rtn;
+    }
+
+    private synchronized void replay(List<JSONObject> journal) throws JSONException {
+        for (JSONObject entry : journal) {
+            JSONObject diff = entry.optJSONObject(JOURNAL_ENTRY_FIELD_PUT);
+            if (diff != null) {
+                sdkState = sdkState.merge(diff);
+                JSONUtil.merge(putAccumulator, diff, false);
+                scheduledPatchCall = true;
+            }
+        }
+        journalEntries = journal.size();
     }
 
     JSONSync(Callbacks callbacks, JSONObject sdkState, JSONObject serverState, JSONObject putAccumulator, JSONObject inflightDiff, JSONObject inflightPutAccumulator, boolean scheduledPatchCall, boolean inflightPatchCall) {
@@ -96,7 +171,7 @@ class JSONSync {
         }
 
         this.callbacks = callbacks;
-        this.sdkState = sdkState;
+        this.sdkState = JSONDocument.fromJSONObject(sdkState);
         this.serverState = serverState;
         this.putAccumulator = putAccumulator;
         this.inflightDiff = inflightDiff;
@@ -110,31 +185,73 @@ class JSONSync {
     }
 
     public synchronized JSONObject getSdkState() throws JSONException {
-        return JSONUtil.deepCopy(sdkState);
+        return sdkState.toJSONObject();
+    }
+
+    /**
+     * Returns the current SDK state, without copying it.
+     */
+    synchronized JSONDocument getSdkStateSnapshot() {
+        return sdkState;
     }
 
     private synchronized void save() {
         try {
             JSONObject state = new JSONObject();
             state.put(SAVED_STATE_FIELD__SYNC_STATE_VERSION,      SAVED_STATE_STATE_VERSION_1);
-            state.put(SAVED_STATE_FIELD_SDK_STATE,                sdkState);
+            state.put(SAVED_STATE_FIELD_SDK_STATE,                sdkState.toJSONObject());
             state.put(SAVED_STATE_FIELD_SERVER_STATE,             serverState);
             state.put(SAVED_STATE_FIELD_PUT_ACCUMULATOR,          putAccumulator);
             state.put(SAVED_STATE_FIELD_INFLIGHT_DIFF,            inflightDiff);
             state.put(SAVED_STATE_FIELD_INFLIGHT_PUT_ACCUMULATOR, inflightPutAccumulator);
             state.put(SAVED_STATE_FIELD_SCHEDULED_PATCH_CALL,     scheduledPatchCall);
             state.put(SAVED_STATE_FIELD_INFLIGHT_PATCH_CALL,      inflightPatchCall);
+            journalEntries = 0;
             callbacks.save(state);
         } catch (JSONException ex) {
             WonderPush.logError("Failed to build state object for saving installation custom for " + this, ex);
         }
     }
 
+    /**
+     * Saves a put as a journal entry, or takes a snapshot once there are too many.
+     */
+    private synchronized void savePut(JSONObject diff) {
+        if (journalEntries >= JOURNAL_MAX_ENTRIES) {
+            save();
+            return;
+        }
+        try {
+            JSONObject entry = new JSONObject();
+            // Copied, as the caller may modify the diff afterwards
+            entry.put(JOURNAL_ENTRY_FIELD_PUT, JSONUtil.deepCopy(diff));
+            callbacks.saveJournalEntry(journalEntries++, entry);
+        } catch (JSONException ex) {
+            WonderPush.logError("Failed to build journal entry for " + diff + ", saving the whole state instead", ex);
+            save();
+        }
+    }
+
     public synchronized void put(JSONObject diff) throws JSONException {
+        put(diff, null);
+    }
+
+    /**
+     * @param ack
+     *            Settled with {@code true} once the server acknowledges this diff,
+     *            or with {@code false} if it is discarded by {@link #receiveState(JSONObject, boolean)}.
+     *            Failed patch calls are retried, leaving it pending.
+     */
+    synchronized void put(JSONObject diff, DeferredFuture<Boolean> ack) throws JSONException {
         if (diff == null) diff = new JSONObject();
-        JSONUtil.merge(sdkState, diff);
+        sdkState = sdkState.merge(diff);
         JSONUtil.merge(putAccumulator, diff, false);
-        schedulePatchCallAndSave();
+        if (ack != null) {
+            putAcks.add(ack);
+        }
+        scheduledPatchCall = true;
+        savePut(diff);
+        callbacks.schedulePatchCall();
     }
 
     public synchronized void receiveServerState(JSONObject srvState) throws JSONException {
@@ -148,12 +265,12 @@ class JSONSync {
         if (receivedState == null) receivedState = new JSONObject();
         serverState = JSONUtil.deepCopy(receivedState);
         JSONUtil.stripNulls(serverState);
-        sdkState = JSONUtil.deepCopy(serverState);
+        sdkState = JSONDocument.fromJSONObject(serverState);
         if (resetSdkState) {
             putAccumulator = new JSONObject();
+            settle(putAcks, false);
         } else {
-            JSONUtil.merge(sdkState, putAccumulator);
-            JSONUtil.merge(sdkState, inflightDiff);
+            sdkState = sdkState.merge(putAccumulator).merge(inflightDiff);
         }
         schedulePatchCallAndSave();
     }
@@ -162,7 +279,10 @@ class JSONSync {
         if (diff == null) diff = new JSONObject();
         // The diff is already server-side, by contract
         JSONUtil.merge(serverState, diff);
-        put(diff);
+        // The server state changed too, a journal entry would not do
+        sdkState = sdkState.merge(diff);
+        JSONUtil.merge(putAccumulator, diff, false);
+        schedulePatchCallAndSave();
     }
 
     private synchronized void schedulePatchCallAndSave() {
@@ -201,17 +321,21 @@ class JSONSync {
         scheduledPatchCall = false;
 
         try {
-            inflightDiff = JSONUtil.diff(serverState, sdkState);
+            inflightDiff = JSONUtil.diff(serverState, sdkState.toJSONObject());
         } catch (JSONException ex) {
             WonderPush.logError("Failed to diff server state and sdk state to send installation custom diff", ex);
             inflightDiff = new JSONObject();
         }
         if (inflightDiff.length() == 0) {
             WonderPush.logDebug("No diff to send to server");
+            // The server already has every put
+            settle(putAcks, true);
             save();
             return;
         }
         inflightPatchCall = true;
+        inflightPutAcks = putAcks;
+        putAcks = new ArrayList<>();
 
         try {
             inflightPutAccumulator = JSONUtil.deepCopy(putAccumulator);
@@ -237,6 +361,7 @@ class JSONSync {
     private synchronized void callPatch_onSuccess() {
         inflightPatchCall = false;
         inflightPutAccumulator = new JSONObject();
+        settle(inflightPutAcks, true);
         try {
             JSONUtil.merge(serverState, inflightDiff);
             inflightDiff = new JSONObject();
@@ -255,9 +380,19 @@ class JSONSync {
         }
         putAccumulator = inflightPutAccumulator;
         inflightPutAccumulator = new JSONObject();
+        inflightPutAcks.addAll(putAcks);
+        putAcks = inflightPutAcks;
+        inflightPutAcks = new ArrayList<>();
         schedulePatchCallAndSave();
     }
 
+    private static void settle(List<DeferredFuture<Boolean>> acks, boolean acknowledged) {
+        for (DeferredFuture<Boolean> ack : acks) {
+            ack.set(acknowledged);
+        }
+        acks.clear();
+    }
+
     @Override
     public synchronized String toString() {
         return "JSONSync"
@@ -1,28 +1,50 @@
 package com.wonderpush.sdk;
 
-import android.os.SystemClock;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 class JSONSyncInstallationCustom {
 
+    /**
+     * Sends the PATCH call carrying the diff of a user.
+     */
+    interface PatchSender {
+        void patch(String userId, JSONObject body, ResponseHandler handler);
+    }
+
+    static final PatchSender REST_CLIENT_SENDER = new PatchSender() {
+        @Override
+        public void patch(String userId, JSONObject body, ResponseHandler handler) {
+            RequestParams parameters = new RequestParams();
+            parameters.put("body", body.toString());
+            WonderPushRestClient.requestForUser(userId, WonderPushRestClient.HttpMethod.PATCH, "/installation", parameters, handler);
+        }
+    };
+
     private static final Map<String, JSONSyncInstallationCustom> sInstancePerUserId = new HashMap<>();
     private static boolean initialized = false;
 
     private final String userId;
     private final JSONSync sync;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private final PatchSender sender;
+    // Each user coalesces its own writes within the min/max delay window
     private long firstDelayedWriteDate;
-
-    private static ScheduledFuture<Void> scheduledPatchCallDelayedTask;
+    private ScheduledFuture<Void> scheduledPatchCallDelayedTask;
 
     private class Callbacks implements JSONSync.Callbacks {
         @Override
@@ -30,6 +52,11 @@ class JSONSyncInstallationCustom {
             _save(state);
         }
 
+        @Override
+        public void saveJournalEntry(int index, JSONObject entry) {
+            _saveJournalEntry(index, entry);
+        }
+
         @Override
         public void schedulePatchCall() {
             _schedulePatchCall();
@@ -48,32 +75,34 @@ class JSONSyncInstallationCustom {
             }
             initialized = true;
 
-            JSONObject installationCustomSyncStatePerUserId = WonderPushConfiguration.getInstallationCustomSyncStatePerUserId();
-            if (installationCustomSyncStatePerUserId == null) installationCustomSyncStatePerUserId = new JSONObject();
-            Iterator<String> it = installationCustomSyncStatePerUserId.keys();
-            while (it.hasNext()) {
-                String userId = it.next();
-                JSONObject state = installationCustomSyncStatePerUserId.optJSONObject(userId);
-                if (userId != null && userId.length() == 0) userId = null;
-                sInstancePerUserId.put(userId, new JSONSyncInstallationCustom(userId, state));
+            for (String userId : WonderPushConfiguration.listUserIdsWithInstallationCustomSyncState()) {
+                JSONObject state = copy(WonderPushConfiguration.getInstallationCustomSyncStateForUserId(userId));
+                List<JSONObject> journal = WonderPushConfiguration.getInstallationCustomSyncJournalForUserId(userId);
+                sInstancePerUserId.put(userId, new JSONSyncInstallationCustom(userId, state, journal));
             }
-            String oldUserId = WonderPushConfiguration.getUserId();
-            try {
-                for (String userId : WonderPushConfiguration.listKnownUserIds()) {
-                    if (!sInstancePerUserId.containsKey(userId)) {
-                        WonderPushConfiguration.changeUserId(userId);
-                        sInstancePerUserId.put(userId, new JSONSyncInstallationCustom(
-                                userId,
-                                WonderPushConfiguration.getCachedInstallationCustomPropertiesUpdated(),
-                                WonderPushConfiguration.getCachedInstallationCustomPropertiesWritten()
-                        ));
+            // Switching to each user and back is written once
+            WonderPushConfiguration.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    String oldUserId = WonderPushConfiguration.getUserId();
+                    try {
+                        for (String userId : WonderPushConfiguration.listKnownUserIds()) {
+                            if (!sInstancePerUserId.containsKey(userId)) {
+                                WonderPushConfiguration.changeUserId(userId);
+                                sInstancePerUserId.put(userId, new JSONSyncInstallationCustom(
+                                        userId,
+                                        copy(WonderPushConfiguration.getCachedInstallationCustomPropertiesUpdated()),
+                                        copy(WonderPushConfiguration.getCachedInstallationCustomPropertiesWritten())
+                                ));
+                            }
+                        }
+                    } catch (Exception ex) {
+                        Log.e(WonderPush.TAG, "Unexpected error while initializing installation customs", ex);
+                    } finally {
+                        WonderPushConfiguration.changeUserId(oldUserId);
                     }
                 }
-            } catch (Exception ex) {
-                Log.e(WonderPush.TAG, "Unexpected error while initializing installation customs", ex);
-            } finally {
-                WonderPushConfiguration.changeUserId(oldUserId);
-            }
+            });
 
             // Adding the listener here will catch the an initial call triggered after this function is called, all during SDK initialization.
             // It also flushes any scheduled call that was dropped when the user withdrew consent.
@@ -88,45 +117,88 @@ class JSONSyncInstallationCustom {
         }
     }
 
+    /**
+     * Copies a JSON object read from {@link WonderPushConfiguration}, as {@link JSONSync} modifies the objects it is given.
+     */
+    private static JSONObject copy(JSONObject object) {
+        if (object == null) return null;
+        try {
+            return JSONUtil.deepCopy(object);
+        } catch (JSONException ex) {
+            Log.e(WonderPush.TAG, "Failed to copy " + object, ex);
+            return null;
+        }
+    }
+
     static JSONSyncInstallationCustom forCurrentUser() {
         return forUser(WonderPushConfiguration.getUserId());
     }
 
     static JSONSyncInstallationCustom forUser(String userId) {
+        // Load the persisted states first if the SDK initialization has not done it yet
+        initialize();
         if (userId != null && userId.length() == 0) userId = null;
         synchronized (sInstancePerUserId) {
             JSONSyncInstallationCustom rtn = sInstancePerUserId.get(userId);
             if (rtn == null) {
-                rtn = new JSONSyncInstallationCustom(userId, null);
+                rtn = new JSONSyncInstallationCustom(userId, null, Collections.<JSONObject>emptyList());
                 sInstancePerUserId.put(userId, rtn);
             }
             return rtn;
         }
     }
 
+    /**
+     * Sends the delayed updates of every user at once.
+     *
+     * <p>
+     *     All scheduled tasks are cancelled first, then every user with pending changes starts its PATCH call,
+     *     which are all queued to the REST client without waiting for each other.
+     * </p>
+     */
     public static void flushAll() {
         WonderPush.logDebug("Flushing delayed updates of custom properties for all known users");
+        List<JSONSyncInstallationCustom> instances;
         synchronized (sInstancePerUserId) {
-            for (JSONSyncInstallationCustom sync : sInstancePerUserId.values()) {
-                sync.flush();
-            }
+            instances = new ArrayList<>(sInstancePerUserId.values());
+        }
+        flushAll(instances);
+    }
+
+    static void flushAll(Collection<JSONSyncInstallationCustom> instances) {
+        for (JSONSyncInstallationCustom sync : instances) {
+            sync.cancelScheduledPatchCall();
+        }
+        for (JSONSyncInstallationCustom sync : instances) {
+            sync._performScheduledPatchCall();
         }
     }
 
     private JSONSyncInstallationCustom(String userId, JSONObject sdkState, JSONObject serverState) {
         if (userId != null && userId.length() == 0) userId = null;
         this.userId = userId;
+        this.clock = Clock.SYSTEM;
+        this.scheduler = WonderPush.sScheduledExecutor;
+        this.sender = REST_CLIENT_SENDER;
 
         sync = JSONSync.fromSdkStateAndServerState(new Callbacks(), sdkState, serverState);
     }
 
-    private JSONSyncInstallationCustom(String userId, JSONObject savedState) {
+    private JSONSyncInstallationCustom(String userId, JSONObject savedState, List<JSONObject> journal) {
+        this(userId, savedState, journal, Clock.SYSTEM, WonderPush.sScheduledExecutor, REST_CLIENT_SENDER);
+    }
+
+    JSONSyncInstallationCustom(String userId, JSONObject savedState, List<JSONObject> journal,
+                               Clock clock, ScheduledExecutorService scheduler, PatchSender sender) {
         if (userId != null && userId.length() == 0) userId = null;
         this.userId = userId;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.sender = sender;
 
         JSONSync sync;
         try {
-            sync = JSONSync.fromSavedState(new Callbacks(), savedState);
+            sync = JSONSync.fromSavedState(new Callbacks(), savedState, journal);
         } catch (JSONException ex) {
             Log.e(WonderPush.TAG, "Failed to restore installation custom from saved state for user " + userId + " and state " + savedState, ex);
             sync = new JSONSync(new Callbacks());
@@ -135,25 +207,25 @@ class JSONSyncInstallationCustom {
     }
 
     synchronized void flush() {
+        cancelScheduledPatchCall();
+        _performScheduledPatchCall();
+    }
+
+    private synchronized void cancelScheduledPatchCall() {
         if (scheduledPatchCallDelayedTask != null) {
             scheduledPatchCallDelayedTask.cancel(false);
             scheduledPatchCallDelayedTask = null;
         }
-        _performScheduledPatchCall();
     }
 
     private synchronized void _save(JSONObject state) {
         WonderPush.logDebug("Saving installation custom state for userId " + userId + ": " + state);
-        String key = userId == null ? "" : userId;
-        JSONObject installationCustomSyncStatePerUserId = WonderPushConfiguration.getInstallationCustomSyncStatePerUserId();
-        if (installationCustomSyncStatePerUserId == null) installationCustomSyncStatePerUserId = new JSONObject();
-        if (state == null) state = new JSONObject();
-        try {
-            installationCustomSyncStatePerUserId.put(key, state);
-        } catch (JSONException ex) {
-            Log.e(WonderPush.TAG, "Failed to save installation custom sync state for user " + userId + " and value " + state, ex);
-        }
-        WonderPushConfiguration.setInstallationCustomSyncStatePerUserId(installationCustomSyncStatePerUserId);
+        WonderPushConfiguration.setInstallationCustomSyncStateForUserId(userId, state == null ? new JSONObject() : state);
+    }
+
+    private synchronized void _saveJournalEntry(int index, JSONObject entry) {
+        WonderPush.logDebug("Saving installation custom journal entry " + index + " for userId " + userId + ": " + entry);
+        WonderPushConfiguration.setInstallationCustomSyncJournalEntryForUserId(userId, index, entry);
     }
 
     private synchronized void _schedulePatchCall() {
@@ -161,7 +233,7 @@ class JSONSyncInstallationCustom {
         if (scheduledPatchCallDelayedTask != null) {
             scheduledPatchCallDelayedTask.cancel(false);
         }
-        long nowRT = SystemClock.elapsedRealtime();
+        long nowRT = clock.elapsedRealtime();
         if (firstDelayedWriteDate == 0) firstDelayedWriteDate = nowRT;
         if (!WonderPush.hasUserConsent()) {
             WonderPush.logDebug("Delaying scheduled patch call until user consent is provided for installation custom state for userId " + userId);
@@ -177,7 +249,7 @@ class JSONSyncInstallationCustom {
             });
             return;
         }
-        scheduledPatchCallDelayedTask = WonderPush.sScheduledExecutor.schedule(
+        scheduledPatchCallDelayedTask = scheduler.schedule(
                 new Callable<Void>() {
                     @Override
                     public Void call() {
@@ -213,9 +285,7 @@ class JSONSyncInstallationCustom {
             WonderPush.logDebug("Sending installation custom diff " + diff + " for user " + userId);
             JSONObject body = new JSONObject();
             body.put("custom", diff);
-            RequestParams parameters = new RequestParams();
-            parameters.put("body", body.toString());
-            WonderPushRestClient.requestForUser(userId, WonderPushRestClient.HttpMethod.PATCH, "/installation", parameters, new ResponseHandler() {
+            sender.patch(userId, body, new ResponseHandler() {
                 @Override
                 public void onFailure(Throwable ex, Response errorResponse) {
                     Log.e(WonderPush.TAG, "Failed to send installation custom diff, got " + errorResponse, ex);
@@ -259,10 +329,18 @@ class JSONSyncInstallationCustom {
         return sync.getSdkState();
     }
 
+    JSONDocument getSdkStateSnapshot() {
+        return sync.getSdkStateSnapshot();
+    }
+
     public void put(JSONObject diff) throws JSONException {
         sync.put(diff);
     }
 
+    void put(JSONObject diff, DeferredFuture<Boolean> ack) throws JSONException {
+        sync.put(diff, ack);
+    }
+
     public void receiveServerState(JSONObject srvState) throws JSONException {
         sync.receiveServerState(srvState);
     }
@@ -29,11 +29,7 @@ class JSONUtil {
             String key = it.next();
             Object vDiff = diff.get(key);
             if (!base.has(key)) {
-                if (vDiff instanceof JSONObject) {
-                    vDiff = new JSONObject(vDiff.toString());
-                } else if (vDiff instanceof JSONArray) {
-                    vDiff = new JSONArray(vDiff.toString());
-                }
+                vDiff = deepCopyValue(vDiff);
                 if ((vDiff != null && vDiff != JSONObject.NULL) || !nullFieldRemoves) {
                     base.put(key, vDiff);
                 }
@@ -42,10 +38,10 @@ class JSONUtil {
                 if (vBase instanceof JSONObject) {
                     merge((JSONObject)vBase, (JSONObject)vDiff, nullFieldRemoves);
                 } else {
-                    base.put(key, vDiff);
+                    base.put(key, deepCopy((JSONObject) vDiff));
                 }
             } else if (vDiff instanceof JSONArray) {
-                base.put(key, new JSONArray(vDiff.toString()));
+                base.put(key, deepCopy((JSONArray) vDiff));
             } else if ((vDiff == null || vDiff == JSONObject.NULL) && nullFieldRemoves) {
                 base.remove(key);
             } else {
@@ -59,7 +55,7 @@ class JSONUtil {
             if (to == null) {
                 return null;
             } else {
-                return new JSONObject(to.toString());
+                return deepCopy(to);
             }
         } else if (to == null) {
             return null;
@@ -80,12 +76,8 @@ class JSONUtil {
             if (!equals(vFrom, vTo)) {
                 if (vFrom instanceof JSONObject && vTo instanceof JSONObject) {
                     rtn.put(key, diff((JSONObject)vFrom, (JSONObject)vTo));
-                } else if (vTo instanceof JSONObject) {
-                    rtn.put(key, new JSONObject(vTo.toString()));
-                } else if (vTo instanceof JSONArray) {
-                    rtn.put(key, new JSONArray(vTo.toString()));
                 } else {
-                    rtn.put(key, vTo);
+                    rtn.put(key, deepCopyValue(vTo));
                 }
             }
         }
@@ -94,14 +86,7 @@ class JSONUtil {
         while (it.hasNext()) {
             String key = it.next();
             if (from.has(key)) continue;
-            Object vTo = to.opt(key);
-            if (vTo instanceof JSONObject) {
-                rtn.put(key, new JSONObject(vTo.toString()));
-            } else if (vTo instanceof JSONArray) {
-                rtn.put(key, new JSONArray(vTo.toString()));
-            } else {
-                rtn.put(key, vTo);
-            }
+            rtn.put(key, deepCopyValue(to.opt(key)));
         }
 
         return rtn;
@@ -184,11 +169,45 @@ class JSONUtil {
         }
     }
 
+    /**
+     * Copies the tree structurally, without serializing and parsing it back.
+     * Only {@link JSONObject} and {@link JSONArray} are copied, other values are immutable and shared.
+     */
     protected static JSONObject deepCopy(JSONObject from) throws JSONException {
         if (from == null) {
             return null;
         }
-        return new JSONObject(from.toString());
+        JSONObject rtn = new JSONObject();
+        Iterator<String> it = from.keys();
+        while (it.hasNext()) {
+            String key = it.next();
+            rtn.put(key, deepCopyValue(from.opt(key)));
+        }
+        return rtn;
+    }
+
+    /**
+     * @see #deepCopy(JSONObject)
+     */
+    protected static JSONArray deepCopy(JSONArray from) throws JSONException {
+        if (from == null) {
+            return null;
+        }
+        int length = from.length();
+        JSONArray rtn = new JSONArray();
+        for (int i = 0; i < length; ++i) {
+            rtn.put(deepCopyValue(from.opt(i)));
+        }
+        return rtn;
+    }
+
+    private static Object deepCopyValue(Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            return deepCopy((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            return deepCopy((JSONArray) value);
+        }
+        return value;
     }
 
     static Object parseAllJSONStrings(Object base) {
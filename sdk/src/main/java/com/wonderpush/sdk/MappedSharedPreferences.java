@@ -0,0 +1,698 @@
+package com.wonderpush.sdk;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link SharedPreferences} stored in a memory-mapped, append-only file.
+ *
+ * <p>
+ *     Each {@link Editor} applied appends a single record holding all of its changes,
+ *     instead of rewriting the whole file like {@link SharedPreferences} does.
+ *     Records are framed by their length and CRC32: one partially written by a process death is discarded on opening.
+ *     Once the file grows to twice the size of the live values, it is rewritten with only these,
+ *     into a temporary file that then replaces it.
+ * </p>
+ *
+ * <p>
+ *     Changes are visible in memory as soon as they are applied, and their records are queued in order.
+ *     {@link Editor#apply()} leaves the append and any compaction to the given executor,
+ *     where the record reaches the page cache, which survives a process death.
+ *     {@link Editor#commit()} appends the queued records on the calling thread and forces them to the disk,
+ *     still leaving compaction to the executor.
+ *     Listeners are called on the thread applying the changes.
+ * </p>
+ */
+class MappedSharedPreferences implements SharedPreferences {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x57504B56; // WPKV
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    // Length and CRC32 of the record body
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    static final int MIN_CAPACITY = 16 * 1024;
+
+    /**
+     * Do not bother compacting files smaller than this.
+     */
+    static final int COMPACTION_MIN_BYTES = 64 * 1024;
+
+    private static final byte OP_CLEAR = 'C';
+    private static final byte OP_PUT = 'P';
+    private static final byte OP_REMOVE = 'R';
+
+    private static final byte TYPE_STRING = 's';
+    private static final byte TYPE_INT = 'i';
+    private static final byte TYPE_LONG = 'l';
+    private static final byte TYPE_FLOAT = 'f';
+    private static final byte TYPE_BOOLEAN = 'b';
+    private static final byte TYPE_STRING_SET = 'S';
+
+    private static final Object REMOVED = new Object();
+
+    private final File mFile;
+    private final Executor mWriter;
+    // Guarded by this
+    private final Map<String, Object> mValues = new HashMap<>();
+    private final Set<OnSharedPreferenceChangeListener> mListeners = Collections.newSetFromMap(new WeakHashMap<OnSharedPreferenceChangeListener, Boolean>());
+    // Records not appended yet, in the order their changes were applied in memory, guarded by itself
+    private final List<byte[]> mPendingRecords = new ArrayList<>();
+    private boolean mWriteScheduled;
+    // Guards the file and the fields below, taken before this when both are needed
+    private final Object mFileLock = new Object();
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    // End of the last valid record
+    private int mLength;
+    private int mNextCompactionCheck;
+    private int mCompactions;
+
+    /**
+     * Opens the store, writing on the calling thread.
+     */
+    MappedSharedPreferences(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Opens the store, replaying its records.
+     * A trailing record that was not completely written is discarded.
+     *
+     * @param writer
+     *            Runs the appends of applied changes and the compactions, {@code null} to run them on the calling thread
+     */
+    MappedSharedPreferences(File file, Executor writer) throws IOException {
+        mFile = file;
+        mWriter = writer;
+        synchronized (mFileLock) {
+            File parent = mFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create directory " + parent);
+            }
+            map();
+            synchronized (this) {
+                mLength = replay(mBuffer, mValues, mFile);
+            }
+            if (mLength + 4 <= mBuffer.capacity()) {
+                // Anything left after the last valid record is garbage to be overwritten
+                mBuffer.putInt(mLength, 0);
+            }
+            mNextCompactionCheck = Math.max(COMPACTION_MIN_BYTES, 2 * mLength);
+        }
+    }
+
+    /**
+     * Reads the values of a store without mapping it, to recover them when it cannot be opened.
+     */
+    static Map<String, Object> read(File file) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(Integer.MAX_VALUE, file.length())];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(bytes);
+        } finally {
+            input.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < FILE_HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported format: " + file);
+        }
+        Map<String, Object> rtn = new HashMap<>();
+        replay(buffer, rtn, file);
+        return rtn;
+    }
+
+    /**
+     * Atomically replaces the given file with a store holding the given values.
+     * Used to import existing preferences, and for compaction.
+     */
+    static void write(File file, Map<String, ?> values) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream data = new DataOutputStream(output);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            byte[] body = encode(false, values);
+            data.writeInt(body.length);
+            data.writeInt(crc(body, 0, body.length));
+            data.write(body);
+            data.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the size of the valid records in the file, in bytes.
+     */
+    int length() {
+        synchronized (mFileLock) {
+            return mLength;
+        }
+    }
+
+    int getCompactionCount() {
+        synchronized (mFileLock) {
+            return mCompactions;
+        }
+    }
+
+    /**
+     * Appends the pending records, then closes the file.
+     */
+    void close() throws IOException {
+        synchronized (mFileLock) {
+            writePendingRecords(false);
+            unmap();
+        }
+    }
+
+    private void unmap() throws IOException {
+        mBuffer = null;
+        if (mRaf != null) {
+            // Also closes the channel
+            mRaf.close();
+            mRaf = null;
+            mChannel = null;
+        }
+    }
+
+    private void map() throws IOException {
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = mRaf.getChannel();
+        long size = mChannel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + mFile);
+        }
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_CAPACITY, size));
+        if (size < FILE_HEADER_SIZE) {
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(FILE_HEADER_SIZE, 0);
+        } else if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported format: " + mFile);
+        }
+    }
+
+    /**
+     * Reads the records of the given buffer into the given values.
+     *
+     * @return The end of the last valid record
+     */
+    private static int replay(ByteBuffer buffer, Map<String, Object> values, File file) {
+        values.clear();
+        int position = FILE_HEADER_SIZE;
+        int capacity = buffer.capacity();
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            int length = buffer.getInt(position);
+            if (length == 0) break;
+            if (length < 0 || length > capacity - position - RECORD_HEADER_SIZE) {
+                WonderPush.logDebug("MappedSharedPreferences: discarding invalid record at " + position + " in " + file);
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.get(body);
+            if (crc(body, 0, length) != buffer.getInt(position + 4)) {
+                WonderPush.logDebug("MappedSharedPreferences: discarding partial record at " + position + " in " + file);
+                break;
+            }
+            try {
+                decode(body, values);
+            } catch (IOException ex) {
+                WonderPush.logError("MappedSharedPreferences: discarding malformed record at " + position + " in " + file, ex);
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private void append(byte[] body) throws IOException {
+        // Keep room for the terminating zero length
+        ensureCapacity(mLength + RECORD_HEADER_SIZE + body.length + 4);
+        int position = mLength;
+        mBuffer.putInt(position + RECORD_HEADER_SIZE + body.length, 0);
+        mBuffer.putInt(position + 4, crc(body, 0, body.length));
+        mBuffer.position(position + RECORD_HEADER_SIZE);
+        mBuffer.put(body);
+        // Written last, so that the record is only seen once complete
+        mBuffer.putInt(position, body.length);
+        mLength = position + RECORD_HEADER_SIZE + body.length;
+    }
+
+    private void ensureCapacity(int capacity) throws IOException {
+        if (mBuffer == null) {
+            throw new IOException("Store is closed: " + mFile);
+        }
+        if (capacity <= mBuffer.capacity()) return;
+        long newCapacity = Math.max(capacity, 2L * mBuffer.capacity());
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + mFile);
+        }
+        // Mapping beyond the end of the file grows it
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+    }
+
+    /**
+     * Appends the records queued so far, in order.
+     * Must be called with {@link #mFileLock} held.
+     *
+     * @return Whether they were all written
+     */
+    private boolean writePendingRecords(boolean force) {
+        List<byte[]> records;
+        synchronized (mPendingRecords) {
+            records = new ArrayList<>(mPendingRecords);
+            mPendingRecords.clear();
+        }
+        if (records.isEmpty() && !force) return true;
+        try {
+            for (byte[] record : records) {
+                append(record);
+            }
+            if (force && mBuffer != null) {
+                mBuffer.force();
+            }
+            return true;
+        } catch (IOException ex) {
+            Log.e(WonderPush.TAG, "Could not write to " + mFile, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Makes the writer append the pending records, then compact the file if needed.
+     */
+    private void scheduleWrite() {
+        synchronized (mPendingRecords) {
+            if (mWriteScheduled) return;
+            mWriteScheduled = true;
+        }
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingRecords) {
+                    mWriteScheduled = false;
+                }
+                synchronized (mFileLock) {
+                    if (mBuffer == null) return;
+                    writePendingRecords(false);
+                    try {
+                        compactIfNeeded();
+                    } catch (IOException ex) {
+                        Log.e(WonderPush.TAG, "Could not compact " + mFile, ex);
+                    }
+                }
+            }
+        };
+        if (mWriter == null) {
+            write.run();
+        } else {
+            mWriter.execute(write);
+        }
+    }
+
+    /**
+     * Must be called with {@link #mFileLock} held.
+     */
+    private void compactIfNeeded() throws IOException {
+        if (mLength < mNextCompactionCheck) return;
+        // The values may already hold changes whose records are still pending:
+        // appending them after the snapshot leads to the same values again.
+        Map<String, Object> values;
+        synchronized (this) {
+            values = new HashMap<>(mValues);
+        }
+        byte[] snapshot = encode(false, values);
+        if (2L * (FILE_HEADER_SIZE + RECORD_HEADER_SIZE + snapshot.length) > mLength) {
+            // Mostly live data, check again once it has grown as much
+            mNextCompactionCheck = Math.max(COMPACTION_MIN_BYTES, 2 * mLength);
+            return;
+        }
+        WonderPush.logDebug("MappedSharedPreferences: compacting " + mFile + " from " + mLength + " bytes");
+        write(mFile, values);
+        unmap();
+        map();
+        mLength = FILE_HEADER_SIZE + RECORD_HEADER_SIZE + snapshot.length;
+        if (mLength + 4 <= mBuffer.capacity()) {
+            mBuffer.putInt(mLength, 0);
+        }
+        mNextCompactionCheck = Math.max(COMPACTION_MIN_BYTES, 2 * mLength);
+        ++mCompactions;
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Encodes a record body: the number of operations followed by each of them.
+     *
+     * @param changes
+     *            The values to put, or {@link #REMOVED} for the keys to remove
+     */
+    private static byte[] encode(boolean clear, Map<String, ?> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(changes.size() + (clear ? 1 : 0));
+        if (clear) {
+            data.writeByte(OP_CLEAR);
+        }
+        for (Map.Entry<String, ?> entry : changes.entrySet()) {
+            Object value = entry.getValue();
+            if (value == REMOVED || value == null) {
+                data.writeByte(OP_REMOVE);
+                writeString(data, entry.getKey());
+                continue;
+            }
+            data.writeByte(OP_PUT);
+            writeString(data, entry.getKey());
+            if (value instanceof String) {
+                data.writeByte(TYPE_STRING);
+                writeString(data, (String) value);
+            } else if (value instanceof Integer) {
+                data.writeByte(TYPE_INT);
+                data.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                data.writeByte(TYPE_LONG);
+                data.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                data.writeByte(TYPE_FLOAT);
+                data.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                data.writeByte(TYPE_BOOLEAN);
+                data.writeBoolean((Boolean) value);
+            } else if (value instanceof Set) {
+                Set<?> set = (Set<?>) value;
+                data.writeByte(TYPE_STRING_SET);
+                data.writeInt(set.size());
+                for (Object item : set) {
+                    writeString(data, (String) item);
+                }
+            } else {
+                throw new IOException("Unsupported preference type " + value.getClass() + " for key " + entry.getKey());
+            }
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void decode(byte[] body, Map<String, Object> values) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+        int count = data.readInt();
+        for (int i = 0; i < count; ++i) {
+            byte op = data.readByte();
+            if (op == OP_CLEAR) {
+                values.clear();
+            } else if (op == OP_REMOVE) {
+                values.remove(readString(data));
+            } else if (op == OP_PUT) {
+                String key = readString(data);
+                byte type = data.readByte();
+                switch (type) {
+                    case TYPE_STRING:
+                        values.put(key, readString(data));
+                        break;
+                    case TYPE_INT:
+                        values.put(key, data.readInt());
+                        break;
+                    case TYPE_LONG:
+                        values.put(key, data.readLong());
+                        break;
+                    case TYPE_FLOAT:
+                        values.put(key, data.readFloat());
+                        break;
+                    case TYPE_BOOLEAN:
+                        values.put(key, data.readBoolean());
+                        break;
+                    case TYPE_STRING_SET:
+                        int size = data.readInt();
+                        Set<String> set = new HashSet<>();
+                        for (int j = 0; j < size; ++j) {
+                            set.add(readString(data));
+                        }
+                        values.put(key, Collections.unmodifiableSet(set));
+                        break;
+                    default:
+                        throw new IOException("Unknown type " + type);
+                }
+            } else {
+                throw new IOException("Unknown operation " + op);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0 || length > data.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Applies the changes of an editor in memory and queues their record.
+     *
+     * @param force
+     *            Whether to append the record and force it to the disk before returning
+     * @return Whether the changes were persisted, always {@code true} unless forced
+     */
+    private boolean commit(boolean clear, Map<String, Object> changes, boolean force) {
+        if (!clear && changes.isEmpty()) return true;
+        boolean persisted = true;
+        List<String> changedKeys = new ArrayList<>();
+        List<OnSharedPreferenceChangeListener> listeners;
+        synchronized (this) {
+            if (clear) {
+                changedKeys.addAll(mValues.keySet());
+                mValues.clear();
+            }
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    mValues.remove(entry.getKey());
+                } else {
+                    mValues.put(entry.getKey(), entry.getValue());
+                }
+                changedKeys.add(entry.getKey());
+            }
+            try {
+                // Queued with the memory update, so that records are in the same order as the changes
+                byte[] record = encode(clear, changes);
+                synchronized (mPendingRecords) {
+                    mPendingRecords.add(record);
+                }
+            } catch (IOException ex) {
+                Log.e(WonderPush.TAG, "Could not write to " + mFile, ex);
+                persisted = false;
+            }
+            listeners = new ArrayList<>(mListeners);
+        }
+        if (force) {
+            synchronized (mFileLock) {
+                persisted = writePendingRecords(true) && persisted;
+            }
+        }
+        // Also compacts if needed, off the calling thread
+        scheduleWrite();
+        for (OnSharedPreferenceChangeListener listener : listeners) {
+            for (String key : changedKeys) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+        return persisted;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = mValues.get(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new EditorImpl();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public String toString() {
+        return "MappedSharedPreferences{file=" + mFile + ",length=" + length() + "}";
+    }
+
+    private class EditorImpl implements Editor {
+
+        private final Map<String, Object> mChanges = new HashMap<>();
+        private boolean mClear;
+
+        private synchronized Editor put(String key, Object value) {
+            mChanges.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return commitChanges(true);
+        }
+
+        @Override
+        public void apply() {
+            commitChanges(false);
+        }
+
+        private boolean commitChanges(boolean force) {
+            boolean clear;
+            Map<String, Object> changes;
+            synchronized (this) {
+                clear = mClear;
+                changes = new HashMap<>(mChanges);
+                mClear = false;
+                mChanges.clear();
+            }
+            return MappedSharedPreferences.this.commit(clear, changes, force);
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.wonderpush.sdk;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+
+/**
+ * An {@link HttpTransport} using OkHttp, which brings HTTP/2 and a shared connection pool.
+ *
+ * <p>
+ *     OkHttp is not a dependency of the SDK, this transport is only available when the application includes it.
+ *     Check {@link #isAvailable()} before loading this class.
+ * </p>
+ */
+class OkHttpTransport implements HttpTransport {
+
+    private static final String OKHTTP_CLIENT_CLASS = "okhttp3.OkHttpClient";
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000; // in milliseconds
+
+    /**
+     * Whether OkHttp is present in the application.
+     */
+    static boolean isAvailable() {
+        try {
+            Class.forName(OKHTTP_CLIENT_CLASS);
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        } catch (LinkageError ex) {
+            return false;
+        }
+    }
+
+    private final OkHttpClient mClient;
+
+    /**
+     * @param connectTimeout
+     *            Connect timeout, in milliseconds
+     * @param readTimeout
+     *            Read and write timeout, in milliseconds
+     */
+    OkHttpTransport(int connectTimeout, int readTimeout) {
+        mClient = new OkHttpClient.Builder()
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION, TimeUnit.MILLISECONDS))
+                .build();
+    }
+
+    @Override
+    public String getName() {
+        return "OkHttp";
+    }
+
+    @Override
+    public void execute(Request request, final Callback callback) {
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(request.url);
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        RequestBody body = null;
+        if (request.body != null) {
+            body = RequestBody.create(request.contentType == null ? null : MediaType.parse(request.contentType), request.body);
+        } else if ("POST".equals(request.method) || "PUT".equals(request.method) || "PATCH".equals(request.method)) {
+            // OkHttp requires a body for these methods
+            body = RequestBody.create(null, new byte[0]);
+        }
+        builder.method(request.method, body);
+
+        mClient.newCall(builder.build()).enqueue(new okhttp3.Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                callback.onFailure(e);
+            }
+
+            @Override
+            public void onResponse(Call call, okhttp3.Response response) {
+                int statusCode = response.code();
+                Map<String, String> headers = new HashMap<>();
+                for (String name : response.headers().names()) {
+                    headers.put(name.toLowerCase(), response.header(name));
+                }
+                byte[] bytes;
+                ResponseBody responseBody = response.body();
+                try {
+                    bytes = responseBody == null ? new byte[0] : responseBody.bytes();
+                } catch (IOException ex) {
+                    callback.onFailure(ex);
+                    return;
+                } finally {
+                    response.close();
+                }
+                callback.onResponse(statusCode, headers, bytes);
+            }
+        });
+    }
+
+}
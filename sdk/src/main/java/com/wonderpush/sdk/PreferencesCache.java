@@ -0,0 +1,203 @@
+package com.wonderpush.sdk;
+
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory snapshot of a {@link SharedPreferences} file, written through to it.
+ *
+ * <p>
+ *     Reads are served from the snapshot, and JSON values are parsed once and kept until the key is written again.
+ *     Writes update the snapshot right away and are handed to {@link SharedPreferences.Editor#apply()},
+ *     which persists them in the background.
+ * </p>
+ *
+ * <p>
+ *     Writes made within {@link #runInTransaction(Runnable)} are grouped into a single editor,
+ *     and other threads wait for the transaction to complete before reading or writing.
+ * </p>
+ *
+ * <p>
+ *     The parsed {@link JSONObject} and {@link JSONArray} returned are shared between callers and must not be modified.
+ *     Use {@link JSONUtil#deepCopy(JSONObject)} first if needed.
+ * </p>
+ */
+class PreferencesCache {
+
+    private final SharedPreferences mPrefs;
+    private final Map<String, Object> mValues;
+    private final Map<String, Object> mParsed = new HashMap<>();
+    // The editor of the transaction in progress, if any
+    private SharedPreferences.Editor mTransaction;
+
+    PreferencesCache(SharedPreferences prefs) {
+        mPrefs = prefs;
+        mValues = new HashMap<>(prefs.getAll());
+    }
+
+    SharedPreferences getSharedPreferences() {
+        return mPrefs;
+    }
+
+    /**
+     * Runs the given code holding the lock, and applies all the writes it makes at once.
+     * Nested transactions are part of the outer one.
+     */
+    synchronized void runInTransaction(Runnable runnable) {
+        if (mTransaction != null) {
+            runnable.run();
+            return;
+        }
+        mTransaction = mPrefs.edit();
+        try {
+            runnable.run();
+        } finally {
+            SharedPreferences.Editor editor = mTransaction;
+            mTransaction = null;
+            editor.apply();
+        }
+    }
+
+    private SharedPreferences.Editor edit() {
+        return mTransaction != null ? mTransaction : mPrefs.edit();
+    }
+
+    private void applyUnlessInTransaction(SharedPreferences.Editor editor) {
+        if (editor != mTransaction) {
+            editor.apply();
+        }
+    }
+
+    synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    /**
+     * @return The keys starting with the given prefix
+     */
+    synchronized List<String> keysWithPrefix(String prefix) {
+        List<String> rtn = new ArrayList<>();
+        for (String key : mValues.keySet()) {
+            if (key.startsWith(prefix)) {
+                rtn.add(key);
+            }
+        }
+        return rtn;
+    }
+
+    synchronized String getString(String key, String defaultValue) {
+        Object value = mValues.get(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    synchronized int getInt(String key, int defaultValue) {
+        Object value = mValues.get(key);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    synchronized long getLong(String key, long defaultValue) {
+        Object value = mValues.get(key);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    synchronized boolean getBoolean(String key, boolean defaultValue) {
+        Object value = mValues.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    /**
+     * @return The shared parsed value, or {@code null} if absent or invalid
+     */
+    synchronized JSONObject getJSONObject(String key) throws JSONException {
+        Object parsed = mParsed.get(key);
+        if (parsed instanceof JSONObject) return (JSONObject) parsed;
+        String json = getString(key, null);
+        if (json == null) return null;
+        JSONObject rtn = new JSONObject(json);
+        mParsed.put(key, rtn);
+        return rtn;
+    }
+
+    /**
+     * @return The shared parsed value, or {@code null} if absent or invalid
+     */
+    synchronized JSONArray getJSONArray(String key) throws JSONException {
+        Object parsed = mParsed.get(key);
+        if (parsed instanceof JSONArray) return (JSONArray) parsed;
+        String json = getString(key, null);
+        if (json == null) return null;
+        JSONArray rtn = new JSONArray(json);
+        mParsed.put(key, rtn);
+        return rtn;
+    }
+
+    /**
+     * @param value
+     *            A {@link String}, {@link Integer}, {@link Long} or {@link Boolean}, or {@code null} to remove the key
+     */
+    synchronized void put(String key, Object value) {
+        mParsed.remove(key);
+        SharedPreferences.Editor editor = edit();
+        if (value == null) {
+            mValues.remove(key);
+            editor.remove(key);
+        } else if (value instanceof String) {
+            mValues.put(key, value);
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            mValues.put(key, value);
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            mValues.put(key, value);
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Boolean) {
+            mValues.put(key, value);
+            editor.putBoolean(key, (Boolean) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported preference type " + value.getClass() + " for key " + key);
+        }
+        applyUnlessInTransaction(editor);
+    }
+
+    /**
+     * Removes the given keys, with a single write.
+     */
+    synchronized void removeAll(Collection<String> keys) {
+        SharedPreferences.Editor editor = edit();
+        for (String key : keys) {
+            mValues.remove(key);
+            mParsed.remove(key);
+            editor.remove(key);
+        }
+        applyUnlessInTransaction(editor);
+    }
+
+    /**
+     * Removes every key but the given ones, with a single write.
+     */
+    synchronized void clear(Collection<String> keep) {
+        SharedPreferences.Editor editor = edit();
+        // Keys written by the transaction in progress are not in the file yet
+        Set<String> keys = new HashSet<>(mPrefs.getAll().keySet());
+        keys.addAll(mValues.keySet());
+        for (String key : keys) {
+            if (keep.contains(key)) continue;
+            editor.remove(key);
+        }
+        applyUnlessInTransaction(editor);
+        mValues.keySet().retainAll(keep);
+        mParsed.keySet().retainAll(keep);
+    }
+
+}
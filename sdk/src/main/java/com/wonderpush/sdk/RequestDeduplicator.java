@@ -0,0 +1,139 @@
+package com.wonderpush.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets identical idempotent requests share a single network round trip.
+ *
+ * <p>
+ *     The first caller for a given key sends the request with the handler returned by {@link #join(String, ResponseHandler)}.
+ *     Callers arriving while it is in flight are attached to it and get notified along.
+ *     Every handler receives its own copy of the response, as some handlers modify it.
+ * </p>
+ *
+ * <p>
+ *     A request whose handler is not called within {@link #MAX_SHARED_AGE} ms is no longer joined:
+ *     the next caller sends a new request, which also answers the callers waiting for the old one.
+ * </p>
+ */
+class RequestDeduplicator {
+
+    /**
+     * Time after which a request in flight is not joined anymore, well beyond the transport timeouts.
+     */
+    static final long MAX_SHARED_AGE = 60 * 1000;
+
+    private static class InflightRequest {
+
+        final List<ResponseHandler> handlers = new ArrayList<>();
+        final long startedRealtimeElapsed;
+
+        InflightRequest(long startedRealtimeElapsed) {
+            this.startedRealtimeElapsed = startedRealtimeElapsed;
+        }
+
+    }
+
+    private final Clock mClock;
+    private final Map<String, InflightRequest> mInflight = new HashMap<>();
+
+    RequestDeduplicator(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param key
+     *            Identifies the request, two requests with the same key must be interchangeable
+     * @param handler
+     *            The handler of the caller, may be {@code null}
+     * @return The handler to send the request with, or {@code null} if the caller was attached to a request in flight
+     */
+    ResponseHandler join(final String key, ResponseHandler handler) {
+        final InflightRequest inflight;
+        synchronized (this) {
+            long now = mClock.elapsedRealtime();
+            InflightRequest previous = mInflight.get(key);
+            if (previous != null && now - previous.startedRealtimeElapsed < MAX_SHARED_AGE) {
+                previous.handlers.add(handler);
+                return null;
+            }
+            inflight = new InflightRequest(now);
+            if (previous != null) {
+                WonderPush.logError("Request " + key + " got no response in " + MAX_SHARED_AGE + " ms, sending it again");
+                inflight.handlers.addAll(previous.handlers);
+            }
+            inflight.handlers.add(handler);
+            mInflight.put(key, inflight);
+        }
+        return new ResponseHandler() {
+            @Override
+            public void onFailure(Throwable e, Response errorResponse) {
+                boolean first = true;
+                for (ResponseHandler handler : land(key, inflight)) {
+                    if (handler != null) {
+                        handler.onFailure(e, first ? errorResponse : copy(errorResponse));
+                    }
+                    first = false;
+                }
+            }
+
+            @Override
+            public void onSuccess(Response response) {
+                onSuccess(200, response);
+            }
+
+            @Override
+            public void onSuccess(int statusCode, Response response) {
+                boolean first = true;
+                for (ResponseHandler handler : land(key, inflight)) {
+                    if (handler != null) {
+                        handler.onSuccess(statusCode, first ? response : copy(response));
+                    }
+                    first = false;
+                }
+            }
+        };
+    }
+
+    /**
+     * Number of distinct requests in flight.
+     */
+    synchronized int size() {
+        return mInflight.size();
+    }
+
+    /**
+     * Removes the request from the requests in flight, once.
+     *
+     * @return The handlers to notify, empty if the request was already answered or superseded by a new one
+     */
+    private synchronized List<ResponseHandler> land(String key, InflightRequest inflight) {
+        if (mInflight.get(key) != inflight) {
+            // Superseded requests left their handlers to the new one
+            return new ArrayList<>();
+        }
+        mInflight.remove(key);
+        return inflight.handlers;
+    }
+
+    private static Response copy(Response response) {
+        if (response == null) return null;
+        JSONObject json = response.getJSONObject();
+        if (json == null) {
+            return response.toString() == null ? new Response((JSONObject) null) : new Response(response.toString());
+        }
+        try {
+            return new Response(JSONUtil.deepCopy(json));
+        } catch (JSONException ex) {
+            WonderPush.logError("Failed to copy response " + response, ex);
+            return response;
+        }
+    }
+
+}
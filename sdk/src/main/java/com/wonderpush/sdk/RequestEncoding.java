@@ -0,0 +1,184 @@
+package com.wonderpush.sdk;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import cz.msebera.android.httpclient.message.BasicNameValuePair;
+
+/**
+ * How the parameters of a request are laid out between its query string and its body.
+ *
+ * <p>Write requests either send their {@code body} parameter as an {@code application/json} body,
+ * the other parameters going to the query string, or form encode all their parameters.</p>
+ */
+class RequestEncoding {
+
+    /**
+     * The parameter holding the JSON body of write requests.
+     */
+    static final String BODY_PARAM = "body";
+
+    static final String CONTENT_TYPE_JSON = "application/json; charset=utf-8";
+    static final String CONTENT_TYPE_FORM = "application/x-www-form-urlencoded";
+
+    /**
+     * The URL encoded query string, without the leading {@code ?}, empty if none.
+     */
+    final String queryString;
+
+    /**
+     * The content type of the body, {@code null} if there is no body.
+     */
+    final String contentType;
+
+    /**
+     * {@link HttpCompression#GZIP} if the body is compressed, {@code null} otherwise.
+     */
+    final String contentEncoding;
+
+    /**
+     * The body as sent, {@code null} if there is none.
+     */
+    final byte[] body;
+
+    /**
+     * The length of the body before compression.
+     */
+    final int uncompressedLength;
+
+    private RequestEncoding(String queryString, String contentType, String contentEncoding, byte[] body, int uncompressedLength) {
+        this.queryString = queryString;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.body = body;
+        this.uncompressedLength = uncompressedLength;
+    }
+
+    /**
+     * Lays out the given parameters.
+     *
+     * @param method
+     *            The HTTP method of the request
+     * @param params
+     *            The request parameters, may be {@code null}
+     * @param jsonBodies
+     *            Whether the {@code body} parameter is sent as an {@code application/json} body
+     * @param gzipRequests
+     *            Whether bodies above {@link HttpCompression#MIN_COMPRESSED_REQUEST_SIZE} are gzipped
+     */
+    static RequestEncoding encode(WonderPushRestClient.HttpMethod method, RequestParams params, boolean jsonBodies, boolean gzipRequests) throws IOException {
+        String queryString = params == null ? "" : params.getURLEncodedString().trim();
+        String contentType = null;
+        String bodyString = null;
+        if (hasJsonBody(method, params, jsonBodies)) {
+            // The body parameter is sent as is, the other ones go to the query string
+            contentType = CONTENT_TYPE_JSON;
+            bodyString = getJsonBody(params);
+            queryString = getNonBodyParams(params).getURLEncodedString().trim();
+        } else if (method != WonderPushRestClient.HttpMethod.GET && method != WonderPushRestClient.HttpMethod.DELETE && params != null) {
+            contentType = CONTENT_TYPE_FORM;
+            bodyString = queryString;
+            queryString = "";
+        }
+        if (bodyString == null) {
+            return new RequestEncoding(queryString, null, null, null, 0);
+        }
+        byte[] body = bodyString.getBytes("UTF-8");
+        int uncompressedLength = body.length;
+        String contentEncoding = null;
+        // The signature covers the uncompressed body, as the server reads it once decompressed
+        if (gzipRequests && HttpCompression.shouldCompress(body)) {
+            byte[] compressed = HttpCompression.gzip(body);
+            if (compressed.length < body.length) {
+                body = compressed;
+                contentEncoding = HttpCompression.GZIP;
+            }
+        }
+        return new RequestEncoding(queryString, contentType, contentEncoding, body, uncompressedLength);
+    }
+
+    /**
+     * Computes the value of the {@link RequestSigner#HEADER_NAME} header,
+     * the JSON body being signed on its own when it is sent as such.
+     *
+     * @param clientSecret
+     *            The client secret
+     * @param method
+     *            The HTTP method of the request
+     * @param url
+     *            The absolute URL, without query string
+     * @param queryStringParams
+     *            The parameters from the query string of the resource, may be {@code null}
+     * @param params
+     *            The request parameters, may be {@code null}
+     * @param jsonBodies
+     *            Whether the {@code body} parameter is sent as an {@code application/json} body
+     */
+    static String sign(String clientSecret, WonderPushRestClient.HttpMethod method, String url,
+                       RequestParams queryStringParams, RequestParams params, boolean jsonBodies) throws GeneralSecurityException {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        if (queryStringParams != null) {
+            for (BasicNameValuePair pair : queryStringParams.getParamsList()) {
+                names.add(pair.getName());
+                values.add(pair.getValue());
+            }
+        }
+        boolean jsonBody = hasJsonBody(method, params, jsonBodies);
+        if (params != null) {
+            for (BasicNameValuePair pair : params.getParamsList()) {
+                if (jsonBody && BODY_PARAM.equals(pair.getName())) continue;
+                names.add(pair.getName());
+                values.add(pair.getValue());
+            }
+        }
+        return RequestSigner.sign(clientSecret, method.name(), url, names, values, jsonBody ? getJsonBody(params) : null);
+    }
+
+    /**
+     * Whether the {@code body} parameter is sent as the {@code application/json} request body,
+     * in which case the other parameters are sent in the query string.
+     */
+    static boolean hasJsonBody(WonderPushRestClient.HttpMethod method, RequestParams params, boolean jsonBodies) {
+        if (!jsonBodies || params == null) {
+            return false;
+        }
+        if (method != WonderPushRestClient.HttpMethod.POST && method != WonderPushRestClient.HttpMethod.PUT && method != WonderPushRestClient.HttpMethod.PATCH) {
+            return false;
+        }
+        return getJsonBody(params) != null;
+    }
+
+    /**
+     * Returns the value of the {@code body} parameter.
+     */
+    static String getJsonBody(RequestParams params) {
+        if (params == null) {
+            return null;
+        }
+        for (BasicNameValuePair pair : params.getParamsList()) {
+            if (BODY_PARAM.equals(pair.getName())) {
+                return pair.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the parameters other than {@code body}.
+     */
+    static RequestParams getNonBodyParams(RequestParams params) {
+        RequestParams rtn = new RequestParams();
+        if (params != null) {
+            for (BasicNameValuePair pair : params.getParamsList()) {
+                if (!BODY_PARAM.equals(pair.getName())) {
+                    rtn.add(pair.getName(), pair.getValue());
+                }
+            }
+        }
+        return rtn;
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.wonderpush.sdk;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes the {@code X-WonderPush-Authorization} header of API requests.
+ *
+ * <p>
+ *     The signed string is {@code METHOD&enc(url)&enc(sorted params joined by &)&enc(body)},
+ *     where {@code enc} is the RFC 3986 percent-encoding and each param is {@code enc(name)=enc(value)}.
+ *     It is fed to the MAC through a small per-thread buffer instead of being built as a String,
+ *     and each thread keeps its {@link Mac} initialized for the last client secret it used.
+ * </p>
+ */
+class RequestSigner {
+
+    static final String HEADER_NAME = "X-WonderPush-Authorization";
+    private static final String ALGORITHM = "HmacSHA1";
+    private static final int BUFFER_SIZE = 512;
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * The MAC and buffer of a thread.
+     */
+    private static class Sink {
+
+        String secret;
+        Mac mac;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+
+        void write(int b) {
+            if (length == buffer.length) {
+                flush();
+            }
+            buffer[length++] = (byte) b;
+        }
+
+        void writeAscii(String s) {
+            for (int i = 0, l = s.length(); i < l; ++i) {
+                write(s.charAt(i));
+            }
+        }
+
+        /**
+         * Writes {@code enc(s)}, or {@code enc(enc(s))} if {@code twice}.
+         */
+        void writeEncoded(String s, boolean twice) {
+            for (int i = 0, l = s.length(); i < l; ++i) {
+                char c = s.charAt(i);
+                if (isUnreserved(c)) {
+                    write(c);
+                } else if (c < 0x80) {
+                    writePercent(c, twice);
+                } else if (c < 0x800) {
+                    writePercent(0xC0 | (c >> 6), twice);
+                    writePercent(0x80 | (c & 0x3F), twice);
+                } else if (Character.isHighSurrogate(c) && i + 1 < l && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    writePercent(0xF0 | (codePoint >> 18), twice);
+                    writePercent(0x80 | ((codePoint >> 12) & 0x3F), twice);
+                    writePercent(0x80 | ((codePoint >> 6) & 0x3F), twice);
+                    writePercent(0x80 | (codePoint & 0x3F), twice);
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    // Unpaired surrogates are replaced, like String.getBytes() does
+                    writePercent('?', twice);
+                } else {
+                    writePercent(0xE0 | (c >> 12), twice);
+                    writePercent(0x80 | ((c >> 6) & 0x3F), twice);
+                    writePercent(0x80 | (c & 0x3F), twice);
+                }
+            }
+        }
+
+        private void writePercent(int b, boolean twice) {
+            write('%');
+            if (twice) {
+                // The percent sign itself is encoded
+                write('2');
+                write('5');
+            }
+            write(HEX[(b >> 4) & 0xF]);
+            write(HEX[b & 0xF]);
+        }
+
+        void flush() {
+            mac.update(buffer, 0, length);
+            length = 0;
+        }
+
+    }
+
+    private static final ThreadLocal<Sink> sSink = new ThreadLocal<Sink>() {
+        @Override
+        protected Sink initialValue() {
+            return new Sink();
+        }
+    };
+
+    private static final Comparator<String[]> ENCODED_PARAM_COMPARATOR = new Comparator<String[]>() {
+        @Override
+        public int compare(String[] lhs, String[] rhs) {
+            int rtn = lhs[0].compareTo(rhs[0]);
+            if (rtn == 0) {
+                rtn = lhs[1].compareTo(rhs[1]);
+            }
+            return rtn;
+        }
+    };
+
+    static boolean isUnreserved(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    /**
+     * RFC 3986 percent-encoding of the UTF-8 bytes of the given string.
+     */
+    static String encode(String s) {
+        StringBuilder sb = null;
+        for (int i = 0, l = s.length(); i < l; ++i) {
+            if (!isUnreserved(s.charAt(i))) {
+                sb = new StringBuilder(s.length() + 16);
+                break;
+            }
+        }
+        if (sb == null) return s;
+        byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        for (byte b : bytes) {
+            if (b >= 0 && isUnreserved((char) b)) {
+                sb.append((char) b);
+            } else {
+                sb.append('%').append((char) HEX[(b >> 4) & 0xF]).append((char) HEX[b & 0xF]);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String base64(byte[] data) {
+        StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b0 = data[i] & 0xFF;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xFF : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xFF : 0;
+            sb.append(BASE64[b0 >> 2]);
+            sb.append(BASE64[((b0 & 0x3) << 4) | (b1 >> 4)]);
+            sb.append(i + 1 < data.length ? BASE64[((b1 & 0xF) << 2) | (b2 >> 6)] : '=');
+            sb.append(i + 2 < data.length ? BASE64[b2 & 0x3F] : '=');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Computes the value of the {@link #HEADER_NAME} header.
+     *
+     * @param clientSecret
+     *            The key of the MAC
+     * @param method
+     *            The HTTP method, in upper case
+     * @param url
+     *            The absolute URL without query string
+     * @param paramNames
+     *            The names of the query string and form parameters, unencoded
+     * @param paramValues
+     *            The values of the parameters, unencoded, in the same order as their names
+     * @param body
+     *            The JSON body, or {@code null} if the parameters are form encoded
+     */
+    static String sign(String clientSecret, String method, String url, List<String> paramNames, List<String> paramValues, String body) throws GeneralSecurityException {
+        // Sort params by encoded name then value
+        String[][] params = new String[paramNames.size()][];
+        for (int i = 0; i < params.length; ++i) {
+            params[i] = new String[]{encode(paramNames.get(i)), encode(paramValues.get(i)), paramNames.get(i), paramValues.get(i)};
+        }
+        Arrays.sort(params, ENCODED_PARAM_COMPARATOR);
+
+        Sink sink = sSink.get();
+        if (sink.mac == null || !clientSecret.equals(sink.secret)) {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            try {
+                mac.init(new SecretKeySpec(clientSecret.getBytes("UTF-8"), ALGORITHM));
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+            sink.mac = mac;
+            sink.secret = clientSecret;
+        }
+        sink.length = 0;
+        sink.mac.reset();
+
+        sink.writeAscii(method);
+        sink.write('&');
+        sink.writeEncoded(url, false);
+        sink.write('&');
+        for (int i = 0; i < params.length; ++i) {
+            if (i > 0) {
+                // enc("&")
+                sink.writeAscii("%26");
+            }
+            // enc(enc(name) + "=" + enc(value))
+            sink.writeEncoded(params[i][2], true);
+            sink.writeAscii("%3D");
+            sink.writeEncoded(params[i][3], true);
+        }
+        sink.write('&');
+        if (body != null) {
+            sink.writeEncoded(body, false);
+        }
+        sink.flush();
+        byte[] digest = sink.mac.doFinal();
+
+        return "WonderPush sig=\"" + encode(base64(digest)) + "\", meth=\"0\"";
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.wonderpush.sdk;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the stages of the SDK initialization.
+ *
+ * <p>
+ *     Each stage is also reported as a {@code WonderPush:<stage>} section in systrace / Perfetto traces,
+ *     on Android 4.3 and above.
+ *     A stage must end on the thread it began on.
+ * </p>
+ */
+class StartupTimings {
+
+    private static final String SECTION_PREFIX = "WonderPush:";
+
+    private final Map<String, Long> mDurations = new LinkedHashMap<>();
+
+    /**
+     * @return The start time, to give back to {@link #end(String, long)}
+     */
+    long begin(String stage) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(SECTION_PREFIX + stage);
+        }
+        return System.nanoTime();
+    }
+
+    void end(String stage, long start) {
+        long duration = System.nanoTime() - start;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        synchronized (this) {
+            // A stage run several times, like on each activity, accumulates
+            Long previous = mDurations.get(stage);
+            mDurations.put(stage, previous == null ? duration : previous + duration);
+        }
+    }
+
+    /**
+     * @return The duration of each stage, in microseconds, in the order they first ran
+     */
+    synchronized Map<String, Long> getDurations() {
+        Map<String, Long> rtn = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : mDurations.entrySet()) {
+            rtn.put(entry.getKey(), entry.getValue() / 1000);
+        }
+        return rtn;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : getDurations().entrySet()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(entry.getKey()).append(": ").append(entry.getValue() / 1000.).append("ms");
+        }
+        return sb.toString();
+    }
+
+}
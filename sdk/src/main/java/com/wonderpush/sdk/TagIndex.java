@@ -0,0 +1,33 @@
+package com.wonderpush.sdk;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Indexes the tags of an installation custom state in a hash set, for O(1) lookups.
+ *
+ * <p>
+ *     As {@link JSONDocument} is immutable, the index is valid as long as the state holds the same tags value,
+ *     so it is only rebuilt after the tags change, and not after other properties do, nor on every read.
+ * </p>
+ */
+class TagIndex {
+
+    // The tags value the index was built from, compared by identity
+    private Object mSource;
+    private Set<String> mTags = Collections.emptySet();
+
+    /**
+     * @return An unmodifiable set of the tags in the given state, sorted
+     */
+    synchronized Set<String> get(JSONDocument state) {
+        Object source = state.get("tags");
+        if (source != mSource) {
+            mTags = Collections.unmodifiableSet(new LinkedHashSet<>(WonderPushPropertiesEditor.getTags(state)));
+            mSource = source;
+        }
+        return mTags;
+    }
+
+}
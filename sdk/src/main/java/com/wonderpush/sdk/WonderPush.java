@@ -11,8 +11,6 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
@@ -39,7 +37,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -74,35 +73,25 @@ public class WonderPush {
     private static Context sApplicationContext;
     protected static Application sApplication;
 
-    private static Looper sLooper;
-    private static Handler sDeferHandler;
-    protected static final ScheduledExecutorService sScheduledExecutor;
-    static {
-        sDeferHandler = new Handler(Looper.getMainLooper()); // temporary value until our thread is started
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Looper.prepare();
-                sLooper = Looper.myLooper();
-                sDeferHandler = new Handler(sLooper);
-                for (;;) {
-                    try {
-                        Looper.loop();
-                    } catch (Exception ex) {
-                        Log.e(WonderPush.TAG, "Uncaught exception in WonderPush defer handler", ex);
-                        continue; // loop on exceptions
-                    }
-                    break; // allow normal exits
-                }
+    static final WonderPushExecutors sExecutors = new WonderPushExecutors();
+    protected static final ScheduledExecutorService sScheduledExecutor = sExecutors.getScheduler();
+    // Runs tasks with safeDeferIo(), or on the calling thread if the IO pool rejects them
+    static final Executor sIoExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            if (!safeDeferIo(runnable)) {
+                runnable.run();
             }
-        }, "WonderPush").start();
-        sScheduledExecutor = Executors.newSingleThreadScheduledExecutor();
-    }
+        }
+    };
 
     private static String sClientId;
     private static String sClientSecret;
     private static String sBaseURL;
-    private static boolean sIsInitialized = false;
+    private static volatile boolean sIsInitialized = false;
+    private static volatile boolean sIsInitializing = false;
+    private static volatile WonderPushPendingInitImpl sPendingInitImpl;
+    private static final StartupTimings sStartupTimings = new StartupTimings();
     private static boolean sIsReady = false;
     private static boolean sIsReachable = false;
 
@@ -668,7 +657,7 @@ public class WonderPush {
      * <p>Returns an empty {@code JSONObject} if called without required user consent.</p>
      */
     public static JSONObject getProperties() {
-        return sApiImpl.getProperties();
+        return getApiImpl().getProperties();
     }
 
     /**
@@ -686,7 +675,7 @@ public class WonderPush {
      *            The partial object containing only the properties to update.
      */
     public static void putProperties(JSONObject properties) {
-        sApiImpl.putProperties(properties);
+        getApiImpl().putProperties(properties);
     }
 
     /**
@@ -700,7 +689,7 @@ public class WonderPush {
      * @param value The value to be set, can be an array or Collection
      */
     public static void setProperty(String field, Object value) {
-        sApiImpl.setProperty(field, value);
+        getApiImpl().setProperty(field, value);
     }
 
     /**
@@ -712,7 +701,7 @@ public class WonderPush {
      * @param field The name of the property to set
      */
     public static void unsetProperty(String field) {
-        sApiImpl.unsetProperty(field);
+        getApiImpl().unsetProperty(field);
     }
 
     /**
@@ -727,7 +716,7 @@ public class WonderPush {
      * @param value The value(s) to be added, can be an array
      */
     public static void addProperty(String field, Object value) {
-        sApiImpl.addProperty(field, value);
+        getApiImpl().addProperty(field, value);
     }
 
     /**
@@ -740,7 +729,7 @@ public class WonderPush {
      * @param value The value(s) to be removed, can be an array
      */
     public static void removeProperty(String field, Object value) {
-        sApiImpl.removeProperty(field, value);
+        getApiImpl().removeProperty(field, value);
     }
 
     /**
@@ -753,7 +742,7 @@ public class WonderPush {
      * @return {@link JSONObject#NULL} or a single value stored in the property, never a {@link JSONArray} or {@code null}
      */
     public static Object getPropertyValue(String field) {
-        return sApiImpl.getPropertyValue(field);
+        return getApiImpl().getPropertyValue(field);
     }
 
     /**
@@ -769,7 +758,7 @@ public class WonderPush {
      * @return A possibly empty {@link org.json.JSONArray} of the values stored in the property, but never {@link JSONObject#NULL} nor {@code null}
      */
     public static List<Object> getPropertyValues(String field) {
-        return sApiImpl.getPropertyValues(field);
+        return getApiImpl().getPropertyValues(field);
     }
 
     /**
@@ -782,8 +771,8 @@ public class WonderPush {
      */
     @SuppressWarnings("unused")
     @Deprecated
-    public static synchronized JSONObject getInstallationCustomProperties() {
-        return sApiImpl.getInstallationCustomProperties();
+    public static JSONObject getInstallationCustomProperties() {
+        return getApiImpl().getInstallationCustomProperties();
     }
 
     /**
@@ -805,11 +794,11 @@ public class WonderPush {
      */
     @SuppressWarnings("unused")
     @Deprecated
-    public static synchronized void putInstallationCustomProperties(JSONObject customProperties) {
-        sApiImpl.putInstallationCustomProperties(customProperties);
+    public static void putInstallationCustomProperties(JSONObject customProperties) {
+        getApiImpl().putInstallationCustomProperties(customProperties);
     }
 
-    static synchronized void receivedFullInstallationCustomPropertiesFromServer(JSONObject custom) {
+    static void receivedFullInstallationCustomPropertiesFromServer(JSONObject custom) {
         WonderPush.logDebug("Synchronizing installation custom fields");
         WonderPush.logDebug("Received custom: " + custom);
         try {
@@ -830,7 +819,7 @@ public class WonderPush {
      */
     @SuppressWarnings("unused")
     public static void trackEvent(String type) {
-        sApiImpl.trackEvent(type);
+        getApiImpl().trackEvent(type);
     }
 
     /**
@@ -846,7 +835,7 @@ public class WonderPush {
      *            Prefer using a few attributes over a plethora of event type variants.
      */
     public static void trackEvent(String type, JSONObject attributes) {
-        sApiImpl.trackEvent(type, attributes);
+        getApiImpl().trackEvent(type, attributes);
     }
 
     static void trackEvent(String type, JSONObject eventData, JSONObject attributes) {
@@ -922,7 +911,7 @@ public class WonderPush {
      *      The tags to add to the installation.
      */
     public static void addTag(String... tag) {
-        sApiImpl.addTag(tag);
+        getApiImpl().addTag(tag);
     }
 
     /**
@@ -934,7 +923,7 @@ public class WonderPush {
      *      The tags to remove from the installation.
      */
     public static void removeTag(String... tag) {
-        sApiImpl.removeTag(tag);
+        getApiImpl().removeTag(tag);
     }
 
     /**
@@ -943,18 +932,38 @@ public class WonderPush {
      * <p>Does nothing if called without required user consent.</p>
      */
     public static void removeAllTags() {
-        sApiImpl.removeAllTags();
+        getApiImpl().removeAllTags();
+    }
+
+    /**
+     * Returns an editor grouping changes to the properties and tags of the current installation object stored by WonderPush.
+     *
+     * <p>
+     *     The changes are saved once and sent to the server in a single request when calling {@link WonderPushPropertiesEditor#apply()},
+     *     which is preferable to many successive calls to {@link #setProperty(String, Object)}, {@link #addTag(String...)} and the like.
+     * </p>
+     *
+     * @return A new editor
+     */
+    public static WonderPushPropertiesEditor editProperties() {
+        return new WonderPushPropertiesEditor();
+    }
+
+    static Future<Boolean> applyPropertiesEditor(WonderPushPropertiesEditor editor) {
+        DeferredFuture<Boolean> ack = new DeferredFuture<>();
+        getApiImpl().applyPropertiesEditor(editor, ack);
+        return ack.getFuture();
     }
 
     /**
      * Returns all the tags of the current installation object stored by WonderPush.
      *
      * @return
-     *      A copy of the set of tags attached to the installation.
+     *      An unmodifiable set of the tags attached to the installation, in alphabetical order.
      *      Never returns {@code null}.
      */
     public static Set<String> getTags() {
-        return sApiImpl.getTags();
+        return getApiImpl().getTags();
     }
 
     /**
@@ -965,7 +974,7 @@ public class WonderPush {
      *      {@code true} if the given tag is attached to the installation, {@code false} otherwise.
      */
     public static boolean hasTag(String tag) {
-        return sApiImpl.hasTag(tag);
+        return getApiImpl().hasTag(tag);
     }
 
     protected static void onInteraction(boolean leaving) {
@@ -1009,11 +1018,10 @@ public class WonderPush {
                 // We must first close the possibly still-open previous session
                 if (lastAppCloseDate < lastAppOpenDate) {
                     JSONObject closeInfo = WonderPushConfiguration.getLastAppOpenInfoJson();
-                    if (closeInfo == null) {
-                        closeInfo = new JSONObject();
-                    }
                     long appCloseDate = lastInteractionDate;
                     try {
+                        // The stored object is shared
+                        closeInfo = closeInfo == null ? new JSONObject() : JSONUtil.deepCopy(closeInfo);
                         closeInfo.put("actionDate", appCloseDate);
                         closeInfo.put("openedTime", appCloseDate - lastAppOpenDate);
                     } catch (JSONException e) {
@@ -1062,6 +1070,14 @@ public class WonderPush {
         return sIsInitialized;
     }
 
+    /**
+     * Whether {@link #initialize(Context, String, String)} has been called,
+     * even if the initialization is still completing in the background.
+     */
+    static boolean isInitializedOrInitializing() {
+        return sIsInitialized || sIsInitializing;
+    }
+
     /**
      * Whether the SDK is ready to operate and
      * the {@link #INTENT_INTIALIZED} intent has been dispatched.
@@ -1118,11 +1134,14 @@ public class WonderPush {
     public static void initialize(final Context context, final String clientId, String clientSecret) {
         try {
             WonderPush.logDebug("initialize(" + context.getClass().getSimpleName() + ", " + clientId + ", <redacted clientSecret>)");
-            if (!sIsInitialized || (
+            if (!sIsInitialized && !sIsInitializing || (
                     clientId != null && clientSecret != null && (!clientId.equals(sClientId) || !clientSecret.equals(sClientSecret))
             )) {
+                // Only what is needed to accept calls runs synchronously, the rest is loaded on the state executor
+                long start = sStartupTimings.begin("core");
 
                 sIsInitialized = false;
+                sIsInitializing = true;
                 setNetworkAvailable(false);
 
                 sApplicationContext = context.getApplicationContext();
@@ -1156,42 +1175,122 @@ public class WonderPush {
                 }
 
                 WonderPushConfiguration.initialize(getApplicationContext());
-                WonderPushUserPreferences.initialize();
-                applyOverrideLogging(WonderPushConfiguration.getOverrideSetLogging());
-                JSONSyncInstallationCustom.initialize();
-                WonderPushRequestVault.initialize();
 
-                initForNewUser(sBeforeInitializationUserIdSet
-                        ? sBeforeInitializationUserId
-                        : WonderPushConfiguration.getUserId());
-
-                sIsInitialized = true;
-                hasUserConsentChanged(hasUserConsent()); // make sure to set sIsInitialized=true before
-
-                // Permission checks
-                if (context.getPackageManager().checkPermission(android.Manifest.permission.INTERNET, context.getPackageName()) != PackageManager.PERMISSION_GRANTED) {
-                    Log.w(TAG, "Missing INTERNET permission. Add <uses-permission android:name=\"android.permission.INTERNET\" /> under <manifest> in your AndroidManifest.xml");
-                }
-                if (context.getPackageManager().checkPermission(android.Manifest.permission.ACCESS_COARSE_LOCATION, context.getPackageName()) != PackageManager.PERMISSION_GRANTED
-                        && context.getPackageManager().checkPermission(android.Manifest.permission.ACCESS_FINE_LOCATION, context.getPackageName()) != PackageManager.PERMISSION_GRANTED) {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                        Log.w(TAG, "Permissions ACCESS_COARSE_LOCATION or ACCESS_FINE_LOCATION have not been declared or granted yet. Make sure you declare <uses-permission android:name=\"android.permission.ACCESS_FINE_LOCATION\" /> under <manifest> in your AndroidManifest.xml (you can add either or both), and call ActivityCompat.requestPermissions() to request the permission at runtime");
-                    } else {
-                        Log.w(TAG, "Missing ACCESS_COARSE_LOCATION and ACCESS_FINE_LOCATION permission. Add <uses-permission android:name=\"android.permission.ACCESS_FINE_LOCATION\" /> under <manifest> in your AndroidManifest.xml (you can add either or both)");
+                // Public API calls are held until the background stages are done
+                final WonderPushPendingInitImpl pendingInitImpl = new WonderPushPendingInitImpl(sExecutors) {
+                    @Override
+                    protected IWonderPush getTarget() {
+                        return sApiImpl;
                     }
-                } else if (context.getPackageManager().checkPermission(android.Manifest.permission.ACCESS_FINE_LOCATION, context.getPackageName()) != PackageManager.PERMISSION_GRANTED) {
-                    Log.d(TAG, "Only ACCESS_COARSE_LOCATION permission is granted. For more precision, you should strongly consider adding <uses-permission android:name=\"android.permission.ACCESS_FINE_LOCATION\" /> under <manifest> in your AndroidManifest.xml");
-                }
+                };
+                sPendingInitImpl = pendingInitImpl;
+                safeDefer(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            initializeInBackground();
+                        } finally {
+                            sIsInitializing = false;
+                            pendingInitImpl.release();
+                            logDebug("Initialization timings: " + sStartupTimings);
+                        }
+                    }
+                }, 0);
+
+                sStartupTimings.end("core", start);
             }
 
+            long start = sStartupTimings.begin("activity");
             initializeForApplication(context);
             initializeForActivity(context);
-            refreshPreferencesAndConfiguration(false);
+            sStartupTimings.end("activity", start);
+            safeDefer(new Runnable() {
+                @Override
+                public void run() {
+                    long start = sStartupTimings.begin("refresh");
+                    refreshPreferencesAndConfiguration(false);
+                    sStartupTimings.end("refresh", start);
+                }
+            }, 0);
         } catch (Exception e) {
             Log.e(TAG, "Unexpected error while initializing the SDK", e);
         }
     }
 
+    /**
+     * Loads the subsystems that touch the storage, on the state executor.
+     */
+    private static void initializeInBackground() {
+        long start = sStartupTimings.begin("userPreferences");
+        WonderPushUserPreferences.initialize();
+        applyOverrideLogging(WonderPushConfiguration.getOverrideSetLogging());
+        sStartupTimings.end("userPreferences", start);
+
+        start = sStartupTimings.begin("installationCustom");
+        JSONSyncInstallationCustom.initialize();
+        sStartupTimings.end("installationCustom", start);
+
+        start = sStartupTimings.begin("requestVault");
+        WonderPushRequestVault.initialize();
+        sStartupTimings.end("requestVault", start);
+
+        start = sStartupTimings.begin("user");
+        initForNewUser(sBeforeInitializationUserIdSet
+                ? sBeforeInitializationUserId
+                : WonderPushConfiguration.getUserId());
+
+        sIsInitialized = true;
+        hasUserConsentChanged(hasUserConsent()); // make sure to set sIsInitialized=true before
+        sStartupTimings.end("user", start);
+
+        start = sStartupTimings.begin("permissions");
+        Context context = getApplicationContext();
+        PackageManager packageManager = context.getPackageManager();
+        String packageName = context.getPackageName();
+        if (packageManager.checkPermission(android.Manifest.permission.INTERNET, packageName) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "Missing INTERNET permission. Add <uses-permission android:name=\"android.permission.INTERNET\" /> under <manifest> in your AndroidManifest.xml");
+        }
+        if (packageManager.checkPermission(android.Manifest.permission.ACCESS_NETWORK_STATE, packageName) != PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "Missing ACCESS_NETWORK_STATE permission. For queued requests to be sent as soon as the network comes back, you should consider adding <uses-permission android:name=\"android.permission.ACCESS_NETWORK_STATE\" /> under <manifest> in your AndroidManifest.xml");
+        }
+        if (packageManager.checkPermission(android.Manifest.permission.ACCESS_COARSE_LOCATION, packageName) != PackageManager.PERMISSION_GRANTED
+                && packageManager.checkPermission(android.Manifest.permission.ACCESS_FINE_LOCATION, packageName) != PackageManager.PERMISSION_GRANTED) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Log.w(TAG, "Permissions ACCESS_COARSE_LOCATION or ACCESS_FINE_LOCATION have not been declared or granted yet. Make sure you declare <uses-permission android:name=\"android.permission.ACCESS_FINE_LOCATION\" /> under <manifest> in your AndroidManifest.xml (you can add either or both), and call ActivityCompat.requestPermissions() to request the permission at runtime");
+            } else {
+                Log.w(TAG, "Missing ACCESS_COARSE_LOCATION and ACCESS_FINE_LOCATION permission. Add <uses-permission android:name=\"android.permission.ACCESS_FINE_LOCATION\" /> under <manifest> in your AndroidManifest.xml (you can add either or both)");
+            }
+        } else if (packageManager.checkPermission(android.Manifest.permission.ACCESS_FINE_LOCATION, packageName) != PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "Only ACCESS_COARSE_LOCATION permission is granted. For more precision, you should strongly consider adding <uses-permission android:name=\"android.permission.ACCESS_FINE_LOCATION\" /> under <manifest> in your AndroidManifest.xml");
+        }
+        sStartupTimings.end("permissions", start);
+    }
+
+    /**
+     * The implementation public API calls go to.
+     */
+    private static IWonderPush getApiImpl() {
+        WonderPushPendingInitImpl pendingInitImpl = sPendingInitImpl;
+        if (pendingInitImpl != null && !pendingInitImpl.isDrained()) {
+            return pendingInitImpl;
+        }
+        return sApiImpl;
+    }
+
+    /**
+     * Gets the time spent in each stage of the SDK initialization, to monitor its impact on the app startup.
+     *
+     * <p>Stages that run several times, like {@code "activity"} on each activity start, accumulate their durations.
+     * Each stage is also reported as a {@code WonderPush:<stage>} section in systrace traces.</p>
+     *
+     * @return The duration of each stage that ran so far, in microseconds, in the order they first ran.
+     * @see #initialize(Context)
+     */
+    @SuppressWarnings("unused")
+    public static Map<String, Long> getStartupTimings() {
+        return sStartupTimings.getDurations();
+    }
+
     private static void initForNewUser(final String userId) {
         WonderPush.logDebug("initForNewUser(" + userId + ")");
         sIsReady = false;
@@ -1299,7 +1398,7 @@ public class WonderPush {
      * @return {@code true} if no error happened, {@code false} otherwise
      */
     static boolean ensureInitialized(Context context, boolean fromInitProvider) {
-        if (isInitialized()) {
+        if (isInitializedOrInitializing()) {
             // No need to get clientId/clientSecret once again
             // we only need to re-run the Activity-related initialization
             initialize(context, null, null);
@@ -1322,8 +1421,14 @@ public class WonderPush {
         Boolean requiresUserConsent = null;
         String senderId = null;
         String integrator = null;
-
-        if (!isInitialized()) {
+        Long jobQueueDiskCapacity = null;
+        String httpTransport = null;
+        Boolean jsonBodies = null;
+        Boolean gzipRequests = null;
+        Integer httpConnectTimeout = null;
+        Integer httpReadTimeout = null;
+
+        if (!isInitializedOrInitializing()) {
             // Try to locate the BuildConfig class.
             // The difficulty being that it's in the Java package configured as `defaultConfig.applicationId` in gradle,
             // but does is not affected by `applicationIdSuffix` or flavors' `applicationId`, whereas Context.getPackageName() is.
@@ -1389,6 +1494,9 @@ public class WonderPush {
                                     case "WONDERPUSH_INTEGRATOR":
                                         integrator = strValue;
                                         break;
+                                    case "WONDERPUSH_HTTP_TRANSPORT":
+                                        httpTransport = strValue;
+                                        break;
                                     default:
                                         Log.w(TAG, "Unknown BuildConfig String field " + f.getName());
                                         break;
@@ -1405,10 +1513,32 @@ public class WonderPush {
                                     case "WONDERPUSH_REQUIRES_USER_CONSENT":
                                         requiresUserConsent = boolValue;
                                         break;
+                                    case "WONDERPUSH_JSON_BODIES":
+                                        jsonBodies = boolValue;
+                                        break;
+                                    case "WONDERPUSH_GZIP_REQUESTS":
+                                        gzipRequests = boolValue;
+                                        break;
                                     default:
                                         Log.w(TAG, "Unknown BuildConfig Boolean field " + f.getName());
                                         break;
                                 }
+                            } else if (rtn instanceof Integer || rtn instanceof Long) {
+                                long longValue = ((Number) rtn).longValue();
+                                switch (f.getName()) {
+                                    case "WONDERPUSH_JOB_QUEUE_DISK_CAPACITY":
+                                        jobQueueDiskCapacity = longValue;
+                                        break;
+                                    case "WONDERPUSH_HTTP_CONNECT_TIMEOUT":
+                                        httpConnectTimeout = (int) longValue;
+                                        break;
+                                    case "WONDERPUSH_HTTP_READ_TIMEOUT":
+                                        httpReadTimeout = (int) longValue;
+                                        break;
+                                    default:
+                                        Log.w(TAG, "Unknown BuildConfig " + rtn.getClass().getSimpleName() + " field " + f.getName());
+                                        break;
+                                }
                             } else {
                                 Log.w(TAG, "Unknown BuildConfig " + (rtn == null ? "null" : rtn.getClass().getCanonicalName()) + " field " + f.getName());
                             }
@@ -1461,6 +1591,31 @@ public class WonderPush {
                 if (res != 0) {
                     requiresUserConsent = resources.getBoolean(res);
                 }
+                res = resources.getIdentifier("wonderpush_jsonBodies", "bool", context.getPackageName());
+                if (res != 0) {
+                    jsonBodies = resources.getBoolean(res);
+                }
+                res = resources.getIdentifier("wonderpush_gzipRequests", "bool", context.getPackageName());
+                if (res != 0) {
+                    gzipRequests = resources.getBoolean(res);
+                }
+                res = resources.getIdentifier("wonderpush_jobQueueDiskCapacity", "integer", context.getPackageName());
+                if (res != 0) {
+                    jobQueueDiskCapacity = (long) resources.getInteger(res);
+                }
+                res = resources.getIdentifier("wonderpush_httpTransport", "string", context.getPackageName());
+                resString = res == 0 ? null : resources.getString(res);
+                if (!TextUtils.isEmpty(resString)) {
+                    httpTransport = resString;
+                }
+                res = resources.getIdentifier("wonderpush_httpConnectTimeout", "integer", context.getPackageName());
+                if (res != 0) {
+                    httpConnectTimeout = resources.getInteger(res);
+                }
+                res = resources.getIdentifier("wonderpush_httpReadTimeout", "integer", context.getPackageName());
+                if (res != 0) {
+                    httpReadTimeout = resources.getInteger(res);
+                }
             } catch (Exception e) {
                 Log.e(TAG, "Could not get a WonderPush configuration resource", e);
             }
@@ -1502,6 +1657,40 @@ public class WonderPush {
             } else if ("true".equals(resValue) || "false".equals(resValue)) {
                 requiresUserConsent = "true".equals(resValue);
             }
+            resValue = metaData.get("com.wonderpush.sdk.jsonBodies");
+            if (resValue instanceof Boolean) {
+                jsonBodies = (Boolean) resValue;
+            } else if ("true".equals(resValue) || "false".equals(resValue)) {
+                jsonBodies = "true".equals(resValue);
+            }
+            resValue = metaData.get("com.wonderpush.sdk.gzipRequests");
+            if (resValue instanceof Boolean) {
+                gzipRequests = (Boolean) resValue;
+            } else if ("true".equals(resValue) || "false".equals(resValue)) {
+                gzipRequests = "true".equals(resValue);
+            }
+            resValue = metaData.get("com.wonderpush.sdk.jobQueueDiskCapacity");
+            if (resValue instanceof Integer) {
+                jobQueueDiskCapacity = (long) (Integer) resValue;
+            } else if (resValue instanceof String && ((String) resValue).matches("[0-9]+")) {
+                jobQueueDiskCapacity = Long.parseLong((String) resValue);
+            }
+            resValue = metaData.get("com.wonderpush.sdk.httpTransport");
+            if (resValue instanceof String && ((String)resValue).length() > 0) {
+                httpTransport = (String) resValue;
+            }
+            resValue = metaData.get("com.wonderpush.sdk.httpConnectTimeout");
+            if (resValue instanceof Integer) {
+                httpConnectTimeout = (Integer) resValue;
+            } else if (resValue instanceof String && ((String) resValue).matches("[0-9]{1,9}")) {
+                httpConnectTimeout = Integer.parseInt((String) resValue);
+            }
+            resValue = metaData.get("com.wonderpush.sdk.httpReadTimeout");
+            if (resValue instanceof Integer) {
+                httpReadTimeout = (Integer) resValue;
+            } else if (resValue instanceof String && ((String) resValue).matches("[0-9]{1,9}")) {
+                httpReadTimeout = Integer.parseInt((String) resValue);
+            }
         }
 
         // Apply any found configuration prior to initializing the SDK
@@ -1522,6 +1711,22 @@ public class WonderPush {
             logDebug("Applying configuration: integrator: " + integrator);
             setIntegrator(integrator);
         }
+        if (jobQueueDiskCapacity != null) {
+            logDebug("Applying configuration: jobQueueDiskCapacity: " + jobQueueDiskCapacity);
+            WonderPushJobQueue.setDefaultDiskCapacityBytes(jobQueueDiskCapacity);
+        }
+        if (jsonBodies != null) {
+            logDebug("Applying configuration: jsonBodies: " + jsonBodies);
+            WonderPushRestClient.setJsonBodies(jsonBodies);
+        }
+        if (gzipRequests != null) {
+            logDebug("Applying configuration: gzipRequests: " + gzipRequests);
+            WonderPushRestClient.setGzipRequests(gzipRequests);
+        }
+        if (httpTransport != null || httpConnectTimeout != null || httpReadTimeout != null) {
+            logDebug("Applying configuration: httpTransport: " + httpTransport + " httpConnectTimeout: " + httpConnectTimeout + " httpReadTimeout: " + httpReadTimeout);
+            WonderPushRestClient.configureTransport(httpTransport, httpConnectTimeout, httpReadTimeout);
+        }
 
         // Store the ApplicationContext at the very least, this will benefit many codepath that may
         // accepts that initialization is not possible but expect WonderPushConfiguration to work
@@ -1538,7 +1743,7 @@ public class WonderPush {
         }
 
         // Try using the initializer class first for maximum control (using custom code)
-        if (!isInitialized()) {
+        if (!isInitializedOrInitializing()) {
             String initializerClassName = null;
             try {
                 initializerClassName = metaData.getString(METADATA_INITIALIZER_CLASS);
@@ -1565,7 +1770,7 @@ public class WonderPush {
         }
 
         // Try to initializing WonderPush using collected credentials
-        if (!isInitialized()) {
+        if (!isInitializedOrInitializing()) {
             if (!TextUtils.isEmpty(clientId) && !TextUtils.isEmpty(clientSecret)) {
                 logDebug("Initializing WonderPush using collected credentials");
                 WonderPush.initialize(context, clientId, clientSecret);
@@ -1573,14 +1778,14 @@ public class WonderPush {
         }
 
         // Warn the user once if not initialization means has been found
-        if (!isInitialized()) {
+        if (!isInitializedOrInitializing()) {
             Log.e(TAG, "Could not initialize WonderPush using the initializer class, BuildConfig options or manifest <meta-data> options!");
             if (!foundBuildConfig) {
                 Log.w(TAG, "No BuildConfig class found. You probably need to give the value of your gradle defaultConfig.applicationId as the a \"wonderpush_buildConfigPackage\" string resource or a \"com.wonderpush.sdk.buildConfigPackage\" manifest <meta-data>.");
             }
         }
 
-        return isInitialized();
+        return isInitializedOrInitializing();
     }
 
     /**
@@ -1763,6 +1968,18 @@ public class WonderPush {
             if ("".equals(userId)) userId = null;
             logDebug("setUserId(" + userId + ")");
 
+            if (sIsInitializing) {
+                // Apply it once the background initialization has picked the initial user
+                final String deferredUserId = userId;
+                safeDefer(new Runnable() {
+                    @Override
+                    public void run() {
+                        setUserId(deferredUserId);
+                    }
+                }, 0);
+                return;
+            }
+
             // Do nothing if not initialized
             if (!isInitialized()) {
                 logDebug("setting user id for next initialization");
@@ -1821,7 +2038,7 @@ public class WonderPush {
      */
     @SuppressWarnings("unused")
     public static String getDeviceId() {
-        return sApiImpl.getDeviceId();
+        return getApiImpl().getDeviceId();
     }
 
     /**
@@ -1837,7 +2054,7 @@ public class WonderPush {
      */
     @SuppressWarnings("unused")
     public static String getInstallationId() {
-        return sApiImpl.getInstallationId();
+        return getApiImpl().getInstallationId();
     }
 
     /**
@@ -1853,7 +2070,7 @@ public class WonderPush {
      */
     @SuppressWarnings("unused")
     public static String getPushToken() {
-        return sApiImpl.getPushToken();
+        return getApiImpl().getPushToken();
     }
 
     /**
@@ -1874,7 +2091,7 @@ public class WonderPush {
      */
     @SuppressWarnings("unused")
     public static String getAccessToken() {
-        return sApiImpl.getAccessToken();
+        return getApiImpl().getAccessToken();
     }
 
     /**
@@ -1916,7 +2133,7 @@ public class WonderPush {
      * <p>Does nothing if called without required user consent.</p>
      */
     public static void subscribeToNotifications() {
-        sApiImpl.subscribeToNotifications();
+        getApiImpl().subscribeToNotifications();
     }
 
     /**
@@ -1925,7 +2142,7 @@ public class WonderPush {
      * <p>Does nothing if called without required user consent.</p>
      */
     public static void unsubscribeFromNotifications() {
-        sApiImpl.unsubscribeFromNotifications();
+        getApiImpl().unsubscribeFromNotifications();
     }
 
     /**
@@ -1937,7 +2154,7 @@ public class WonderPush {
      * unless required user consent is lacking.
      */
     public static boolean isSubscribedToNotifications() {
-        return sApiImpl.isSubscribedToNotifications();
+        return getApiImpl().isSubscribedToNotifications();
     }
 
     /**
@@ -1954,7 +2171,7 @@ public class WonderPush {
     @SuppressWarnings("unused")
     @Deprecated
     public static boolean getNotificationEnabled() {
-        return sApiImpl.getNotificationEnabled();
+        return getApiImpl().getNotificationEnabled();
     }
 
     /**
@@ -1971,7 +2188,7 @@ public class WonderPush {
     @SuppressWarnings("unused")
     @Deprecated
     public static void setNotificationEnabled(boolean status) {
-        sApiImpl.setNotificationEnabled(status);
+        getApiImpl().setNotificationEnabled(status);
     }
 
     /**
@@ -2017,17 +2234,26 @@ public class WonderPush {
         sIntegrator = integrator;
     }
 
+    /**
+     * Runs code on the serial state executor, after all the code deferred before it with a lower or equal delay.
+     */
     protected static boolean safeDefer(final Runnable runnable, long defer) {
-        return sDeferHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    runnable.run();
-                } catch (Exception ex) {
-                    Log.e(TAG, "Unexpected error on deferred task", ex);
-                }
-            }
-        }, defer);
+        return sExecutors.runOnState(runnable, defer);
+    }
+
+    /**
+     * Runs code on the IO pool, for disk access and preparation work that does not mutate shared state.
+     * No ordering is guaranteed with respect to other deferred code.
+     */
+    static boolean safeDeferIo(final Runnable runnable) {
+        return sExecutors.runOnIo(runnable);
+    }
+
+    /**
+     * Runs code on the requests executor, after the code deferred there before, off the state executor.
+     */
+    static boolean safeDeferRequest(final Runnable runnable) {
+        return sExecutors.runOnRequests(runnable);
     }
 
     /**
@@ -8,18 +8,39 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
+/**
+ * Stores the SDK state in the WonderPush shared preferences.
+ *
+ * <p>
+ *     Values are read from an in-memory {@link PreferencesCache},
+ *     and persisted in a {@link MappedSharedPreferences} store unless it cannot be opened.
+ *     The state of the users other than the current one is archived under one key per user,
+ *     so that switching users or saving the state of one user only reads and writes that user's data.
+ *     The {@link JSONObject} and {@link JSONArray} returned by the getters are shared and must not be modified,
+ *     copy them with {@link JSONUtil#deepCopy(JSONObject)} first.
+ * </p>
+ */
 class WonderPushConfiguration {
 
+    // Legacy: the Android shared preferences file, imported into STORE_FILE on first use
     private static final String PREF_FILE = "wonderpush";
+    private static final String STORE_FILE = "preferences.kv";
 
+    // Legacy: the archives of all users in a single object, split into the per user keys below on first load
     private static final String PER_USER_ARCHIVE_PREF_NAME = "__per_user_archive";
+    // Followed by the userId, or nothing for the null user
+    private static final String USER_ARCHIVE_PREF_PREFIX = "__user_archive:";
 
     private static final String ACCESS_TOKEN_PREF_NAME = "__wonderpush_access_token";
     private static final String SID_PREF_NAME = "__wonderpush_sid";
@@ -44,7 +65,12 @@ class WonderPushConfiguration {
     private static final String CACHED_INSTALLATION_CUSTOM_PROPERTIES_UPDATED_PREF_NAME = "__cached_installation_custom_properties_updated";
     private static final String CACHED_INSTALLATION_CUSTOM_PROPERTIES_UPDATED_DATE_PREF_NAME = "__cached_installation_custom_properties_updated_date";
     private static final String CACHED_INSTALLATION_CUSTOM_PROPERTIES_FIRST_DELAYED_WRITE_DATE_PREF_NAME = "__cached_installation_custom_properties_first_delayed_write_date";
+    // Legacy: the states of all users in a single object, split into the per user keys below on first load
     private static final String INSTALLATION_CUSTOM_SYNC_STATE_PER_USER_ID_PREF_NAME = "__installation_sync_state_per_user_id";
+    // Followed by the userId, or nothing for the null user
+    private static final String INSTALLATION_CUSTOM_SYNC_STATE_PREF_PREFIX = "__installation_sync_state:";
+    // Followed by the userId, a colon, and the index of the entry
+    private static final String INSTALLATION_CUSTOM_SYNC_JOURNAL_PREF_PREFIX = "__installation_sync_journal:";
 
     private static final String GCM_REGISTRATION_ID_PREF_NAME = "__wonderpush_gcm_registration_id";
     private static final String CACHED_GCM_REGISTRATION_ID_PREF_DATE_NAME = "__wonderpush_gcm_registration_id_date";
@@ -69,6 +95,8 @@ class WonderPushConfiguration {
     private static final String OVERRIDE_NOTIFICATION_RECEIPT_PREF_NAME = "__override_notification_receipt";
 
     private static Context sContext;
+    private static SharedPreferences sSharedPreferences;
+    private static volatile PreferencesCache sCache;
 
     static void initialize(Context context) {
         sContext = context.getApplicationContext();
@@ -91,7 +119,29 @@ class WonderPushConfiguration {
         }
     }
 
-    static void changeUserId(String newUserId) {
+    /**
+     * Runs the given code with exclusive access to the storage, writing all of its changes at once.
+     */
+    static void runInTransaction(Runnable runnable) {
+        PreferencesCache cache = getCache();
+        if (cache == null) {
+            runnable.run();
+        } else {
+            cache.runInTransaction(runnable);
+        }
+    }
+
+    static void changeUserId(final String newUserId) {
+        // Archiving and loading touch about 25 keys each, write them all at once
+        runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                changeUserId_inner(newUserId);
+            }
+        });
+    }
+
+    private static void changeUserId_inner(String newUserId) {
         if (newUserId == null && getUserId() == null
                 || newUserId != null && newUserId.equals(getUserId())) {
             // No userId change
@@ -123,20 +173,13 @@ class WonderPushConfiguration {
             currentUserArchive.putOpt(LAST_APPOPEN_DATE_PREF_NAME, getLastAppOpenDate());
             currentUserArchive.putOpt(LAST_APPOPEN_INFO_PREF_NAME, getLastAppOpenInfoJson());
             currentUserArchive.putOpt(LAST_APPCLOSE_DATE_PREF_NAME, getLastAppCloseDate());
-            JSONObject usersArchive = getJSONObject(PER_USER_ARCHIVE_PREF_NAME);
-            if (usersArchive == null) {
-                usersArchive = new JSONObject();
-            }
-            usersArchive.put(getUserId() == null ? "" : getUserId(), currentUserArchive);
-            putJSONObject(PER_USER_ARCHIVE_PREF_NAME, usersArchive);
+            putJSONObject(getUserArchiveKey(getUserId()), currentUserArchive);
         } catch (JSONException ex) {
             Log.e(WonderPush.TAG, "Failed to save current user preferences", ex);
         }
         // Load new user preferences
         WonderPush.logDebug("loading storage for user " + newUserId);
-        JSONObject usersArchive = getJSONObject(PER_USER_ARCHIVE_PREF_NAME);
-        if (usersArchive == null) usersArchive = new JSONObject();
-        JSONObject newUserArchive = usersArchive.optJSONObject(newUserId == null ? "" : newUserId);
+        JSONObject newUserArchive = getJSONObject(getUserArchiveKey(newUserId));
         if (newUserArchive == null) newUserArchive = new JSONObject();
         setAccessToken(JSONUtil.optString(newUserArchive, ACCESS_TOKEN_PREF_NAME));
         setSID(JSONUtil.optString(newUserArchive, SID_PREF_NAME));
@@ -162,57 +205,59 @@ class WonderPushConfiguration {
         setLastAppCloseDate(newUserArchive.optLong(LAST_APPCLOSE_DATE_PREF_NAME));
     }
 
-    static void clearForUserId(String userId) {
+    static void clearForUserId(final String userId) {
+        runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                clearForUserId_inner(userId);
+            }
+        });
+    }
+
+    private static void clearForUserId_inner(String userId) {
         if (userId == null) userId = "";
         // Clean user archive
-        JSONObject usersArchive = getJSONObject(PER_USER_ARCHIVE_PREF_NAME);
-        if (usersArchive != null) {
-            usersArchive.remove(userId);
-            putJSONObject(PER_USER_ARCHIVE_PREF_NAME, usersArchive);
-        }
+        remove(getUserArchiveKey(userId));
         // Note: We do not touch INSTALLATION_CUSTOM_SYNC_STATE_PER_USER_ID_PREF_NAME ourself
         // If we're working on the current user, clear the properties
         if (userId.equals(getUserId()) || getUserId() == null && userId.equals("")) {
-            SharedPreferences prefs = getSharedPreferences();
-            if (prefs != null) {
-                SharedPreferences.Editor editor = prefs.edit();
-                editor.remove(ACCESS_TOKEN_PREF_NAME);
-                editor.remove(SID_PREF_NAME);
-                editor.remove(INSTALLATION_ID_PREF_NAME);
-                editor.remove(USER_ID_PREF_NAME);
-                editor.remove(NOTIFICATION_ENABLED_PREF_NAME);
-                editor.remove(CACHED_OS_ARENOTIFICATIONSENABLED_NAME);
-                editor.remove(CACHED_OS_ARENOTIFICATIONSENABLED_DATE_NAME);
-                editor.remove(CACHED_DISABLED_NOTIFICATION_CHANNEL_IDS_NAME);
-                editor.remove(CACHED_DISABLED_NOTIFICATION_CHANNEL_IDS_DATE_NAME);
-                editor.remove(CHANNEL_PREFERENCES_PREF_NAME);
-                editor.remove(CACHED_INSTALLATION_CORE_PROPERTIES_NAME);
-                editor.remove(CACHED_INSTALLATION_CORE_PROPERTIES_DATE_NAME);
-                editor.remove(CACHED_INSTALLATION_CORE_PROPERTIES_ACCESS_TOKEN_NAME);
-                editor.remove(CACHED_INSTALLATION_CUSTOM_PROPERTIES_WRITTEN_PREF_NAME);
-                editor.remove(CACHED_INSTALLATION_CUSTOM_PROPERTIES_WRITTEN_DATE_PREF_NAME);
-                editor.remove(CACHED_INSTALLATION_CUSTOM_PROPERTIES_UPDATED_PREF_NAME);
-                editor.remove(CACHED_INSTALLATION_CUSTOM_PROPERTIES_UPDATED_DATE_PREF_NAME);
-                editor.remove(CACHED_INSTALLATION_CUSTOM_PROPERTIES_FIRST_DELAYED_WRITE_DATE_PREF_NAME);
-                editor.remove(LAST_INTERACTION_DATE_PREF_NAME);
-                editor.remove(LAST_APPOPEN_DATE_PREF_NAME);
-                editor.remove(LAST_APPOPEN_INFO_PREF_NAME);
-                editor.remove(LAST_APPCLOSE_DATE_PREF_NAME);
-                editor.apply();
+            PreferencesCache cache = getCache();
+            if (cache != null) {
+                cache.removeAll(Arrays.asList(
+                        ACCESS_TOKEN_PREF_NAME,
+                        SID_PREF_NAME,
+                        INSTALLATION_ID_PREF_NAME,
+                        USER_ID_PREF_NAME,
+                        NOTIFICATION_ENABLED_PREF_NAME,
+                        CACHED_OS_ARENOTIFICATIONSENABLED_NAME,
+                        CACHED_OS_ARENOTIFICATIONSENABLED_DATE_NAME,
+                        CACHED_DISABLED_NOTIFICATION_CHANNEL_IDS_NAME,
+                        CACHED_DISABLED_NOTIFICATION_CHANNEL_IDS_DATE_NAME,
+                        CHANNEL_PREFERENCES_PREF_NAME,
+                        CACHED_INSTALLATION_CORE_PROPERTIES_NAME,
+                        CACHED_INSTALLATION_CORE_PROPERTIES_DATE_NAME,
+                        CACHED_INSTALLATION_CORE_PROPERTIES_ACCESS_TOKEN_NAME,
+                        CACHED_INSTALLATION_CUSTOM_PROPERTIES_WRITTEN_PREF_NAME,
+                        CACHED_INSTALLATION_CUSTOM_PROPERTIES_WRITTEN_DATE_PREF_NAME,
+                        CACHED_INSTALLATION_CUSTOM_PROPERTIES_UPDATED_PREF_NAME,
+                        CACHED_INSTALLATION_CUSTOM_PROPERTIES_UPDATED_DATE_PREF_NAME,
+                        CACHED_INSTALLATION_CUSTOM_PROPERTIES_FIRST_DELAYED_WRITE_DATE_PREF_NAME,
+                        LAST_INTERACTION_DATE_PREF_NAME,
+                        LAST_APPOPEN_DATE_PREF_NAME,
+                        LAST_APPOPEN_INFO_PREF_NAME,
+                        LAST_APPCLOSE_DATE_PREF_NAME
+                ));
             }
         }
     }
 
     static void clearStorage(boolean keepUserConsent, boolean keepDeviceId) {
-        SharedPreferences prefs = getSharedPreferences();
-        if (prefs == null) return;
-        SharedPreferences.Editor editor = prefs.edit();
-        for (String key : prefs.getAll().keySet()) {
-            if (keepUserConsent && USER_CONSENT_PREF_NAME.equals(key)) continue;
-            if (keepDeviceId && DEVICE_ID_PREF_NAME.equals(key)) continue;
-            editor.remove(key);
-        }
-        editor.apply();
+        PreferencesCache cache = getCache();
+        if (cache == null) return;
+        List<String> keep = new ArrayList<>();
+        if (keepUserConsent) keep.add(USER_CONSENT_PREF_NAME);
+        if (keepDeviceId) keep.add(DEVICE_ID_PREF_NAME);
+        cache.clear(keep);
     }
 
     static JSONObject dumpState() {
@@ -233,57 +278,238 @@ class WonderPushConfiguration {
     /**
      * Gets the WonderPush shared preferences for that application.
      */
-    static SharedPreferences getSharedPreferences() {
+    static synchronized SharedPreferences getSharedPreferences() {
+        if (sSharedPreferences != null)
+            return sSharedPreferences;
         if (null == getApplicationContext())
             return null;
-        SharedPreferences rtn = getApplicationContext().getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+        SharedPreferences rtn = openSharedPreferences(getApplicationContext());
         if (null == rtn) {
             Log.e(WonderPush.TAG, "Could not get shared preferences", new NullPointerException("Stack"));
         }
+        sSharedPreferences = rtn;
         return rtn;
     }
 
-    private static boolean has(String key) {
-        SharedPreferences prefs = getSharedPreferences();
-        if (prefs == null) {
+    /**
+     * Opens the {@link MappedSharedPreferences} store, importing the Android shared preferences the first time.
+     * Falls back to the Android shared preferences if the store cannot be used,
+     * moving the values that can still be read back into them.
+     */
+    private static SharedPreferences openSharedPreferences(Context context) {
+        File file = new File(new File(context.getFilesDir(), "wonderpush"), STORE_FILE);
+        SharedPreferences legacy = null;
+        try {
+            if (!file.exists()) {
+                legacy = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+                MappedSharedPreferences.write(file, legacy.getAll());
+            }
+            MappedSharedPreferences rtn = openStore(file);
+            if (legacy != null) {
+                WonderPush.logDebug("Imported " + legacy.getAll().size() + " preferences into " + file);
+                legacy.edit().clear().apply();
+            }
+            return rtn;
+        } catch (IOException ex) {
+            Log.e(WonderPush.TAG, "Could not open " + file + ", using shared preferences instead", ex);
+            if (legacy == null) {
+                legacy = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+            }
+            if (legacy.getAll().isEmpty()) {
+                // They were cleared by a previous import, the store holds the values
+                try {
+                    putAll(legacy.edit(), MappedSharedPreferences.read(file)).commit();
+                } catch (IOException readEx) {
+                    Log.e(WonderPush.TAG, "Could not read " + file + ", the SDK state is lost", readEx);
+                }
+            }
+            // Set the store aside, so that it is imported again from the shared preferences with the changes made meanwhile
+            File broken = new File(file.getPath() + ".broken");
+            if (file.exists() && !file.renameTo(broken) && !file.delete()) {
+                Log.e(WonderPush.TAG, "Could not remove " + file);
+            }
+            return legacy;
+        }
+    }
+
+    /**
+     * Opens the store, rebuilding it from the values that can still be read if it cannot be opened as is.
+     */
+    private static MappedSharedPreferences openStore(File file) throws IOException {
+        try {
+            return new MappedSharedPreferences(file, WonderPush.sIoExecutor);
+        } catch (IOException ex) {
+            Log.e(WonderPush.TAG, "Could not open " + file + ", rebuilding it", ex);
+            MappedSharedPreferences.write(file, MappedSharedPreferences.read(file));
+            return new MappedSharedPreferences(file, WonderPush.sIoExecutor);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SharedPreferences.Editor putAll(SharedPreferences.Editor editor, Map<String, ?> values) {
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                editor.putString(entry.getKey(), (String) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(entry.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(entry.getKey(), (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(entry.getKey(), (Float) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(entry.getKey(), (Boolean) value);
+            } else if (value instanceof Set) {
+                editor.putStringSet(entry.getKey(), (Set<String>) value);
+            }
+        }
+        return editor;
+    }
+
+    /**
+     * Replaces the storage, for tests to run without a {@link Context}.
+     */
+    static void setCache(PreferencesCache cache) {
+        if (cache != null) {
+            migrateToPerUserKeys(cache);
+        }
+        sCache = cache;
+    }
+
+    /**
+     * Gets the in-memory snapshot of the WonderPush shared preferences, or {@code null} if there is no context yet.
+     */
+    private static PreferencesCache getCache() {
+        PreferencesCache cache = sCache;
+        if (cache != null) return cache;
+        synchronized (WonderPushConfiguration.class) {
+            if (sCache == null) {
+                SharedPreferences prefs = getSharedPreferences();
+                if (prefs != null) {
+                    PreferencesCache newCache = new PreferencesCache(prefs);
+                    migrateToPerUserKeys(newCache);
+                    sCache = newCache;
+                }
+            }
+            return sCache;
+        }
+    }
+
+    /**
+     * Splits the legacy objects holding the data of all users into one key per user, with a single write.
+     */
+    private static void migrateToPerUserKeys(final PreferencesCache cache) {
+        if (!cache.contains(PER_USER_ARCHIVE_PREF_NAME) && !cache.contains(INSTALLATION_CUSTOM_SYNC_STATE_PER_USER_ID_PREF_NAME)) {
+            return;
+        }
+        cache.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                splitPerUser(cache, PER_USER_ARCHIVE_PREF_NAME, USER_ARCHIVE_PREF_PREFIX);
+                splitPerUser(cache, INSTALLATION_CUSTOM_SYNC_STATE_PER_USER_ID_PREF_NAME, INSTALLATION_CUSTOM_SYNC_STATE_PREF_PREFIX);
+            }
+        });
+    }
+
+    private static void splitPerUser(PreferencesCache cache, String legacyKey, String prefix) {
+        try {
+            JSONObject perUserId = cache.getJSONObject(legacyKey);
+            if (perUserId == null) return;
+            WonderPush.logDebug("Migrating " + legacyKey + " to one key per user");
+            Iterator<String> it = perUserId.keys();
+            while (it.hasNext()) {
+                String userId = it.next();
+                JSONObject value = perUserId.optJSONObject(userId);
+                if (value == null) continue;
+                cache.put(prefix + userId, value.toString());
+            }
+        } catch (JSONException ex) {
+            Log.e(WonderPush.TAG, "Failed to migrate " + legacyKey + ", dropping it", ex);
+        }
+        cache.put(legacyKey, null);
+    }
+
+    private static String getUserArchiveKey(String userId) {
+        return USER_ARCHIVE_PREF_PREFIX + (userId == null ? "" : userId);
+    }
+
+    private static String getInstallationCustomSyncStateKey(String userId) {
+        return INSTALLATION_CUSTOM_SYNC_STATE_PREF_PREFIX + (userId == null ? "" : userId);
+    }
+
+    private static String getInstallationCustomSyncJournalKey(String userId, int index) {
+        return INSTALLATION_CUSTOM_SYNC_JOURNAL_PREF_PREFIX + (userId == null ? "" : userId) + ":" + index;
+    }
+
+    /**
+     * Finds the journal entries of the given user, by index.
+     * Keys of other users whose userId starts with the same characters and a colon are skipped.
+     */
+    private static Map<Integer, String> getInstallationCustomSyncJournalKeys(PreferencesCache cache, String userId) {
+        String prefix = INSTALLATION_CUSTOM_SYNC_JOURNAL_PREF_PREFIX + (userId == null ? "" : userId) + ":";
+        Map<Integer, String> rtn = new TreeMap<>();
+        for (String key : cache.keysWithPrefix(prefix)) {
+            try {
+                rtn.put(Integer.parseInt(key.substring(prefix.length())), key);
+            } catch (NumberFormatException ex) {
+                // Belongs to another user
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * Lists the users having a key with the given prefix, {@code null} standing for the empty userId.
+     */
+    private static List<String> listUserIdsWithPrefix(String prefix) {
+        List<String> rtn = new ArrayList<>();
+        PreferencesCache cache = getCache();
+        if (cache == null) return rtn;
+        for (String key : cache.keysWithPrefix(prefix)) {
+            String userId = key.substring(prefix.length());
+            rtn.add(userId.length() == 0 ? null : userId);
+        }
+        return rtn;
+    }
+
+    static boolean has(String key) {
+        PreferencesCache cache = getCache();
+        if (cache == null) {
             return false;
         }
-        return prefs.contains(key);
+        return cache.contains(key);
     }
 
-    private static void remove(String key) {
-        SharedPreferences.Editor editor = getSharedPreferences().edit();
-        editor.remove(key);
-        editor.apply();
+    static void remove(String key) {
+        PreferencesCache cache = getCache();
+        if (cache == null) return;
+        cache.put(key, null);
     }
 
     private static String getString(String key) {
         return getString(key, null);
     }
 
-    private static String getString(String key, String defaultValue) {
-        SharedPreferences prefs = getSharedPreferences();
-        if (prefs == null) {
+    static String getString(String key, String defaultValue) {
+        PreferencesCache cache = getCache();
+        if (cache == null) {
             return defaultValue;
         }
-        return prefs.getString(key, defaultValue);
+        return cache.getString(key, defaultValue);
     }
 
     private static void putString(String key, String value) {
-        SharedPreferences.Editor editor = getSharedPreferences().edit();
-        if (null == value) {
-            editor.remove(key);
-        } else {
-            editor.putString(key, value);
-        }
-        editor.apply();
+        getCache().put(key, value);
     }
 
+    /**
+     * The returned object is shared, copy it before modifying it.
+     */
     private static JSONObject getJSONObject(String key) {
-        String json = getString(key);
-        if (json != null) {
+        PreferencesCache cache = getCache();
+        if (cache != null) {
             try {
-                return new JSONObject(json);
+                return cache.getJSONObject(key);
             } catch (JSONException e) {
                 Log.w(WonderPush.TAG, "Failed to decode json from preferences", e);
             }
@@ -295,11 +521,14 @@ class WonderPushConfiguration {
         putString(key, value == null ? null : value.toString());
     }
 
+    /**
+     * The returned array is shared, copy it before modifying it.
+     */
     private static JSONArray getJSONArray(String key) {
-        String json = getString(key);
-        if (json != null) {
+        PreferencesCache cache = getCache();
+        if (cache != null) {
             try {
-                return new JSONArray(json);
+                return cache.getJSONArray(key);
             } catch (JSONException e) {
                 Log.w(WonderPush.TAG, "Failed to decode json from preferences", e);
             }
@@ -317,45 +546,39 @@ class WonderPushConfiguration {
     }
 
     private static int getInt(String key, int defaultValue) {
-        SharedPreferences prefs = getSharedPreferences();
-        if (prefs == null) {
+        PreferencesCache cache = getCache();
+        if (cache == null) {
             return defaultValue;
         }
-        return prefs.getInt(key, defaultValue);
+        return cache.getInt(key, defaultValue);
     }
 
     private static void putInt(String key, int value) {
-        SharedPreferences.Editor editor = getSharedPreferences().edit();
-        editor.putInt(key, value);
-        editor.apply();
+        getCache().put(key, value);
     }
 
     private static long getLong(String key, long defaultValue) {
-        SharedPreferences prefs = getSharedPreferences();
-        if (prefs == null) {
+        PreferencesCache cache = getCache();
+        if (cache == null) {
             return defaultValue;
         }
-        return prefs.getLong(key, defaultValue);
+        return cache.getLong(key, defaultValue);
     }
 
     private static void putLong(String key, long value) {
-        SharedPreferences.Editor editor = getSharedPreferences().edit();
-        editor.putLong(key, value);
-        editor.apply();
+        getCache().put(key, value);
     }
 
     private static boolean getBoolean(String key, boolean defaultValue) {
-        SharedPreferences prefs = getSharedPreferences();
-        if (prefs == null) {
+        PreferencesCache cache = getCache();
+        if (cache == null) {
             return defaultValue;
         }
-        return prefs.getBoolean(key, defaultValue);
+        return cache.getBoolean(key, defaultValue);
     }
 
     private static void putBoolean(String key, boolean value) {
-        SharedPreferences.Editor editor = getSharedPreferences().edit();
-        editor.putBoolean(key, value);
-        editor.apply();
+        getCache().put(key, value);
     }
 
     private static Set<String> JSONArrayToSetString(JSONArray values) {
@@ -410,15 +633,7 @@ class WonderPushConfiguration {
     }
 
     static List<String> listKnownUserIds() {
-        List<String> rtn = new ArrayList<>();
-        JSONObject usersArchive = getJSONObject(PER_USER_ARCHIVE_PREF_NAME);
-        if (usersArchive == null) usersArchive = new JSONObject();
-        Iterator<String> it = usersArchive.keys();
-        while (it.hasNext()) {
-            String userId = it.next();
-            if (userId != null && userId.length() == 0) userId = null;
-            rtn.add(userId);
-        }
+        List<String> rtn = listUserIdsWithPrefix(USER_ARCHIVE_PREF_PREFIX);
         if (!rtn.contains(getUserId())) {
             rtn.add(getUserId());
         }
@@ -444,9 +659,7 @@ class WonderPushConfiguration {
                 || userId != null && userId.equals(getUserId())) {
             return getAccessToken();
         } else {
-            JSONObject usersArchive = getJSONObject(PER_USER_ARCHIVE_PREF_NAME);
-            if (usersArchive == null) usersArchive = new JSONObject();
-            JSONObject userArchive = usersArchive.optJSONObject(userId == null ? "" : userId);
+            JSONObject userArchive = getJSONObject(getUserArchiveKey(userId));
             if (userArchive == null) userArchive = new JSONObject();
             return JSONUtil.optString(userArchive, ACCESS_TOKEN_PREF_NAME);
         }
@@ -762,20 +975,75 @@ class WonderPushConfiguration {
     }
 
     /**
-     * Get the saved state of installation custom sync for all users.
+     * List the users having a saved state or journal of installation custom sync.
      */
-    static JSONObject getInstallationCustomSyncStatePerUserId() {
-        return getJSONObject(INSTALLATION_CUSTOM_SYNC_STATE_PER_USER_ID_PREF_NAME);
+    static List<String> listUserIdsWithInstallationCustomSyncState() {
+        List<String> rtn = listUserIdsWithPrefix(INSTALLATION_CUSTOM_SYNC_STATE_PREF_PREFIX);
+        for (String userIdAndIndex : listUserIdsWithPrefix(INSTALLATION_CUSTOM_SYNC_JOURNAL_PREF_PREFIX)) {
+            if (userIdAndIndex == null) continue;
+            String userId = userIdAndIndex.substring(0, userIdAndIndex.lastIndexOf(':'));
+            if (userId.length() == 0) userId = null;
+            if (!rtn.contains(userId)) {
+                rtn.add(userId);
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * Get the saved state of installation custom sync for the given user.
+     */
+    static JSONObject getInstallationCustomSyncStateForUserId(String userId) {
+        return getJSONObject(getInstallationCustomSyncStateKey(userId));
+    }
+
+    /**
+     * Set the saved state of installation custom sync for the given user.
+     *
+     * @param userId
+     *            The user the state belongs to.
+     * @param installationCustomSyncState
+     *            The saved state of installation custom sync to be stored.
+     */
+    static void setInstallationCustomSyncStateForUserId(final String userId, final JSONObject installationCustomSyncState) {
+        runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                putJSONObject(getInstallationCustomSyncStateKey(userId), installationCustomSyncState);
+                // The journal was applied to the new state
+                PreferencesCache cache = getCache();
+                if (cache != null) {
+                    cache.removeAll(getInstallationCustomSyncJournalKeys(cache, userId).values());
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the journal of installation custom sync for the given user, saved since its last state, in order.
+     */
+    static List<JSONObject> getInstallationCustomSyncJournalForUserId(String userId) {
+        List<JSONObject> rtn = new ArrayList<>();
+        PreferencesCache cache = getCache();
+        if (cache == null) return rtn;
+        int expectedIndex = 0;
+        for (Map.Entry<Integer, String> entry : getInstallationCustomSyncJournalKeys(cache, userId).entrySet()) {
+            JSONObject value = getJSONObject(entry.getValue());
+            // Entries after a missing one cannot be applied
+            if (entry.getKey() != expectedIndex++ || value == null) break;
+            rtn.add(value);
+        }
+        return rtn;
     }
 
     /**
-     * Set the saved state of installation custom sync for all users.
+     * Add an entry to the journal of installation custom sync for the given user.
      *
-     * @param installationCustomSyncStatePerUserId
-     *            The saved state of installation custom sync for all users to be stored.
+     * @param index
+     *            The number of entries saved since the last state.
      */
-    static void setInstallationCustomSyncStatePerUserId(JSONObject installationCustomSyncStatePerUserId) {
-        putJSONObject(INSTALLATION_CUSTOM_SYNC_STATE_PER_USER_ID_PREF_NAME, installationCustomSyncStatePerUserId);
+    static void setInstallationCustomSyncJournalEntryForUserId(String userId, int index, JSONObject entry) {
+        putJSONObject(getInstallationCustomSyncJournalKey(userId, index), entry);
     }
 
 
@@ -0,0 +1,190 @@
+package com.wonderpush.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Groups pending {@code POST /events/} jobs of the {@link WonderPushRequestVault} into multi-event requests.
+ *
+ * <p>
+ *     An event job is held in the queue for at most {@link #MAX_BATCH_DELAY} ms,
+ *     and is flushed earlier as soon as {@link #MAX_BATCH_SIZE} events or {@link #MAX_BATCH_BYTES} bytes are pending.
+ *     The resulting request carries a JSON array of events as its {@code body} parameter.
+ * </p>
+ */
+class WonderPushEventBatcher {
+
+    static final String EVENTS_RESOURCE = "/events/";
+    static final String BODY_PARAM = "body";
+
+    static final int MAX_BATCH_SIZE = 20;
+    static final int MAX_BATCH_BYTES = 32 * 1024;
+    static final long MAX_BATCH_DELAY = 2 * 1000;
+
+    /**
+     * Number of queued jobs examined when looking for events to batch.
+     */
+    static final int MAX_LOOKAHEAD = 4 * MAX_BATCH_SIZE;
+
+    /**
+     * Tells whether the given job description is an event upload that can be batched with others.
+     */
+    static boolean isBatchable(JSONObject jobDescription) {
+        if (jobDescription == null) return false;
+        if (!"POST".equals(jobDescription.optString("method", null))) return false;
+        if (!EVENTS_RESOURCE.equals(jobDescription.optString("resource", null))) return false;
+        JSONObject params = jobDescription.optJSONObject("params");
+        return params != null && params.opt(BODY_PARAM) instanceof String;
+    }
+
+    /**
+     * @return The size of the body of the given event job, or -1 if it cannot be batched
+     */
+    static int getBatchableBytes(JSONObject jobDescription) {
+        if (!isBatchable(jobDescription)) return -1;
+        return jobDescription.optJSONObject("params").optString(BODY_PARAM).length();
+    }
+
+    /**
+     * Two event jobs can only be batched together if they target the same user
+     * and share every parameter but their body.
+     */
+    static String getBatchKey(JSONObject jobDescription) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(jobDescription.optString("userId", null));
+        sb.append('\n');
+        sb.append(jobDescription.optString("method", null));
+        sb.append('\n');
+        sb.append(jobDescription.optString("resource", null));
+        JSONObject params = jobDescription.optJSONObject("params");
+        if (params != null) {
+            List<String> names = new ArrayList<>();
+            Iterator<String> it = params.keys();
+            while (it.hasNext()) {
+                String name = it.next();
+                if (!BODY_PARAM.equals(name)) {
+                    names.add(name);
+                }
+            }
+            Collections.sort(names);
+            for (String name : names) {
+                sb.append('\n');
+                sb.append(name);
+                sb.append('=');
+                sb.append(params.optString(name));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the events held in a job body, which is either a single event or an already batched array of events.
+     */
+    static List<JSONObject> getEvents(JSONObject jobDescription) throws JSONException {
+        List<JSONObject> rtn = new ArrayList<>();
+        String body = jobDescription.getJSONObject("params").getString(BODY_PARAM);
+        Object value = new JSONTokener(body).nextValue();
+        if (value instanceof JSONObject) {
+            rtn.add((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); ++i) {
+                JSONObject event = array.optJSONObject(i);
+                if (event != null) {
+                    rtn.add(event);
+                }
+            }
+        } else {
+            throw new JSONException("Unexpected event body: " + body);
+        }
+        return rtn;
+    }
+
+    /**
+     * Accumulates compatible event jobs, starting from the job about to be sent.
+     */
+    static class Batch {
+
+        private final JSONObject mHead;
+        private final String mKey;
+        private final JSONArray mEvents = new JSONArray();
+        private int mJobs;
+        private int mBytes;
+        private boolean mRefusedForBudget;
+
+        Batch(JSONObject head) throws JSONException {
+            mHead = head;
+            mKey = getBatchKey(head);
+            for (JSONObject event : getEvents(head)) {
+                mEvents.put(event);
+            }
+            mJobs = 1;
+            mBytes = head.getJSONObject("params").getString(BODY_PARAM).length();
+        }
+
+        /**
+         * Adds the given job to the batch if it is compatible and fits the size and byte budgets.
+         *
+         * @return Whether the job was added to the batch
+         */
+        boolean offer(JSONObject jobDescription) {
+            if (isFull() || !isBatchable(jobDescription) || !mKey.equals(getBatchKey(jobDescription))) {
+                return false;
+            }
+            List<JSONObject> events;
+            int bytes;
+            try {
+                events = getEvents(jobDescription);
+                bytes = jobDescription.getJSONObject("params").getString(BODY_PARAM).length();
+            } catch (JSONException ex) {
+                return false;
+            }
+            if (mEvents.length() + events.size() > MAX_BATCH_SIZE || mBytes + bytes > MAX_BATCH_BYTES) {
+                mRefusedForBudget = true;
+                return false;
+            }
+            for (JSONObject event : events) {
+                mEvents.put(event);
+            }
+            mBytes += bytes;
+            mJobs++;
+            return true;
+        }
+
+        /**
+         * Whether no more events can be added to this batch.
+         */
+        boolean isFull() {
+            return mRefusedForBudget || mEvents.length() >= MAX_BATCH_SIZE || mBytes >= MAX_BATCH_BYTES;
+        }
+
+        int getEventCount() {
+            return mEvents.length();
+        }
+
+        int getJobCount() {
+            return mJobs;
+        }
+
+        /**
+         * Returns the job description of the multi-event request, or the head job if nothing was added to it.
+         */
+        JSONObject toJobDescription() throws JSONException {
+            if (mJobs == 1) {
+                return mHead;
+            }
+            JSONObject rtn = new JSONObject(mHead.toString());
+            rtn.getJSONObject("params").put(BODY_PARAM, mEvents.toString());
+            return rtn;
+        }
+
+    }
+
+}
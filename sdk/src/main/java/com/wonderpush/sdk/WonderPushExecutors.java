@@ -0,0 +1,281 @@
+package com.wonderpush.sdk;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads the SDK works on.
+ *
+ * <ul>
+ *     <li>The <b>state</b> executor is serial: tasks run one at a time, in the order of their due time,
+ *         and in submission order for a same due time.
+ *         It is the one behind {@link WonderPush#safeDefer(Runnable, long)}, for mutations whose ordering matters.</li>
+ *     <li>The <b>IO</b> pool runs disk reads, which must not hold back the state executor.
+ *         It gives no ordering guarantee between tasks.</li>
+ *     <li>The <b>requests</b> executor is serial: it prepares requests and hands them to the transport
+ *         in the order they were issued, off the state executor.</li>
+ *     <li>The <b>scheduler</b> runs short timed tasks, like delayed flushes.</li>
+ * </ul>
+ *
+ * <p>
+ *     Each executor counts the tasks it ran and the deepest its queue has been.
+ * </p>
+ */
+class WonderPushExecutors {
+
+    static final int IO_POOL_SIZE = 2;
+
+    /**
+     * Names threads {@code <prefix>} for single threads or {@code <prefix>-<n>} for pools.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String mPrefix;
+        private final boolean mNumbered;
+        private final AtomicInteger mCount = new AtomicInteger();
+        volatile Thread lastThread;
+
+        NamedThreadFactory(String prefix, boolean numbered) {
+            mPrefix = prefix;
+            mNumbered = numbered;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mNumbered ? mPrefix + "-" + mCount.incrementAndGet() : mPrefix);
+            thread.setDaemon(true);
+            lastThread = thread;
+            return thread;
+        }
+
+    }
+
+    /**
+     * Tracks the number of executed tasks and the peak queue depth of an executor.
+     */
+    static class Metrics {
+
+        private final String mName;
+        private final BlockingQueue<Runnable> mQueue;
+        private final AtomicLong mExecuted = new AtomicLong();
+        private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+        Metrics(String name, BlockingQueue<Runnable> queue) {
+            mName = name;
+            mQueue = queue;
+        }
+
+        void onSubmitted() {
+            int depth = mQueue.size();
+            int max;
+            do {
+                max = mMaxQueueDepth.get();
+            } while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth));
+        }
+
+        void onExecuted() {
+            mExecuted.incrementAndGet();
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        /**
+         * Number of tasks waiting to run, including delayed ones.
+         */
+        int getQueueDepth() {
+            return mQueue.size();
+        }
+
+        int getMaxQueueDepth() {
+            return mMaxQueueDepth.get();
+        }
+
+        long getExecutedCount() {
+            return mExecuted.get();
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + getQueueDepth() + " queued (max " + getMaxQueueDepth() + "), " + getExecutedCount() + " executed";
+        }
+
+    }
+
+    private static class MeteredScheduledExecutor extends ScheduledThreadPoolExecutor {
+
+        final Metrics metrics;
+
+        MeteredScheduledExecutor(String name, int threads) {
+            super(threads, new NamedThreadFactory(name, threads > 1));
+            metrics = new Metrics(name, getQueue());
+        }
+
+        boolean isCurrentThread() {
+            return ((NamedThreadFactory) getThreadFactory()).lastThread == Thread.currentThread();
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            ScheduledFuture<?> rtn = super.schedule(command, delay, unit);
+            metrics.onSubmitted();
+            return rtn;
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            metrics.onExecuted();
+        }
+
+    }
+
+    private static class MeteredThreadPoolExecutor extends ThreadPoolExecutor {
+
+        final Metrics metrics;
+
+        MeteredThreadPoolExecutor(String name, int threads) {
+            super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name, threads > 1));
+            allowCoreThreadTimeOut(true);
+            metrics = new Metrics(name, getQueue());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            super.execute(command);
+            metrics.onSubmitted();
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            metrics.onExecuted();
+        }
+
+    }
+
+    private final MeteredScheduledExecutor mState;
+    private final MeteredThreadPoolExecutor mIo;
+    private final MeteredThreadPoolExecutor mRequests;
+    private final MeteredScheduledExecutor mScheduler;
+
+    WonderPushExecutors() {
+        this("WonderPush");
+    }
+
+    WonderPushExecutors(String namePrefix) {
+        // A single thread runs tasks due at the same time in submission order, like a Looper does
+        mState = new MeteredScheduledExecutor(namePrefix, 1);
+        mIo = new MeteredThreadPoolExecutor(namePrefix + "-io", IO_POOL_SIZE);
+        mRequests = new MeteredThreadPoolExecutor(namePrefix + "-requests", 1);
+        mScheduler = new MeteredScheduledExecutor(namePrefix + "-scheduler", 1);
+    }
+
+    /**
+     * Runs the given task on the state executor after the given delay, logging any exception it throws.
+     *
+     * @return Whether the task was accepted
+     */
+    boolean runOnState(Runnable runnable, long delayMs) {
+        try {
+            mState.schedule(guard(runnable, mState.metrics.getName()), Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            WonderPush.logError("Rejected task on " + mState.metrics.getName(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Runs the given task on the IO pool, logging any exception it throws.
+     *
+     * @return Whether the task was accepted
+     */
+    boolean runOnIo(Runnable runnable) {
+        try {
+            mIo.execute(guard(runnable, mIo.metrics.getName()));
+            return true;
+        } catch (RejectedExecutionException ex) {
+            WonderPush.logError("Rejected task on " + mIo.metrics.getName(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Runs the given task on the requests executor, after the tasks submitted before it, logging any exception it throws.
+     *
+     * @return Whether the task was accepted
+     */
+    boolean runOnRequests(Runnable runnable) {
+        try {
+            mRequests.execute(guard(runnable, mRequests.metrics.getName()));
+            return true;
+        } catch (RejectedExecutionException ex) {
+            WonderPush.logError("Rejected task on " + mRequests.metrics.getName(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Whether the calling code runs on the state executor, where waiting for other state tasks would deadlock.
+     */
+    boolean isStateThread() {
+        return mState.isCurrentThread();
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return mScheduler;
+    }
+
+    Metrics getStateMetrics() {
+        return mState.metrics;
+    }
+
+    Metrics getIoMetrics() {
+        return mIo.metrics;
+    }
+
+    Metrics getRequestsMetrics() {
+        return mRequests.metrics;
+    }
+
+    Metrics getSchedulerMetrics() {
+        return mScheduler.metrics;
+    }
+
+    void shutdown() {
+        mState.shutdown();
+        mIo.shutdown();
+        mRequests.shutdown();
+        mScheduler.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return mState.metrics + ", " + mIo.metrics + ", " + mRequests.metrics + ", " + mScheduler.metrics;
+    }
+
+    private static Runnable guard(final Runnable runnable, final String executorName) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Exception ex) {
+                    WonderPush.logError("Unexpected error on " + executorName + " task", ex);
+                }
+            }
+        };
+    }
+
+}
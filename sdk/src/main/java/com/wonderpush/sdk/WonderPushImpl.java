@@ -281,6 +281,16 @@ class WonderPushImpl implements IWonderPush {
         }
     }
 
+    @Override
+    public void applyPropertiesEditor(WonderPushPropertiesEditor editor, DeferredFuture<Boolean> ack) {
+        try {
+            InstallationManager.apply(editor, ack);
+        } catch (Exception e) {
+            Log.e(WonderPush.TAG, "Unexpected error while applying properties editor", e);
+            ack.set(false);
+        }
+    }
+
     @Override
     public Set<String> getTags() {
         try {
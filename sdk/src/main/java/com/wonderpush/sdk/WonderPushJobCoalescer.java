@@ -0,0 +1,72 @@
+package com.wonderpush.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Merges successive installation updates waiting in the {@link WonderPushRequestVault},
+ * so that only the net change is sent once the network is back.
+ *
+ * <p>
+ *     An update with {@code overwrite=true} replaces any pending update.
+ *     An update with {@code overwrite=false} is a merge patch, and is applied onto the pending update:
+ *     nulls are kept if the pending update is itself a patch, so that the server still removes the fields,
+ *     and remove the fields otherwise.
+ * </p>
+ */
+class WonderPushJobCoalescer {
+
+    static final String INSTALLATION_RESOURCE = "/installation";
+    private static final String BODY_PARAM = "body";
+    private static final String OVERWRITE_PARAM = "overwrite";
+
+    /**
+     * Returns the key under which the given job can be merged with a pending one,
+     * or {@code null} if it must be sent as is.
+     */
+    static String getCoalescingKey(JSONObject jobDescription) {
+        if (jobDescription == null) return null;
+        if (!"POST".equals(jobDescription.optString("method", null))) return null;
+        if (!INSTALLATION_RESOURCE.equals(jobDescription.optString("resource", null))) return null;
+        JSONObject params = jobDescription.optJSONObject("params");
+        if (params == null || !(params.opt(BODY_PARAM) instanceof String)) return null;
+        for (Iterator<String> it = params.keys(); it.hasNext(); ) {
+            String key = it.next();
+            if (!BODY_PARAM.equals(key) && !OVERWRITE_PARAM.equals(key)) {
+                // Unknown parameters could change the meaning of the update
+                return null;
+            }
+        }
+        return jobDescription.optString("userId", null) + " POST " + INSTALLATION_RESOURCE;
+    }
+
+    /**
+     * Merges an installation update into the one that precedes it.
+     *
+     * @return The description of the single update equivalent to both, or {@code null} if they cannot be merged
+     */
+    static JSONObject coalesce(JSONObject pendingJobDescription, JSONObject newJobDescription) {
+        try {
+            JSONObject pendingParams = pendingJobDescription.getJSONObject("params");
+            JSONObject newParams = newJobDescription.getJSONObject("params");
+            if ("true".equals(newParams.optString(OVERWRITE_PARAM))) {
+                return newJobDescription;
+            }
+            boolean pendingOverwrites = "true".equals(pendingParams.optString(OVERWRITE_PARAM));
+            JSONObject body = new JSONObject(pendingParams.getString(BODY_PARAM));
+            JSONUtil.merge(body, new JSONObject(newParams.getString(BODY_PARAM)), pendingOverwrites);
+
+            JSONObject rtn = new JSONObject(newJobDescription.toString());
+            JSONObject params = rtn.getJSONObject("params");
+            params.put(BODY_PARAM, body.toString());
+            params.put(OVERWRITE_PARAM, pendingOverwrites ? "true" : "false");
+            return rtn;
+        } catch (JSONException ex) {
+            WonderPush.logError("Could not merge installation updates", ex);
+            return null;
+        }
+    }
+
+}
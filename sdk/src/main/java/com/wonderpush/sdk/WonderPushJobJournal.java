@@ -0,0 +1,563 @@
+package com.wonderpush.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * An append-only file storing the jobs of a {@link WonderPushJobQueue}.
+ *
+ * <p>
+ *     Each line is a record, either {@code +<id> <header> <payload>} when a job is enqueued,
+ *     or {@code -<id>} when a job is acknowledged.
+ *     Enqueuing or acknowledging a job hence costs a single small append, whatever the number of queued jobs.
+ *     Appends are queued in memory and written in order by the writer, off the calling thread.
+ *     Once acknowledged records outnumber live ones, the writer compacts the file.
+ * </p>
+ *
+ * <p>
+ *     Only the position of the live payloads is kept in memory, so that they can be read back on demand.
+ * </p>
+ */
+class WonderPushJobJournal {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte RECORD_ENQUEUE = '+';
+    private static final byte RECORD_ACK = '-';
+
+    /**
+     * Do not bother compacting below this number of dead records.
+     */
+    static final int COMPACTION_MIN_DEAD_RECORDS = 256;
+
+    /**
+     * Follows the steps of a compaction.
+     */
+    interface CompactionListener {
+
+        /**
+         * Called once the live records are copied, without holding the lock,
+         * before the records appended meanwhile are copied too.
+         */
+        void onLiveRecordsCopied();
+
+    }
+
+    /**
+     * A live job in the journal.
+     */
+    static class Record {
+
+        final String id;
+        final String header;
+        // Position of the payload in the file, updated by compactions
+        private long offset;
+        private final int length;
+
+        private Record(String id, String header, long offset, int length) {
+            this.id = id;
+            this.header = header;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Size of the payload, in bytes.
+         */
+        int getLength() {
+            return length;
+        }
+
+    }
+
+    private final File mFile;
+    private final Executor mWriter;
+    private final CompactionListener mCompactionListener;
+    // Guarded by this
+    private final LinkedHashMap<String, Record> mLive = new LinkedHashMap<>();
+    private int mDeadRecords;
+    private long mLiveBytes;
+    // Records not appended yet, in order
+    private final List<byte[]> mPendingRecords = new ArrayList<>();
+    private boolean mWriteScheduled;
+    private OutputStream mOutput;
+    private RandomAccessFile mReader;
+    // Length of the file once the pending records are appended
+    private long mLength;
+    // Length of the file actually written
+    private long mWrittenLength;
+    private long mBytesAppended;
+    private boolean mCompacting;
+    // Serializes the writes to the file, taken before this when both are needed
+    private final Object mFileLock = new Object();
+
+    /**
+     * @param file
+     *            The journal file
+     * @param writer
+     *            Runs the appends and the compactions, {@code null} to run them on the calling thread
+     */
+    WonderPushJobJournal(File file, Executor writer) {
+        this(file, writer, null);
+    }
+
+    /**
+     * @param compactionListener
+     *            Notified of the steps of each compaction, may be {@code null}
+     */
+    WonderPushJobJournal(File file, Executor writer, CompactionListener compactionListener) {
+        mFile = file;
+        mWriter = writer;
+        mCompactionListener = compactionListener;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Reads the journal and returns the live records, in enqueue order.
+     * Payloads are not read, use {@link #read(Record)} for that.
+     * A partially written trailing record, left by a process death, is discarded.
+     */
+    List<Record> open() throws IOException {
+        synchronized (mFileLock) {
+            close();
+            synchronized (this) {
+                return openLocked();
+            }
+        }
+    }
+
+    private List<Record> openLocked() throws IOException {
+        mLive.clear();
+        mDeadRecords = 0;
+        mLiveBytes = 0;
+        long validLength = 0;
+        if (mFile.exists()) {
+            InputStream input = new BufferedInputStream(new FileInputStream(mFile));
+            try {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long offset = 0;
+                int b;
+                while ((b = input.read()) != -1) {
+                    ++offset;
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    readRecord(line.toByteArray(), validLength);
+                    validLength = offset;
+                    line.reset();
+                }
+            } finally {
+                input.close();
+            }
+            if (validLength != mFile.length()) {
+                WonderPush.logDebug("JobJournal: truncating partial record in " + mFile);
+                RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        } else {
+            File parent = mFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create directory " + parent);
+            }
+        }
+        mLength = validLength;
+        mWrittenLength = validLength;
+        mOutput = new FileOutputStream(mFile, true);
+        return new ArrayList<>(mLive.values());
+    }
+
+    private void readRecord(byte[] line, long lineOffset) {
+        if (line.length < 2) return;
+        if (line[0] == RECORD_ENQUEUE) {
+            int idEnd = indexOf(line, (byte) ' ', 1);
+            int headerEnd = idEnd < 0 ? -1 : indexOf(line, (byte) ' ', idEnd + 1);
+            if (headerEnd < 0) {
+                ++mDeadRecords;
+                return;
+            }
+            String id = new String(line, 1, idEnd - 1, UTF8);
+            String header = new String(line, idEnd + 1, headerEnd - idEnd - 1, UTF8);
+            Record record = new Record(id, header, lineOffset + headerEnd + 1, line.length - headerEnd - 1);
+            Record previous = mLive.put(id, record);
+            if (previous != null) {
+                mLiveBytes -= previous.length;
+                ++mDeadRecords;
+            }
+            mLiveBytes += record.length;
+        } else if (line[0] == RECORD_ACK) {
+            Record record = mLive.remove(new String(line, 1, line.length - 1, UTF8));
+            if (record != null) {
+                mLiveBytes -= record.length;
+            }
+            // The enqueue record and this ack record are now both dead
+            mDeadRecords += 2;
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte needle, int from) {
+        for (int i = from; i < bytes.length; ++i) {
+            if (bytes[i] == needle) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Records a newly enqueued job.
+     *
+     * @param header
+     *            Small metadata returned along with the record by {@link #open()}, must not contain any whitespace
+     */
+    Record append(String id, String header, JSONObject payload) throws IOException {
+        byte[] prefix = (((char) RECORD_ENQUEUE) + id + " " + header + " ").getBytes(UTF8);
+        byte[] bytes = (payload.toString() + "\n").getBytes(UTF8);
+        byte[] line = new byte[prefix.length + bytes.length];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        System.arraycopy(bytes, 0, line, prefix.length, bytes.length);
+        Record record;
+        synchronized (this) {
+            record = new Record(id, header, mLength + prefix.length, bytes.length - 1);
+            enqueue(line);
+            mLive.put(id, record);
+            mLiveBytes += record.length;
+        }
+        scheduleWrite();
+        return record;
+    }
+
+    /**
+     * Reads the payload of a live record, writing the pending records first if it is one of them.
+     */
+    JSONObject read(Record record) throws IOException {
+        synchronized (this) {
+            if (record.offset + record.length <= mWrittenLength) {
+                return readWritten(record);
+            }
+        }
+        writePendingRecords();
+        synchronized (this) {
+            return readWritten(record);
+        }
+    }
+
+    private JSONObject readWritten(Record record) throws IOException {
+        if (mOutput == null) {
+            throw new IOException("Journal is not open: " + mFile);
+        }
+        if (mReader == null) {
+            mReader = new RandomAccessFile(mFile, "r");
+        }
+        byte[] bytes = new byte[record.length];
+        mReader.seek(record.offset);
+        mReader.readFully(bytes);
+        try {
+            return new JSONObject(new String(bytes, UTF8));
+        } catch (JSONException ex) {
+            throw new IOException("Malformed record " + record.id + " in " + mFile, ex);
+        }
+    }
+
+    /**
+     * Records that a job left the queue.
+     */
+    void ack(String id) throws IOException {
+        synchronized (this) {
+            Record record = mLive.remove(id);
+            if (record == null) return;
+            mLiveBytes -= record.length;
+            enqueue((((char) RECORD_ACK) + id + "\n").getBytes(UTF8));
+            mDeadRecords += 2;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Queues a record to be appended by the writer.
+     * Must be called with this held.
+     */
+    private void enqueue(byte[] bytes) throws IOException {
+        if (mOutput == null) {
+            throw new IOException("Journal is not open: " + mFile);
+        }
+        mPendingRecords.add(bytes);
+        mLength += bytes.length;
+        mBytesAppended += bytes.length;
+    }
+
+    /**
+     * Makes the writer append the pending records, then compact the file if needed.
+     */
+    private void scheduleWrite() {
+        synchronized (this) {
+            if (mWriteScheduled) return;
+            mWriteScheduled = true;
+        }
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                writePendingRecords();
+                compactIfNeeded();
+            }
+        };
+        if (mWriter == null) {
+            write.run();
+        } else {
+            mWriter.execute(write);
+        }
+    }
+
+    /**
+     * Appends the records queued so far, in order, without holding this while writing.
+     */
+    private void writePendingRecords() {
+        synchronized (mFileLock) {
+            List<byte[]> records;
+            OutputStream output;
+            synchronized (this) {
+                mWriteScheduled = false;
+                records = new ArrayList<>(mPendingRecords);
+                mPendingRecords.clear();
+                output = mOutput;
+            }
+            // The output only changes with mFileLock held
+            if (records.isEmpty() || output == null) return;
+            long written = 0;
+            try {
+                for (byte[] record : records) {
+                    output.write(record);
+                    written += record.length;
+                }
+                output.flush();
+            } catch (IOException ex) {
+                WonderPush.logError("JobJournal: could not write to " + mFile, ex);
+            } finally {
+                synchronized (this) {
+                    mWrittenLength += written;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the records queued so far, in order.
+     * Must be called with {@link #mFileLock} and this held.
+     */
+    private void writePendingRecordsLocked() throws IOException {
+        Iterator<byte[]> it = mPendingRecords.iterator();
+        while (it.hasNext()) {
+            byte[] record = it.next();
+            mOutput.write(record);
+            mWrittenLength += record.length;
+            it.remove();
+        }
+        mOutput.flush();
+    }
+
+    /**
+     * Returns the size of the journal file, in bytes.
+     */
+    synchronized long length() {
+        return mLength;
+    }
+
+    /**
+     * Returns the number of bytes appended since this journal was created, compactions excluded.
+     */
+    synchronized long getBytesAppended() {
+        return mBytesAppended;
+    }
+
+    synchronized int getLiveCount() {
+        return mLive.size();
+    }
+
+    /**
+     * Returns the total size of the live payloads, in bytes.
+     */
+    synchronized long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    /**
+     * Writes the pending records, then closes the file.
+     */
+    void close() throws IOException {
+        synchronized (mFileLock) {
+            writePendingRecords();
+            synchronized (this) {
+                closeStreams();
+            }
+        }
+    }
+
+    private void closeStreams() throws IOException {
+        if (mReader != null) {
+            mReader.close();
+            mReader = null;
+        }
+        if (mOutput != null) {
+            mOutput.close();
+            mOutput = null;
+        }
+    }
+
+    private void compactIfNeeded() {
+        synchronized (this) {
+            if (mCompacting || mDeadRecords < COMPACTION_MIN_DEAD_RECORDS || mDeadRecords < mLive.size()) {
+                return;
+            }
+            mCompacting = true;
+        }
+        try {
+            compact();
+        } catch (Exception ex) {
+            WonderPush.logError("JobJournal: compaction failed for " + mFile, ex);
+        } finally {
+            synchronized (this) {
+                mCompacting = false;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the live enqueue records.
+     *
+     * <p>
+     *     The bulk of the file is copied without holding the locks, so that appends and writes are not blocked.
+     *     The records written or queued meanwhile are then copied as is before the new file replaces the old one.
+     * </p>
+     */
+    void compact() throws IOException {
+        long copiedLength;
+        Set<Long> liveOffsets = new HashSet<>();
+        synchronized (this) {
+            if (mOutput == null) return;
+            copiedLength = mWrittenLength;
+            for (Record record : mLive.values()) {
+                liveOffsets.add(record.offset);
+            }
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        OutputStream output = new FileOutputStream(tmpFile);
+        // Payload offset in the old file -> payload offset in the new file, for the copied live records
+        Map<Long, Long> newOffsets = new HashMap<>();
+        try {
+            long outputLength = 0;
+            InputStream input = new BufferedInputStream(new FileInputStream(mFile));
+            try {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long offset = 0;
+                long lineOffset = 0;
+                int b;
+                while (offset < copiedLength && (b = input.read()) != -1) {
+                    ++offset;
+                    line.write(b);
+                    if (b != '\n') continue;
+                    byte[] bytes = line.toByteArray();
+                    line.reset();
+                    if (bytes[0] == RECORD_ENQUEUE) {
+                        int idEnd = indexOf(bytes, (byte) ' ', 1);
+                        int headerEnd = idEnd < 0 ? -1 : indexOf(bytes, (byte) ' ', idEnd + 1);
+                        long payloadOffset = lineOffset + headerEnd + 1;
+                        if (headerEnd >= 0 && liveOffsets.contains(payloadOffset)) {
+                            newOffsets.put(payloadOffset, outputLength + headerEnd + 1);
+                            output.write(bytes);
+                            outputLength += bytes.length;
+                        }
+                    }
+                    lineOffset = offset;
+                }
+            } finally {
+                input.close();
+            }
+            if (mCompactionListener != null) {
+                mCompactionListener.onLiveRecordsCopied();
+            }
+
+            synchronized (mFileLock) {
+                synchronized (this) {
+                    if (mOutput == null) return;
+                    // Copy the records appended during the compaction, queued ones included
+                    writePendingRecordsLocked();
+                    long tailShift = outputLength - copiedLength;
+                    RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+                    try {
+                        raf.seek(copiedLength);
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = raf.read(buffer)) != -1) {
+                            output.write(buffer, 0, read);
+                            outputLength += read;
+                        }
+                    } finally {
+                        raf.close();
+                    }
+                    output.close();
+                    output = null;
+
+                    closeStreams();
+                    if (!tmpFile.renameTo(mFile)) {
+                        mOutput = new FileOutputStream(mFile, true);
+                        throw new IOException("Could not replace " + mFile);
+                    }
+                    mLength = outputLength;
+                    mWrittenLength = outputLength;
+                    mOutput = new FileOutputStream(mFile, true);
+                    // Remap by offset, not by id: an id acknowledged then appended again during the compaction
+                    // has a stale copied record, while its live record is in the tail
+                    int relocated = 0;
+                    for (Record record : mLive.values()) {
+                        if (record.offset < copiedLength) {
+                            Long newOffset = newOffsets.get(record.offset);
+                            if (newOffset != null) {
+                                record.offset = newOffset;
+                                ++relocated;
+                            }
+                        } else {
+                            record.offset += tailShift;
+                        }
+                    }
+                    // Records acknowledged during the compaction were copied along with their ack
+                    mDeadRecords = 2 * (newOffsets.size() - relocated);
+                    WonderPush.logDebug("JobJournal: compacted " + mFile + " to " + mLength + " bytes");
+                }
+            }
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                WonderPush.logDebug("JobJournal: could not delete " + tmpFile);
+            }
+        }
+    }
+
+}
@@ -1,26 +1,61 @@
 package com.wonderpush.sdk;
 
-import android.content.SharedPreferences;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
 
 /**
- * A simple persistent job queue which saves itself on disk using SharedPreferences
- * and wraps an {@link ArrayBlockingQueue}.
+ * A persistent job queue which saves itself on disk using a {@link WonderPushJobJournal}.
+ *
+ * <p>
+ *     Every job is indexed in memory, but only the descriptions of the jobs at the head of the queue are kept in memory,
+ *     up to a given number of bytes.
+ *     The other descriptions stay on disk and are paged back in as the queue is drained.
+ *     The total size of the descriptions on disk is capped too, and an {@link EvictionPolicy} chooses the jobs to drop
+ *     when the cap is reached.
+ * </p>
  */
 class WonderPushJobQueue {
 
     private static final String TAG = WonderPush.TAG;
 
-    private static final int DEFAULT_CAPACITY = 32;
+    /**
+     * Priority of the jobs that can be dropped first, like tracked events.
+     */
+    static final int PRIORITY_LOW = 0;
+
+    /**
+     * Priority of the jobs that should be kept as long as possible, like installation updates.
+     */
+    static final int PRIORITY_NORMAL = 1;
+
+    static final long DEFAULT_MEMORY_CAPACITY_BYTES = 128 * 1024;
+    static final long DEFAULT_DISK_CAPACITY_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Number of head jobs considered when paging descriptions back in.
+     */
+    private static final int PAGE_IN_LOOKAHEAD = 64;
 
     /**
      * Queued objects.
@@ -33,42 +68,191 @@ class WonderPushJobQueue {
 
         long getNotBeforeRealtimeElapsed();
 
+        int getPriority();
+
+        /**
+         * Number of times this job was already tried.
+         */
+        int getAttempts();
+
+    }
+
+    /**
+     * Selects queued jobs.
+     */
+    protected interface JobFilter {
+
+        boolean accept(Job job);
+
+    }
+
+    /**
+     * Chooses the jobs to drop once the disk capacity is reached.
+     */
+    protected interface EvictionPolicy {
+
+        /**
+         * @param jobs
+         *            Every stored job, including the one that was just posted, from the oldest to the newest.
+         *            This is a read-only view of the queue, to iterate only as far as needed.
+         * @return The job to drop, possibly the one that was just posted,
+         *         or {@code null} to keep every job and exceed the capacity
+         */
+        Job selectJobToEvict(Collection<Job> jobs);
+
+    }
+
+    /**
+     * Merges a newly posted job into a pending one.
+     */
+    protected interface JobCoalescer {
+
+        /**
+         * @return The key under which the given job can be merged with a pending job having the same key,
+         *         or {@code null} if the job must be kept as is
+         */
+        String getCoalescingKey(JSONObject jobDescription);
+
+        /**
+         * @return The description of the single job equivalent to running both jobs in order,
+         *         or {@code null} to keep both jobs
+         */
+        JSONObject coalesce(JSONObject olderJobDescription, JSONObject newerJobDescription);
+
     }
 
-    private static final WonderPushJobQueue sDefaultQueue = new WonderPushJobQueue("DefaultWonderPushJobQueue", DEFAULT_CAPACITY);
+    /**
+     * Merges successive installation updates.
+     *
+     * @see WonderPushJobCoalescer
+     */
+    static final JobCoalescer INSTALLATION_UPDATES_COALESCER = new JobCoalescer() {
+        @Override
+        public String getCoalescingKey(JSONObject jobDescription) {
+            return WonderPushJobCoalescer.getCoalescingKey(jobDescription);
+        }
+
+        @Override
+        public JSONObject coalesce(JSONObject olderJobDescription, JSONObject newerJobDescription) {
+            return WonderPushJobCoalescer.coalesce(olderJobDescription, newerJobDescription);
+        }
+    };
+
+    /**
+     * Drops the oldest job among those of the lowest priority.
+     */
+    static final EvictionPolicy DROP_OLDEST_LOWEST_PRIORITY = new EvictionPolicy() {
+        @Override
+        public Job selectJobToEvict(Collection<Job> jobs) {
+            Job rtn = null;
+            for (Job job : jobs) {
+                if (rtn == null || job.getPriority() < rtn.getPriority()) {
+                    rtn = job;
+                    // No older job can have a lower priority
+                    if (rtn.getPriority() <= PRIORITY_LOW) break;
+                }
+            }
+            return rtn;
+        }
+    };
+
+    private static long sDefaultDiskCapacityBytes = DEFAULT_DISK_CAPACITY_BYTES;
+    private static WonderPushJobQueue sDefaultQueue;
 
     /**
      * Returns the default job queue.
      */
-    protected static WonderPushJobQueue getDefaultQueue() {
+    protected static synchronized WonderPushJobQueue getDefaultQueue() {
+        if (sDefaultQueue == null) {
+            sDefaultQueue = new WonderPushJobQueue("DefaultWonderPushJobQueue", DEFAULT_MEMORY_CAPACITY_BYTES, sDefaultDiskCapacityBytes, DROP_OLDEST_LOWEST_PRIORITY, INSTALLATION_UPDATES_COALESCER);
+        }
         return sDefaultQueue;
     }
 
+    /**
+     * Sets the maximum size of the job descriptions kept on disk by the default queue.
+     * Must be called before the default queue is used.
+     */
+    protected static synchronized void setDefaultDiskCapacityBytes(long bytes) {
+        if (sDefaultQueue != null) {
+            Log.w(TAG, "Cannot change the job queue capacity once it is in use");
+            return;
+        }
+        sDefaultDiskCapacityBytes = bytes;
+    }
+
     private final String mQueueName;
-    private final PriorityBlockingQueue<Job> mQueue;
+    private final long mMemoryCapacityBytes;
+    private final long mDiskCapacityBytes;
+    private final EvictionPolicy mEvictionPolicy;
+    private final JobCoalescer mCoalescer;
+    // Latest pending job for each coalescing key
+    private final Map<String, InternalJob> mCoalescableJobs = new HashMap<>();
+    private final TreeSet<InternalJob> mQueue;
+    // The same jobs, from the oldest to the newest
+    private final TreeSet<InternalJob> mEvictionOrder;
+    private final WonderPushJobJournal mJournal;
+    private long mMemoryBytes;
+    private long mNextSequence;
+    // Pending jobs that WonderPushEventBatcher can batch, and the total size of their bodies
+    private int mBatchableJobs;
+    private long mBatchableBytes;
 
     /**
      * Creates a queue with the specified name
      *
      * @param queueName
      *            The name of the queue, which determines the queue's storage location
-     * @param capacity
-     *            The maximum number of jobs the queue can hold
+     * @param memoryCapacityBytes
+     *            The maximum size of the job descriptions kept in memory
+     * @param diskCapacityBytes
+     *            The maximum size of the job descriptions kept on disk
+     * @param evictionPolicy
+     *            Chooses the jobs to drop once the disk capacity is reached
+     * @param coalescer
+     *            Merges newly posted jobs into pending ones, may be {@code null}
      */
-    WonderPushJobQueue(String queueName, int capacity) {
+    WonderPushJobQueue(String queueName, long memoryCapacityBytes, long diskCapacityBytes, EvictionPolicy evictionPolicy, JobCoalescer coalescer) {
+        this(queueName, null, memoryCapacityBytes, diskCapacityBytes, evictionPolicy, coalescer);
+    }
+
+    /**
+     * @param journalFile
+     *            Where to store the queue, or {@code null} for the default location given by the queue's name
+     */
+    WonderPushJobQueue(String queueName, File journalFile, long memoryCapacityBytes, long diskCapacityBytes, EvictionPolicy evictionPolicy, JobCoalescer coalescer) {
         mQueueName = queueName;
-        mQueue = new PriorityBlockingQueue<>(capacity, new Comparator<Job>() {
+        mMemoryCapacityBytes = memoryCapacityBytes;
+        mDiskCapacityBytes = diskCapacityBytes;
+        mEvictionPolicy = evictionPolicy;
+        mCoalescer = coalescer;
+        mQueue = new TreeSet<>(new Comparator<InternalJob>() {
             @Override
-            public int compare(Job lhs, Job rhs) {
+            public int compare(InternalJob lhs, InternalJob rhs) {
                 // Sort by increasing time
-                long diff = lhs.getNotBeforeRealtimeElapsed() - rhs.getNotBeforeRealtimeElapsed();
-                // Then break ties using the ids
-                if (diff == 0) {
-                    diff = lhs.getId().compareTo(rhs.getId());
+                long lhsNotBefore = lhs.getNotBeforeRealtimeElapsed();
+                long rhsNotBefore = rhs.getNotBeforeRealtimeElapsed();
+                if (lhsNotBefore != rhsNotBefore) {
+                    // (Do not cast the difference to an int, it may overflow)
+                    return lhsNotBefore < rhsNotBefore ? -1 : 1;
                 }
-                return (int) diff;
+                // Then keep the posting order
+                if (lhs.mSequence != rhs.mSequence) {
+                    return lhs.mSequence < rhs.mSequence ? -1 : 1;
+                }
+                return lhs.getId().compareTo(rhs.getId());
             }
         });
+        mEvictionOrder = new TreeSet<>(new Comparator<InternalJob>() {
+            @Override
+            public int compare(InternalJob lhs, InternalJob rhs) {
+                if (lhs.mSequence != rhs.mSequence) {
+                    return lhs.mSequence < rhs.mSequence ? -1 : 1;
+                }
+                return lhs.getId().compareTo(rhs.getId());
+            }
+        });
+        mJournal = new WonderPushJobJournal(journalFile != null ? journalFile : getJournalFile(), WonderPush.sIoExecutor);
         restore();
     }
 
@@ -78,9 +262,56 @@ class WonderPushJobQueue {
      * @return The stored job or null if something went wrong (the queue is full for instance)
      */
     protected Job postJobWithDescription(JSONObject jobDescription, long notBeforeRealtimeElapsed) {
-        String jobId = UUID.randomUUID().toString();
-        InternalJob job = new InternalJob(jobId, jobDescription, notBeforeRealtimeElapsed);
-        return post(job);
+        return postJobWithDescription(jobDescription, notBeforeRealtimeElapsed, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Creates and stores a job in the queue based on the provided description
+     *
+     * @return The stored job or null if something went wrong (the queue is full for instance)
+     */
+    protected Job postJobWithDescription(JSONObject jobDescription, long notBeforeRealtimeElapsed, int priority) {
+        return postJobWithDescription(UUID.randomUUID().toString(), jobDescription, notBeforeRealtimeElapsed, priority);
+    }
+
+    private Job postJobWithDescription(String jobId, JSONObject jobDescription, long notBeforeRealtimeElapsed, int priority) {
+        InternalJob job = new InternalJob(jobId, jobDescription, notBeforeRealtimeElapsed, priority);
+        return store(job, false);
+    }
+
+    /**
+     * Stores again a job that could not be completed, keeping its id and priority, and counting one more attempt.
+     *
+     * @param jobDescription
+     *            The description of the job to retry, which may differ from the one of the original job
+     * @return The stored job or null if something went wrong (the queue is full for instance)
+     */
+    protected Job postRetry(Job job, JSONObject jobDescription, long notBeforeRealtimeElapsed) {
+        InternalJob retry = new InternalJob(job.getId(), jobDescription, notBeforeRealtimeElapsed, job.getPriority());
+        retry.mAttempts = job.getAttempts() + 1;
+        return store(retry, true);
+    }
+
+    /**
+     * Makes every job whose not before time is later than the given one available at that time.
+     */
+    protected synchronized void advanceNotBeforeRealtimeElapsed(long notBeforeRealtimeElapsed) {
+        List<InternalJob> advanced = new ArrayList<>();
+        Iterator<InternalJob> it = mQueue.descendingIterator();
+        while (it.hasNext()) {
+            InternalJob job = it.next();
+            if (job.mNotBeforeRealtimeElapsed <= notBeforeRealtimeElapsed) break;
+            it.remove();
+            advanced.add(job);
+        }
+        for (InternalJob job : advanced) {
+            // Sort keys cannot be changed while in the set
+            job.mNotBeforeRealtimeElapsed = notBeforeRealtimeElapsed;
+            mQueue.add(job);
+        }
+        if (!advanced.isEmpty()) {
+            notifyAll();
+        }
     }
 
     /**
@@ -88,19 +319,96 @@ class WonderPushJobQueue {
      *
      * @return The input job or null if something went wrong (the queue is full for instance)
      */
-    protected Job post(Job job) {
-        if (mQueue.offer(job)) {
-            save();
-            return job;
+    protected synchronized Job post(Job job) {
+        InternalJob internalJob;
+        if (job instanceof InternalJob) {
+            internalJob = (InternalJob) job;
         } else {
+            internalJob = new InternalJob(job.getId(), job.getJobDescription(), job.getNotBeforeRealtimeElapsed(), job.getPriority());
+            internalJob.mAttempts = job.getAttempts();
+        }
+        return store(internalJob, false);
+    }
+
+    /**
+     * Stores a job in the queue, merging it with a pending job of the same coalescing key if possible.
+     *
+     * @param olderThanPendingJobs
+     *            Whether the job was posted before the pending jobs, like a job being retried
+     * @return The stored job or null if something went wrong (the queue is full for instance)
+     */
+    private synchronized Job store(InternalJob internalJob, boolean olderThanPendingJobs) {
+        boolean keepSequence = false;
+        internalJob.mCoalescingKey = mCoalescer == null ? null : mCoalescer.getCoalescingKey(internalJob.mJobDescription);
+        InternalJob pending = internalJob.mCoalescingKey == null ? null : mCoalescableJobs.get(internalJob.mCoalescingKey);
+        if (pending != null && pending != internalJob && mQueue.contains(pending)) {
+            JSONObject pendingDescription = pending.getJobDescription();
+            JSONObject coalesced = pendingDescription == null ? null
+                    : olderThanPendingJobs ? mCoalescer.coalesce(internalJob.mJobDescription, pendingDescription)
+                    : mCoalescer.coalesce(pendingDescription, internalJob.mJobDescription);
+            if (coalesced != null) {
+                WonderPush.logDebug("JobQueue: coalescing job " + internalJob.getId() + " with pending job " + pending.getId());
+                remove(pending, false);
+                if (!olderThanPendingJobs) {
+                    // Take the place of the pending job
+                    String coalescingKey = internalJob.mCoalescingKey;
+                    internalJob = new InternalJob(pending.getId(), coalesced, pending.getNotBeforeRealtimeElapsed(), pending.getPriority());
+                    internalJob.mAttempts = pending.mAttempts;
+                    internalJob.mSequence = pending.mSequence;
+                    internalJob.mCoalescingKey = coalescingKey;
+                    keepSequence = true;
+                } else {
+                    internalJob.mJobDescription = coalesced;
+                }
+            }
+        }
+        if (!keepSequence) {
+            internalJob.mSequence = mNextSequence++;
+        }
+        internalJob.mBatchableBytes = WonderPushEventBatcher.getBatchableBytes(internalJob.mJobDescription);
+        try {
+            internalJob.mRecord = mJournal.append(internalJob.getId(), internalJob.getHeader(), internalJob.mJobDescription);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not save job", e);
+            internalJob.mRecord = null;
+        }
+        add(internalJob);
+        if (!evictIfNeeded(internalJob)) {
             return null;
         }
+        if (internalJob.mRecord != null && mMemoryBytes + internalJob.getSize() > mMemoryCapacityBytes) {
+            // Spill the description to disk only
+            internalJob.mJobDescription = null;
+        } else {
+            internalJob.mInMemory = true;
+            mMemoryBytes += internalJob.getSize();
+        }
+        notifyAll();
+        return internalJob;
+    }
+
+    /**
+     * Drops jobs according to the eviction policy until the disk capacity is honored.
+     *
+     * @return Whether the given incoming job was kept
+     */
+    private boolean evictIfNeeded(InternalJob incoming) {
+        boolean keptIncoming = true;
+        while (mJournal.getLiveBytes() > mDiskCapacityBytes && mQueue.size() > 0) {
+            Job victim = mEvictionPolicy.selectJobToEvict(Collections.<Job>unmodifiableCollection(mEvictionOrder));
+            if (!(victim instanceof InternalJob) || !mQueue.contains(victim)) break;
+            WonderPush.logDebug("JobQueue: disk capacity reached, dropping job " + victim.getId());
+            remove((InternalJob) victim, false);
+            if (victim == incoming) {
+                keptIncoming = false;
+            }
+        }
+        return keptIncoming;
     }
 
-    protected long peekNextJobNotBeforeRealtimeElapsed() {
-        Job head = mQueue.peek();
-        if (head == null) return Long.MAX_VALUE;
-        return head.getNotBeforeRealtimeElapsed();
+    protected synchronized long peekNextJobNotBeforeRealtimeElapsed() {
+        if (mQueue.isEmpty()) return Long.MAX_VALUE;
+        return mQueue.first().getNotBeforeRealtimeElapsed();
     }
 
     /**
@@ -108,90 +416,298 @@ class WonderPushJobQueue {
      *
      * @throws InterruptedException
      */
-    protected Job nextJob() throws InterruptedException {
-        Job job = mQueue.take();
-        save();
+    protected synchronized Job nextJob() throws InterruptedException {
+        while (mQueue.isEmpty()) {
+            wait();
+        }
+        InternalJob job = mQueue.first();
+        remove(job, true);
+        pageIn();
         return job;
     }
 
-    private String getPrefName() {
-        return String.format("_wonderpush_job_queue_%s", mQueueName);
+    /**
+     * Removes the first job at the head of the queue accepted by the given filter, regardless of its not before time.
+     * The filter is called in queue order.
+     *
+     * @param max
+     *            The maximum number of jobs to consider
+     * @return The removed job, or {@code null} if none was accepted
+     */
+    protected synchronized Job pollJob(JobFilter filter, int max) {
+        for (Job job : peekJobs(max)) {
+            if (filter.accept(job)) {
+                remove((InternalJob) job, true);
+                pageIn();
+                return job;
+            }
+        }
+        return null;
     }
 
     /**
-     * Saves the job queue on disk.
+     * Returns a snapshot of the jobs at the head of the queue, in queue order.
+     *
+     * @param max
+     *            The maximum number of jobs to return
      */
-    protected synchronized void save() {
-        try {
-            JSONArray jsonArray = new JSONArray();
-            for (Job job : mQueue) {
-                if (!(job instanceof InternalJob)) continue;
-                InternalJob internalJob = (InternalJob) job;
-                jsonArray.put(internalJob.toJSON());
+    protected synchronized List<Job> peekJobs(int max) {
+        List<Job> rtn = new ArrayList<>(Math.min(max, mQueue.size()));
+        Iterator<InternalJob> it = mQueue.iterator();
+        while (rtn.size() < max && it.hasNext()) {
+            rtn.add(it.next());
+        }
+        return rtn;
+    }
+
+    /**
+     * Removes the jobs at the head of the queue accepted by the given filter, regardless of their not before time.
+     * The filter is called in queue order.
+     *
+     * @param max
+     *            The maximum number of jobs to consider
+     * @return The removed jobs, in queue order
+     */
+    protected synchronized List<Job> takeJobs(JobFilter filter, int max) {
+        List<Job> rtn = new ArrayList<>();
+        for (Job job : peekJobs(max)) {
+            if (filter.accept(job)) {
+                remove((InternalJob) job, true);
+                rtn.add(job);
             }
+        }
+        pageIn();
+        return rtn;
+    }
 
-            SharedPreferences prefs = WonderPushConfiguration.getSharedPreferences();
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putString(getPrefName(), jsonArray.toString());
-            editor.apply();
-        } catch (JSONException e) {
-            Log.e(TAG, "Could not save job queue", e);
-        } catch (Exception e) {
-            Log.e(TAG, "Could not save job queue", e);
+    /**
+     * Returns the number of queued jobs.
+     */
+    protected synchronized int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the number of queued jobs that {@link WonderPushEventBatcher} can batch.
+     * Counted as jobs are stored and removed, so that no queued description has to be read.
+     */
+    protected synchronized int getBatchableJobCount() {
+        return mBatchableJobs;
+    }
+
+    /**
+     * Returns the total size of the bodies of the queued jobs that {@link WonderPushEventBatcher} can batch.
+     */
+    protected synchronized long getBatchableBytes() {
+        return mBatchableBytes;
+    }
+
+    private void add(InternalJob job) {
+        if (mQueue.add(job) && job.mBatchableBytes >= 0) {
+            mBatchableJobs++;
+            mBatchableBytes += job.mBatchableBytes;
+        }
+        mEvictionOrder.add(job);
+        if (job.mCoalescingKey != null) {
+            // Records are in posting order, so the latest job wins
+            mCoalescableJobs.put(job.mCoalescingKey, job);
+        }
+    }
+
+    /**
+     * Removes a job from the queue.
+     *
+     * @param keepDescription
+     *            Whether to make sure the description of the job stays available to the caller
+     */
+    private void remove(InternalJob job, boolean keepDescription) {
+        if (keepDescription && job.mJobDescription == null) {
+            job.mJobDescription = load(job);
+        }
+        if (mQueue.remove(job) && job.mBatchableBytes >= 0) {
+            mBatchableJobs--;
+            mBatchableBytes -= job.mBatchableBytes;
+        }
+        mEvictionOrder.remove(job);
+        if (job.mCoalescingKey != null && mCoalescableJobs.get(job.mCoalescingKey) == job) {
+            mCoalescableJobs.remove(job.mCoalescingKey);
+        }
+        if (job.mInMemory) {
+            job.mInMemory = false;
+            mMemoryBytes -= job.getSize();
+        }
+        if (job.mRecord != null) {
+            try {
+                mJournal.ack(job.getId());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save job acknowledgement", e);
+            }
+            job.mRecord = null;
+        }
+    }
+
+    /**
+     * Brings the descriptions of the jobs at the head of the queue back in memory, within the memory capacity.
+     */
+    private void pageIn() {
+        int considered = 0;
+        for (InternalJob job : mQueue) {
+            if (++considered > PAGE_IN_LOOKAHEAD) break;
+            if (job.mInMemory) continue;
+            if (mMemoryBytes + job.getSize() > mMemoryCapacityBytes) break;
+            JSONObject description = load(job);
+            if (description == null) continue;
+            job.mJobDescription = description;
+            job.mInMemory = true;
+            mMemoryBytes += job.getSize();
+        }
+    }
+
+    private JSONObject load(InternalJob job) {
+        if (job.mRecord == null) return null;
+        try {
+            return mJournal.read(job.mRecord);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read job " + job.getId(), e);
+            return null;
         }
     }
 
+    private File getJournalFile() {
+        return new File(new File(WonderPush.getApplicationContext().getFilesDir(), "wonderpush"),
+                String.format("job_queue_%s.journal", mQueueName));
+    }
+
+    /**
+     * Name of the SharedPreferences key used to store the whole queue by previous versions.
+     */
+    private String getPrefName() {
+        return String.format("_wonderpush_job_queue_%s", mQueueName);
+    }
+
     /**
      * Restores the job queue from its on-disk version.
      */
     protected synchronized void restore() {
         try {
-            SharedPreferences prefs = WonderPushConfiguration.getSharedPreferences();
-            String jsonString = prefs.getString(getPrefName(), "[]");
-            JSONArray jsonArray = new JSONArray(jsonString);
+            List<WonderPushJobJournal.Record> records = mJournal.open();
 
             mQueue.clear();
-
-            for (int i = 0 ; i < jsonArray.length() ; i++) {
+            mEvictionOrder.clear();
+            mCoalescableJobs.clear();
+            mMemoryBytes = 0;
+            mNextSequence = 0;
+            mBatchableJobs = 0;
+            mBatchableBytes = 0;
+
+            for (WonderPushJobJournal.Record record : records) {
                 try {
-                    mQueue.add(new InternalJob(jsonArray.getJSONObject(i)));
-                } catch (JSONException ex) {
-                    Log.e(TAG, "Failed to restore malformed job", ex);
+                    InternalJob job = new InternalJob(record);
+                    mNextSequence = Math.max(mNextSequence, job.mSequence + 1);
+                    add(job);
                 } catch (Exception ex) {
-                    Log.e(TAG, "Unexpected error while restoring a job", ex);
+                    Log.e(TAG, "Failed to restore malformed job", ex);
+                    mJournal.ack(record.id);
                 }
             }
-        } catch (JSONException e) {
+
+            migrateFromSharedPreferences();
+            pageIn();
+        } catch (IOException e) {
             Log.e(TAG, "Could not restore job queue", e);
         } catch (Exception e) {
             Log.e(TAG, "Could not restore job queue", e);
         }
     }
 
-    private static class InternalJob implements Job {
+    /**
+     * Moves the jobs saved in SharedPreferences by previous versions into the journal, once.
+     */
+    private void migrateFromSharedPreferences() {
+        // Through the configuration cache, which must stay the only writer of the preferences
+        if (!WonderPushConfiguration.has(getPrefName())) return;
+        try {
+            JSONArray jsonArray = new JSONArray(WonderPushConfiguration.getString(getPrefName(), "[]"));
+            Set<String> knownIds = new HashSet<>();
+            for (InternalJob job : mQueue) {
+                knownIds.add(job.getId());
+            }
+            for (int i = 0 ; i < jsonArray.length() ; i++) {
+                JSONObject json = jsonArray.optJSONObject(i);
+                String id = json == null ? null : json.optString("id", null);
+                JSONObject description = json == null ? null : json.optJSONObject("description");
+                if (id == null || description == null || knownIds.contains(id)) continue;
+                store(new InternalJob(id, description, -1, PRIORITY_NORMAL), false);
+            }
+            WonderPush.logDebug("Migrated " + jsonArray.length() + " jobs to " + mJournal.getFile());
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not migrate job queue", e);
+        }
+        WonderPushConfiguration.remove(getPrefName());
+    }
+
+    /**
+     * Makes a string safe to put in a journal record header, which cannot hold any whitespace, and where commas are separators.
+     */
+    private static String encodeHeaderField(String value) {
+        if (value == null) return "";
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static String decodeHeaderField(String value) {
+        if (value == null || value.length() == 0) return null;
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private class InternalJob implements Job {
 
         protected String mId;
+        // Null while the description is only on disk
         protected JSONObject mJobDescription;
         protected long mNotBeforeRealtimeElapsed;
-
-        public InternalJob(String id, JSONObject description, long notBeforeRealtimeElapsed) {
+        protected int mPriority;
+        protected long mSequence;
+        protected int mAttempts;
+        protected String mCoalescingKey;
+        // Size of the body of a batchable event job, -1 for other jobs
+        protected int mBatchableBytes = -1;
+        protected WonderPushJobJournal.Record mRecord;
+        protected boolean mInMemory;
+
+        public InternalJob(String id, JSONObject description, long notBeforeRealtimeElapsed, int priority) {
             mId = id;
             mJobDescription = description;
             mNotBeforeRealtimeElapsed = notBeforeRealtimeElapsed;
+            mPriority = priority;
         }
 
-        public InternalJob(JSONObject json) throws JSONException {
-            mId = json.getString("id");
-            mJobDescription = json.getJSONObject("description");
+        public InternalJob(WonderPushJobJournal.Record record) {
+            mId = record.id;
+            String[] header = record.header.split(",");
+            mSequence = Long.parseLong(header[0]);
+            mPriority = Integer.parseInt(header[1]);
+            mAttempts = header.length > 2 ? Integer.parseInt(header[2]) : 0;
+            mCoalescingKey = header.length > 3 ? decodeHeaderField(header[3]) : null;
+            mBatchableBytes = header.length > 4 ? Integer.parseInt(header[4]) : -1;
+            mRecord = record;
+            // (Do not persist mNotBeforeRealtimeElapsed, such delay is not supposed to be saved after application death)
             mNotBeforeRealtimeElapsed = -1;
         }
 
-        public JSONObject toJSON() throws JSONException {
-            JSONObject json = new JSONObject();
-            json.put("id", mId);
-            json.put("description", mJobDescription);
-            // (Do not persist mNotBeforeRealtimeElapsed, such delay is not supposed to be saved after application death)
-            return json;
+        String getHeader() {
+            return mSequence + "," + mPriority + "," + mAttempts + "," + encodeHeaderField(mCoalescingKey) + "," + mBatchableBytes;
+        }
+
+        int getSize() {
+            return mRecord == null ? 0 : mRecord.getLength();
         }
 
         public String getId() {
@@ -199,7 +715,21 @@ class WonderPushJobQueue {
         }
 
         public JSONObject getJobDescription() {
-            return mJobDescription;
+            if (mJobDescription != null) {
+                return mJobDescription;
+            }
+            synchronized (WonderPushJobQueue.this) {
+                if (mJobDescription == null) {
+                    JSONObject description = load(this);
+                    if (description != null && mQueue.contains(this) && mMemoryBytes + getSize() <= mMemoryCapacityBytes) {
+                        mJobDescription = description;
+                        mInMemory = true;
+                        mMemoryBytes += getSize();
+                    }
+                    return description;
+                }
+                return mJobDescription;
+            }
         }
 
         @Override
@@ -207,6 +737,16 @@ class WonderPushJobQueue {
             return mNotBeforeRealtimeElapsed;
         }
 
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public int getAttempts() {
+            return mAttempts;
+        }
+
         @Override
         public int hashCode() {
             if (mId == null) return 0;
@@ -160,6 +160,12 @@ abstract class WonderPushLogErrorImpl implements IWonderPush {
         this.log("removeAllTags");
     }
 
+    @Override
+    public void applyPropertiesEditor(WonderPushPropertiesEditor editor, DeferredFuture<Boolean> ack) {
+        this.log("editProperties");
+        ack.set(false);
+    }
+
     @Override
     public Set<String> getTags() {
         this.log("getTags");
@@ -0,0 +1,374 @@
+package com.wonderpush.sdk;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link IWonderPush} used while the SDK finishes its initialization in the background.
+ *
+ * <p>
+ *     Calls that return nothing are queued on the state executor, behind the initialization,
+ *     and replayed in order on the implementation returned by {@link #getTarget()}.
+ *     Calls that return a value wait for the initialization and the queued calls to complete,
+ *     so that they observe the effects of the calls made before them.
+ *     They wait for at most {@link #DEFAULT_AWAIT_TIMEOUT_MS}, as they are usually made from the main thread,
+ *     then answer the default value of an uninitialized SDK.
+ *     Once both are done, calls go directly to the target.
+ * </p>
+ */
+abstract class WonderPushPendingInitImpl implements IWonderPush {
+
+    /**
+     * How long calls that return a value wait for initialization, in milliseconds,
+     * well below the delay after which Android reports the main thread as not responding.
+     */
+    static final long DEFAULT_AWAIT_TIMEOUT_MS = 2 * 1000;
+
+    private final WonderPushExecutors mExecutors;
+    private final long mAwaitTimeoutMs;
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private boolean mReleased;
+    private int mQueued;
+
+    private IWonderPush mFallback;
+    private IWonderPush mTimeoutFallback;
+
+    WonderPushPendingInitImpl(WonderPushExecutors executors) {
+        this(executors, DEFAULT_AWAIT_TIMEOUT_MS);
+    }
+
+    WonderPushPendingInitImpl(WonderPushExecutors executors, long awaitTimeoutMs) {
+        mExecutors = executors;
+        mAwaitTimeoutMs = awaitTimeoutMs;
+    }
+
+    /**
+     * The implementation to forward calls to, once initialized.
+     */
+    protected abstract IWonderPush getTarget();
+
+    /**
+     * Lets queued and future calls through, to be called once initialization has completed.
+     */
+    void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Whether initialization has completed and every queued call has been replayed,
+     * in which case the target can be called directly.
+     */
+    boolean isDrained() {
+        synchronized (mLock) {
+            return mReleased && mQueued == 0;
+        }
+    }
+
+    private void enqueue(final Runnable call) {
+        boolean direct;
+        synchronized (mLock) {
+            // Once drained, no call can be queued anymore
+            direct = mReleased && mQueued == 0;
+            if (!direct) {
+                ++mQueued;
+            }
+        }
+        if (direct) {
+            call.run();
+            return;
+        }
+        boolean accepted = mExecutors.runOnState(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    call.run();
+                } finally {
+                    synchronized (mLock) {
+                        --mQueued;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }, 0);
+        if (!accepted) {
+            synchronized (mLock) {
+                --mQueued;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for initialization and queued calls to complete, for at most the await timeout.
+     *
+     * @return The implementation to read from
+     */
+    private IWonderPush await() {
+        synchronized (mLock) {
+            if (mExecutors.isStateThread()) {
+                // Queued calls run after the current task, waiting for them would deadlock
+                if (mReleased) return getTarget();
+            } else {
+                try {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mAwaitTimeoutMs);
+                    while (!mReleased || mQueued > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                    }
+                    // Once initialized, the target can answer even if some queued calls are not replayed yet
+                    if (mReleased) return getTarget();
+                    if (mTimeoutFallback == null) {
+                        mTimeoutFallback = new WonderPushLogErrorImpl() {
+                            @Override
+                            protected void log(String method) {
+                                WonderPush.logError("WonderPush." + method + " timed out waiting for initialization, returning a default value");
+                            }
+                        };
+                    }
+                    return mTimeoutFallback;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (mFallback == null) {
+                mFallback = new WonderPushNotInitializedImpl();
+            }
+            return mFallback;
+        }
+    }
+
+    @Override
+    public void _activate() {
+        // No-op
+    }
+
+    @Override
+    public void _deactivate() {
+        // No-op
+    }
+
+    @Override
+    public String getAccessToken() {
+        return await().getAccessToken();
+    }
+
+    @Override
+    public String getDeviceId() {
+        return await().getDeviceId();
+    }
+
+    @Override
+    public String getInstallationId() {
+        return await().getInstallationId();
+    }
+
+    @Override
+    public String getPushToken() {
+        return await().getPushToken();
+    }
+
+    @Override
+    public void subscribeToNotifications() {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().subscribeToNotifications();
+            }
+        });
+    }
+
+    @Override
+    public void unsubscribeFromNotifications() {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().unsubscribeFromNotifications();
+            }
+        });
+    }
+
+    @Override
+    public boolean isSubscribedToNotifications() {
+        return await().isSubscribedToNotifications();
+    }
+
+    @Override
+    @Deprecated
+    public boolean getNotificationEnabled() {
+        return await().getNotificationEnabled();
+    }
+
+    @Override
+    @Deprecated
+    public void setNotificationEnabled(final boolean status) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().setNotificationEnabled(status);
+            }
+        });
+    }
+
+    @Override
+    public void trackEvent(final String type) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().trackEvent(type);
+            }
+        });
+    }
+
+    @Override
+    public void trackEvent(final String type, final JSONObject customData) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().trackEvent(type, customData);
+            }
+        });
+    }
+
+    @Override
+    public JSONObject getProperties() {
+        return await().getProperties();
+    }
+
+    @Override
+    public void putProperties(final JSONObject properties) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().putProperties(properties);
+            }
+        });
+    }
+
+    @Override
+    @Deprecated
+    public JSONObject getInstallationCustomProperties() {
+        return await().getInstallationCustomProperties();
+    }
+
+    @Override
+    @Deprecated
+    public void putInstallationCustomProperties(final JSONObject customProperties) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().putInstallationCustomProperties(customProperties);
+            }
+        });
+    }
+
+    @Override
+    public void setProperty(final String field, final Object value) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().setProperty(field, value);
+            }
+        });
+    }
+
+    @Override
+    public void unsetProperty(final String field) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().unsetProperty(field);
+            }
+        });
+    }
+
+    @Override
+    public void addProperty(final String field, final Object value) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().addProperty(field, value);
+            }
+        });
+    }
+
+    @Override
+    public void removeProperty(final String field, final Object value) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().removeProperty(field, value);
+            }
+        });
+    }
+
+    @Override
+    public Object getPropertyValue(String field) {
+        return await().getPropertyValue(field);
+    }
+
+    @Override
+    public List<Object> getPropertyValues(String field) {
+        return await().getPropertyValues(field);
+    }
+
+    @Override
+    public void addTag(final String... tag) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().addTag(tag);
+            }
+        });
+    }
+
+    @Override
+    public void removeTag(final String... tag) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().removeTag(tag);
+            }
+        });
+    }
+
+    @Override
+    public void removeAllTags() {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().removeAllTags();
+            }
+        });
+    }
+
+    @Override
+    public void applyPropertiesEditor(final WonderPushPropertiesEditor editor, final DeferredFuture<Boolean> ack) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                getTarget().applyPropertiesEditor(editor, ack);
+            }
+        });
+    }
+
+    @Override
+    public Set<String> getTags() {
+        return await().getTags();
+    }
+
+    @Override
+    public boolean hasTag(String tag) {
+        return await().hasTag(tag);
+    }
+
+}
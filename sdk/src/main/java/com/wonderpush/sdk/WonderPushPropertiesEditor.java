@@ -0,0 +1,329 @@
+package com.wonderpush.sdk;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+
+/**
+ * Groups changes to the properties and tags of the current installation object stored by WonderPush.
+ *
+ * <p>
+ *     Obtain an instance with {@link WonderPush#editProperties()}, chain the changes, and call {@link #apply()}.
+ *     The changes are applied in order, as a single change:
+ *     they are saved once and sent to the server in a single request,
+ *     instead of once per call to {@link WonderPush#setProperty(String, Object)} and the like.
+ * </p>
+ *
+ * <pre><code>
+ * WonderPush.editProperties()
+ *         .setProperty("string_name", name)
+ *         .addProperty("string_interests", interests)
+ *         .addTag("customer")
+ *         .apply();
+ * </code></pre>
+ *
+ * <p>Does nothing if applied without required user consent.</p>
+ */
+public class WonderPushPropertiesEditor {
+
+    private interface Operation {
+        /**
+         * @return The diff to apply over the given state, or {@code null} if nothing changes
+         */
+        JSONObject diff(JSONDocument state) throws JSONException;
+    }
+
+    private final List<Operation> mOperations = new ArrayList<>();
+
+    WonderPushPropertiesEditor() {
+    }
+
+    /**
+     * Updates the properties attached to the current installation object, like {@link WonderPush#putProperties(JSONObject)}.
+     *
+     * @param properties The properties to merge, fields with no prefix are dropped
+     * @return This editor
+     */
+    public WonderPushPropertiesEditor putProperties(JSONObject properties) {
+        if (properties == null) return this;
+        final JSONObject diff;
+        try {
+            diff = JSONUtil.deepCopy(properties);
+        } catch (JSONException ex) {
+            Log.e(WonderPush.TAG, "Failed to copy properties " + properties, ex);
+            return this;
+        }
+        Iterator<String> it = diff.keys();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (key.indexOf('_') < 0) {
+                Log.w(WonderPush.TAG, "Dropping installation property with no prefix: " + key);
+                it.remove();
+            }
+        }
+        mOperations.add(new Operation() {
+            @Override
+            public JSONObject diff(JSONDocument state) {
+                return diff;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Sets the value of a given property, like {@link WonderPush#setProperty(String, Object)}.
+     *
+     * @param field The name of the property to set
+     * @param value The value to be set, can be an array or Collection
+     * @return This editor
+     */
+    public WonderPushPropertiesEditor setProperty(String field, Object value) {
+        if (field == null) return this;
+        final Object wrapped = copy(JSONUtil.wrap(value));
+        try {
+            putProperties(new JSONObject().put(field, wrapped));
+        } catch (JSONException ex) {
+            Log.e(WonderPush.TAG, "Failed to setProperty(" + field + ", " + value + ")", ex);
+        }
+        return this;
+    }
+
+    /**
+     * Removes the value of a given property, like {@link WonderPush#unsetProperty(String)}.
+     *
+     * @param field The name of the property to unset
+     * @return This editor
+     */
+    public WonderPushPropertiesEditor unsetProperty(String field) {
+        return setProperty(field, JSONObject.NULL);
+    }
+
+    /**
+     * Adds the value to a given property, like {@link WonderPush#addProperty(String, Object)}.
+     *
+     * @param field The name of the property to add values to
+     * @param value The value(s) to be added, can be an array or Collection
+     * @return This editor
+     */
+    public WonderPushPropertiesEditor addProperty(final String field, Object value) {
+        final Object wrapped = copy(JSONUtil.wrap(value));
+        if (field == null || wrapped == null || wrapped == JSONObject.NULL) return this;
+        mOperations.add(new Operation() {
+            @Override
+            public JSONObject diff(JSONDocument state) throws JSONException {
+                // The contract is to actually append new values only, not shuffle or deduplicate everything,
+                // hence the array and the set.
+                List<Object> values = new ArrayList<>(getPropertyValues(state, field));
+                Set<Object> set = new HashSet<>(values);
+                JSONArray inputs = wrapped instanceof JSONArray ? (JSONArray) wrapped : new JSONArray().put(wrapped);
+                for (int i = 0, e = inputs.length(); i < e; ++i) {
+                    Object input = inputs.get(i);
+                    if (input == null || input == JSONObject.NULL) continue;
+                    if (set.contains(input)) continue;
+                    values.add(input);
+                    set.add(input);
+                }
+                return propertyDiff(field, new JSONArray(values));
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes the value from a given property, like {@link WonderPush#removeProperty(String, Object)}.
+     *
+     * @param field The name of the property to remove values from
+     * @param value The value(s) to be removed, can be an array or Collection
+     * @return This editor
+     */
+    public WonderPushPropertiesEditor removeProperty(final String field, Object value) {
+        Object wrapped = copy(JSONUtil.wrap(value));
+        if (field == null || wrapped == null) return this; // Note: We accept removing JSONObject.NULL
+        // The contract is to actually remove every listed values (all duplicated appearances), not shuffle or deduplicate everything else
+        JSONArray inputs = wrapped instanceof JSONArray ? (JSONArray) wrapped : new JSONArray().put(wrapped);
+        final Set<Object> set = new HashSet<>(JSONUtil.JSONArrayToList(inputs, Object.class));
+        if (set.isEmpty()) return this;
+        mOperations.add(new Operation() {
+            @Override
+            public JSONObject diff(JSONDocument state) throws JSONException {
+                JSONArray newValues = new JSONArray();
+                for (Object item : getPropertyValues(state, field)) {
+                    if (item == null) continue;
+                    if (set.contains(item)) continue;
+                    newValues.put(item);
+                }
+                return propertyDiff(field, newValues);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Adds one or more tags, like {@link WonderPush#addTag(String...)}.
+     *
+     * @param tag The tags to add to the installation
+     * @return This editor
+     */
+    public WonderPushPropertiesEditor addTag(String... tag) {
+        final List<String> added = new ArrayList<>(tag.length);
+        for (String aTag : tag) {
+            if (aTag != null && !aTag.isEmpty()) {
+                added.add(aTag);
+            } else {
+                Log.w(WonderPush.TAG, "Dropping invalid tag " + aTag);
+            }
+        }
+        mOperations.add(new Operation() {
+            @Override
+            public JSONObject diff(JSONDocument state) throws JSONException {
+                Set<String> tags = getTags(state);
+                tags.addAll(added);
+                return new JSONObject().put("tags", new JSONArray(tags));
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes one or more tags, like {@link WonderPush#removeTag(String...)}.
+     *
+     * @param tag The tags to remove from the installation
+     * @return This editor
+     */
+    public WonderPushPropertiesEditor removeTag(String... tag) {
+        final List<String> removed = new ArrayList<>(Arrays.asList(tag));
+        mOperations.add(new Operation() {
+            @Override
+            public JSONObject diff(JSONDocument state) throws JSONException {
+                Set<String> tags = getTags(state);
+                tags.removeAll(removed);
+                return new JSONObject().put("tags", new JSONArray(tags));
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes all tags, like {@link WonderPush#removeAllTags()}.
+     *
+     * @return This editor
+     */
+    public WonderPushPropertiesEditor removeAllTags() {
+        mOperations.add(new Operation() {
+            @Override
+            public JSONObject diff(JSONDocument state) throws JSONException {
+                return new JSONObject().put("tags", JSONObject.NULL);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Applies the changes made so far to the current installation, saving them once and scheduling a single server update.
+     *
+     * <p>
+     *     The returned future completes with {@code true} once the server has acknowledged the changes,
+     *     or {@code false} if they were discarded, like when applied without required user consent.
+     *     Failing server updates are retried, so prefer waiting with a timeout.
+     * </p>
+     *
+     * @return A future completed when the server acknowledges the changes
+     */
+    public Future<Boolean> apply() {
+        return WonderPush.applyPropertiesEditor(this);
+    }
+
+    /**
+     * Computes the diff to put over the given state, each change seeing the result of the previous ones.
+     */
+    JSONObject buildDiff(JSONDocument state) throws JSONException {
+        JSONObject rtn = new JSONObject();
+        for (Operation operation : mOperations) {
+            JSONObject diff = operation.diff(state);
+            if (diff == null) continue;
+            state = state.merge(diff);
+            JSONUtil.merge(rtn, diff, false);
+        }
+        return rtn;
+    }
+
+    private static JSONObject propertyDiff(String field, Object value) throws JSONException {
+        if (field.indexOf('_') < 0) {
+            Log.w(WonderPush.TAG, "Dropping installation property with no prefix: " + field);
+            return null;
+        }
+        return new JSONObject().put(field, value);
+    }
+
+    /**
+     * Copies the value, as the caller may modify it before the changes are applied.
+     */
+    private static Object copy(Object value) {
+        try {
+            if (value instanceof JSONObject) {
+                return JSONUtil.deepCopy((JSONObject) value);
+            } else if (value instanceof JSONArray) {
+                return JSONUtil.deepCopy((JSONArray) value);
+            }
+        } catch (JSONException ex) {
+            Log.e(WonderPush.TAG, "Failed to copy " + value, ex);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the values of a property in the given state, see {@link WonderPush#getPropertyValues(String)}.
+     */
+    static List<Object> getPropertyValues(JSONDocument state, String field) throws JSONException {
+        if (field == null || field.indexOf('_') < 0) return Collections.emptyList();
+        Object value = state.get(field);
+        if (value == null || value == JSONObject.NULL) {
+            return Collections.emptyList();
+        } else if (value instanceof List) {
+            List<Object> rtn = new ArrayList<>(((List<?>) value).size());
+            for (Object item : (List<?>) value) {
+                if (item == null) continue;
+                rtn.add(JSONDocument.toJSON(item));
+            }
+            return rtn;
+        } else {
+            return Collections.singletonList(JSONDocument.toJSON(value));
+        }
+    }
+
+    /**
+     * Reads the tags in the given state, see {@link WonderPush#getTags()}.
+     */
+    static Set<String> getTags(JSONDocument state) {
+        Object value = state.get("tags");
+        List<?> tags;
+        if (value instanceof List) {
+            tags = (List<?>) value;
+        } else if (value instanceof String) {
+            // Recover from a potential scalar string value
+            tags = Collections.singletonList(value);
+        } else {
+            tags = Collections.emptyList();
+        }
+        TreeSet<String> rtn = new TreeSet<>(); // use a sorted implementation to avoid useless diffs later on
+        for (Object val : tags) {
+            if (val instanceof String && !((String) val).isEmpty()) {
+                rtn.add((String) val);
+            }
+        }
+        return rtn;
+    }
+
+}
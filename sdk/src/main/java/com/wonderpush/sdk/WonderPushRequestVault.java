@@ -1,9 +1,18 @@
 package com.wonderpush.sdk;
 
-import android.os.SystemClock;
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * This class will make sure important {@link WonderPushRestClient.Request} objects are run eventually, even if the user
@@ -18,130 +27,470 @@ class WonderPushRequestVault {
     private static final int NORMAL_WAIT = 10 * 1000;
     private static final float BACKOFF_EXPONENT = 1.5f;
     private static final int MAXIMUM_WAIT = 5 * 60 * 1000;
-    private static int sWait = NORMAL_WAIT;
 
-    protected static WonderPushRequestVault getDefaultVault() {
+    /**
+     * Default maximum number of requests in flight.
+     */
+    static final int DEFAULT_WINDOW = 4;
+
+    /**
+     * Number of queued jobs examined when looking for a job that can be sent.
+     */
+    private static final int DISPATCH_LOOKAHEAD = 64;
+
+    /**
+     * Time after which a request that got no response is considered failed, and its slot freed.
+     * This is a backstop against responses that never come, well beyond the transport timeouts.
+     */
+    static final long IN_FLIGHT_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * Sends the request of a job.
+     */
+    interface RequestSender {
+
+        /**
+         * @param handler
+         *            Must eventually be called, or the job times out after {@link #IN_FLIGHT_TIMEOUT}
+         */
+        void send(JSONObject jobDescription, ResponseHandler handler) throws Exception;
+
+    }
+
+    /**
+     * Sends the requests through {@link WonderPushRestClient#requestAuthenticated(WonderPushRestClient.Request)}.
+     */
+    static final RequestSender REST_CLIENT_SENDER = new RequestSender() {
+        @Override
+        public void send(JSONObject jobDescription, ResponseHandler handler) throws Exception {
+            WonderPushRestClient.Request request = new WonderPushRestClient.Request(jobDescription);
+            request.setHandler(handler);
+            WonderPushRestClient.requestAuthenticated(request);
+        }
+    };
+
+    /**
+     * A dispatched job, until its response or its timeout, whichever comes first.
+     */
+    private static class InFlightJob {
+
+        final WonderPushJobQueue.Job job;
+        final JSONObject jobDescription;
+        final String orderingKey;
+        final long deadlineRealtimeElapsed;
+
+        InFlightJob(WonderPushJobQueue.Job job, JSONObject jobDescription, String orderingKey, long deadlineRealtimeElapsed) {
+            this.job = job;
+            this.jobDescription = jobDescription;
+            this.orderingKey = orderingKey;
+            this.deadlineRealtimeElapsed = deadlineRealtimeElapsed;
+        }
+
+    }
+
+    protected static synchronized WonderPushRequestVault getDefaultVault() {
+        // Created on first use if the SDK initialization has not done it yet
+        initialize();
         return sDefaultVault;
     }
 
     /**
      * Start the default vault.
      */
-    protected static void initialize() {
+    protected static synchronized void initialize() {
         if (null == sDefaultVault) {
-            sDefaultVault = new WonderPushRequestVault(WonderPushJobQueue.getDefaultQueue());
+            sDefaultVault = new WonderPushRequestVault(WonderPushJobQueue.getDefaultQueue(), DEFAULT_WINDOW,
+                    new AndroidConnectivityMonitor(WonderPush.getApplicationContext()), REST_CLIENT_SENDER, Clock.SYSTEM);
         }
     }
 
     private final WonderPushJobQueue mJobQueue;
+    private final int mWindow;
+    private final ConnectivityMonitor mConnectivityMonitor;
+    private final RequestSender mSender;
+    private final Clock mClock;
+    private final Random mRandom = new Random();
     private final Thread mThread;
+    private volatile boolean mStopped;
+
+    private final Object mWakeUpLock = new Object();
+    // Guarded by mWakeUpLock
+    private boolean mWakeUpRequested;
 
-    WonderPushRequestVault(WonderPushJobQueue jobQueue) {
+    // Guarded by this
+    private final Set<InFlightJob> mInFlight = new LinkedHashSet<>();
+    // Ordering key -> id of the job holding it, guarded by this
+    private final Map<String, String> mBusyOrderingKeys = new HashMap<>();
+
+    /**
+     * @param window
+     *            The maximum number of requests in flight
+     * @param connectivityMonitor
+     *            Tells when the network is available
+     * @param sender
+     *            Sends the requests
+     * @param clock
+     *            Gives the time the not before times of the jobs are compared to
+     */
+    WonderPushRequestVault(WonderPushJobQueue jobQueue, int window, ConnectivityMonitor connectivityMonitor, RequestSender sender, Clock clock) {
         mJobQueue = jobQueue;
-        mThread = new Thread(getRunnable());
+        mWindow = window;
+        mConnectivityMonitor = connectivityMonitor;
+        mSender = sender;
+        mClock = clock;
+        mThread = new Thread(getRunnable(), "WonderPushRequestVault");
         mThread.start();
         WonderPush.addUserConsentListener(new WonderPush.UserConsentListener() {
             @Override
             public void onUserConsentChanged(boolean hasUserConsent) {
                 if (hasUserConsent) {
-                    WonderPush.logDebug("RequestVault: Consent given, interrupting sleep");
-                    mThread.interrupt();
+                    WonderPush.logDebug("RequestVault: Consent given, waking up");
+                    wakeUp();
                 }
             }
         });
+        mConnectivityMonitor.addListener(new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged(boolean connected) {
+                if (connected) {
+                    WonderPush.logDebug("RequestVault: Network available, retrying pending jobs now");
+                    // Do not wait for the backoff of the jobs that failed while offline
+                    mJobQueue.advanceNotBeforeRealtimeElapsed(mClock.elapsedRealtime());
+                    wakeUp();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the dispatcher thread, the pending jobs stay in the queue.
+     */
+    void stop() {
+        mStopped = true;
+        mThread.interrupt();
+    }
+
+    /**
+     * Makes the dispatcher re-examine the queue.
+     */
+    void wakeUp() {
+        synchronized (mWakeUpLock) {
+            mWakeUpRequested = true;
+            mWakeUpLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for {@link #wakeUp()} to be called, or for the given time to elapse.
+     * Returns immediately if {@link #wakeUp()} was called since the last wait.
+     */
+    private void waitForWakeUp(long timeoutMs) throws InterruptedException {
+        synchronized (mWakeUpLock) {
+            if (!mWakeUpRequested) {
+                if (timeoutMs == Long.MAX_VALUE) {
+                    mWakeUpLock.wait();
+                } else {
+                    mWakeUpLock.wait(Math.max(1, timeoutMs));
+                }
+            }
+            mWakeUpRequested = false;
+        }
     }
 
     /**
      * Save a request in the vault for future retry
      */
     protected void put(WonderPushRestClient.Request request, long delayMs) {
-        long notBeforeRealTimeElapsed = delayMs <= 0 ? delayMs : SystemClock.elapsedRealtime() + delayMs;
-        long prevNotBeforeRealtimeElapsed = mJobQueue.peekNextJobNotBeforeRealtimeElapsed();
-        mJobQueue.postJobWithDescription(request.toJSON(), notBeforeRealTimeElapsed);
-        if (notBeforeRealTimeElapsed < prevNotBeforeRealtimeElapsed) {
-            WonderPush.logDebug("RequestVault: Interrupting sleep");
-            // Interrupt the worker thread so that it takes into account this new job in a timely manner
-            mThread.interrupt();
+        put(request.toJSON(), delayMs);
+    }
+
+    void put(JSONObject jobDescription, long delayMs) {
+        int priority = WonderPushJobQueue.PRIORITY_NORMAL;
+        if (WonderPushEventBatcher.isBatchable(jobDescription)) {
+            priority = WonderPushJobQueue.PRIORITY_LOW;
+            if (delayMs <= 0 && !isEventBatchFull(WonderPushEventBatcher.getBatchableBytes(jobDescription))) {
+                // Give a chance to other events to join this one in a single request
+                delayMs = WonderPushEventBatcher.MAX_BATCH_DELAY;
+            }
         }
+        post(null, jobDescription, delayMs, priority);
+    }
+
+    /**
+     * @return The stored job, or {@code null} if it was dropped
+     */
+    private WonderPushJobQueue.Job post(WonderPushJobQueue.Job retriedJob, JSONObject jobDescription, long delayMs, int priority) {
+        long notBeforeRealTimeElapsed = delayMs <= 0 ? delayMs : mClock.elapsedRealtime() + delayMs;
+        WonderPushJobQueue.Job rtn;
+        if (retriedJob == null) {
+            rtn = mJobQueue.postJobWithDescription(jobDescription, notBeforeRealTimeElapsed, priority);
+        } else {
+            rtn = mJobQueue.postRetry(retriedJob, jobDescription, notBeforeRealTimeElapsed);
+        }
+        // Wake the worker thread up so that it takes into account this new job in a timely manner.
+        // Always, as the dispatcher may have found the queue empty between a peek and the post.
+        wakeUp();
+        return rtn;
+    }
+
+    /**
+     * Requests sharing an ordering key are sent one at a time, in order, retries included.
+     * Events carry their own date and are sent without ordering constraint.
+     *
+     * @return The ordering key of the given job, or {@code null} if it can be sent at any time
+     */
+    static String getOrderingKey(JSONObject jobDescription) {
+        if (jobDescription == null || WonderPushEventBatcher.isBatchable(jobDescription)) {
+            return null;
+        }
+        String resource = jobDescription.optString("resource", "");
+        int queryStart = resource.indexOf('?');
+        if (queryStart >= 0) {
+            resource = resource.substring(0, queryStart);
+        }
+        return jobDescription.optString("userId", null) + " " + resource;
+    }
+
+    private synchronized boolean canDispatch(WonderPushJobQueue.Job job) {
+        String orderingKey = getOrderingKey(job.getJobDescription());
+        if (orderingKey == null) return true;
+        String holder = mBusyOrderingKeys.get(orderingKey);
+        return holder == null || holder.equals(job.getId());
+    }
+
+    private synchronized boolean hasFreeSlot() {
+        return mInFlight.size() < mWindow;
+    }
+
+    synchronized int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    private synchronized void acquire(InFlightJob inFlight) {
+        mInFlight.add(inFlight);
+        if (inFlight.orderingKey != null) {
+            mBusyOrderingKeys.put(inFlight.orderingKey, inFlight.job.getId());
+        }
+    }
+
+    /**
+     * Frees the slot of an in-flight job, and its ordering key unless it is retried.
+     * Only the first call for a given job has an effect, so that a late response after a timeout is ignored.
+     *
+     * @param retry
+     *            Whether to post the job again after a backoff delay, keeping other jobs of the same ordering key waiting
+     * @return Whether the job was still in flight
+     */
+    private boolean complete(InFlightJob inFlight, boolean retry) {
+        synchronized (this) {
+            if (!mInFlight.remove(inFlight)) return false;
+        }
+        boolean keepOrderingKey = false;
+        if (retry) {
+            long delay = getBackoffDelay(inFlight.job.getAttempts());
+            WonderPush.logDebug("RequestVault: reposting job in " + delay / 1000.f + "s");
+            keepOrderingKey = post(inFlight.job, inFlight.jobDescription, delay, inFlight.job.getPriority()) != null;
+            if (!keepOrderingKey) {
+                WonderPush.logDebug("RequestVault: job " + inFlight.job.getId() + " was dropped instead of being reposted");
+            }
+        }
+        synchronized (this) {
+            if (inFlight.orderingKey != null && !keepOrderingKey) {
+                mBusyOrderingKeys.remove(inFlight.orderingKey);
+            }
+        }
+        // Wake the dispatcher up so that it sends the jobs that were waiting
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * Retries the in-flight jobs whose response did not come in time.
+     *
+     * @return The next deadline of the jobs still in flight, or {@link Long#MAX_VALUE}
+     */
+    private long expireInFlightJobs() {
+        long now = mClock.elapsedRealtime();
+        List<InFlightJob> expired = new ArrayList<>();
+        long nextDeadline = Long.MAX_VALUE;
+        synchronized (this) {
+            for (InFlightJob inFlight : mInFlight) {
+                if (inFlight.deadlineRealtimeElapsed <= now) {
+                    expired.add(inFlight);
+                } else {
+                    nextDeadline = Math.min(nextDeadline, inFlight.deadlineRealtimeElapsed);
+                }
+            }
+        }
+        for (InFlightJob inFlight : expired) {
+            WonderPush.logError("RequestVault: no response after " + IN_FLIGHT_TIMEOUT + " ms for job " + inFlight.job.getId() + ", retrying");
+            complete(inFlight, true);
+        }
+        return nextDeadline;
     }
 
     private Runnable getRunnable() {
         return new Runnable() {
             @Override
             public void run() {
-                while (true) {
+                WonderPushJobQueue.JobFilter dispatchableJobs = new WonderPushJobQueue.JobFilter() {
+                    @Override
+                    public boolean accept(WonderPushJobQueue.Job job) {
+                        return job.getNotBeforeRealtimeElapsed() <= mClock.elapsedRealtime() && canDispatch(job);
+                    }
+                };
+                while (!mStopped) {
                     try {
-                        long nextJobNotBeforeRealtimeElapsed = mJobQueue.peekNextJobNotBeforeRealtimeElapsed();
+                        long nextDeadline = expireInFlightJobs();
                         if (!WonderPush.hasUserConsent()) {
                             // Wait indefinitely if we must wait for consent
-                            nextJobNotBeforeRealtimeElapsed = Long.MAX_VALUE;
+                            WonderPush.logDebug("RequestVault: waiting for user consent");
+                            waitForWakeUp(Long.MAX_VALUE);
+                            continue;
                         }
-                        long sleep = nextJobNotBeforeRealtimeElapsed - SystemClock.elapsedRealtime();
-                        if (sleep > 0) {
-                            if (nextJobNotBeforeRealtimeElapsed == Long.MAX_VALUE) {
-                                if (!WonderPush.hasUserConsent()) {
-                                    WonderPush.logDebug("RequestVault: waiting for user consent");
-                                } else {
-                                    WonderPush.logDebug("RequestVault: waiting for next job");
-                                }
-                            } else {
-                                WonderPush.logDebug("RequestVault: sleeping " + sleep + " ms");
-                            }
-                            Thread.sleep(sleep);
+                        if (!mConnectivityMonitor.isConnected()) {
+                            WonderPush.logDebug("RequestVault: waiting for network");
+                            waitForWakeUp(Long.MAX_VALUE);
                             continue;
                         }
-
-                        // This blocking call won't block because we check for a job's presence first
-                        // using mJobQueue.peekNextJobNotBeforeRealtimeElapsed()
-                        // and we're it's sole consumer (although not enforced by the current code design)
-                        final WonderPushJobQueue.Job job = mJobQueue.nextJob();
-
-                        final WonderPushRestClient.Request request;
-                        try {
-                            request = new WonderPushRestClient.Request(job.getJobDescription());
-                        } catch (Exception e) {
-                            Log.e(TAG, "Could not restore request", e);
+                        if (!hasFreeSlot()) {
+                            WonderPush.logDebug("RequestVault: waiting for a request to complete");
+                            waitForWakeUp(nextDeadline == Long.MAX_VALUE ? Long.MAX_VALUE : nextDeadline - mClock.elapsedRealtime());
                             continue;
                         }
-                        request.setHandler(new ResponseHandler() {
-                            @Override
-                            public void onFailure(Throwable e, Response errorResponse) {
-                                WonderPush.logDebug("RequestVault: failure", e);
-                                // Post back to job queue if this is a network error
-                                if (e instanceof IOException) { // NoHttpResponseException, UnknownHostException, SocketException) {
-                                    WonderPush.logDebug("RequestVault: reposting job", e);
-                                    backoff();
-                                    put(request, sWait);
-                                } else {
-                                    WonderPush.logDebug("RequestVault: discarding job", e);
+
+                        WonderPushJobQueue.Job job = mJobQueue.pollJob(dispatchableJobs, DISPATCH_LOOKAHEAD);
+                        if (job == null) {
+                            long nextJobNotBeforeRealtimeElapsed = Long.MAX_VALUE;
+                            for (WonderPushJobQueue.Job pending : mJobQueue.peekJobs(DISPATCH_LOOKAHEAD)) {
+                                if (canDispatch(pending)) {
+                                    nextJobNotBeforeRealtimeElapsed = pending.getNotBeforeRealtimeElapsed();
+                                    break;
                                 }
                             }
-
-                            @Override
-                            public void onSuccess(Response response) {
-                                WonderPush.logDebug("RequestVault: job done");
-                                resetBackoff();
+                            if (nextJobNotBeforeRealtimeElapsed == Long.MAX_VALUE && nextDeadline == Long.MAX_VALUE) {
+                                WonderPush.logDebug("RequestVault: waiting for next job");
+                                waitForWakeUp(Long.MAX_VALUE);
+                            } else {
+                                long sleep = Math.min(nextJobNotBeforeRealtimeElapsed, nextDeadline) - mClock.elapsedRealtime();
+                                WonderPush.logDebug("RequestVault: sleeping " + sleep + " ms");
+                                waitForWakeUp(sleep);
                             }
-                        });
-                        if (!WonderPush.hasUserConsent()) {
-                            // This last resort check is not expected to catch any case but is here for strictness
-                            request.getHandler().onFailure(new RuntimeException("Missing user consent"), new Response("Missing user consent"));
-                        } else {
-                            WonderPushRestClient.requestAuthenticated(request);
+                            continue;
                         }
+
+                        dispatch(job);
                     } catch (InterruptedException ignored) {}
                 }
             }
         };
     }
 
-    private static void backoff() {
-        sWait = Math.min(MAXIMUM_WAIT, Math.round(sWait * BACKOFF_EXPONENT));
-        WonderPush.logDebug("Increasing backoff to " + sWait/1000.f + "s");
+    private void dispatch(final WonderPushJobQueue.Job job) {
+        JSONObject description = job.getJobDescription();
+        if (WonderPushEventBatcher.isBatchable(description)) {
+            description = batchPendingEvents(description);
+        }
+        final InFlightJob inFlight = new InFlightJob(job, description, getOrderingKey(description), mClock.elapsedRealtime() + IN_FLIGHT_TIMEOUT);
+        acquire(inFlight);
+        ResponseHandler handler = new ResponseHandler() {
+            @Override
+            public void onFailure(Throwable e, Response errorResponse) {
+                WonderPush.logDebug("RequestVault: failure", e);
+                // Post back to job queue if this is a network error
+                boolean retry = e instanceof IOException; // NoHttpResponseException, UnknownHostException, SocketException
+                if (!complete(inFlight, retry)) {
+                    WonderPush.logDebug("RequestVault: ignoring late failure of job " + job.getId());
+                } else if (!retry) {
+                    WonderPush.logDebug("RequestVault: discarding job", e);
+                }
+            }
+
+            @Override
+            public void onSuccess(Response response) {
+                if (complete(inFlight, false)) {
+                    WonderPush.logDebug("RequestVault: job done");
+                } else {
+                    WonderPush.logDebug("RequestVault: ignoring late success of job " + job.getId());
+                }
+            }
+        };
+        if (!WonderPush.hasUserConsent()) {
+            // This last resort check is not expected to catch any case but is here for strictness
+            handler.onFailure(new RuntimeException("Missing user consent"), new Response("Missing user consent"));
+            return;
+        }
+        try {
+            mSender.send(inFlight.jobDescription, handler);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not send request", e);
+            complete(inFlight, false);
+        }
+    }
+
+    /**
+     * Tells whether the pending events, together with a new one of the given body size, would fill a whole batch.
+     *
+     * <p>
+     *     Decided from the counts kept by the queue, without reading any queued description.
+     *     Events of every user are counted together, which at worst sends a batch before it is full.
+     * </p>
+     */
+    private boolean isEventBatchFull(int bytes) {
+        return mJobQueue.getBatchableJobCount() + 1 >= WonderPushEventBatcher.MAX_BATCH_SIZE
+                || mJobQueue.getBatchableBytes() + bytes >= WonderPushEventBatcher.MAX_BATCH_BYTES;
+    }
+
+    /**
+     * Removes the pending events that can be sent along with the given event job from the queue.
+     *
+     * @return The job description of the multi-event request to send
+     */
+    private JSONObject batchPendingEvents(JSONObject jobDescription) {
+        final WonderPushEventBatcher.Batch batch;
+        try {
+            batch = new WonderPushEventBatcher.Batch(jobDescription);
+        } catch (JSONException ex) {
+            Log.e(TAG, "Could not read event job", ex);
+            return jobDescription;
+        }
+        List<WonderPushJobQueue.Job> batchedJobs = mJobQueue.takeJobs(new WonderPushJobQueue.JobFilter() {
+            @Override
+            public boolean accept(WonderPushJobQueue.Job job) {
+                return batch.offer(job.getJobDescription());
+            }
+        }, WonderPushEventBatcher.MAX_LOOKAHEAD);
+        if (batchedJobs.isEmpty()) {
+            return jobDescription;
+        }
+        try {
+            WonderPush.logDebug("RequestVault: sending " + batch.getEventCount() + " events from " + batch.getJobCount() + " jobs in a single request");
+            return batch.toJobDescription();
+        } catch (JSONException ex) {
+            Log.e(TAG, "Could not batch events, sending them separately", ex);
+            for (WonderPushJobQueue.Job batchedJob : batchedJobs) {
+                mJobQueue.post(batchedJob);
+            }
+            return jobDescription;
+        }
+    }
+
+    /**
+     * Returns the delay before retrying a job that failed after the given number of previous attempts.
+     * The delay grows exponentially, and is randomized so that failed jobs do not all retry at once.
+     */
+    private long getBackoffDelay(int previousAttempts) {
+        long maxDelay = getMaxBackoffDelay(previousAttempts);
+        // Keep at least half of the delay
+        return maxDelay / 2 + Math.round(mRandom.nextDouble() * (maxDelay / 2));
     }
 
-    private static void resetBackoff() {
-        sWait = NORMAL_WAIT;
+    /**
+     * @return The upper bound of the delay before retrying a job that failed the given number of times before
+     */
+    static long getMaxBackoffDelay(int previousAttempts) {
+        double wait = NORMAL_WAIT * Math.pow(BACKOFF_EXPONENT, Math.min(previousAttempts, 64));
+        return Math.round(Math.min(MAXIMUM_WAIT, wait));
     }
 
 }
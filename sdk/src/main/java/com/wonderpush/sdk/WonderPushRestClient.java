@@ -2,31 +2,21 @@ package com.wonderpush.sdk;
 
 import android.net.Uri;
 import android.os.SystemClock;
-import android.util.Base64;
 import android.util.Log;
 
-import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.JsonHttpResponseHandler;
-
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.List;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
 
-import cz.msebera.android.httpclient.Header;
-import cz.msebera.android.httpclient.HttpEntity;
+import cz.msebera.android.httpclient.client.HttpResponseException;
 import cz.msebera.android.httpclient.message.BasicHeader;
 import cz.msebera.android.httpclient.message.BasicNameValuePair;
 
@@ -47,14 +37,113 @@ class WonderPushRestClient {
     }
 
     private static final int RETRY_INTERVAL_BAD_AUTH = 1 * 1000; // in milliseconds
-    private static final int RETRY_INTERVAL = 30 * 1000; // in milliseconds
     protected static final int ERROR_INVALID_CREDENTIALS = 11000;
     protected static final int ERROR_INVALID_ACCESS_TOKEN = 11003;
 
-    private static boolean sIsFetchingAnonymousAccessToken = false;
-    private static final List<ResponseHandler> sPendingHandlers = new ArrayList<>();
+    private static final RequestDeduplicator sInflightGets = new RequestDeduplicator(Clock.SYSTEM);
+    private static final ConditionalGetCache sResponseCache = new ConditionalGetCache();
+
+    private static final AccessTokenProvider sAccessTokenProvider = new AccessTokenProvider(new AccessTokenProvider.Fetcher() {
+        @Override
+        public void fetch(final String userId, final ResponseHandler handler) {
+            WonderPush.safeDeferWithConsent(new Runnable() {
+                @Override
+                public void run() {
+                    fetchAnonymousAccessToken_inner(userId, handler);
+                }
+            }, "fetchAnonymousAccessToken-" + userId);
+        }
+    });
+
+    static final String TRANSPORT_ASYNC_HTTP_CLIENT = "asyncHttpClient";
+    static final String TRANSPORT_URL_CONNECTION = "urlConnection";
+    static final String TRANSPORT_OKHTTP = "okhttp";
+    static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000; // in milliseconds
+    static final int DEFAULT_READ_TIMEOUT = 10 * 1000; // in milliseconds
+
+    private static boolean sJsonBodies = true;
+    private static boolean sGzipRequests = false;
+    private static final HttpStats sStats = new HttpStats();
+    private static String sTransportName = TRANSPORT_ASYNC_HTTP_CLIENT;
+    private static int sConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static int sReadTimeout = DEFAULT_READ_TIMEOUT;
+    private static HttpTransport sTransport;
+
+    /**
+     * Chooses the HTTP stack used for the next requests.
+     *
+     * @param transportName
+     *            One of {@link #TRANSPORT_ASYNC_HTTP_CLIENT}, {@link #TRANSPORT_URL_CONNECTION} or {@link #TRANSPORT_OKHTTP},
+     *            or {@code null} to keep the current one
+     * @param connectTimeout
+     *            Connect timeout in milliseconds, or {@code null} to keep the current one
+     * @param readTimeout
+     *            Read timeout in milliseconds, or {@code null} to keep the current one
+     */
+    static synchronized void configureTransport(String transportName, Integer connectTimeout, Integer readTimeout) {
+        if (transportName != null) sTransportName = transportName;
+        if (connectTimeout != null) sConnectTimeout = connectTimeout;
+        if (readTimeout != null) sReadTimeout = readTimeout;
+        sTransport = null;
+    }
+
+    /**
+     * Chooses whether the {@code body} parameter of write requests is sent as an {@code application/json} body,
+     * or form encoded along with the other parameters, as older API endpoints expect.
+     */
+    static synchronized void setJsonBodies(boolean jsonBodies) {
+        sJsonBodies = jsonBodies;
+    }
+
+    static synchronized boolean getJsonBodies() {
+        return sJsonBodies;
+    }
+
+    /**
+     * Chooses whether request bodies above {@link HttpCompression#MIN_COMPRESSED_REQUEST_SIZE} are gzipped.
+     * Off by default, only turn it on for API endpoints that accept {@code Content-Encoding: gzip}.
+     */
+    static synchronized void setGzipRequests(boolean gzipRequests) {
+        sGzipRequests = gzipRequests;
+    }
+
+    static synchronized boolean getGzipRequests() {
+        return sGzipRequests;
+    }
+
+    static HttpStats getStats() {
+        return sStats;
+    }
+
+    /**
+     * Overrides the HTTP stack, to test against a local mock server for instance.
+     */
+    static synchronized void setTransport(HttpTransport transport) {
+        sTransport = transport;
+    }
+
+    static synchronized HttpTransport getTransport() {
+        if (sTransport == null) {
+            sTransport = createTransport(sTransportName, sConnectTimeout, sReadTimeout);
+            WonderPush.logDebug("Using the " + sTransport.getName() + " HTTP transport");
+        }
+        return sTransport;
+    }
 
-    private static final AsyncHttpClient sClient = new AsyncHttpClient(); // to allow any HTTPS certificate use: new AsyncHttpClient(true, 80, 443);
+    private static HttpTransport createTransport(String transportName, int connectTimeout, int readTimeout) {
+        if (TRANSPORT_OKHTTP.equalsIgnoreCase(transportName)) {
+            if (OkHttpTransport.isAvailable()) {
+                return new OkHttpTransport(connectTimeout, readTimeout);
+            }
+            Log.w(TAG, "OkHttp was not found in the application, falling back to the default HTTP transport");
+        } else if (TRANSPORT_URL_CONNECTION.equalsIgnoreCase(transportName)) {
+            // HttpURLConnection cannot send PATCH requests
+            return new HttpURLConnectionTransport(connectTimeout, readTimeout, new AsyncHttpClientTransport(connectTimeout, readTimeout));
+        } else if (!TRANSPORT_ASYNC_HTTP_CLIENT.equalsIgnoreCase(transportName)) {
+            Log.w(TAG, "Unknown HTTP transport " + transportName + ", falling back to the default HTTP transport");
+        }
+        return new AsyncHttpClientTransport(connectTimeout, readTimeout);
+    }
 
     /**
      * A request
@@ -159,7 +248,7 @@ class WonderPushRestClient {
             WonderPush.safeDeferWithConsent(new Runnable() {
                 @Override
                 public void run() {
-                    if (!fetchAnonymousAccessTokenIfNeeded(userId, onFetchedHandler)) {
+                    if (!fetchAnonymousAccessTokenIfNeeded(userId, onFetchedHandler) && onFetchedHandler != null) {
                         // Call the handler anyway
                         onFetchedHandler.onSuccess(null);
                     }
@@ -168,7 +257,7 @@ class WonderPushRestClient {
             return true; // true: the handler will be called
         }
 
-        if (null == WonderPushConfiguration.getAccessToken()) {
+        if (null == WonderPushConfiguration.getAccessTokenForUserId(userId)) {
             fetchAnonymousAccessToken(userId, onFetchedHandler);
             return true;
         }
@@ -192,17 +281,40 @@ class WonderPushRestClient {
             return;
         }
 
+        if (request.getMethod() == HttpMethod.GET) {
+            // Identical GETs in flight share the same response
+            String key = request.getUserId() + " " + request.getResource() + "?" + (request.getParams() == null ? "" : request.getParams().getURLEncodedString());
+            ResponseHandler sharedHandler = sInflightGets.join(key, request.getHandler());
+            if (sharedHandler == null) {
+                WonderPush.logDebug("Joining identical request in flight: " + request);
+                return;
+            }
+            Request sharedRequest = (Request) request.clone();
+            sharedRequest.setHandler(sharedHandler);
+            try {
+                requestAuthenticated_inner(sharedRequest);
+            } catch (RuntimeException ex) {
+                // Do not leave the callers that joined waiting
+                WonderPush.logError("Failed to send request " + request, ex);
+                sharedHandler.onFailure(ex, new Response(ex.toString()));
+            }
+        } else {
+            requestAuthenticated_inner(request);
+        }
+    }
+
+    private static void requestAuthenticated_inner(final Request request) {
         if (!WonderPush.isInitialized()) {
             WonderPush.safeDefer(new Runnable() {
                 @Override
                 public void run() {
-                    requestAuthenticated(request);
+                    requestAuthenticated_inner(request);
                 }
             }, 100);
             return;
         }
 
-        String accessToken = WonderPushConfiguration.getAccessTokenForUserId(request.getUserId());
+        final String accessToken = WonderPushConfiguration.getAccessTokenForUserId(request.getUserId());
 
         if (accessToken == null) {
             // User is not authenticated, request a token
@@ -234,14 +346,16 @@ class WonderPushRestClient {
             public void onFailure(Throwable e, Response errorResponse) {
                 WonderPush.logError("Request failed: " + errorResponse, e);
                 if (errorResponse != null && ERROR_INVALID_ACCESS_TOKEN == errorResponse.getErrorCode()) {
-                    // null out the access token
-                    WonderPushConfiguration.invalidateCredentials();
+                    // null out the access token, unless a concurrent request already replaced it
+                    if (accessToken.equals(WonderPushConfiguration.getAccessToken())) {
+                        WonderPushConfiguration.invalidateCredentials();
+                    }
 
                     // retry later now
                     WonderPush.safeDefer(new Runnable() {
                         @Override
                         public void run() {
-                            requestAuthenticated(request);
+                            requestAuthenticated_inner(request);
                         }
                     }, RETRY_INTERVAL_BAD_AUTH);
                 } else {
@@ -267,7 +381,7 @@ class WonderPushRestClient {
     }
 
     /**
-     * Thin wrapper to the {@link AsyncHttpClient} library.
+     * Sends the request through the configured {@link HttpTransport}.
      */
     private static void request(final Request request) {
         if (null == request) {
@@ -275,144 +389,232 @@ class WonderPushRestClient {
             return;
         }
 
-        WonderPush.safeDefer(new Runnable() {
+        // Signing and compressing must not hold back the state executor, the response goes back to it.
+        // Requests are prepared serially so that they reach the transport in the order they were issued.
+        WonderPush.safeDeferRequest(new Runnable() {
             @Override
             public void run() {
-                // Decorate parameters
-                WonderPushRequestParamsDecorator.decorate(request.getResource(), request.getParams());
-
-                // Generate signature
-                BasicHeader authorizationHeader = request.getAuthorizationHeader();
-
-                // Headers
-                BasicHeader[] headers = null;
-                if (null != authorizationHeader) {
-                    headers = new BasicHeader[1];
-                    headers[0] = authorizationHeader;
+                try {
+                    send(request);
+                } catch (RuntimeException ex) {
+                    // Every request must end in a call to its handler
+                    WonderPush.logError("Failed to send request " + request, ex);
+                    if (request.getHandler() != null) {
+                        request.getHandler().onFailure(ex, new Response(ex.toString()));
+                    }
                 }
+            }
+        });
+    }
 
-                String url = WonderPushUriHelper.getAbsoluteUrl(request.getResource());
-                WonderPush.logDebug("requesting url: " + request.getMethod() + " " + url + "?" + request.getParams().getURLEncodedString());
-                // TODO: support other contentTypes such as "application/json"
-                String contentType = "application/x-www-form-urlencoded";
+    /**
+     * Prepares the request and hands it to the transport, on the requests executor.
+     */
+    private static void send(final Request request) {
+        // Decorate parameters
+        WonderPushRequestParamsDecorator.decorate(request.getResource(), request.getParams());
+
+        // Generate signature, laying out the body the same way as it is sent
+        boolean jsonBodies = getJsonBodies();
+        BasicHeader authorizationHeader = request.getAuthorizationHeader(jsonBodies);
+
+        // Headers
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (null != authorizationHeader) {
+            headers.put(authorizationHeader.getName(), authorizationHeader.getValue());
+        }
 
-                // Handler
-                final ResponseHandler handler = request.getHandler();
-                HttpEntity entity = null;
-                if (request.getParams() != null) {
+        String url = WonderPushUriHelper.getAbsoluteUrl(request.getResource());
+        WonderPush.logDebug("requesting url: " + request.getMethod() + " " + url + "?" + (request.getParams() == null ? "" : request.getParams().getURLEncodedString().trim()));
+        RequestEncoding encoding;
+        try {
+            encoding = RequestEncoding.encode(request.getMethod(), request.getParams(), jsonBodies, getGzipRequests());
+        } catch (IOException ex) {
+            WonderPush.logError("Failed to encode params " + request.getParams(), ex);
+            if (request.getHandler() != null) {
+                request.getHandler().onFailure(ex, new Response(""));
+            }
+            return;
+        }
+        if (encoding.queryString.length() > 0) {
+            url += (url.contains("?") ? "&" : "?") + encoding.queryString;
+        }
+        if (encoding.contentEncoding != null) {
+            headers.put("Content-Encoding", encoding.contentEncoding);
+        }
+        // Asking explicitly turns off transparent decompression, so that we can account for it
+        headers.put("Accept-Encoding", HttpCompression.GZIP);
+
+        // Revalidate the last known response, writes make it stale
+        String cacheKey = null;
+        if (ConditionalGetCache.isCacheable(request.getResource())) {
+            if (request.getMethod() == HttpMethod.GET) {
+                cacheKey = ConditionalGetCache.getKey(request.getUserId(), request.getResource(),
+                        request.getParams() == null ? null : request.getParams().getURLEncodedString());
+                sResponseCache.addConditionalHeaders(cacheKey, headers);
+            } else {
+                sResponseCache.removeResource(request.getUserId(), request.getResource());
+            }
+        }
+        final String responseCacheKey = cacheKey;
+
+        final HttpTransport transport = getTransport();
+        final HttpTransport.Request transportRequest = new HttpTransport.Request(request.getMethod().name(), url, headers, encoding.contentType, encoding.body);
+        sStats.recordRequest(encoding.body == null ? 0 : encoding.body.length, encoding.uncompressedLength);
+        final long sendDate = SystemClock.elapsedRealtime();
+        // NO UNNECESSARY WORK HERE, because of timed request
+        transport.execute(transportRequest, new HttpTransport.Callback() {
+            @Override
+            public void onResponse(int wireStatusCode, Map<String, String> headers, byte[] wireBody) {
+                final long recvDate = SystemClock.elapsedRealtime();
+                byte[] decompressedBody = wireBody;
+                if (HttpCompression.GZIP.equalsIgnoreCase(headers.get("content-encoding")) && HttpCompression.isGzipped(wireBody)) {
                     try {
-                        entity = request.getParams() != null ? request.getParams().getEntity(null) : null;
+                        decompressedBody = HttpCompression.gunzip(wireBody);
                     } catch (IOException ex) {
-                        WonderPush.logError("Failed to create HttpEntity from params " + request.getParams(), ex);
-                        if (handler != null) {
-                            handler.onFailure(ex, new Response(""));
-                        }
+                        onFailure(ex);
                         return;
                     }
                 }
-                final long sendDate = SystemClock.elapsedRealtime();
-                JsonHttpResponseHandler jsonHandler = new JsonHttpResponseHandler() {
-                    @Override
-                    public void onProgress(long bytesWritten, long totalSize) {
-                        // mute this
+                sStats.recordResponse(wireBody == null ? 0 : wireBody.length, decompressedBody == null ? 0 : decompressedBody.length, recvDate - sendDate);
+                int responseStatusCode = wireStatusCode;
+                boolean cached = false;
+                if (responseCacheKey != null) {
+                    byte[] cachedBody = sResponseCache.onResponse(responseCacheKey, wireStatusCode, headers, decompressedBody);
+                    if (wireStatusCode == ConditionalGetCache.HTTP_NOT_MODIFIED && cachedBody != null) {
+                        // Serve the cached response as if the server had sent it again
+                        responseStatusCode = 200;
+                        decompressedBody = cachedBody;
+                        cached = true;
                     }
-
-                    @Override
-                    public void onSuccess(int statusCode, Header[] headers, JSONObject response) {
-                        syncTime(response);
-                        WonderPush.setNetworkAvailable(true);
-                        if (handler != null) {
-                            handler.onSuccess(statusCode, new Response(response));
-                        }
-                    }
-
-                    @Override
-                    public void onSuccess(int statusCode, Header[] headers, JSONArray response) {
-                        WonderPush.logError("Unexpected JSONArray answer: " + statusCode + " headers: " + Arrays.toString(headers) + " response: (" + response.length() + ") " + response.toString());
-                    }
-
+                }
+                final int statusCode = responseStatusCode;
+                final byte[] body = decompressedBody;
+                final boolean fromCache = cached;
+                WonderPush.safeDefer(new Runnable() {
                     @Override
-                    public void onFailure(int statusCode, Header[] headers, Throwable throwable, JSONObject errorResponse) {
-                        WonderPush.logError("Error answer: " + statusCode + " headers: " + Arrays.toString(headers) + " response: " + errorResponse);
-                        syncTime(errorResponse);
-                        WonderPush.logDebug("Request Error: " + errorResponse);
-                        WonderPush.setNetworkAvailable(errorResponse != null);
-                        if (handler != null) {
-                            handler.onFailure(throwable, new Response(errorResponse));
-                        }
+                    public void run() {
+                        WonderPush.logDebug("Request took " + (recvDate - sendDate) + "ms using " + transport.getName() + ": " + statusCode + " for " + transportRequest);
+                        WonderPush.logDebug("HTTP stats: " + sStats);
+                        handleResponse(statusCode, body, fromCache, null, sendDate, recvDate, request.getHandler());
                     }
+                }, 0);
+            }
 
+            @Override
+            public void onFailure(final Throwable e) {
+                final long recvDate = SystemClock.elapsedRealtime();
+                sStats.recordFailure(recvDate - sendDate);
+                WonderPush.safeDefer(new Runnable() {
                     @Override
-                    public void onFailure(int statusCode, Header[] headers, Throwable throwable, JSONArray errorResponse) {
-                        WonderPush.logError("Unexpected JSONArray error answer: " + statusCode + " headers: " + Arrays.toString(headers) + " response: (" + errorResponse.length() + ") " + errorResponse.toString());
-                        this.onFailure(statusCode, headers, errorResponse.toString(), throwable);
+                    public void run() {
+                        WonderPush.logDebug("Request failed after " + (recvDate - sendDate) + "ms using " + transport.getName() + " for " + transportRequest);
+                        handleResponse(0, null, false, e, sendDate, recvDate, request.getHandler());
                     }
+                }, 0);
+            }
+        });
+    }
 
-                    @Override
-                    public void onFailure(int statusCode, Header[] headers, String responseString, Throwable throwable) {
-                        WonderPush.logError("Unexpected string error answer: " + statusCode + " headers: " + Arrays.toString(headers) + " response: (" + responseString.length() + ") \"" + responseString + "\"");
-                        WonderPush.setNetworkAvailable(false);
-                        if (handler != null) {
-                            handler.onFailure(throwable, new Response(responseString));
-                        }
-                    }
+    /**
+     * Parses a response body the way a JSON API answers.
+     *
+     * @return A {@link JSONObject}, a {@link JSONArray}, a {@link String} or {@code null} if the body is empty
+     */
+    private static Object parseResponseBody(byte[] body) throws JSONException {
+        if (body == null) return null;
+        String string;
+        try {
+            string = new String(body, "UTF-8").trim();
+        } catch (UnsupportedEncodingException ex) {
+            return null;
+        }
+        if (string.startsWith("\uFEFF")) {
+            string = string.substring(1);
+        }
+        if (string.length() == 0) return null;
+        if (string.startsWith("{") || string.startsWith("[")) {
+            return new JSONTokener(string).nextValue();
+        }
+        return string;
+    }
 
-                    @Override
-                    public void onSuccess(int statusCode, Header[] headers, String responseString) {
-                        WonderPush.logError("Unexpected string answer: " + statusCode + " headers: " + Arrays.toString(headers) + " response: (" + responseString.length() + ") \"" + responseString + "\"");
-                    }
+    /**
+     * @param fromCache
+     *            Whether the body was served from {@link #sResponseCache}, its {@code _serverTime} is then outdated
+     */
+    private static void handleResponse(int statusCode, byte[] body, boolean fromCache, Throwable error, long sendDate, long recvDate, ResponseHandler handler) {
+        boolean success = error == null && statusCode >= 200 && statusCode < 300;
+        Object response;
+        try {
+            response = parseResponseBody(body);
+        } catch (JSONException ex) {
+            response = null;
+            if (success) {
+                success = false;
+                error = ex;
+            }
+        }
+        if (error == null && !success) {
+            error = new HttpResponseException(statusCode, "HTTP " + statusCode);
+        }
 
-                    private void syncTime(JSONObject data) {
-                        long recvDate = SystemClock.elapsedRealtime();
-                        if (data == null || !data.has("_serverTime")) {
-                            return;
-                        }
-                        TimeSync.syncTimeWithServer(sendDate, recvDate, data.optLong("_serverTime"), data.optLong("_serverTook"));
-                    }
-                };
-                // NO UNNECESSARY WORK HERE, because of timed request
-                switch (request.getMethod()) {
-                    case GET:
-                        sClient.get(null, url, headers, request.getParams(), jsonHandler);
-                        break;
-                    case PUT:
-                        sClient.put(null, url, headers, entity, contentType, jsonHandler);
-                        break;
-                    case POST:
-                        sClient.post(null, url, headers, entity, contentType, jsonHandler);
-                        break;
-                    case PATCH:
-                        sClient.patch(null, url, headers, entity, contentType, jsonHandler);
-                        break;
-                    case DELETE:
-                        sClient.delete(null, url, headers, request.getParams(), jsonHandler);
-                        break;
-                    default:
-                        jsonHandler.sendFailureMessage(0, null, null, new UnsupportedOperationException("Unhandled method " + request.getMethod()));
+        if (success) {
+            // Every path must end in a call to the handler, callers hold resources until then
+            if (response instanceof JSONArray) {
+                WonderPush.logError("Unexpected JSONArray answer: " + statusCode + " response: (" + ((JSONArray) response).length() + ") " + response.toString());
+                if (handler != null) {
+                    handler.onFailure(new JSONException("Unexpected JSONArray answer"), new Response(response.toString()));
+                }
+            } else if (response instanceof String) {
+                WonderPush.logError("Unexpected string answer: " + statusCode + " response: (" + ((String) response).length() + ") \"" + response + "\"");
+                if (handler != null) {
+                    handler.onFailure(new JSONException("Unexpected string answer"), new Response((String) response));
+                }
+            } else {
+                if (!fromCache) {
+                    syncTime((JSONObject) response, sendDate, recvDate);
+                }
+                WonderPush.setNetworkAvailable(true);
+                if (handler != null) {
+                    handler.onSuccess(statusCode, new Response((JSONObject) response));
                 }
             }
-        }, 0);
-    }
-
-    protected static void fetchAnonymousAccessToken(final String userId, final ResponseHandler handler) {
-        fetchAnonymousAccessToken(userId, handler, 0);
+        } else if (response instanceof JSONArray || response instanceof String) {
+            WonderPush.logError("Unexpected string error answer: " + statusCode + " response: \"" + response + "\"");
+            WonderPush.setNetworkAvailable(false);
+            if (handler != null) {
+                handler.onFailure(error, new Response(response.toString()));
+            }
+        } else {
+            JSONObject errorResponse = (JSONObject) response;
+            WonderPush.logError("Error answer: " + statusCode + " response: " + errorResponse);
+            syncTime(errorResponse, sendDate, recvDate);
+            WonderPush.logDebug("Request Error: " + errorResponse);
+            WonderPush.setNetworkAvailable(errorResponse != null);
+            if (handler != null) {
+                handler.onFailure(error, new Response(errorResponse));
+            }
+        }
     }
 
-    protected static void fetchAnonymousAccessToken(final String userId, final ResponseHandler handler, final int nbRetries) {
-        if (sIsFetchingAnonymousAccessToken) {
-            queueHandler(handler);
+    private static void syncTime(JSONObject data, long sendDate, long recvDate) {
+        if (data == null || !data.has("_serverTime")) {
             return;
         }
-        sIsFetchingAnonymousAccessToken = true;
-        WonderPush.safeDeferWithConsent(new Runnable() {
-            @Override
-            public void run() {
-                fetchAnonymousAccessToken_inner(userId, handler, nbRetries);
-            }
-        }, "fetchAnonymousAccessToken");
+        TimeSync.syncTimeWithServer(sendDate, recvDate, data.optLong("_serverTime"), data.optLong("_serverTook"));
     }
 
-    private static void fetchAnonymousAccessToken_inner(final String userId, final ResponseHandler handler, final int nbRetries) {
+    /**
+     * Fetches an anonymous access token, joining the request in flight for the same user if any.
+     *
+     * @return A future resolving to the new access token
+     */
+    protected static Future<String> fetchAnonymousAccessToken(final String userId, final ResponseHandler handler) {
+        return sAccessTokenProvider.fetch(userId, handler);
+    }
+
+    private static void fetchAnonymousAccessToken_inner(final String userId, final ResponseHandler handler) {
         RequestParams authParams = new RequestParams();
         authParams.put("clientId", WonderPush.getClientId());
         authParams.put("devicePlatform", "Android");
@@ -431,33 +633,11 @@ class WonderPushRestClient {
                 new ResponseHandler() {
                     @Override
                     public void onFailure(Throwable e, Response errorResponse) {
-                        if (nbRetries <= 0) {
-                            Log.e(TAG, "Error request anonymous access token (aborting): " + (errorResponse != null ? errorResponse.toString() : "null error response, aborting"), e);
-                            if (errorResponse != null && ERROR_INVALID_CREDENTIALS == errorResponse.getErrorCode()) {
-                                Log.e(TAG, "Check your clientId/clientSecret couple");
-                            }
-
-                            sIsFetchingAnonymousAccessToken = false;
-                            if (null != handler) {
-                                handler.onFailure(e, errorResponse);
-                            }
-                            ResponseHandler chainedHandler;
-                            while ((chainedHandler = dequeueHandler()) != null) {
-                                chainedHandler.onFailure(e, errorResponse);
-                            }
-                            return;
+                        Log.e(TAG, "Error request anonymous access token (aborting): " + (errorResponse != null ? errorResponse.toString() : "null error response, aborting"), e);
+                        if (errorResponse != null && ERROR_INVALID_CREDENTIALS == errorResponse.getErrorCode()) {
+                            Log.e(TAG, "Check your clientId/clientSecret couple");
                         }
-                        Log.e(TAG, "Error request anonymous access token (retrying: " + nbRetries + "): " + (errorResponse != null ? errorResponse.toString() : "null error response, retrying"), e);
-
-                        WonderPush.safeDefer(new Runnable() {
-                            @Override
-                            public void run() {
-                                WonderPush.logDebug("re-requesting access token!");
-
-                                sIsFetchingAnonymousAccessToken = false;
-                                fetchAnonymousAccessToken(userId, handler, nbRetries - 1);
-                            }
-                        }, RETRY_INTERVAL);
+                        handler.onFailure(e, errorResponse);
                     }
 
                     @Override
@@ -493,22 +673,16 @@ class WonderPushRestClient {
                                     // Make sure to switch back to the current user now
                                     WonderPushConfiguration.changeUserId(prevUserId);
                                 }
-                                sIsFetchingAnonymousAccessToken = false;
 
                                 WonderPush.refreshPreferencesAndConfiguration(false);
 
                                 // call handlers
-                                if (null != handler) {
-                                    handler.onSuccess(statusCode, response);
-                                }
-                                ResponseHandler chainedHandler;
-                                while ((chainedHandler = dequeueHandler()) != null) {
-                                    chainedHandler.onSuccess(statusCode, response);
-                                }
+                                handler.onSuccess(statusCode, response);
                                 return;
                             }
                         }
                         Log.e(TAG, "Could not obtain anonymous access token from server");
+                        handler.onFailure(new IllegalStateException("Could not obtain anonymous access token from server"), response);
                     }
 
                     @Override
@@ -530,36 +704,17 @@ class WonderPushRestClient {
         fetchAnonymousAccessToken(request.getUserId(), new ResponseHandler() {
             @Override
             public void onSuccess(Response response) {
-                requestAuthenticated(request);
+                requestAuthenticated_inner(request);
             }
 
             @Override
             public void onFailure(Throwable e, Response errorResponse) {
-            }
-        });
-    }
-
-    private static void queueHandler(ResponseHandler handler) {
-        if (null == handler) {
-            return;
-        }
-
-        synchronized (sPendingHandlers) {
-            sPendingHandlers.add(handler);
-        }
-    }
-
-    private static ResponseHandler dequeueHandler() {
-        ResponseHandler handler = null;
-        synchronized (sPendingHandlers) {
-            if (sPendingHandlers.size() > 0) {
-                handler = sPendingHandlers.get(0);
-                if (null != handler) {
-                    sPendingHandlers.remove(0);
+                // Release the callers sharing this request, if any
+                if (request.getHandler() != null) {
+                    request.getHandler().onFailure(e, errorResponse);
                 }
             }
-        }
-        return handler;
+        });
     }
 
     /**
@@ -663,87 +818,24 @@ class WonderPushRestClient {
         /**
          * Generates X-WonderPush-Authorization header with request signature
          *
+         * @param jsonBodies
+         *            Whether the {@code body} parameter is sent as an {@code application/json} body
          * @return The authorization header or null for GET requests
          */
-        protected BasicHeader getAuthorizationHeader() {
+        protected BasicHeader getAuthorizationHeader(boolean jsonBodies) {
             try {
-                StringBuilder sb = new StringBuilder();
-
-                // Step 1: add HTTP method uppercase
-                sb.append(mMethod.name().toUpperCase());
-                sb.append('&');
-
-                // Step 2: add the URI
-                Uri uri = Uri.parse(mResource);
-
                 // Query string is stripped from resource
-                sb.append(encode(String.format("%s%s", WonderPush.getBaseURL(),
-                        uri.getEncodedPath())));
-
-                // Step 3: add URL encoded parameters
-                sb.append('&');
-
-                // Params from the URL
-                List<BasicNameValuePair> unencodedParams = new ArrayList<>();
-                RequestParams queryStringParams = QueryStringParser.getRequestParams(uri.getQuery());
-                if (queryStringParams != null) {
-                    unencodedParams.addAll(queryStringParams.getParamsList());
-                }
-
-                // Params from the request
-                if (mParams != null) {
-                    unencodedParams.addAll(mParams.getParamsList());
-                }
-
-                // Encode and sort params
-                List<BasicNameValuePair> encodedParams = new ArrayList<>(unencodedParams.size());
-                for (BasicNameValuePair pair : unencodedParams) {
-                    encodedParams.add(new BasicNameValuePair(encode(pair.getName()), encode(pair.getValue())));
-                }
-                Collections.sort(encodedParams, new Comparator<BasicNameValuePair>() {
-                    @Override
-                    public int compare(BasicNameValuePair lhs, BasicNameValuePair rhs) {
-                        int rtn = lhs.getName().compareTo(rhs.getName());
-                        if (rtn == 0) {
-                            rtn = lhs.getValue().compareTo(rhs.getValue());
-                        }
-                        return rtn;
-                    }
-                });
-
-                // Append to the clear signature
-                boolean first = true;
-                for (BasicNameValuePair pair : encodedParams) {
-                    if (first) {
-                        first = false;
-                    } else {
-                        sb.append("%26");
-                    }
-                    sb.append(encode(String.format("%s=%s", pair.getName(), pair.getValue())));
-                }
-
-                // Step 4: add body
-                sb.append('&');
-                // TODO: add the body here when we support other content types than application/x-www-form-urlencoded
-
-                // Final step: Hash and format header
-                Mac mac = Mac.getInstance("HmacSHA1");
-                SecretKeySpec secret = new SecretKeySpec(WonderPush.getClientSecret().getBytes("UTF-8"), mac.getAlgorithm());
-                mac.init(secret);
-                byte[] digest = mac.doFinal(sb.toString().getBytes());
-                String sig = Base64.encodeToString(digest, Base64.DEFAULT).trim();
-                String encodedSig = encode(sig.trim());
-                return new BasicHeader("X-WonderPush-Authorization", String.format("WonderPush sig=\"%s\", meth=\"0\"", encodedSig));
+                Uri uri = Uri.parse(mResource);
+                String url = WonderPush.getBaseURL() + uri.getEncodedPath();
+                String header = RequestEncoding.sign(WonderPush.getClientSecret(), mMethod, url,
+                        QueryStringParser.getRequestParams(uri.getQuery()), mParams, jsonBodies);
+                return new BasicHeader(RequestSigner.HEADER_NAME, header);
             } catch (Exception e) {
                 Log.e(TAG, "Could not generate signature", e);
                 return null;
             }
         }
 
-        private static String encode(String s) throws UnsupportedEncodingException {
-            return URLEncoder.encode(s, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
-        }
-
         @Override
         public String toString() {
             return "" + mMethod + " " + mResource + "?" + mParams;
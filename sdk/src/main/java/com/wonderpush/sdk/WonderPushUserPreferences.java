@@ -58,7 +58,11 @@ public class WonderPushUserPreferences {
     private static Map<String, WonderPushChannelGroup> sChannelGroups;
     private static Map<String, WonderPushChannel> sChannels;
 
-    static void initialize() {
+    static synchronized void initialize() {
+        if (sChannels != null) {
+            // Already loaded
+            return;
+        }
         try {
             load();
         } catch (Exception ex) {
@@ -66,6 +70,13 @@ public class WonderPushUserPreferences {
         }
     }
 
+    /**
+     * Loads the preferences on first use if {@link #initialize()} has not run yet, as it runs in the background.
+     */
+    private static void ensureLoaded() {
+        initialize();
+    }
+
     private static synchronized void load() {
         JSONObject inChannelPreferences = WonderPushConfiguration.getChannelPreferences();
         if (inChannelPreferences == null) inChannelPreferences = new JSONObject();
@@ -167,6 +178,7 @@ public class WonderPushUserPreferences {
      * @return The default channel id.
      */
     public static synchronized String getDefaultChannelId() {
+        ensureLoaded();
         return sDefaultChannelId;
     }
 
@@ -183,6 +195,7 @@ public class WonderPushUserPreferences {
      * @param id The identifier of the default channel.
      */
     public static synchronized void setDefaultChannelId(String id) {
+        ensureLoaded();
         try {
             if (_setDefaultChannelId(id)) {
                 save();
@@ -202,6 +215,7 @@ public class WonderPushUserPreferences {
     }
 
     static synchronized WonderPushChannel channelToUseForNotification(String desiredChannelId) {
+        ensureLoaded();
         if (desiredChannelId == null) {
             // If no channel is set, use the default one
             desiredChannelId = WonderPushUserPreferences.getDefaultChannelId();
@@ -233,6 +247,7 @@ public class WonderPushUserPreferences {
     }
 
     static synchronized void ensureDefaultAndroidNotificationChannelExists() {
+        ensureLoaded();
         try {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 android.app.NotificationManager notificationManager = (android.app.NotificationManager) WonderPush.getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE);
@@ -257,6 +272,7 @@ public class WonderPushUserPreferences {
      *      exists but has not been registered with this class.
      */
     public static synchronized WonderPushChannelGroup getChannelGroup(String groupId) {
+        ensureLoaded();
         try {
             WonderPushChannelGroup rtn = sChannelGroups.get(groupId);
             if (rtn != null) {
@@ -282,6 +298,7 @@ public class WonderPushUserPreferences {
      * @param groupId The identifier of the channel group to remove.
      */
     public static synchronized void removeChannelGroup(String groupId) {
+        ensureLoaded();
         try {
             if (_removeChannelGroup(groupId)) {
                 save();
@@ -308,6 +325,7 @@ public class WonderPushUserPreferences {
      * @param channelGroup The channel group to create or update.
      */
     public static synchronized void putChannelGroup(WonderPushChannelGroup channelGroup) {
+        ensureLoaded();
         try {
             if (_putChannelGroup(channelGroup)) {
                 save();
@@ -344,6 +362,7 @@ public class WonderPushUserPreferences {
      *                      Any non listed, previously existing channel group will be removed.
      */
     public static synchronized void setChannelGroups(Collection<WonderPushChannelGroup> channelGroups) {
+        ensureLoaded();
         if (channelGroups == null) return;
         boolean save = false;
         try {
@@ -377,6 +396,7 @@ public class WonderPushUserPreferences {
      *      exists but has not been registered with this class.
      */
     public static synchronized WonderPushChannel getChannel(String channelId) {
+        ensureLoaded();
         try {
             WonderPushChannel rtn = sChannels.get(channelId);
             if (rtn != null) {
@@ -402,6 +422,7 @@ public class WonderPushUserPreferences {
      * @param channelId The identifier of the channel to remove.
      */
     public static synchronized void removeChannel(String channelId) {
+        ensureLoaded();
         try {
             if (_removeChannel(channelId)) {
                 save();
@@ -428,6 +449,7 @@ public class WonderPushUserPreferences {
      * @param channel The channel to create or update.
      */
     public static synchronized void putChannel(WonderPushChannel channel) {
+        ensureLoaded();
         try {
             if (_putChannel(channel)) {
                 save();
@@ -509,6 +531,7 @@ public class WonderPushUserPreferences {
      *                 Any non listed, previously existing channel will be removed.
      */
     public static synchronized void setChannels(Collection<WonderPushChannel> channels) {
+        ensureLoaded();
         if (channels == null) return;
         boolean save = false;
         try {
@@ -540,6 +563,7 @@ public class WonderPushUserPreferences {
      * @return A set of notification channel ids that are disabled in the OS.
      */
     static synchronized Set<String> getDisabledChannelIds() {
+        ensureLoaded();
         TreeSet<String> rtn = new TreeSet<>();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
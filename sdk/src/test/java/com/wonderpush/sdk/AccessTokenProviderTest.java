@@ -0,0 +1,132 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AccessTokenProviderTest {
+
+    /**
+     * Records the requests, and lets the test answer them.
+     */
+    private static class FakeFetcher implements AccessTokenProvider.Fetcher {
+
+        final List<String> userIds = new ArrayList<>();
+        final List<ResponseHandler> handlers = new ArrayList<>();
+
+        @Override
+        public synchronized void fetch(String userId, ResponseHandler handler) {
+            userIds.add(userId);
+            handlers.add(handler);
+        }
+
+        void succeed(int index, String token) throws JSONException {
+            handlers.get(index).onSuccess(200, new Response(new JSONObject().put("token", token)));
+        }
+
+    }
+
+    private static class CountingHandler extends ResponseHandler {
+
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        public void onFailure(Throwable e, Response errorResponse) {
+            failures.incrementAndGet();
+        }
+
+        @Override
+        public void onSuccess(Response response) {
+            successes.incrementAndGet();
+        }
+
+    }
+
+    @Test
+    public void concurrentCallersShareOneRequest() throws Exception {
+        final FakeFetcher fetcher = new FakeFetcher();
+        final AccessTokenProvider provider = new AccessTokenProvider(fetcher);
+        final CountingHandler handler = new CountingHandler();
+        final int callers = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(callers);
+        final List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < callers; ++i) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Future<String> future = provider.fetch("user", handler);
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(1, fetcher.userIds.size());
+        Assert.assertTrue(provider.isFetching("user"));
+        fetcher.succeed(0, "token1");
+        Assert.assertFalse(provider.isFetching("user"));
+        Assert.assertEquals(callers, handler.successes.get());
+        for (Future<String> future : futures) {
+            Assert.assertEquals("token1", future.get(1, TimeUnit.SECONDS));
+        }
+
+        // Once landed, a new call starts a new request
+        provider.fetch("user", null);
+        Assert.assertEquals(2, fetcher.userIds.size());
+    }
+
+    @Test
+    public void usersHaveSeparateRequests() throws Exception {
+        FakeFetcher fetcher = new FakeFetcher();
+        AccessTokenProvider provider = new AccessTokenProvider(fetcher);
+        Future<String> anonymous = provider.fetch(null, null);
+        Future<String> user = provider.fetch("user", null);
+        Assert.assertEquals(2, fetcher.userIds.size());
+        fetcher.succeed(1, "userToken");
+        Assert.assertEquals("userToken", user.get(1, TimeUnit.SECONDS));
+        Assert.assertFalse(anonymous.isDone());
+        fetcher.succeed(0, "anonymousToken");
+        Assert.assertEquals("anonymousToken", anonymous.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failureReachesEveryWaiter() throws Exception {
+        FakeFetcher fetcher = new FakeFetcher();
+        AccessTokenProvider provider = new AccessTokenProvider(fetcher);
+        CountingHandler handler = new CountingHandler();
+        Future<String> first = provider.fetch("user", handler);
+        provider.fetch("user", handler);
+        fetcher.handlers.get(0).onFailure(new RuntimeException("test"), new Response("error"));
+        Assert.assertEquals(2, handler.failures.get());
+        Assert.assertEquals(0, handler.successes.get());
+        try {
+            first.get(1, TimeUnit.SECONDS);
+            Assert.fail("Expected an ExecutionException");
+        } catch (ExecutionException ex) {
+            Assert.assertEquals("test", ex.getCause().getMessage());
+        }
+    }
+
+}
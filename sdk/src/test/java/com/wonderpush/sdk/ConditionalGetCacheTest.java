@@ -0,0 +1,117 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ConditionalGetCacheTest {
+
+    private static Map<String, String> headers(String... namesAndValues) {
+        Map<String, String> rtn = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            rtn.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return rtn;
+    }
+
+    @Test
+    public void onlyInstallationAndUserAreCacheable() {
+        Assert.assertTrue(ConditionalGetCache.isCacheable("/installation"));
+        Assert.assertTrue(ConditionalGetCache.isCacheable("/user"));
+        Assert.assertFalse(ConditionalGetCache.isCacheable("/events"));
+        Assert.assertFalse(ConditionalGetCache.isCacheable("/authentication/accessToken"));
+    }
+
+    @Test
+    public void notModifiedServesCachedBody() {
+        ConditionalGetCache cache = new ConditionalGetCache();
+        String key = ConditionalGetCache.getKey("user", "/installation");
+        byte[] body = "{\"custom\":{}}".getBytes();
+
+        Map<String, String> request = new HashMap<>();
+        cache.addConditionalHeaders(key, request);
+        Assert.assertTrue(request.isEmpty());
+
+        Assert.assertSame(body, cache.onResponse(key, 200, headers("etag", "\"v1\"", "last-modified", "Mon, 01 Jan 2018 00:00:00 GMT"), body));
+        cache.addConditionalHeaders(key, request);
+        Assert.assertEquals("\"v1\"", request.get("If-None-Match"));
+        Assert.assertEquals("Mon, 01 Jan 2018 00:00:00 GMT", request.get("If-Modified-Since"));
+
+        Assert.assertSame(body, cache.onResponse(key, 304, headers(), null));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void entriesArePerUser() {
+        ConditionalGetCache cache = new ConditionalGetCache();
+        cache.onResponse(ConditionalGetCache.getKey("a", "/installation"), 200, headers("etag", "\"a\""), new byte[1]);
+        Map<String, String> request = new HashMap<>();
+        cache.addConditionalHeaders(ConditionalGetCache.getKey("b", "/installation"), request);
+        Assert.assertTrue(request.isEmpty());
+        Assert.assertNull(cache.onResponse(ConditionalGetCache.getKey("b", "/installation"), 304, headers(), null));
+    }
+
+    @Test
+    public void responsesWithoutValidatorOrErrorsAreNotKept() {
+        ConditionalGetCache cache = new ConditionalGetCache();
+        String key = ConditionalGetCache.getKey("user", "/user");
+        cache.onResponse(key, 200, headers(), new byte[1]);
+        Assert.assertEquals(0, cache.size());
+
+        cache.onResponse(key, 200, headers("etag", "\"v1\""), new byte[1]);
+        Assert.assertEquals(1, cache.size());
+        cache.onResponse(key, 500, headers("etag", "\"v1\""), new byte[1]);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ConditionalGetCache cache = new ConditionalGetCache(10);
+        cache.onResponse("a", 200, headers("etag", "a"), new byte[4]);
+        cache.onResponse("b", 200, headers("etag", "b"), new byte[4]);
+        // Touch a so that b is evicted first
+        cache.addConditionalHeaders("a", new HashMap<String, String>());
+        cache.onResponse("c", 200, headers("etag", "c"), new byte[4]);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.onResponse("a", 304, headers(), null));
+        Assert.assertNull(cache.onResponse("b", 304, headers(), null));
+        Assert.assertNotNull(cache.onResponse("c", 304, headers(), null));
+
+        cache.onResponse("d", 200, headers("etag", "d"), new byte[11]);
+        Assert.assertNull(cache.onResponse("d", 304, headers(), null));
+    }
+
+    @Test
+    public void keyDependsOnQueryParametersButNotOnTheirOrderOrAccessToken() {
+        Assert.assertEquals(
+                ConditionalGetCache.getKey("user", "/installation", "fields=custom&lang=fr&accessToken=t1"),
+                ConditionalGetCache.getKey("user", "/installation", "accessToken=t2&lang=fr&fields=custom"));
+        Assert.assertFalse(ConditionalGetCache.getKey("user", "/installation", "fields=custom").equals(
+                ConditionalGetCache.getKey("user", "/installation", "fields=pushToken")));
+        Assert.assertFalse(ConditionalGetCache.getKey("user", "/installation", "fields=custom").equals(
+                ConditionalGetCache.getKey("user", "/installation", null)));
+        Assert.assertEquals(ConditionalGetCache.getKey("user", "/installation"),
+                ConditionalGetCache.getKey("user", "/installation", "accessToken=t1"));
+    }
+
+    @Test
+    public void writesDropEveryVariantOfTheResource() {
+        ConditionalGetCache cache = new ConditionalGetCache();
+        String custom = ConditionalGetCache.getKey("user", "/installation", "fields=custom");
+        String all = ConditionalGetCache.getKey("user", "/installation", null);
+        String other = ConditionalGetCache.getKey("other", "/installation", null);
+        cache.onResponse(custom, 200, headers("etag", "\"1\""), new byte[1]);
+        cache.onResponse(all, 200, headers("etag", "\"2\""), new byte[1]);
+        cache.onResponse(other, 200, headers("etag", "\"3\""), new byte[1]);
+
+        cache.removeResource("user", "/installation");
+        Assert.assertEquals(1, cache.size());
+        Assert.assertNull(cache.onResponse(custom, 304, headers(), null));
+        Assert.assertNull(cache.onResponse(all, 304, headers(), null));
+        Assert.assertNotNull(cache.onResponse(other, 304, headers(), null));
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.wonderpush.sdk;
+
+/**
+ * A {@link Clock} that only moves when told to.
+ */
+class FakeClock implements Clock {
+
+    private volatile long now = 1000;
+
+    @Override
+    public long elapsedRealtime() {
+        return now;
+    }
+
+    void advance(long ms) {
+        now += ms;
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.wonderpush.sdk;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link ConnectivityMonitor} whose network state is set by the test.
+ */
+class FakeConnectivityMonitor implements ConnectivityMonitor {
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean connected = true;
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    void setConnected(boolean connected) {
+        this.connected = connected;
+        for (Listener listener : listeners) {
+            listener.onConnectivityChanged(connected);
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.wonderpush.sdk;
+
+import org.json.JSONObject;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for the transport, holding the requests sent until the test answers them.
+ */
+class FakeRequestSender implements WonderPushRequestVault.RequestSender {
+
+    static class SentRequest {
+
+        final JSONObject jobDescription;
+        final ResponseHandler handler;
+
+        SentRequest(JSONObject jobDescription, ResponseHandler handler) {
+            this.jobDescription = jobDescription;
+            this.handler = handler;
+        }
+
+        String getResource() {
+            return jobDescription.optString("resource");
+        }
+
+        void succeed() {
+            handler.onSuccess(200, new Response(new JSONObject()));
+        }
+
+        void failWithNetworkError() {
+            handler.onFailure(new SocketTimeoutException("test"), new Response(""));
+        }
+
+    }
+
+    final BlockingQueue<SentRequest> sent = new LinkedBlockingQueue<>();
+
+    @Override
+    public void send(JSONObject jobDescription, ResponseHandler handler) {
+        sent.add(new SentRequest(jobDescription, handler));
+    }
+
+    /**
+     * @return The next request sent, failing after a second
+     */
+    SentRequest next() throws InterruptedException {
+        SentRequest rtn = sent.poll(1, TimeUnit.SECONDS);
+        if (rtn == null) throw new AssertionError("No request was sent");
+        return rtn;
+    }
+
+    /**
+     * Fails if a request is sent within the given delay.
+     */
+    void assertNothingSent(long waitMs) throws InterruptedException {
+        SentRequest rtn = sent.poll(waitMs, TimeUnit.MILLISECONDS);
+        if (rtn != null) throw new AssertionError("Unexpected request " + rtn.jobDescription);
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class HttpCompressionTest {
+
+    private static byte[] eventBatch(int size) throws JSONException, IOException {
+        JSONArray events = new JSONArray();
+        for (int i = 0; i < size; ++i) {
+            events.put(new JSONObject()
+                    .put("type", "@APP_OPEN")
+                    .put("actionDate", 1500000000000L + i)
+                    .put("custom", new JSONObject().put("string_campaign", "summer").put("int_index", i)));
+        }
+        return events.toString().getBytes("UTF-8");
+    }
+
+    @Test
+    public void roundTrip() throws JSONException, IOException {
+        byte[] body = eventBatch(20);
+        byte[] compressed = HttpCompression.gzip(body);
+        Assert.assertTrue(HttpCompression.isGzipped(compressed));
+        Assert.assertFalse(HttpCompression.isGzipped(body));
+        Assert.assertTrue(Arrays.equals(body, HttpCompression.gunzip(compressed)));
+        // Event batches are repetitive JSON
+        Assert.assertTrue(compressed.length * 3 < body.length);
+    }
+
+    @Test
+    public void smallBodiesAreNotCompressed() throws JSONException, IOException {
+        Assert.assertFalse(HttpCompression.shouldCompress(null));
+        Assert.assertFalse(HttpCompression.shouldCompress("{\"type\":\"test\"}".getBytes("UTF-8")));
+        Assert.assertTrue(HttpCompression.shouldCompress(eventBatch(20)));
+    }
+
+    @Test
+    public void statsAccountForCompression() {
+        HttpStats stats = new HttpStats();
+        stats.recordRequest(300, 1200);
+        stats.recordResponse(100, 400, 50);
+        stats.recordRequest(0, 0);
+        stats.recordFailure(150);
+        Assert.assertEquals(2, stats.getRequests());
+        Assert.assertEquals(1, stats.getFailures());
+        Assert.assertEquals(300, stats.getRequestBytes());
+        Assert.assertEquals(1200, stats.getRequestBytesUncompressed());
+        Assert.assertEquals(100, stats.getResponseBytes());
+        Assert.assertEquals(400, stats.getResponseBytesDecompressed());
+        Assert.assertEquals(200, stats.getTotalDuration());
+    }
+
+}
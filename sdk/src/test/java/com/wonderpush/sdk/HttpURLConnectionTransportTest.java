@@ -0,0 +1,188 @@
+package com.wonderpush.sdk;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HttpURLConnectionTransportTest {
+
+    /**
+     * What the transport delivered to its callback.
+     */
+    private static class Result implements HttpTransport.Callback {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        int statusCode;
+        Map<String, String> headers;
+        String body;
+        Throwable error;
+
+        @Override
+        public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            try {
+                this.body = new String(body, "UTF-8");
+            } catch (IOException ex) {
+                this.error = ex;
+            }
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            this.error = e;
+            latch.countDown();
+        }
+
+        Result await() throws InterruptedException {
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            return this;
+        }
+
+    }
+
+    private HttpServer server;
+    private String baseUrl;
+    private HttpURLConnectionTransport transport;
+    private final List<HttpTransport.Request> patchRequests = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Answers with a summary of the received request
+        server.createContext("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = new String(readFully(exchange.getRequestBody()), "UTF-8");
+                String summary = exchange.getRequestMethod()
+                        + " " + exchange.getRequestURI()
+                        + " " + exchange.getRequestHeaders().getFirst("Content-Type")
+                        + " " + exchange.getRequestHeaders().getFirst("X-Test")
+                        + " " + body;
+                respond(exchange, 200, summary);
+            }
+        });
+        server.createContext("/error", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 400, "{\"error\":{\"code\":12345}}");
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        transport = new HttpURLConnectionTransport(2000, 2000, new HttpTransport() {
+            @Override
+            public String getName() {
+                return "patch";
+            }
+
+            @Override
+            public void execute(Request request, Callback callback) {
+                patchRequests.add(request);
+                callback.onResponse(200, Collections.<String, String>emptyMap(), "patched".getBytes());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("X-Answer", "yes");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(bytes);
+        output.close();
+    }
+
+    @Test
+    public void getSendsHeadersAndQueryString() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-Test", "value");
+        Result result = new Result();
+        transport.execute(new HttpTransport.Request("GET", baseUrl + "/echo?a=1", headers, null, null), result);
+        result.await();
+        Assert.assertNull(result.error);
+        Assert.assertEquals(200, result.statusCode);
+        Assert.assertEquals("GET /echo?a=1 null value ", result.body);
+        Assert.assertEquals("yes", result.headers.get("x-answer"));
+    }
+
+    @Test
+    public void postSendsBody() throws Exception {
+        Result result = new Result();
+        transport.execute(new HttpTransport.Request("POST", baseUrl + "/echo", null,
+                "application/x-www-form-urlencoded", "a=1&b=2".getBytes("UTF-8")), result);
+        result.await();
+        Assert.assertNull(result.error);
+        Assert.assertEquals("POST /echo application/x-www-form-urlencoded null a=1&b=2", result.body);
+    }
+
+    @Test
+    public void patchIsHandedToThePatchTransport() throws Exception {
+        Result result = new Result();
+        HttpTransport.Request request = new HttpTransport.Request("PATCH", baseUrl + "/echo", Collections.<String, String>emptyMap(),
+                "application/x-www-form-urlencoded", "a=1".getBytes("UTF-8"));
+        transport.execute(request, result);
+        result.await();
+        Assert.assertNull(result.error);
+        Assert.assertEquals("patched", result.body);
+        Assert.assertEquals(Collections.singletonList(request), patchRequests);
+    }
+
+    @Test
+    public void errorStatusDeliversBody() throws Exception {
+        Result result = new Result();
+        transport.execute(new HttpTransport.Request("GET", baseUrl + "/error", null, null, null), result);
+        result.await();
+        Assert.assertNull(result.error);
+        Assert.assertEquals(400, result.statusCode);
+        Assert.assertEquals("{\"error\":{\"code\":12345}}", result.body);
+    }
+
+    @Test
+    public void unreachableServerFails() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        Result result = new Result();
+        transport.execute(new HttpTransport.Request("GET", "http://127.0.0.1:" + port + "/", null, null, null), result);
+        result.await();
+        Assert.assertTrue(result.error instanceof IOException);
+    }
+
+}
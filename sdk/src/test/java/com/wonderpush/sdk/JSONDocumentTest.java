@@ -0,0 +1,77 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+
+public class JSONDocumentTest {
+
+    private static void assertMergeLikeJSONUtil(String base, String diff) throws JSONException {
+        for (boolean nullFieldRemoves : new boolean[] {true, false}) {
+            JSONObject expected = new JSONObject(base);
+            JSONUtil.merge(expected, new JSONObject(diff), nullFieldRemoves);
+            JSONDocument actual = JSONDocument.fromJSONObject(new JSONObject(base)).merge(new JSONObject(diff), nullFieldRemoves);
+            JSONUtilTest.assertEquals("merge " + diff + " into " + base + ", nullFieldRemoves: " + nullFieldRemoves, expected, actual.toJSONObject());
+        }
+    }
+
+    @Test
+    public void mergeMatchesJSONUtil() throws JSONException {
+        assertMergeLikeJSONUtil("{\"a\":1,\"n\":null}", "{}");
+        assertMergeLikeJSONUtil("{\"a\":1}", "{\"a\":2,\"b\":3}");
+        assertMergeLikeJSONUtil("{\"a\":[1]}", "{\"a\":[1,2]}");
+        assertMergeLikeJSONUtil("{\"a\":{\"b\":1}}", "{\"a\":{\"c\":2}}");
+        assertMergeLikeJSONUtil("{\"a\":{\"b\":1}}", "{\"a\":{\"b\":null}}");
+        assertMergeLikeJSONUtil("{\"a\":1}", "{\"a\":null,\"b\":null}");
+        assertMergeLikeJSONUtil("{\"a\":1}", "{\"a\":{\"b\":{\"c\":null}}}");
+        assertMergeLikeJSONUtil("{\"a\":{\"b\":1}}", "{\"a\":[{\"b\":2}]}");
+        assertMergeLikeJSONUtil("{}", "{\"a\":{\"b\":null}}");
+    }
+
+    @Test
+    public void mergeSharesUntouchedBranches() throws JSONException {
+        JSONDocument before = JSONDocument.fromJSONObject(new JSONObject("{\"a\":{\"b\":{\"c\":1}},\"d\":{\"e\":[1,2]}}"));
+        JSONDocument after = before.merge(new JSONObject("{\"a\":{\"b\":{\"c\":2}}}"));
+        Assert.assertSame(before.get("d"), after.get("d"));
+        Assert.assertNotSame(before.get("a"), after.get("a"));
+        // The previous snapshot is unaffected
+        JSONUtilTest.assertEquals(new JSONObject("{\"a\":{\"b\":{\"c\":1}},\"d\":{\"e\":[1,2]}}"), before.toJSONObject());
+        JSONUtilTest.assertEquals(new JSONObject("{\"a\":{\"b\":{\"c\":2}},\"d\":{\"e\":[1,2]}}"), after.toJSONObject());
+        // Merging nothing new returns the same document
+        Assert.assertSame(after, after.merge(new JSONObject("{\"a\":{\"b\":{}},\"x\":null}")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void valuesAreImmutable() throws JSONException {
+        JSONDocument document = JSONDocument.fromJSONObject(new JSONObject("{\"a\":[1,{\"b\":2}]}"));
+        List<?> list = (List<?>) document.get("a");
+        try {
+            ((List<Object>) list).add(3);
+            Assert.fail("Lists must be unmodifiable");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        JSONObject copy = document.toJSONObject();
+        copy.getJSONArray("a").getJSONObject(1).put("b", 3);
+        Assert.assertEquals(2, ((JSONDocument) list.get(1)).get("b"));
+    }
+
+    @Test
+    public void repeatedMergesMatchJSONUtil() throws JSONException {
+        JSONObject installation = JSONUtilTest.buildInstallationDocument(1);
+        JSONDocument document = JSONDocument.fromJSONObject(installation);
+        JSONObject diff = new JSONObject();
+        for (int i = 0; i < 10; ++i) {
+            JSONUtil.merge(installation, diff.put("string_field3", "value " + i));
+            document = document.merge(diff.put("string_field3", "value " + i));
+        }
+        Assert.assertEquals("value 9", document.get("string_field3"));
+        JSONUtilTest.assertEquals(installation, document.toJSONObject());
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+public class JSONSyncInstallationCustomTest {
+
+    private FakeClock clock;
+    private ScheduledThreadPoolExecutor scheduler;
+    // The body of each PATCH call, per user
+    private final Map<String, List<JSONObject>> patches = new HashMap<>();
+
+    private final JSONSyncInstallationCustom.PatchSender sender = new JSONSyncInstallationCustom.PatchSender() {
+        @Override
+        public void patch(String userId, JSONObject body, ResponseHandler handler) {
+            synchronized (patches) {
+                List<JSONObject> bodies = patches.get(userId);
+                if (bodies == null) {
+                    bodies = new ArrayList<>();
+                    patches.put(userId, bodies);
+                }
+                bodies.add(body);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        WonderPushConfiguration.setCache(new PreferencesCache(new FakeSharedPreferences()));
+        clock = new FakeClock();
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        // Only the pending tasks stay in the queue
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        WonderPushConfiguration.setCache(null);
+    }
+
+    private JSONSyncInstallationCustom forUser(String userId) {
+        return new JSONSyncInstallationCustom(userId, null, Collections.<JSONObject>emptyList(), clock, scheduler, sender);
+    }
+
+    private static JSONObject diff(String value) throws JSONException {
+        return new JSONObject().put("string_a", value);
+    }
+
+    @Test
+    public void schedulingForOneUserKeepsOtherUsersPending() throws JSONException {
+        JSONSyncInstallationCustom userA = forUser("userA");
+        JSONSyncInstallationCustom userB = forUser("userB");
+
+        userA.put(diff("a1"));
+        Assert.assertEquals(1, scheduler.getQueue().size());
+        userB.put(diff("b1"));
+        Assert.assertEquals(2, scheduler.getQueue().size());
+
+        // A new write replaces the pending task of its own user only
+        clock.advance(1000);
+        userA.put(diff("a2"));
+        Assert.assertEquals(2, scheduler.getQueue().size());
+        Assert.assertTrue(patches.isEmpty());
+    }
+
+    @Test
+    public void flushAllSendsOnePatchPerUserWithPendingChanges() throws JSONException {
+        JSONSyncInstallationCustom userA = forUser("userA");
+        JSONSyncInstallationCustom userB = forUser("userB");
+        JSONSyncInstallationCustom idle = forUser("idle");
+        userA.put(diff("a1"));
+        userA.put(diff("a2"));
+        userB.put(diff("b1"));
+
+        JSONSyncInstallationCustom.flushAll(Arrays.asList(userA, userB, idle));
+
+        Assert.assertEquals(0, scheduler.getQueue().size());
+        Assert.assertEquals(2, patches.size());
+        Assert.assertEquals(1, patches.get("userA").size());
+        Assert.assertEquals("a2", patches.get("userA").get(0).getJSONObject("custom").getString("string_a"));
+        Assert.assertEquals(1, patches.get("userB").size());
+        Assert.assertEquals("b1", patches.get("userB").get(0).getJSONObject("custom").getString("string_a"));
+        Assert.assertFalse(patches.containsKey("idle"));
+    }
+
+}
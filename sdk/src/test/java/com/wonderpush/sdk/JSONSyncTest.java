@@ -4,6 +4,11 @@ import junit.framework.Assert;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -13,13 +18,39 @@ public class JSONSyncTest {
 
     private static class MockCallbacks implements JSONSync.Callbacks {
         private MockServer server;
+        // What was persisted, as strings like the storage does
+        private String savedState;
+        private final List<String> journal = new ArrayList<>();
+        private int saves;
 
         void setServer(MockServer server) {
             this.server = server;
         }
 
+        boolean hasPersisted() {
+            return savedState != null || !journal.isEmpty();
+        }
+
+        JSONSync restore(MockCallbacks restoredCallbacks) throws JSONException {
+            List<JSONObject> entries = new ArrayList<>();
+            for (String entry : journal) {
+                entries.add(new JSONObject(entry));
+            }
+            return JSONSync.fromSavedState(restoredCallbacks, savedState == null ? null : new JSONObject(savedState), entries);
+        }
+
+        @Override
+        public void save(JSONObject state) {
+            savedState = state.toString();
+            journal.clear();
+            ++saves;
+        }
+
         @Override
-        public void save(JSONObject state) {}
+        public void saveJournalEntry(int index, JSONObject entry) {
+            Assert.assertEquals(journal.size(), index);
+            journal.add(entry.toString());
+        }
 
         @Override
         public void schedulePatchCall() {}
@@ -55,6 +86,22 @@ public class JSONSyncTest {
         protected void _serverPatchInstallation_handler(JSONSync.ResponseHandler handler) {}
     }
 
+    private static class ServerRecordDiffAndSuccess extends MockServer {
+
+        private JSONObject diff;
+
+        @Override
+        public void _serverPatchInstallation_diff(JSONObject diff) {
+            this.diff = diff;
+        }
+
+        @Override
+        public void _serverPatchInstallation_handler(JSONSync.ResponseHandler handler) {
+            handler.onSuccess();
+        }
+
+    }
+
     private class ServerAssertNotCalled extends MockServer {
 
         @Override
@@ -115,6 +162,29 @@ public class JSONSyncTest {
         sync = new JSONSync(callbacks);
     }
 
+    /**
+     * Every test must leave a persisted state that restores to the same state.
+     */
+    @After
+    public void assertRestoresToSameState() throws JSONException {
+        if (!callbacks.hasPersisted()) return;
+        MockCallbacks restoredCallbacks = new MockCallbacks();
+        JSONSync restored = callbacks.restore(restoredCallbacks);
+        JSONUtilTest.assertEquals("sdkState after restore", sync.getSdkState(), restored.getSdkState());
+        Assert.assertEquals("scheduledPatchCall after restore", sync.hasScheduledPatchCall() || sync.hasInflightPatchCall(), restored.hasScheduledPatchCall());
+        ServerRecordDiffAndSuccess expected = new ServerRecordDiffAndSuccess();
+        callbacks.setServer(expected);
+        sync.performScheduledPatchCall();
+        ServerRecordDiffAndSuccess actual = new ServerRecordDiffAndSuccess();
+        restoredCallbacks.setServer(actual);
+        restored.performScheduledPatchCall();
+        if (expected.diff == null) {
+            Assert.assertTrue("diff after restore", actual.diff == null || actual.diff.length() == 0);
+        } else {
+            JSONUtilTest.assertEquals("diff after restore", expected.diff, actual.diff);
+        }
+    }
+
     private void assertSynced() throws JSONException {
         Assert.assertFalse(sync.hasInflightPatchCall());
         Assert.assertFalse(sync.hasScheduledPatchCall());
@@ -958,4 +1028,115 @@ public class JSONSyncTest {
         JSONUtilTest.assertEquals(new JSONObject("{\"A\":1,\"AA\":2,\"B\":2,\"BB\":2,\"BBB\":2}"), sync.getSdkState());
     }
 
+    /* ******************************** *
+     * Test persistence of put() diffs  *
+     * ******************************** */
+
+    @Test
+    public void putIsJournaled() throws JSONException {
+        sync.receiveServerState(new JSONObject("{\"A\":1,\"B\":{\"C\":2}}"));
+        Assert.assertEquals(1, callbacks.saves);
+        sync.put(new JSONObject("{\"B\":{\"D\":3}}"));
+        sync.put(new JSONObject("{\"A\":null}"));
+        Assert.assertEquals(1, callbacks.saves);
+        Assert.assertEquals(2, callbacks.journal.size());
+        // Only the diff is persisted
+        JSONUtilTest.assertEquals(new JSONObject("{\"put\":{\"A\":null}}"), new JSONObject(callbacks.journal.get(1)));
+    }
+
+    @Test
+    public void journalIsSnapshottedPeriodically() throws JSONException {
+        for (int i = 0; i < JSONSync.JOURNAL_MAX_ENTRIES; ++i) {
+            sync.put(new JSONObject().put("A" + i, i));
+        }
+        Assert.assertEquals(0, callbacks.saves);
+        Assert.assertEquals(JSONSync.JOURNAL_MAX_ENTRIES, callbacks.journal.size());
+        sync.put(new JSONObject("{\"B\":1}"));
+        Assert.assertEquals(1, callbacks.saves);
+        Assert.assertEquals(0, callbacks.journal.size());
+        sync.put(new JSONObject("{\"C\":1}"));
+        Assert.assertEquals(1, callbacks.journal.size());
+    }
+
+    @Test
+    public void journalIsReplayedAfterInflightFailure() throws JSONException {
+        sync.put(new JSONObject("{\"A\":1}"));
+        // Simulate a process death while the patch call is inflight, followed by another put
+        callbacks.setServer(new MockServer() {});
+        Assert.assertTrue(sync.performScheduledPatchCall());
+        Assert.assertTrue(sync.hasInflightPatchCall());
+        sync.put(new JSONObject("{\"B\":2}"));
+
+        MockCallbacks restoredCallbacks = new MockCallbacks();
+        JSONSync restored = callbacks.restore(restoredCallbacks);
+        Assert.assertFalse(restored.hasInflightPatchCall());
+        Assert.assertTrue(restored.hasScheduledPatchCall());
+        JSONUtilTest.assertEquals(new JSONObject("{\"A\":1,\"B\":2}"), restored.getSdkState());
+        restoredCallbacks.setServer(new ServerAssertDiffAndSuccess(null, new JSONObject("{\"A\":1,\"B\":2}")));
+        Assert.assertTrue(restored.performScheduledPatchCall());
+        // Leave the live instance in a state the common restore check can compare
+        sync = restored;
+        callbacks = restoredCallbacks;
+    }
+
+
+    /* ************************************** *
+     * Test acknowledgement of put() diffs    *
+     * ************************************** */
+
+    @Test
+    public void putAckIsSettledBySuccessfulPatch() throws Exception {
+        DeferredFuture<Boolean> ack = new DeferredFuture<>();
+        sync.put(new JSONObject("{\"A\":1}"), ack);
+        Assert.assertFalse(ack.getFuture().isDone());
+        assertPerformScheduledPatchCallWith(new ServerAssertDiffAndSuccess(null, new JSONObject("{\"A\":1}")));
+        Assert.assertTrue(ack.getFuture().get(0, TimeUnit.SECONDS));
+        assertSynced();
+    }
+
+    @Test
+    public void putAckWaitsForRetryAfterFailedPatch() throws Exception {
+        DeferredFuture<Boolean> ack = new DeferredFuture<>();
+        sync.put(new JSONObject("{\"A\":1}"), ack);
+        assertPerformScheduledPatchCallWith(new ServerAssertDiffAndFailure(null, new JSONObject("{\"A\":1}")));
+        Assert.assertFalse(ack.getFuture().isDone());
+        assertPerformScheduledPatchCallWith(new ServerAssertDiffAndSuccess(null, new JSONObject("{\"A\":1}")));
+        Assert.assertTrue(ack.getFuture().get(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void putAckWaitsForTheCallCarryingIt() throws Exception {
+        DeferredFuture<Boolean> first = new DeferredFuture<>();
+        final DeferredFuture<Boolean> second = new DeferredFuture<>();
+        sync.put(new JSONObject("{\"A\":1}"), first);
+        assertPerformScheduledPatchCallWith(new ServerAssertDiffAndSuccess(null, new JSONObject("{\"A\":1}")) {
+            @Override
+            public void _serverPatchInstallation_do() throws Exception {
+                sync.put(new JSONObject("{\"B\":2}"), second);
+            }
+        });
+        Assert.assertTrue(first.getFuture().get(0, TimeUnit.SECONDS));
+        Assert.assertFalse(second.getFuture().isDone());
+        assertPerformScheduledPatchCallWith(new ServerAssertDiffAndSuccess(null, new JSONObject("{\"B\":2}")));
+        Assert.assertTrue(second.getFuture().get(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void putAckIsSettledWithoutCallWhenAlreadySynced() throws Exception {
+        sync.receiveState(new JSONObject("{\"A\":1}"), true);
+        assertPotentialNoopScheduledPatchCall();
+        DeferredFuture<Boolean> ack = new DeferredFuture<>();
+        sync.put(new JSONObject("{\"A\":1}"), ack);
+        assertNoopScheduledPatchCall();
+        Assert.assertTrue(ack.getFuture().get(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void putAckIsDiscardedByStateReset() throws Exception {
+        DeferredFuture<Boolean> ack = new DeferredFuture<>();
+        sync.put(new JSONObject("{\"A\":1}"), ack);
+        sync.receiveState(new JSONObject("{\"B\":2}"), true);
+        Assert.assertFalse(ack.getFuture().get(0, TimeUnit.SECONDS));
+    }
+
 }
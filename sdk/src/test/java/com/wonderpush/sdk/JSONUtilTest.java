@@ -1,5 +1,6 @@
 package com.wonderpush.sdk;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Assert;
@@ -183,4 +184,63 @@ public class JSONUtilTest {
                 JSONUtil.diff(new JSONObject("{\"a\": {\"aa\":1}}"), new JSONObject("{}")));
     }
 
+    @Test
+    public void testDeepCopyIsIndependent() throws JSONException {
+        JSONObject base = new JSONObject("{\"a\":{\"b\":[1,{\"c\":2},null]},\"d\":null}");
+        base.put("long", 12345678901L);
+        JSONObject copy = JSONUtil.deepCopy(base);
+        assertEquals(base, copy);
+        Assert.assertEquals(Long.class, copy.get("long").getClass());
+        copy.getJSONObject("a").getJSONArray("b").getJSONObject(1).put("c", 3);
+        copy.getJSONObject("a").put("e", 4);
+        Assert.assertEquals(2, base.getJSONObject("a").getJSONArray("b").getJSONObject(1).getInt("c"));
+        Assert.assertFalse(base.getJSONObject("a").has("e"));
+    }
+
+    @Test
+    public void testMergeAndDiffDoNotShareValues() throws JSONException {
+        JSONObject base = new JSONObject("{\"a\":1}");
+        JSONObject diff = new JSONObject("{\"a\":{\"b\":1},\"c\":[1]}");
+        JSONUtil.merge(base, diff);
+        diff.getJSONObject("a").put("b", 2);
+        diff.getJSONArray("c").put(2);
+        assertEquals(new JSONObject("{\"a\":{\"b\":1},\"c\":[1]}"), base);
+
+        JSONObject to = new JSONObject("{\"a\":{\"b\":1}}");
+        JSONObject rtn = JSONUtil.diff(new JSONObject(), to);
+        to.getJSONObject("a").put("b", 2);
+        assertEquals(new JSONObject("{\"a\":{\"b\":1}}"), rtn);
+    }
+
+    /**
+     * An installation custom document of a typical application.
+     */
+    static JSONObject buildInstallationDocument(int variant) throws JSONException {
+        JSONObject rtn = new JSONObject();
+        for (int i = 0; i < 30; ++i) {
+            rtn.put("string_field" + i, "value " + i + " " + variant);
+            rtn.put("int_field" + i, i * variant);
+        }
+        rtn.put("date_lastPurchase", 1546300800000L + variant);
+        rtn.put("bool_premium", variant % 2 == 0);
+        JSONArray tags = new JSONArray();
+        for (int i = 0; i < 20; ++i) tags.put("tag" + i);
+        rtn.put("string_favoriteTeams", tags);
+        JSONObject address = new JSONObject();
+        address.put("city", "Paris");
+        address.put("zip", "7500" + (variant % 10));
+        address.put("geo", new JSONObject().put("lat", 48.85).put("lon", 2.35));
+        rtn.put("address", address);
+        return rtn;
+    }
+
+    @Test
+    public void mergingDiffRebuildsInstallationDocument() throws JSONException {
+        JSONObject document = buildInstallationDocument(1);
+        JSONObject other = buildInstallationDocument(2);
+        JSONObject merged = JSONUtil.deepCopy(document);
+        JSONUtil.merge(merged, JSONUtil.diff(document, other));
+        assertEquals(other, merged);
+    }
+
 }
@@ -0,0 +1,194 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+public class MappedSharedPreferencesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file() {
+        return new File(folder.getRoot(), "wonderpush/preferences.kv");
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws IOException {
+        MappedSharedPreferences prefs = new MappedSharedPreferences(file());
+        prefs.edit()
+                .putString("string", "value")
+                .putInt("int", 1)
+                .putLong("long", 2L)
+                .putFloat("float", 3.5f)
+                .putBoolean("boolean", true)
+                .putStringSet("set", new HashSet<>(Arrays.asList("a", "b")))
+                .putString("removed", "value")
+                .apply();
+        prefs.edit().remove("removed").apply();
+        prefs.close();
+
+        prefs = new MappedSharedPreferences(file());
+        Assert.assertEquals("value", prefs.getString("string", null));
+        Assert.assertEquals(1, prefs.getInt("int", 0));
+        Assert.assertEquals(2L, prefs.getLong("long", 0));
+        Assert.assertEquals(3.5f, prefs.getFloat("float", 0));
+        Assert.assertTrue(prefs.getBoolean("boolean", false));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")), prefs.getStringSet("set", null));
+        Assert.assertFalse(prefs.contains("removed"));
+        Assert.assertEquals(6, prefs.getAll().size());
+
+        prefs.edit().clear().putString("kept", "value").commit();
+        prefs.close();
+        prefs = new MappedSharedPreferences(file());
+        Assert.assertEquals(1, prefs.getAll().size());
+        Assert.assertEquals("value", prefs.getString("kept", null));
+        prefs.close();
+    }
+
+    @Test
+    public void partialRecordIsDiscarded() throws IOException {
+        MappedSharedPreferences prefs = new MappedSharedPreferences(file());
+        prefs.edit().putString("a", "1").apply();
+        int validLength = prefs.length();
+        prefs.edit().putString("b", "2").putString("c", "3").apply();
+        int length = prefs.length();
+        prefs.close();
+
+        // Corrupt the last byte of the second record, as if the process died while writing it
+        RandomAccessFile raf = new RandomAccessFile(file(), "rw");
+        raf.seek(length - 1);
+        raf.write(0);
+        raf.close();
+
+        prefs = new MappedSharedPreferences(file());
+        Assert.assertEquals(validLength, prefs.length());
+        Assert.assertEquals("1", prefs.getString("a", null));
+        Assert.assertFalse(prefs.contains("b"));
+        Assert.assertFalse(prefs.contains("c"));
+
+        // The garbage is overwritten by the next writes
+        prefs.edit().putString("d", "4").apply();
+        prefs.close();
+        prefs = new MappedSharedPreferences(file());
+        Assert.assertEquals("1", prefs.getString("a", null));
+        Assert.assertEquals("4", prefs.getString("d", null));
+        prefs.close();
+    }
+
+    @Test
+    public void compactsOnceMostlyDead() throws IOException {
+        MappedSharedPreferences prefs = new MappedSharedPreferences(file());
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) value.append('x');
+        for (int i = 0; i < 1000; ++i) {
+            prefs.edit().putString("key" + (i % 10), value.toString() + i).apply();
+        }
+        Assert.assertTrue(prefs.getCompactionCount() > 0);
+        Assert.assertTrue(prefs.length() < 2 * MappedSharedPreferences.COMPACTION_MIN_BYTES);
+        prefs.close();
+
+        prefs = new MappedSharedPreferences(file());
+        Assert.assertEquals(10, prefs.getAll().size());
+        Assert.assertEquals(value.toString() + 999, prefs.getString("key9", null));
+        Assert.assertEquals(value.toString() + 990, prefs.getString("key0", null));
+        prefs.close();
+    }
+
+    @Test
+    public void importsExistingValues() throws IOException {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("string", "value");
+        legacy.put("long", 2L);
+        MappedSharedPreferences.write(file(), legacy);
+        MappedSharedPreferences prefs = new MappedSharedPreferences(file());
+        Assert.assertEquals(legacy, prefs.getAll());
+        Assert.assertFalse(new File(file().getPath() + ".tmp").exists());
+        prefs.close();
+    }
+
+    @Test
+    public void appliedChangesAreWrittenByTheWriterInOrder() throws IOException {
+        QueuedExecutor writer = new QueuedExecutor();
+        MappedSharedPreferences prefs = new MappedSharedPreferences(file(), writer);
+        int emptyLength = prefs.length();
+        prefs.edit().putString("a", "1").apply();
+        prefs.edit().putString("a", "2").putString("b", "1").apply();
+        prefs.edit().remove("b").apply();
+
+        // Visible at once, but not written on the calling thread
+        Assert.assertEquals("2", prefs.getString("a", null));
+        Assert.assertFalse(prefs.contains("b"));
+        Assert.assertEquals(emptyLength, prefs.length());
+        Assert.assertEquals(1, writer.tasks.size());
+
+        writer.runAll();
+        Assert.assertTrue(prefs.length() > emptyLength);
+        prefs.close();
+        prefs = new MappedSharedPreferences(file());
+        Assert.assertEquals("2", prefs.getString("a", null));
+        Assert.assertFalse(prefs.contains("b"));
+        prefs.close();
+    }
+
+    @Test
+    public void commitWritesAtOnceButLeavesCompactionToTheWriter() throws IOException {
+        QueuedExecutor writer = new QueuedExecutor();
+        MappedSharedPreferences prefs = new MappedSharedPreferences(file(), writer);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) value.append('x');
+        for (int i = 0; i < 200; ++i) {
+            Assert.assertTrue(prefs.edit().putString("key" + (i % 10), value.toString() + i).commit());
+        }
+        Assert.assertEquals(0, prefs.getCompactionCount());
+        Assert.assertTrue(prefs.length() > MappedSharedPreferences.COMPACTION_MIN_BYTES);
+
+        // A change applied meanwhile is kept whether it is written before or after the compaction
+        prefs.edit().putString("key0", "last").apply();
+        writer.runAll();
+        Assert.assertEquals(1, prefs.getCompactionCount());
+        prefs.close();
+
+        prefs = new MappedSharedPreferences(file());
+        Assert.assertEquals(10, prefs.getAll().size());
+        Assert.assertEquals("last", prefs.getString("key0", null));
+        Assert.assertEquals(value.toString() + 199, prefs.getString("key9", null));
+        prefs.close();
+    }
+
+    @Test
+    public void closeWritesPendingChanges() throws IOException {
+        QueuedExecutor writer = new QueuedExecutor();
+        MappedSharedPreferences prefs = new MappedSharedPreferences(file(), writer);
+        prefs.edit().putString("a", "1").apply();
+        prefs.close();
+        // The writer finds the store closed
+        writer.runAll();
+
+        Assert.assertEquals("1", MappedSharedPreferences.read(file()).get("a"));
+    }
+
+    @Test
+    public void valuesCanBeReadWithoutMapping() throws IOException {
+        MappedSharedPreferences prefs = new MappedSharedPreferences(file());
+        prefs.edit().putString("a", "1").putLong("b", 2L).apply();
+        prefs.edit().remove("a").putString("c", "3").apply();
+        prefs.close();
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("b", 2L);
+        expected.put("c", "3");
+        Assert.assertEquals(expected, MappedSharedPreferences.read(file()));
+    }
+
+}
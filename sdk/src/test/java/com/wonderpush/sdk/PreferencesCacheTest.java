@@ -0,0 +1,87 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class PreferencesCacheTest {
+
+    @Test
+    public void readsTheSnapshot() {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        prefs.values.put("string", "value");
+        prefs.values.put("int", 1);
+        prefs.values.put("long", 2L);
+        prefs.values.put("boolean", true);
+        PreferencesCache cache = new PreferencesCache(prefs);
+        int reads = prefs.reads;
+
+        Assert.assertEquals("value", cache.getString("string", null));
+        Assert.assertEquals(1, cache.getInt("int", 0));
+        Assert.assertEquals(2L, cache.getLong("long", 0));
+        Assert.assertTrue(cache.getBoolean("boolean", false));
+        Assert.assertTrue(cache.contains("string"));
+        Assert.assertFalse(cache.contains("missing"));
+        Assert.assertEquals("default", cache.getString("missing", "default"));
+        // Mismatching types give the default value
+        Assert.assertEquals(3L, cache.getLong("int", 3L));
+        Assert.assertEquals(reads, prefs.reads);
+    }
+
+    @Test
+    public void writesThrough() {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        PreferencesCache cache = new PreferencesCache(prefs);
+        cache.put("string", "value");
+        cache.put("long", 2L);
+        Assert.assertEquals("value", cache.getString("string", null));
+        Assert.assertEquals("value", prefs.values.get("string"));
+        Assert.assertEquals(2L, prefs.values.get("long"));
+        cache.put("string", null);
+        Assert.assertFalse(cache.contains("string"));
+        Assert.assertFalse(prefs.values.containsKey("string"));
+    }
+
+    @Test
+    public void parsesJsonOnceUntilWritten() throws JSONException {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        prefs.values.put("json", "{\"a\":1}");
+        PreferencesCache cache = new PreferencesCache(prefs);
+        JSONObject first = cache.getJSONObject("json");
+        Assert.assertEquals(1, first.getInt("a"));
+        Assert.assertSame(first, cache.getJSONObject("json"));
+
+        cache.put("json", "{\"a\":2}");
+        JSONObject second = cache.getJSONObject("json");
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, second.getInt("a"));
+        Assert.assertNull(cache.getJSONObject("missing"));
+        Assert.assertNull(cache.getJSONArray("missing"));
+    }
+
+    @Test
+    public void removesAndClearsInOneWrite() {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        prefs.values.put("a", "1");
+        prefs.values.put("b", "2");
+        prefs.values.put("c", "3");
+        PreferencesCache cache = new PreferencesCache(prefs);
+
+        cache.removeAll(Arrays.asList("a", "b"));
+        Assert.assertEquals(1, prefs.applies);
+        Assert.assertFalse(cache.contains("a"));
+        Assert.assertEquals(Collections.singleton("c"), prefs.values.keySet());
+
+        cache.put("d", "4");
+        cache.clear(Collections.singleton("d"));
+        Assert.assertFalse(cache.contains("c"));
+        Assert.assertTrue(cache.contains("d"));
+        Assert.assertEquals(Collections.singleton("d"), prefs.values.keySet());
+    }
+
+}
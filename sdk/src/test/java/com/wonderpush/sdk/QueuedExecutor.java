@@ -0,0 +1,25 @@
+package com.wonderpush.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link Executor} that only runs its tasks when told to.
+ */
+class QueuedExecutor implements Executor {
+
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable runnable) {
+        tasks.add(runnable);
+    }
+
+    void runAll() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+}
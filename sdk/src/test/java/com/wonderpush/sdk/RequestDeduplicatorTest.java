@@ -0,0 +1,106 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RequestDeduplicatorTest {
+
+    private static class RecordingHandler extends ResponseHandler {
+
+        final List<Response> successes = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+
+        @Override
+        public void onFailure(Throwable e, Response errorResponse) {
+            failures.add(e);
+        }
+
+        @Override
+        public void onSuccess(Response response) {
+            successes.add(response);
+        }
+
+    }
+
+    @Test
+    public void identicalRequestsShareOneResponse() throws JSONException {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(new FakeClock());
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+        ResponseHandler shared = deduplicator.join("user GET /installation?", first);
+        Assert.assertNotNull(shared);
+        Assert.assertNull(deduplicator.join("user GET /installation?", second));
+        Assert.assertEquals(1, deduplicator.size());
+
+        shared.onSuccess(200, new Response(new JSONObject().put("_id", "abc").put("custom", new JSONObject())));
+        Assert.assertEquals(0, deduplicator.size());
+        Assert.assertEquals(1, first.successes.size());
+        Assert.assertEquals(1, second.successes.size());
+
+        // Each handler may modify its response without affecting the others
+        first.successes.get(0).getJSONObject().remove("_id");
+        Assert.assertEquals("abc", second.successes.get(0).getJSONObject().getString("_id"));
+        first.successes.get(0).getJSONObject().getJSONObject("custom").put("string_a", "a");
+        Assert.assertEquals(0, second.successes.get(0).getJSONObject().getJSONObject("custom").length());
+
+        // A new request goes to the network again
+        Assert.assertNotNull(deduplicator.join("user GET /installation?", new RecordingHandler()));
+    }
+
+    @Test
+    public void differentKeysAreNotShared() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(new FakeClock());
+        Assert.assertNotNull(deduplicator.join("user1 GET /installation?", null));
+        Assert.assertNotNull(deduplicator.join("user2 GET /installation?", null));
+        Assert.assertNotNull(deduplicator.join("user1 GET /user?", null));
+        Assert.assertEquals(3, deduplicator.size());
+    }
+
+    @Test
+    public void failureReachesEveryCaller() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(new FakeClock());
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+        ResponseHandler shared = deduplicator.join("key", first);
+        deduplicator.join("key", null);
+        deduplicator.join("key", second);
+        shared.onFailure(new RuntimeException("test"), new Response("error"));
+        Assert.assertEquals(1, first.failures.size());
+        Assert.assertEquals(1, second.failures.size());
+        Assert.assertEquals(0, deduplicator.size());
+    }
+
+    @Test
+    public void requestNeverAnsweredIsNotJoinedForever() {
+        FakeClock clock = new FakeClock();
+        RequestDeduplicator deduplicator = new RequestDeduplicator(clock);
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+        ResponseHandler lost = deduplicator.join("key", first);
+        Assert.assertNotNull(lost);
+
+        clock.advance(RequestDeduplicator.MAX_SHARED_AGE);
+        ResponseHandler shared = deduplicator.join("key", second);
+        Assert.assertNotNull(shared);
+        Assert.assertEquals(1, deduplicator.size());
+
+        // The new request answers the callers of the one that got lost
+        shared.onSuccess(200, new Response(new JSONObject()));
+        Assert.assertEquals(1, first.successes.size());
+        Assert.assertEquals(1, second.successes.size());
+        Assert.assertEquals(0, deduplicator.size());
+
+        // A late answer of the lost request notifies nobody again, and leaves newer requests alone
+        Assert.assertNotNull(deduplicator.join("key", null));
+        lost.onFailure(new RuntimeException("test"), new Response("error"));
+        Assert.assertEquals(0, first.failures.size());
+        Assert.assertEquals(1, deduplicator.size());
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+public class RequestEncodingTest {
+
+    private static final String BODY = "{\"type\":\"@APP_OPEN\",\"custom\":{\"string_campaign\":\"summer sale\"}}";
+
+    private static String eventBatch(int size) throws JSONException {
+        JSONArray events = new JSONArray();
+        for (int i = 0; i < size; ++i) {
+            events.put(new JSONObject()
+                    .put("type", "@APP_OPEN")
+                    .put("actionDate", 1500000000000L + i)
+                    .put("custom", new JSONObject().put("string_campaign", "summer").put("int_index", i)));
+        }
+        return events.toString();
+    }
+
+    private static RequestParams params(String body) {
+        RequestParams params = new RequestParams();
+        params.put("accessToken", "token");
+        params.put(RequestEncoding.BODY_PARAM, body);
+        return params;
+    }
+
+    private static String decode(byte[] body) throws IOException {
+        return new String(body, "UTF-8");
+    }
+
+    @Test
+    public void jsonBodyIsSentAsIsWithOtherParamsInQueryString() throws IOException {
+        for (WonderPushRestClient.HttpMethod method : new WonderPushRestClient.HttpMethod[]{
+                WonderPushRestClient.HttpMethod.POST, WonderPushRestClient.HttpMethod.PUT, WonderPushRestClient.HttpMethod.PATCH}) {
+            RequestParams params = params(BODY);
+            params.put("lang", "fr");
+            Assert.assertTrue(RequestEncoding.hasJsonBody(method, params, true));
+            RequestEncoding encoding = RequestEncoding.encode(method, params, true, false);
+            Assert.assertEquals(RequestEncoding.CONTENT_TYPE_JSON, encoding.contentType);
+            Assert.assertEquals(BODY, decode(encoding.body));
+            JSONObject query = QueryStringParser.getRequestParams(encoding.queryString).toJSONObject();
+            Assert.assertEquals(2, query.length());
+            Assert.assertEquals("token", query.optString("accessToken"));
+            Assert.assertEquals("fr", query.optString("lang"));
+        }
+    }
+
+    @Test
+    public void jsonBodyIsSignedOnItsOwn() throws GeneralSecurityException {
+        RequestParams params = params(BODY);
+        RequestParams queryStringParams = new RequestParams("sid", "abc");
+        Assert.assertEquals(
+                RequestSigner.sign(RequestSignerTest.SECRET, "POST", RequestSignerTest.URL,
+                        Arrays.asList("sid", "accessToken"), Arrays.asList("abc", "token"), BODY),
+                RequestEncoding.sign(RequestSignerTest.SECRET, WonderPushRestClient.HttpMethod.POST, RequestSignerTest.URL,
+                        queryStringParams, params, true));
+    }
+
+    @Test
+    public void paramsAreFormEncodedWhenJsonBodiesAreOff() throws IOException, GeneralSecurityException {
+        RequestParams params = params(BODY);
+        Assert.assertFalse(RequestEncoding.hasJsonBody(WonderPushRestClient.HttpMethod.POST, params, false));
+        RequestEncoding encoding = RequestEncoding.encode(WonderPushRestClient.HttpMethod.POST, params, false, false);
+        Assert.assertEquals(RequestEncoding.CONTENT_TYPE_FORM, encoding.contentType);
+        Assert.assertEquals("", encoding.queryString);
+        Assert.assertEquals(params.getURLEncodedString().trim(), decode(encoding.body));
+        Assert.assertEquals(BODY, RequestEncoding.getJsonBody(QueryStringParser.getRequestParams(decode(encoding.body))));
+        // The body is signed like any other parameter
+        Assert.assertEquals(
+                RequestSigner.sign(RequestSignerTest.SECRET, "POST", RequestSignerTest.URL,
+                        Arrays.asList("accessToken", "body"), Arrays.asList("token", BODY), null),
+                RequestEncoding.sign(RequestSignerTest.SECRET, WonderPushRestClient.HttpMethod.POST, RequestSignerTest.URL,
+                        null, params, false));
+    }
+
+    @Test
+    public void requestsWithoutBodyParamAreFormEncoded() throws IOException {
+        RequestParams params = new RequestParams("accessToken", "token");
+        Assert.assertFalse(RequestEncoding.hasJsonBody(WonderPushRestClient.HttpMethod.PUT, params, true));
+        RequestEncoding encoding = RequestEncoding.encode(WonderPushRestClient.HttpMethod.PUT, params, true, false);
+        Assert.assertEquals(RequestEncoding.CONTENT_TYPE_FORM, encoding.contentType);
+        Assert.assertEquals("accessToken=token", decode(encoding.body));
+    }
+
+    @Test
+    public void readRequestsKeepEveryParamInQueryString() throws IOException {
+        RequestParams params = params(BODY);
+        Assert.assertFalse(RequestEncoding.hasJsonBody(WonderPushRestClient.HttpMethod.GET, params, true));
+        RequestEncoding encoding = RequestEncoding.encode(WonderPushRestClient.HttpMethod.GET, params, true, false);
+        Assert.assertNull(encoding.contentType);
+        Assert.assertNull(encoding.body);
+        Assert.assertEquals(params.getURLEncodedString().trim(), encoding.queryString);
+    }
+
+    @Test
+    public void largeBodiesAreGzippedWhenEnabled() throws JSONException, IOException {
+        byte[] json = eventBatch(50).getBytes("UTF-8");
+        RequestEncoding encoding = RequestEncoding.encode(WonderPushRestClient.HttpMethod.POST, params(eventBatch(50)), true, true);
+        Assert.assertEquals(HttpCompression.GZIP, encoding.contentEncoding);
+        Assert.assertEquals(RequestEncoding.CONTENT_TYPE_JSON, encoding.contentType);
+        Assert.assertTrue(encoding.body.length < json.length);
+        Assert.assertTrue(Arrays.equals(json, HttpCompression.gunzip(encoding.body)));
+        Assert.assertEquals(json.length, encoding.uncompressedLength);
+    }
+
+    @Test
+    public void bodiesAreNotGzippedWhenDisabled() throws JSONException, IOException {
+        byte[] json = eventBatch(50).getBytes("UTF-8");
+        RequestEncoding encoding = RequestEncoding.encode(WonderPushRestClient.HttpMethod.POST, params(eventBatch(50)), true, false);
+        Assert.assertNull(encoding.contentEncoding);
+        Assert.assertTrue(Arrays.equals(json, encoding.body));
+        Assert.assertEquals(json.length, encoding.uncompressedLength);
+    }
+
+    @Test
+    public void smallBodiesAreNotGzipped() throws JSONException, IOException {
+        RequestEncoding encoding = RequestEncoding.encode(WonderPushRestClient.HttpMethod.POST, params(eventBatch(1)), true, true);
+        Assert.assertNull(encoding.contentEncoding);
+        Assert.assertTrue(Arrays.equals(eventBatch(1).getBytes("UTF-8"), encoding.body));
+    }
+
+    @Test
+    public void formBodiesAreGzippedToo() throws JSONException, IOException {
+        RequestParams params = params(eventBatch(50));
+        byte[] form = params.getURLEncodedString().trim().getBytes("UTF-8");
+        RequestEncoding encoding = RequestEncoding.encode(WonderPushRestClient.HttpMethod.POST, params, false, true);
+        Assert.assertEquals(HttpCompression.GZIP, encoding.contentEncoding);
+        Assert.assertEquals(RequestEncoding.CONTENT_TYPE_FORM, encoding.contentType);
+        Assert.assertTrue(Arrays.equals(form, HttpCompression.gunzip(encoding.body)));
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class RequestSignerTest {
+
+    static final String SECRET = "0123456789abcdef0123456789abcdef";
+    static final String URL = "https://api.wonderpush.com/v1/events/";
+
+    /**
+     * The signature as computed before {@link RequestSigner}, kept as a reference.
+     */
+    static String legacySign(String secret, String method, String url, List<String> names, List<String> values, String body) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append(method.toUpperCase());
+        sb.append('&');
+        sb.append(legacyEncode(url));
+        sb.append('&');
+        List<String[]> encodedParams = new ArrayList<>();
+        for (int i = 0; i < names.size(); ++i) {
+            encodedParams.add(new String[]{legacyEncode(names.get(i)), legacyEncode(values.get(i))});
+        }
+        Collections.sort(encodedParams, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] lhs, String[] rhs) {
+                int rtn = lhs[0].compareTo(rhs[0]);
+                if (rtn == 0) {
+                    rtn = lhs[1].compareTo(rhs[1]);
+                }
+                return rtn;
+            }
+        });
+        boolean first = true;
+        for (String[] pair : encodedParams) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append("%26");
+            }
+            sb.append(legacyEncode(String.format("%s=%s", pair[0], pair[1])));
+        }
+        sb.append('&');
+        if (body != null) {
+            sb.append(legacyEncode(body));
+        }
+        Mac mac = Mac.getInstance("HmacSHA1");
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes("UTF-8"), mac.getAlgorithm());
+        mac.init(key);
+        byte[] digest = mac.doFinal(sb.toString().getBytes("UTF-8"));
+        String sig = Base64.getEncoder().encodeToString(digest).trim();
+        return String.format("WonderPush sig=\"%s\", meth=\"0\"", legacyEncode(sig));
+    }
+
+    private static String legacyEncode(String s) throws UnsupportedEncodingException {
+        return URLEncoder.encode(s, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+    }
+
+    static List<String> list(String... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void encodesLikeUrlEncoderWithRfc3986Fixes() throws UnsupportedEncodingException {
+        for (String s : new String[]{"", "abc", "a b", "a+b", "a*b~c", "a=b&c", "é", "€", "😀", "{\"a\":[1,2]}"}) {
+            Assert.assertEquals(legacyEncode(s), RequestSigner.encode(s));
+        }
+    }
+
+    @Test
+    public void base64MatchesReference() {
+        for (int length = 0; length < 24; ++length) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                data[i] = (byte) (i * 37 + length);
+            }
+            Assert.assertEquals(Base64.getEncoder().encodeToString(data), RequestSigner.base64(data));
+        }
+    }
+
+    @Test
+    public void signatureMatchesLegacyImplementation() throws Exception {
+        List<String> names = list("accessToken", "lang", "sdkVersion", "location", "b", "a", "a");
+        List<String> values = list("tok/en+=", "fr_FR", "Android-3.0.0", "48.85,2.35", "space and * star ~", "2", "1 é€😀");
+        Assert.assertEquals(legacySign(SECRET, "GET", URL, names, values, null),
+                RequestSigner.sign(SECRET, "GET", URL, names, values, null));
+        String body = "{\"type\":\"@APP_OPEN\",\"custom\":{\"string_x\":\"a b&c=d\"}}";
+        Assert.assertEquals(legacySign(SECRET, "POST", URL, names, values, body),
+                RequestSigner.sign(SECRET, "POST", URL, names, values, body));
+        Assert.assertEquals(legacySign(SECRET, "PUT", URL, list(), list(), null),
+                RequestSigner.sign(SECRET, "PUT", URL, list(), list(), null));
+        // A different secret on the same thread must re-key the cached MAC
+        Assert.assertEquals(legacySign("other", "POST", URL, names, values, body),
+                RequestSigner.sign("other", "POST", URL, names, values, body));
+    }
+
+    @Test
+    public void signatureLongerThanBuffer() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            sb.append("{\"index\":").append(i).append(",\"text\":\"é ~*\"},");
+        }
+        String body = "[" + sb.substring(0, sb.length() - 1) + "]";
+        Assert.assertEquals(legacySign(SECRET, "POST", URL, list("accessToken"), list("t"), body),
+                RequestSigner.sign(SECRET, "POST", URL, list("accessToken"), list("t"), body));
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Set;
+
+public class TagIndexTest {
+
+    @Test
+    public void indexIsRebuiltOnlyWhenTagsChange() throws JSONException {
+        TagIndex index = new TagIndex();
+        JSONDocument state = JSONDocument.fromJSONObject(new JSONObject("{\"tags\":[\"b\",\"a\",\"\"],\"string_a\":\"a\"}"));
+        Set<String> tags = index.get(state);
+        Assert.assertEquals(Arrays.asList("a", "b"), Arrays.asList(tags.toArray()));
+
+        state = state.merge(new JSONObject("{\"string_a\":\"b\"}"));
+        Assert.assertSame(tags, index.get(state));
+
+        state = state.merge(new WonderPushPropertiesEditor().addTag("c").removeTag("a").buildDiff(state));
+        Assert.assertEquals(Arrays.asList("b", "c"), Arrays.asList(index.get(state).toArray()));
+
+        state = state.merge(new WonderPushPropertiesEditor().removeAllTags().buildDiff(state));
+        Assert.assertTrue(index.get(state).isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void tagsAreUnmodifiable() throws JSONException {
+        new TagIndex().get(JSONDocument.fromJSONObject(new JSONObject("{\"tags\":[\"a\"]}"))).add("b");
+    }
+
+}
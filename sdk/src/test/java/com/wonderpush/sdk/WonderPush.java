@@ -1,8 +1,53 @@
 package com.wonderpush.sdk;
 
+import android.content.Context;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
 public class WonderPush {
 
+    static final String TAG = "WonderPush";
+
+    protected static final ScheduledExecutorService sScheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    static final Executor sIoExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    interface UserConsentListener {
+        void onUserConsentChanged(boolean hasUserConsent);
+    }
+
     static void logDebug(String message) {}
     static void logDebug(String message, Throwable ex) {}
 
+    static void logError(String message) {}
+    static void logError(String message, Throwable ex) {}
+
+    static Context getApplicationContext() {
+        return null;
+    }
+
+    static boolean safeDeferIo(Runnable runnable) {
+        runnable.run();
+        return true;
+    }
+
+    static boolean hasUserConsent() {
+        return true;
+    }
+
+    static void addUserConsentListener(UserConsentListener listener) {}
+    static void removeUserConsentListener(UserConsentListener listener) {}
+
+    static Future<Boolean> applyPropertiesEditor(WonderPushPropertiesEditor editor) {
+        return null;
+    }
+
 }
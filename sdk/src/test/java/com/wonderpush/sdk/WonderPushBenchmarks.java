@@ -0,0 +1,271 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Micro-benchmarks printing timings, skipped unless run with {@code -Dwonderpush.benchmarks=true}.
+ *
+ * <p>Correctness is checked by the unit tests of each class, these only measure.</p>
+ */
+public class WonderPushBenchmarks {
+
+    static final String PROPERTY = "wonderpush.benchmarks";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeSharedPreferences prefs;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean(PROPERTY));
+        prefs = new FakeSharedPreferences();
+        WonderPushConfiguration.setCache(new PreferencesCache(prefs));
+    }
+
+    @After
+    public void tearDown() {
+        WonderPushConfiguration.setCache(null);
+    }
+
+    private static void report(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    private interface Operation {
+        void run() throws JSONException;
+    }
+
+    private static void measure(String name, int iterations, Operation operation) throws JSONException {
+        // Warm up
+        for (int i = 0; i < iterations; ++i) operation.run();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) operation.run();
+        long duration = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        report("JSONUtil: %-20s %9.0f ops/s, %s bytes allocated per op",
+                name, iterations * 1e9 / duration, allocatedBefore < 0 ? "?" : String.valueOf(allocated / iterations));
+    }
+
+    @Test
+    public void jsonUtil() throws JSONException {
+        final JSONObject document = JSONUtilTest.buildInstallationDocument(1);
+        final JSONObject other = JSONUtilTest.buildInstallationDocument(2);
+        final JSONObject diff = JSONUtil.diff(document, other);
+        int iterations = 2000;
+        measure("deepCopy (reparse)", iterations, new Operation() {
+            @Override
+            public void run() throws JSONException {
+                new JSONObject(document.toString());
+            }
+        });
+        measure("deepCopy", iterations, new Operation() {
+            @Override
+            public void run() throws JSONException {
+                JSONUtil.deepCopy(document);
+            }
+        });
+        measure("diff", iterations, new Operation() {
+            @Override
+            public void run() throws JSONException {
+                JSONUtil.diff(document, other);
+            }
+        });
+        measure("merge", iterations, new Operation() {
+            @Override
+            public void run() throws JSONException {
+                JSONUtil.merge(JSONUtil.deepCopy(document), diff);
+            }
+        });
+    }
+
+    private static JSONDocument sink;
+
+    @Test
+    public void jsonDocument() throws JSONException {
+        JSONObject installation = JSONUtilTest.buildInstallationDocument(1);
+        JSONDocument document = JSONDocument.fromJSONObject(installation);
+        JSONObject diff = new JSONObject();
+        int iterations = 5000;
+        long[] durations = new long[4];
+        // The first round warms up
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i) {
+                JSONUtil.merge(installation, diff.put("string_field3", "value " + i));
+            }
+            durations[0] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i) {
+                JSONUtil.deepCopy(installation);
+            }
+            durations[1] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i) {
+                document = document.merge(diff.put("string_field3", "value " + i));
+            }
+            durations[2] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i) {
+                sink = document;
+            }
+            durations[3] = System.nanoTime() - start;
+        }
+        report("JSONDocument: write %.2f us, read %.3f us; JSONObject: write %.2f us, read (copy) %.2f us",
+                durations[2] / 1000. / iterations, durations[3] / 1000. / iterations,
+                durations[0] / 1000. / iterations, durations[1] / 1000. / iterations);
+    }
+
+    @Test
+    public void tagIndex() throws JSONException {
+        JSONObject custom = new JSONObject();
+        for (int i = 0; i < 100; ++i) {
+            custom.put("string_property" + i, "value" + i);
+        }
+        WonderPushPropertiesEditor editor = new WonderPushPropertiesEditor();
+        for (int i = 0; i < 50; ++i) {
+            editor.addTag("tag" + i);
+        }
+        JSONDocument state = JSONDocument.fromJSONObject(custom);
+        state = state.merge(editor.buildDiff(state));
+        TagIndex index = new TagIndex();
+        int lookups = 200000;
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; ++i) {
+            if (WonderPushPropertiesEditor.getTags(state).contains("tag" + (i % 100))) ++found;
+        }
+        long rebuilt = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; ++i) {
+            if (index.get(state).contains("tag" + (i % 100))) --found;
+        }
+        long indexed = System.nanoTime() - start;
+        report("TagIndex: hasTag over 50 tags takes %.0f ns rebuilding the set, %.0f ns indexed",
+                (double) rebuilt / lookups, (double) indexed / lookups);
+        // Keeps both loops from being optimized away
+        Assert.assertEquals(0, found);
+    }
+
+    @Test
+    public void requestSigner() throws Exception {
+        List<String> names = RequestSignerTest.list("accessToken", "lang", "sdkVersion", "location", "body");
+        List<String> values = RequestSignerTest.list("eyJhbGciOiJIUzI1NiJ9.eyJzdWIiOiIxMjM0NTY3ODkwIn0", "en_US", "Android-3.0.0", "48.85,2.35",
+                "{\"type\":\"@APP_OPEN\",\"actionDate\":1500000000000,\"custom\":{\"string_campaign\":\"summer sale\"}}");
+        String secret = RequestSignerTest.SECRET;
+        String url = RequestSignerTest.URL;
+        final int iterations = 20000;
+        // Warm up both implementations
+        for (int i = 0; i < iterations; ++i) {
+            RequestSignerTest.legacySign(secret, "POST", url, names, values, null);
+            RequestSigner.sign(secret, "POST", url, names, values, null);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            RequestSignerTest.legacySign(secret, "POST", url, names, values, null);
+        }
+        long legacy = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            RequestSigner.sign(secret, "POST", url, names, values, null);
+        }
+        long signer = System.nanoTime() - start;
+        report("RequestSigner: %.2f us per signature, legacy: %.2f us per signature",
+                signer / 1000. / iterations, legacy / 1000. / iterations);
+    }
+
+    @Test
+    public void mappedSharedPreferences() throws IOException {
+        MappedSharedPreferences store = new MappedSharedPreferences(new File(folder.getRoot(), "prefs.bin"));
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < 200; ++i) json.append("\"key").append(i).append("\":\"value\",");
+        json.append("\"end\":true}");
+        // A large value, like a sync state for many users
+        store.edit().putString("large", json.toString()).apply();
+        int writes = 5000;
+        long start = System.nanoTime();
+        for (int i = 0; i < writes; ++i) {
+            store.edit().putLong("date", i).apply();
+        }
+        long duration = System.nanoTime() - start;
+        report("MappedSharedPreferences: %.2f us per small write next to a %d bytes value, file is %d bytes",
+                duration / 1000. / writes, json.length(), store.length());
+        store.close();
+    }
+
+    @Test
+    public void userSwitch() {
+        int switches = 200;
+        int applies = prefs.applies;
+        long start = System.nanoTime();
+        for (int i = 0; i < switches; ++i) {
+            WonderPushConfiguration.changeUserId(i % 2 == 0 ? "userB" : null);
+        }
+        long duration = System.nanoTime() - start;
+        report("WonderPushConfiguration: %.1f writes and %.1f us per user switch",
+                (prefs.applies - applies) / (double) switches, duration / 1000. / switches);
+    }
+
+    @Test
+    public void jobJournal() throws IOException, JSONException {
+        final int operations = 200;
+        for (int queueSize : new int[]{10, 100, 1000, 5000}) {
+            File file = new File(folder.getRoot(), "bench-" + queueSize + ".journal");
+            WonderPushJobJournal journal = new WonderPushJobJournal(file, null);
+            journal.open();
+            for (int i = 0; i < queueSize; ++i) {
+                journal.append(UUID.randomUUID().toString(), "h" + i, WonderPushJobJournalTest.job(i));
+            }
+
+            List<String> ids = new ArrayList<>();
+            List<JSONObject> jobs = new ArrayList<>();
+            for (int i = 0; i < operations; ++i) {
+                ids.add(UUID.randomUUID().toString());
+                jobs.add(WonderPushJobJournalTest.job(0));
+            }
+            long appendedBefore = journal.getBytesAppended();
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; ++i) {
+                journal.append(ids.get(i), "h", jobs.get(i));
+                journal.ack(ids.get(i));
+            }
+            long elapsed = System.nanoTime() - start;
+            report("WonderPushJobJournal: queue of %5d jobs: %6.1f us and %5.1f bytes per enqueue+ack",
+                    queueSize, elapsed / 1000. / operations, (journal.getBytesAppended() - appendedBefore) / (double) operations);
+            journal.close();
+        }
+    }
+
+}
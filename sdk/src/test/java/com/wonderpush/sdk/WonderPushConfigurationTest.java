@@ -0,0 +1,129 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WonderPushConfigurationTest {
+
+    private FakeSharedPreferences prefs;
+
+    @Before
+    public void setUp() {
+        prefs = new FakeSharedPreferences();
+        WonderPushConfiguration.setCache(new PreferencesCache(prefs));
+    }
+
+    @After
+    public void tearDown() {
+        WonderPushConfiguration.setCache(null);
+    }
+
+    @Test
+    public void changeUserIdArchivesAndRestoresInOneWrite() throws JSONException {
+        WonderPushConfiguration.setAccessToken("tokenA");
+        WonderPushConfiguration.setInstallationId("installationA");
+        WonderPushConfiguration.setLastAppOpenInfoJson(new JSONObject("{\"a\":1}"));
+
+        int applies = prefs.applies;
+        WonderPushConfiguration.changeUserId("userB");
+        Assert.assertEquals(1, prefs.applies - applies);
+        Assert.assertEquals("userB", WonderPushConfiguration.getUserId());
+        Assert.assertNull(WonderPushConfiguration.getAccessToken());
+        Assert.assertNull(WonderPushConfiguration.getLastAppOpenInfoJson());
+
+        WonderPushConfiguration.setAccessToken("tokenB");
+        WonderPushConfiguration.changeUserId(null);
+        Assert.assertEquals("tokenA", WonderPushConfiguration.getAccessToken());
+        Assert.assertEquals("installationA", WonderPushConfiguration.getInstallationId());
+        Assert.assertEquals(1, WonderPushConfiguration.getLastAppOpenInfoJson().getInt("a"));
+        Assert.assertEquals("tokenB", WonderPushConfiguration.getAccessTokenForUserId("userB"));
+        // The snapshot matches what was persisted
+        Assert.assertEquals("tokenA", prefs.values.get("__wonderpush_access_token"));
+    }
+
+    @Test
+    public void clearForUserIdWritesOnce() {
+        WonderPushConfiguration.changeUserId("userB");
+        WonderPushConfiguration.setAccessToken("tokenB");
+        int applies = prefs.applies;
+        WonderPushConfiguration.clearForUserId("userB");
+        Assert.assertEquals(1, prefs.applies - applies);
+        Assert.assertNull(WonderPushConfiguration.getAccessToken());
+    }
+
+    @Test
+    public void archivesEachUserUnderItsOwnKey() {
+        WonderPushConfiguration.setAccessToken("tokenA");
+        WonderPushConfiguration.changeUserId("userB");
+        WonderPushConfiguration.setAccessToken("tokenB");
+        WonderPushConfiguration.changeUserId("userC");
+        Assert.assertTrue(prefs.values.containsKey("__user_archive:"));
+        Assert.assertTrue(prefs.values.containsKey("__user_archive:userB"));
+        Assert.assertFalse(prefs.values.containsKey("__per_user_archive"));
+        Assert.assertEquals(3, WonderPushConfiguration.listKnownUserIds().size());
+
+        WonderPushConfiguration.clearForUserId("userB");
+        Assert.assertFalse(prefs.values.containsKey("__user_archive:userB"));
+        Assert.assertNull(WonderPushConfiguration.getAccessTokenForUserId("userB"));
+        Assert.assertEquals("tokenA", WonderPushConfiguration.getAccessTokenForUserId(null));
+    }
+
+    @Test
+    public void migratesLegacyPerUserObjects() throws JSONException {
+        FakeSharedPreferences legacy = new FakeSharedPreferences();
+        legacy.values.put("__user_id", "userB");
+        legacy.values.put("__per_user_archive", "{\"\":{\"__wonderpush_access_token\":\"tokenA\"},\"userC\":{\"__wonderpush_access_token\":\"tokenC\"}}");
+        legacy.values.put("__installation_sync_state_per_user_id", "{\"\":{\"sdkState\":{\"a\":1}},\"userB\":{\"sdkState\":{\"b\":2}}}");
+        WonderPushConfiguration.setCache(new PreferencesCache(legacy));
+
+        Assert.assertEquals(1, legacy.applies);
+        Assert.assertFalse(legacy.values.containsKey("__per_user_archive"));
+        Assert.assertFalse(legacy.values.containsKey("__installation_sync_state_per_user_id"));
+        Assert.assertEquals("tokenA", WonderPushConfiguration.getAccessTokenForUserId(null));
+        Assert.assertEquals("tokenC", WonderPushConfiguration.getAccessTokenForUserId("userC"));
+        Assert.assertEquals(3, WonderPushConfiguration.listKnownUserIds().size());
+        Assert.assertEquals(2, WonderPushConfiguration.listUserIdsWithInstallationCustomSyncState().size());
+        Assert.assertEquals(1, WonderPushConfiguration.getInstallationCustomSyncStateForUserId(null).getJSONObject("sdkState").getInt("a"));
+        Assert.assertEquals(2, WonderPushConfiguration.getInstallationCustomSyncStateForUserId("userB").getJSONObject("sdkState").getInt("b"));
+    }
+
+    @Test
+    public void savesInstallationCustomSyncStatePerUser() throws JSONException {
+        WonderPushConfiguration.setInstallationCustomSyncStateForUserId("userB", new JSONObject("{\"b\":2}"));
+        int applies = prefs.applies;
+        WonderPushConfiguration.setInstallationCustomSyncStateForUserId(null, new JSONObject("{\"a\":1}"));
+        Assert.assertEquals(1, prefs.applies - applies);
+        Assert.assertEquals("{\"b\":2}", prefs.values.get("__installation_sync_state:userB"));
+        Assert.assertEquals("{\"a\":1}", prefs.values.get("__installation_sync_state:"));
+    }
+
+    @Test
+    public void installationCustomSyncJournalIsPerUserAndClearedBySnapshot() throws JSONException {
+        WonderPushConfiguration.setInstallationCustomSyncJournalEntryForUserId("a", 0, new JSONObject("{\"put\":{\"x\":1}}"));
+        WonderPushConfiguration.setInstallationCustomSyncJournalEntryForUserId("a", 1, new JSONObject("{\"put\":{\"x\":2}}"));
+        WonderPushConfiguration.setInstallationCustomSyncJournalEntryForUserId("a:b", 0, new JSONObject("{\"put\":{\"y\":1}}"));
+        Assert.assertEquals(2, WonderPushConfiguration.getInstallationCustomSyncJournalForUserId("a").size());
+        Assert.assertEquals(1, WonderPushConfiguration.getInstallationCustomSyncJournalForUserId("a:b").size());
+        Assert.assertEquals(2, WonderPushConfiguration.listUserIdsWithInstallationCustomSyncState().size());
+
+        WonderPushConfiguration.setInstallationCustomSyncStateForUserId("a", new JSONObject("{\"sdkState\":{\"x\":2}}"));
+        Assert.assertEquals(0, WonderPushConfiguration.getInstallationCustomSyncJournalForUserId("a").size());
+        Assert.assertEquals(1, WonderPushConfiguration.getInstallationCustomSyncJournalForUserId("a:b").size());
+    }
+
+    @Test
+    public void eachUserSwitchWritesOnce() {
+        int switches = 20;
+        int applies = prefs.applies;
+        for (int i = 0; i < switches; ++i) {
+            WonderPushConfiguration.changeUserId(i % 2 == 0 ? "userB" : null);
+        }
+        Assert.assertEquals(switches, prefs.applies - applies);
+    }
+
+}
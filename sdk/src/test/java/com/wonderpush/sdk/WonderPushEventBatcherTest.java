@@ -0,0 +1,221 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class WonderPushEventBatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRequestSender sender;
+    private FakeConnectivityMonitor connectivity;
+    private WonderPushRequestVault vault;
+    private int requests;
+    private List<JSONObject> events;
+
+    @Before
+    public void setup() throws IOException {
+        setup(WonderPushJobQueue.DEFAULT_MEMORY_CAPACITY_BYTES);
+    }
+
+    private void setup(long memoryCapacityBytes) throws IOException {
+        // The queue looks for jobs saved by previous versions in the configuration
+        WonderPushConfiguration.setCache(new PreferencesCache(new FakeSharedPreferences()));
+        sender = new FakeRequestSender();
+        connectivity = new FakeConnectivityMonitor();
+        // Offline until drain(), so that every event is queued before the vault sends anything
+        connectivity.setConnected(false);
+        WonderPushJobQueue queue = new WonderPushJobQueue("test", new File(folder.newFolder(), "queue.journal"),
+                memoryCapacityBytes, Long.MAX_VALUE, WonderPushJobQueue.DROP_OLDEST_LOWEST_PRIORITY, null);
+        vault = new WonderPushRequestVault(queue, WonderPushRequestVault.DEFAULT_WINDOW, connectivity, sender, new FakeClock());
+        requests = 0;
+        events = new ArrayList<>();
+    }
+
+    @After
+    public void teardown() {
+        vault.stop();
+        WonderPushConfiguration.setCache(null);
+    }
+
+    private static JSONObject eventJob(String userId, int index, String payload) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("type", "test");
+        event.put("index", index);
+        if (payload != null) {
+            event.put("custom", new JSONObject().put("string_payload", payload));
+        }
+        JSONObject params = new JSONObject();
+        params.put("body", event.toString());
+        JSONObject rtn = new JSONObject();
+        rtn.put("userId", userId);
+        rtn.put("method", "POST");
+        rtn.put("resource", "/events/");
+        rtn.put("params", params);
+        return rtn;
+    }
+
+    /**
+     * Goes online and answers the requests sent by the vault, until the given number of events were received.
+     */
+    private void drain(int eventCount) throws Exception {
+        connectivity.setConnected(true);
+        while (events.size() < eventCount) {
+            FakeRequestSender.SentRequest request = sender.next();
+            receive(request.jobDescription);
+            request.succeed();
+        }
+        sender.assertNothingSent(100);
+    }
+
+    private void receive(JSONObject jobDescription) throws JSONException {
+        Assert.assertEquals("POST", jobDescription.getString("method"));
+        Assert.assertEquals("/events/", jobDescription.getString("resource"));
+        requests++;
+        Object body = new JSONArray("[" + jobDescription.getJSONObject("params").getString("body") + "]").get(0);
+        if (body instanceof JSONArray) {
+            for (int i = 0; i < ((JSONArray) body).length(); ++i) {
+                events.add(((JSONArray) body).getJSONObject(i));
+            }
+        } else {
+            events.add((JSONObject) body);
+        }
+    }
+
+    /**
+     * Checks that every event was received once.
+     * Full batches are sent as soon as they are complete, ahead of earlier events, so the order is not checked.
+     */
+    private void assertEventsReceived(int count) throws JSONException {
+        Assert.assertEquals(count, events.size());
+        Set<Integer> indexes = new HashSet<>();
+        for (JSONObject event : events) {
+            indexes.add(event.getInt("index"));
+        }
+        Assert.assertEquals(count, indexes.size());
+        for (int i = 0; i < count; ++i) {
+            Assert.assertTrue(indexes.contains(i));
+        }
+    }
+
+    @Test
+    public void singleEventIsSentAsIs() throws Exception {
+        JSONObject job = eventJob("user", 0, null);
+        vault.put(job, 0);
+        connectivity.setConnected(true);
+        FakeRequestSender.SentRequest request = sender.next();
+        Assert.assertEquals(job.toString(), request.jobDescription.toString());
+        request.succeed();
+    }
+
+    @Test
+    public void eventsArriveInCeilOfCountOverBatchSizeRequests() throws Exception {
+        for (int n : new int[]{1, 2, WonderPushEventBatcher.MAX_BATCH_SIZE - 1, WonderPushEventBatcher.MAX_BATCH_SIZE, 50, 101}) {
+            teardown();
+            setup();
+            for (int i = 0; i < n; ++i) {
+                vault.put(eventJob("user", i, null), 0);
+            }
+            drain(n);
+            int expected = (n + WonderPushEventBatcher.MAX_BATCH_SIZE - 1) / WonderPushEventBatcher.MAX_BATCH_SIZE;
+            Assert.assertEquals("requests for " + n + " events", expected, requests);
+            assertEventsReceived(n);
+        }
+    }
+
+    @Test
+    public void byteBudgetSplitsBatches() throws Exception {
+        StringBuilder payload = new StringBuilder();
+        while (payload.length() < WonderPushEventBatcher.MAX_BATCH_BYTES / 4) {
+            payload.append("0123456789");
+        }
+        for (int i = 0; i < 8; ++i) {
+            vault.put(eventJob("user", i, payload.toString()), 0);
+        }
+        drain(8);
+        Assert.assertTrue(requests > 1);
+        Assert.assertTrue(requests < 8);
+        assertEventsReceived(8);
+    }
+
+    @Test
+    public void differentUsersAreNotMixed() throws Exception {
+        vault.put(eventJob("user1", 0, null), 0);
+        vault.put(eventJob("user2", 0, null), 0);
+        vault.put(eventJob("user1", 1, null), 0);
+        vault.put(eventJob("user2", 1, null), 0);
+        drain(4);
+        Assert.assertEquals(2, requests);
+    }
+
+    @Test
+    public void otherRequestsAreNotBatched() throws JSONException {
+        JSONObject installation = eventJob("user", 0, null);
+        installation.put("resource", "/installation");
+        Assert.assertFalse(WonderPushEventBatcher.isBatchable(installation));
+        WonderPushEventBatcher.Batch batch = new WonderPushEventBatcher.Batch(eventJob("user", 0, null));
+        Assert.assertFalse(batch.offer(installation));
+    }
+
+    @Test
+    public void fullBatchIsDetected() throws JSONException {
+        WonderPushEventBatcher.Batch batch = new WonderPushEventBatcher.Batch(eventJob("user", 0, null));
+        for (int i = 1; i < WonderPushEventBatcher.MAX_BATCH_SIZE; ++i) {
+            Assert.assertFalse(batch.isFull());
+            Assert.assertTrue(batch.offer(eventJob("user", i, null)));
+        }
+        Assert.assertTrue(batch.isFull());
+        Assert.assertFalse(batch.offer(eventJob("user", 0, null)));
+    }
+
+    @Test
+    public void fullBatchIsSentWithoutWaiting() throws Exception {
+        // Also when every queued description was spilled to disk
+        for (long memoryCapacityBytes : new long[]{WonderPushJobQueue.DEFAULT_MEMORY_CAPACITY_BYTES, 0}) {
+            teardown();
+            setup(memoryCapacityBytes);
+            connectivity.setConnected(true);
+            for (int i = 0; i < WonderPushEventBatcher.MAX_BATCH_SIZE - 1; ++i) {
+                vault.put(eventJob("user", i, null), 0);
+            }
+            // The clock does not move, the events wait for others to join them
+            sender.assertNothingSent(200);
+
+            vault.put(eventJob("user", WonderPushEventBatcher.MAX_BATCH_SIZE - 1, null), 0);
+            FakeRequestSender.SentRequest request = sender.next();
+            receive(request.jobDescription);
+            request.succeed();
+            Assert.assertEquals(1, requests);
+            assertEventsReceived(WonderPushEventBatcher.MAX_BATCH_SIZE);
+        }
+    }
+
+    @Test
+    public void retriedBatchCanBeMergedAgain() throws Exception {
+        WonderPushEventBatcher.Batch batch = new WonderPushEventBatcher.Batch(eventJob("user", 0, null));
+        batch.offer(eventJob("user", 1, null));
+        JSONObject retried = batch.toJobDescription();
+        vault.put(retried, 0);
+        vault.put(eventJob("user", 2, null), 0);
+        drain(3);
+        Assert.assertEquals(1, requests);
+        assertEventsReceived(3);
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WonderPushExecutorsTest {
+
+    private final WonderPushExecutors executors = new WonderPushExecutors("Test");
+
+    @After
+    public void tearDown() {
+        executors.shutdown();
+    }
+
+    @Test
+    public void stateRunsInDueTimeThenSubmissionOrder() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(5);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        // Hold the thread so that every task is queued before any runs
+        executors.runOnState(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }, 0);
+        int[] delays = {50, 0, 0, 50, 0};
+        for (int i = 0; i < delays.length; ++i) {
+            final int index = i;
+            executors.runOnState(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                    done.countDown();
+                }
+            }, delays[i]);
+        }
+        Assert.assertTrue(executors.getStateMetrics().getMaxQueueDepth() >= delays.length);
+        blocker.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(1, 2, 4, 0, 3), order);
+    }
+
+    @Test
+    public void exceptionsDoNotStopTheExecutor() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        executors.runOnState(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected");
+            }
+        }, 0);
+        executors.runOnState(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 0);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void threadsAreNamed() throws InterruptedException {
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(2);
+        executors.runOnState(new Runnable() {
+            @Override
+            public void run() {
+                names.add(Thread.currentThread().getName());
+                done.countDown();
+            }
+        }, 0);
+        executors.runOnIo(new Runnable() {
+            @Override
+            public void run() {
+                names.add(Thread.currentThread().getName());
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(names.contains("Test"));
+        Assert.assertTrue(names.contains("Test-io-1"));
+    }
+
+    @Test
+    public void slowIoDoesNotHoldBackState() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch stateDone = new CountDownLatch(1);
+        executors.runOnIo(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        executors.runOnState(new Runnable() {
+            @Override
+            public void run() {
+                stateDone.countDown();
+            }
+        }, 0);
+        Assert.assertTrue(stateDone.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void countsExecutedTasks() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; ++i) {
+            executors.runOnIo(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        // afterExecute runs right after the task body
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executors.getIoMetrics().getExecutedCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, executors.getIoMetrics().getExecutedCount());
+        Assert.assertEquals(0, executors.getIoMetrics().getQueueDepth());
+    }
+
+    @Test
+    public void requestsRunOneAtATimeInSubmissionOrder() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final int count = 20;
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; ++i) {
+            final int index = i;
+            executors.runOnRequests(new Runnable() {
+                @Override
+                public void run() {
+                    maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                    try {
+                        // Earlier tasks are slower, a pool would let later ones overtake them
+                        Thread.sleep((count - index) % 3);
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    order.add(index);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, maxRunning.get());
+        for (int i = 0; i < count; ++i) {
+            Assert.assertEquals(i, (int) order.get(i));
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class WonderPushJobCoalescerTest {
+
+    private static JSONObject update(String userId, JSONObject body, boolean overwrite) throws JSONException {
+        JSONObject params = new JSONObject();
+        params.put("body", body.toString());
+        params.put("overwrite", overwrite ? "true" : "false");
+        JSONObject description = new JSONObject();
+        description.put("userId", userId);
+        description.put("method", "POST");
+        description.put("resource", "/installation");
+        description.put("params", params);
+        return description;
+    }
+
+    private static JSONObject body(JSONObject description) throws JSONException {
+        return new JSONObject(description.getJSONObject("params").getString("body"));
+    }
+
+    private static boolean overwrite(JSONObject description) throws JSONException {
+        return "true".equals(description.getJSONObject("params").getString("overwrite"));
+    }
+
+    @Test
+    public void keysInstallationUpdatesByUser() throws JSONException {
+        JSONObject body = new JSONObject().put("custom", new JSONObject().put("string_a", "a"));
+        Assert.assertEquals(WonderPushJobCoalescer.getCoalescingKey(update("u1", body, false)),
+                WonderPushJobCoalescer.getCoalescingKey(update("u1", body, true)));
+        Assert.assertFalse(WonderPushJobCoalescer.getCoalescingKey(update("u1", body, false))
+                .equals(WonderPushJobCoalescer.getCoalescingKey(update("u2", body, false))));
+
+        JSONObject event = new JSONObject();
+        event.put("method", "POST");
+        event.put("resource", "/events/");
+        event.put("params", new JSONObject().put("body", "{}"));
+        Assert.assertNull(WonderPushJobCoalescer.getCoalescingKey(event));
+
+        JSONObject extraParam = update("u1", body, false);
+        extraParam.getJSONObject("params").put("other", "value");
+        Assert.assertNull(WonderPushJobCoalescer.getCoalescingKey(extraParam));
+    }
+
+    @Test
+    public void overwriteReplacesPendingUpdate() throws JSONException {
+        JSONObject pending = update("u1", new JSONObject().put("custom", new JSONObject().put("string_a", "a")), false);
+        JSONObject replacement = update("u1", new JSONObject().put("custom", new JSONObject().put("string_b", "b")), true);
+        JSONObject coalesced = WonderPushJobCoalescer.coalesce(pending, replacement);
+        Assert.assertTrue(overwrite(coalesced));
+        Assert.assertFalse(body(coalesced).getJSONObject("custom").has("string_a"));
+        Assert.assertEquals("b", body(coalesced).getJSONObject("custom").getString("string_b"));
+    }
+
+    @Test
+    public void patchesKeepNullsForTheServer() throws JSONException {
+        JSONObject pending = update("u1", new JSONObject().put("custom", new JSONObject().put("string_a", "a").put("string_b", "b")), false);
+        JSONObject patch = update("u1", new JSONObject().put("custom", new JSONObject().put("string_a", JSONObject.NULL).put("string_c", "c")), false);
+        JSONObject coalesced = WonderPushJobCoalescer.coalesce(pending, patch);
+        Assert.assertFalse(overwrite(coalesced));
+        JSONObject custom = body(coalesced).getJSONObject("custom");
+        Assert.assertTrue(custom.isNull("string_a"));
+        Assert.assertTrue(custom.has("string_a"));
+        Assert.assertEquals("b", custom.getString("string_b"));
+        Assert.assertEquals("c", custom.getString("string_c"));
+    }
+
+    @Test
+    public void patchOntoOverwriteRemovesNulls() throws JSONException {
+        JSONObject pending = update("u1", new JSONObject().put("custom", new JSONObject().put("string_a", "a").put("string_b", "b")), true);
+        JSONObject patch = update("u1", new JSONObject().put("custom", new JSONObject().put("string_a", JSONObject.NULL)), false);
+        JSONObject coalesced = WonderPushJobCoalescer.coalesce(pending, patch);
+        Assert.assertTrue(overwrite(coalesced));
+        JSONObject custom = body(coalesced).getJSONObject("custom");
+        Assert.assertFalse(custom.has("string_a"));
+        Assert.assertEquals("b", custom.getString("string_b"));
+        // The pending update is left untouched
+        Assert.assertTrue(body(pending).getJSONObject("custom").has("string_a"));
+    }
+
+}
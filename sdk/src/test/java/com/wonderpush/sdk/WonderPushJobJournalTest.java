@@ -0,0 +1,242 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+public class WonderPushJobJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static JSONObject job(int index) throws JSONException {
+        JSONObject description = new JSONObject();
+        description.put("method", "POST");
+        description.put("resource", "/events/");
+        description.put("params", new JSONObject().put("body", new JSONObject().put("type", "test").put("index", index).toString()));
+        return description;
+    }
+
+    private static int index(JSONObject job) throws JSONException {
+        return new JSONObject(job.getJSONObject("params").getString("body")).getInt("index");
+    }
+
+    private static List<String> ids(List<WonderPushJobJournal.Record> records) {
+        List<String> rtn = new ArrayList<>();
+        for (WonderPushJobJournal.Record record : records) {
+            rtn.add(record.id);
+        }
+        return rtn;
+    }
+
+    private File journalFile() {
+        return new File(folder.getRoot(), "queue.journal");
+    }
+
+    @Test
+    public void restoresLiveJobsInOrder() throws IOException, JSONException {
+        WonderPushJobJournal journal = new WonderPushJobJournal(journalFile(), null);
+        Assert.assertTrue(journal.open().isEmpty());
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            String id = UUID.randomUUID().toString();
+            ids.add(id);
+            journal.append(id, "h" + i, job(i));
+        }
+        journal.ack(ids.get(0));
+        journal.ack(ids.get(5));
+        journal.close();
+
+        WonderPushJobJournal reopened = new WonderPushJobJournal(journalFile(), null);
+        List<WonderPushJobJournal.Record> records = reopened.open();
+        Assert.assertEquals(8, records.size());
+        Assert.assertFalse(ids(records).contains(ids.get(0)));
+        Assert.assertFalse(ids(records).contains(ids.get(5)));
+        int previous = -1;
+        for (WonderPushJobJournal.Record record : records) {
+            int index = index(reopened.read(record));
+            Assert.assertTrue(index > previous);
+            Assert.assertEquals("h" + index, record.header);
+            previous = index;
+        }
+        Assert.assertEquals(8, reopened.getLiveCount());
+    }
+
+    @Test
+    public void discardsPartialTrailingRecord() throws IOException, JSONException {
+        WonderPushJobJournal journal = new WonderPushJobJournal(journalFile(), null);
+        journal.open();
+        journal.append("a", "h", job(0));
+        journal.close();
+        long length = journalFile().length();
+        FileOutputStream output = new FileOutputStream(journalFile(), true);
+        output.write("+b {\"id\":\"b\",\"desc".getBytes("UTF-8"));
+        output.close();
+
+        List<WonderPushJobJournal.Record> records = journal.open();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("a", records.get(0).id);
+        Assert.assertEquals(length, journalFile().length());
+
+        // Appending after recovery must produce well formed records
+        journal.append("c", "h", job(2));
+        journal.close();
+        records = journal.open();
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals("c", records.get(1).id);
+        Assert.assertEquals(2, index(journal.read(records.get(1))));
+    }
+
+    @Test
+    public void compactionKeepsLiveJobsOnly() throws IOException, JSONException {
+        WonderPushJobJournal journal = new WonderPushJobJournal(journalFile(), null);
+        journal.open();
+        List<String> ids = new ArrayList<>();
+        List<WonderPushJobJournal.Record> appended = new ArrayList<>();
+        int count = 2 * WonderPushJobJournal.COMPACTION_MIN_DEAD_RECORDS;
+        for (int i = 0; i < count; ++i) {
+            String id = UUID.randomUUID().toString();
+            ids.add(id);
+            appended.add(journal.append(id, "h" + i, job(i)));
+        }
+        long fullLength = journal.length();
+        for (int i = 0; i < count - 3; ++i) {
+            journal.ack(ids.get(i));
+        }
+        Assert.assertTrue(journal.length() < fullLength);
+        Assert.assertEquals(journal.length(), journalFile().length());
+
+        // Live records must still be readable at their new position
+        for (int i = count - 3; i < count; ++i) {
+            Assert.assertEquals(i, index(journal.read(appended.get(i))));
+        }
+        journal.close();
+
+        List<WonderPushJobJournal.Record> records = journal.open();
+        Assert.assertEquals(ids.subList(count - 3, count), ids(records));
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(count - 3 + i, index(journal.read(records.get(i))));
+        }
+        Assert.assertEquals(journal.getLiveBytes(), records.get(0).getLength() * 3L);
+    }
+
+    @Test
+    public void recordsAreWrittenByTheWriterInOrder() throws IOException, JSONException {
+        QueuedExecutor writer = new QueuedExecutor();
+        WonderPushJobJournal journal = new WonderPushJobJournal(journalFile(), writer);
+        journal.open();
+        journal.append("a", "h", job(0));
+        journal.append("b", "h", job(1));
+        journal.ack("a");
+
+        // Nothing is written on the calling thread
+        Assert.assertEquals(0, journalFile().length());
+        Assert.assertEquals(1, writer.tasks.size());
+        Assert.assertEquals(1, journal.getLiveCount());
+
+        writer.runAll();
+        Assert.assertEquals(journal.length(), journalFile().length());
+        List<WonderPushJobJournal.Record> records = new WonderPushJobJournal(journalFile(), null).open();
+        Assert.assertEquals(Collections.singletonList("b"), ids(records));
+        journal.close();
+    }
+
+    @Test
+    public void pendingRecordsCanBeReadAndAreWrittenOnClose() throws IOException, JSONException {
+        QueuedExecutor writer = new QueuedExecutor();
+        WonderPushJobJournal journal = new WonderPushJobJournal(journalFile(), writer);
+        journal.open();
+        WonderPushJobJournal.Record record = journal.append("a", "h", job(1));
+        Assert.assertEquals(1, index(journal.read(record)));
+
+        journal.append("b", "h", job(2));
+        journal.close();
+        List<WonderPushJobJournal.Record> records = journal.open();
+        Assert.assertEquals(Arrays.asList("a", "b"), ids(records));
+        Assert.assertEquals(2, index(journal.read(records.get(1))));
+        // The write scheduled meanwhile finds nothing left to do
+        writer.runAll();
+        Assert.assertEquals(2, journal.open().size());
+    }
+
+    @Test
+    public void compactionKeepsIdAppendedAgainMeanwhile() throws IOException, JSONException {
+        final List<WonderPushJobJournal.Record> reappended = new ArrayList<>();
+        final WonderPushJobJournal[] journalRef = new WonderPushJobJournal[1];
+        final WonderPushJobJournal journal = new WonderPushJobJournal(journalFile(), null, new WonderPushJobJournal.CompactionListener() {
+            @Override
+            public void onLiveRecordsCopied() {
+                try {
+                    // Like a job retried or coalesced under the same id while the compaction runs
+                    journalRef[0].ack("retried");
+                    reappended.add(journalRef[0].append("retried", "h1", job(2)));
+                } catch (IOException | JSONException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        journalRef[0] = journal;
+        journal.open();
+        journal.append("dead", "h0", job(0));
+        journal.append("retried", "h0", job(1));
+        journal.ack("dead");
+        journal.compact();
+
+        Assert.assertEquals(2, index(journal.read(reappended.get(0))));
+        journal.close();
+        List<WonderPushJobJournal.Record> records = journal.open();
+        Assert.assertEquals(Collections.singletonList("retried"), ids(records));
+        Assert.assertEquals(2, index(journal.read(records.get(0))));
+    }
+
+    /**
+     * Enqueues then acknowledges jobs on top of queues of growing sizes,
+     * and checks that each operation costs the same number of bytes written, whatever the queue size.
+     */
+    @Test
+    public void perOperationCostIsConstant() throws IOException, JSONException {
+        final int operations = 200;
+        List<Double> bytesPerOperation = new ArrayList<>();
+        for (int queueSize : new int[]{10, 100, 1000, 5000}) {
+            File file = new File(folder.getRoot(), "queue-" + queueSize + ".journal");
+            WonderPushJobJournal journal = new WonderPushJobJournal(file, null);
+            journal.open();
+            for (int i = 0; i < queueSize; ++i) {
+                String id = UUID.randomUUID().toString();
+                journal.append(id, "h" + i, job(i));
+            }
+
+            List<String> ids = new ArrayList<>();
+            List<JSONObject> jobs = new ArrayList<>();
+            for (int i = 0; i < operations; ++i) {
+                String id = UUID.randomUUID().toString();
+                ids.add(id);
+                jobs.add(job(0));
+            }
+            long appendedBefore = journal.getBytesAppended();
+            for (int i = 0; i < operations; ++i) {
+                journal.append(ids.get(i), "h", jobs.get(i));
+                journal.ack(ids.get(i));
+            }
+            bytesPerOperation.add((journal.getBytesAppended() - appendedBefore) / (double) operations);
+            journal.close();
+        }
+        for (double bytes : bytesPerOperation) {
+            Assert.assertEquals(bytesPerOperation.get(0), bytes, 0.001);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class WonderPushPendingInitImplTest {
+
+    private static class RecordingImpl extends WonderPushLogErrorImpl {
+
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> tags = Collections.synchronizedSet(new TreeSet<String>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected void log(String method) {
+        }
+
+        @Override
+        public void trackEvent(String type) {
+            calls.add("trackEvent " + type);
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void addTag(String... tag) {
+            calls.add("addTag " + Arrays.toString(tag));
+            tags.addAll(Arrays.asList(tag));
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public Set<String> getTags() {
+            return new TreeSet<>(tags);
+        }
+
+    }
+
+    private final WonderPushExecutors executors = new WonderPushExecutors("Test");
+    private final RecordingImpl target = new RecordingImpl();
+    private final WonderPushPendingInitImpl pending = new WonderPushPendingInitImpl(executors) {
+        @Override
+        protected IWonderPush getTarget() {
+            return target;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        executors.shutdown();
+    }
+
+    /**
+     * Stands for the background initialization, running on the state executor until the returned latch is counted down.
+     */
+    private CountDownLatch startInitialization() {
+        final CountDownLatch finish = new CountDownLatch(1);
+        executors.runOnState(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finish.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                pending.release();
+            }
+        }, 0);
+        return finish;
+    }
+
+    @Test
+    public void callsAreReplayedInOrderOnceInitialized() throws InterruptedException {
+        CountDownLatch finish = startInitialization();
+        pending.trackEvent("first");
+        pending.addTag("a");
+        pending.trackEvent("second");
+        Assert.assertTrue(target.calls.isEmpty());
+        Assert.assertFalse(pending.isDrained());
+
+        finish.countDown();
+        // Waits for the queued calls
+        Assert.assertEquals(new TreeSet<>(Collections.singletonList("a")), pending.getTags());
+        Assert.assertEquals(Arrays.asList("trackEvent first", "addTag [a]", "trackEvent second"), target.calls);
+        Assert.assertTrue(pending.isDrained());
+    }
+
+    @Test
+    public void gettersWaitForInitialization() throws InterruptedException {
+        CountDownLatch finish = startInitialization();
+        pending.addTag("a");
+        final AtomicReference<Set<String>> read = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read.set(pending.getTags());
+                done.countDown();
+            }
+        }).start();
+        Assert.assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        finish.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(read.get().contains("a"));
+    }
+
+    @Test
+    public void gettersStopWaitingAfterTimeout() throws InterruptedException {
+        WonderPushPendingInitImpl bounded = new WonderPushPendingInitImpl(executors, 100) {
+            @Override
+            protected IWonderPush getTarget() {
+                return target;
+            }
+        };
+        target.tags.add("a");
+        final CountDownLatch finish = new CountDownLatch(1);
+        try {
+            executors.runOnState(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        finish.await();
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            }, 0);
+            long start = System.nanoTime();
+            // Answers the default value instead of blocking
+            Assert.assertTrue(bounded.getTags().isEmpty());
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            finish.countDown();
+        }
+        bounded.release();
+        Assert.assertEquals(Collections.singleton("a"), bounded.getTags());
+    }
+
+    @Test
+    public void callsGoDirectlyOnceDrained() throws InterruptedException {
+        startInitialization().countDown();
+        pending.getTags();
+        Assert.assertTrue(pending.isDrained());
+        pending.trackEvent("direct");
+        Assert.assertEquals(Collections.singletonList("trackEvent direct"), target.calls);
+        Assert.assertEquals(Thread.currentThread().getName(), target.threads.get(0));
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+public class WonderPushPropertiesEditorTest {
+
+    @Test
+    public void changesAreCombinedInOneDiff() throws JSONException {
+        JSONDocument state = JSONDocument.fromJSONObject(new JSONObject("{\"string_a\":\"old\",\"int_b\":1,\"tags\":[\"x\",\"y\"]}"));
+        JSONObject diff = new WonderPushPropertiesEditor()
+                .setProperty("string_a", "new")
+                .unsetProperty("int_b")
+                .addTag("z")
+                .removeTag("x")
+                .buildDiff(state);
+        JSONUtilTest.assertEquals(new JSONObject("{\"string_a\":\"new\",\"int_b\":null,\"tags\":[\"y\",\"z\"]}"), diff);
+    }
+
+    @Test
+    public void changesSeeThePreviousOnes() throws JSONException {
+        JSONDocument state = JSONDocument.fromJSONObject(new JSONObject("{\"string_list\":[\"a\"]}"));
+        JSONObject diff = new WonderPushPropertiesEditor()
+                .addProperty("string_list", Arrays.asList("b", "c"))
+                .removeProperty("string_list", "a")
+                .addProperty("string_list", "b")
+                .removeAllTags()
+                .addTag("t")
+                .buildDiff(state);
+        JSONUtilTest.assertEquals(new JSONObject("{\"string_list\":[\"b\",\"c\"],\"tags\":[\"t\"]}"), diff);
+        Assert.assertEquals(new TreeSet<>(Collections.singletonList("t")), WonderPushPropertiesEditor.getTags(state.merge(diff)));
+    }
+
+    @Test
+    public void valuesAreCapturedWhenEdited() throws JSONException {
+        JSONObject value = new JSONObject("{\"a\":1}");
+        WonderPushPropertiesEditor editor = new WonderPushPropertiesEditor().setProperty("object_o", value);
+        value.put("a", 2);
+        JSONUtilTest.assertEquals(new JSONObject("{\"object_o\":{\"a\":1}}"), editor.buildDiff(JSONDocument.EMPTY));
+    }
+
+}
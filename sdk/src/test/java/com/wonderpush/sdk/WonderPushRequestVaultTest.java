@@ -0,0 +1,241 @@
+package com.wonderpush.sdk;
+
+import junit.framework.Assert;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+public class WonderPushRequestVaultTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRequestSender sender;
+    private FakeClock clock;
+    private FakeConnectivityMonitor connectivity;
+    private WonderPushRequestVault vault;
+
+    @Before
+    public void setup() {
+        sender = new FakeRequestSender();
+        clock = new FakeClock();
+        connectivity = new FakeConnectivityMonitor();
+        // The queue looks for jobs saved by previous versions in the configuration
+        WonderPushConfiguration.setCache(new PreferencesCache(new FakeSharedPreferences()));
+    }
+
+    @After
+    public void teardown() {
+        if (vault != null) {
+            vault.stop();
+        }
+        WonderPushConfiguration.setCache(null);
+    }
+
+    private File journalFile() {
+        return new File(folder.getRoot(), "queue.journal");
+    }
+
+    private WonderPushJobQueue openQueue(long diskCapacityBytes, WonderPushJobQueue.EvictionPolicy evictionPolicy) {
+        return new WonderPushJobQueue("test", journalFile(), WonderPushJobQueue.DEFAULT_MEMORY_CAPACITY_BYTES, diskCapacityBytes, evictionPolicy, null);
+    }
+
+    private WonderPushRequestVault openVault(int window) {
+        return openVault(openQueue(Long.MAX_VALUE, WonderPushJobQueue.DROP_OLDEST_LOWEST_PRIORITY), window);
+    }
+
+    private WonderPushRequestVault openVault(WonderPushJobQueue queue, int window) {
+        vault = new WonderPushRequestVault(queue, window, connectivity, sender, clock);
+        return vault;
+    }
+
+    private static JSONObject job(String userId, String resource) throws JSONException {
+        JSONObject rtn = new JSONObject();
+        rtn.put("userId", userId);
+        rtn.put("method", "PUT");
+        rtn.put("resource", resource);
+        rtn.put("params", new JSONObject());
+        return rtn;
+    }
+
+    @Test
+    public void windowLimitsRequestsInFlight() throws Exception {
+        openVault(2);
+        vault.put(job("u", "/a"), 0);
+        vault.put(job("u", "/b"), 0);
+        vault.put(job("u", "/c"), 0);
+
+        FakeRequestSender.SentRequest first = sender.next();
+        FakeRequestSender.SentRequest second = sender.next();
+        Assert.assertEquals("/a", first.getResource());
+        Assert.assertEquals("/b", second.getResource());
+        sender.assertNothingSent(200);
+        Assert.assertEquals(2, vault.getInFlightCount());
+
+        second.succeed();
+        Assert.assertEquals("/c", sender.next().getResource());
+        first.succeed();
+        Assert.assertEquals(1, vault.getInFlightCount());
+    }
+
+    @Test
+    public void orderingKeyHoldsLaterJobsUntilDone() throws Exception {
+        openVault(4);
+        vault.put(job("u", "/installations/me"), 0);
+        vault.put(job("u", "/installations/me?x=1"), 0);
+        vault.put(job("other", "/installations/me"), 0);
+
+        FakeRequestSender.SentRequest first = sender.next();
+        Assert.assertEquals("u", first.jobDescription.getString("userId"));
+        // The second job of the same user and resource waits, the other user's one goes
+        FakeRequestSender.SentRequest other = sender.next();
+        Assert.assertEquals("other", other.jobDescription.getString("userId"));
+        sender.assertNothingSent(200);
+
+        first.succeed();
+        Assert.assertEquals("/installations/me?x=1", sender.next().getResource());
+        other.succeed();
+    }
+
+    @Test
+    public void orderingKeyIsKeptWhileRetrying() throws Exception {
+        openVault(4);
+        vault.put(job("u", "/installations/me"), 0);
+        vault.put(job("u", "/installations/me?x=1"), 0);
+
+        sender.next().failWithNetworkError();
+        // The failed job waits for its backoff, and the next one must not overtake it
+        sender.assertNothingSent(200);
+
+        clock.advance(WonderPushRequestVault.getMaxBackoffDelay(0));
+        vault.wakeUp();
+        FakeRequestSender.SentRequest retry = sender.next();
+        Assert.assertEquals("/installations/me", retry.getResource());
+        retry.succeed();
+        Assert.assertEquals("/installations/me?x=1", sender.next().getResource());
+    }
+
+    @Test
+    public void droppedRetryReleasesOrderingKey() throws Exception {
+        // The queue is always full, and drops any job that was already attempted
+        openVault(openQueue(0, new WonderPushJobQueue.EvictionPolicy() {
+            @Override
+            public WonderPushJobQueue.Job selectJobToEvict(Collection<WonderPushJobQueue.Job> jobs) {
+                for (WonderPushJobQueue.Job job : jobs) {
+                    if (job.getAttempts() > 0) return job;
+                }
+                return null;
+            }
+        }), 4);
+        vault.put(job("u", "/installations/me"), 0);
+        vault.put(job("u", "/installations/me?x=1"), 0);
+
+        sender.next().failWithNetworkError();
+        Assert.assertEquals("/installations/me?x=1", sender.next().getResource());
+    }
+
+    @Test
+    public void unansweredRequestTimesOut() throws Exception {
+        openVault(1);
+        vault.put(job("u", "/a"), 0);
+        vault.put(job("u", "/b"), 0);
+
+        FakeRequestSender.SentRequest lost = sender.next();
+        sender.assertNothingSent(200);
+
+        clock.advance(WonderPushRequestVault.IN_FLIGHT_TIMEOUT);
+        vault.wakeUp();
+        FakeRequestSender.SentRequest next = sender.next();
+        Assert.assertEquals("/b", next.getResource());
+
+        // A late response of the timed out request must not free a slot twice
+        lost.succeed();
+        Assert.assertEquals(1, vault.getInFlightCount());
+
+        // The timed out job is retried after its backoff
+        next.succeed();
+        clock.advance(WonderPushRequestVault.getMaxBackoffDelay(0));
+        vault.wakeUp();
+        Assert.assertEquals("/a", sender.next().getResource());
+    }
+
+    @Test
+    public void offlineJobsAreSentWhenNetworkComesBack() throws Exception {
+        connectivity.setConnected(false);
+        openVault(4);
+        vault.put(job("u", "/a"), 0);
+        sender.assertNothingSent(200);
+
+        connectivity.setConnected(true);
+        Assert.assertEquals("/a", sender.next().getResource());
+    }
+
+    @Test
+    public void networkComingBackSkipsBackoff() throws Exception {
+        openVault(4);
+        vault.put(job("u", "/a"), 0);
+        sender.next().failWithNetworkError();
+        sender.assertNothingSent(200);
+
+        // The clock does not move, the retry is advanced
+        connectivity.setConnected(false);
+        connectivity.setConnected(true);
+        Assert.assertEquals("/a", sender.next().getResource());
+    }
+
+    @Test
+    public void backoffGrowsUpToCap() throws Exception {
+        Assert.assertEquals(10 * 1000, WonderPushRequestVault.getMaxBackoffDelay(0));
+        long previous = 0;
+        int attempts = 0;
+        while (WonderPushRequestVault.getMaxBackoffDelay(attempts) > previous) {
+            previous = WonderPushRequestVault.getMaxBackoffDelay(attempts);
+            ++attempts;
+        }
+        Assert.assertEquals(5 * 60 * 1000, previous);
+        Assert.assertEquals(previous, WonderPushRequestVault.getMaxBackoffDelay(1000));
+
+        openVault(4);
+        vault.put(job("u", "/a"), 0);
+        sender.next().failWithNetworkError();
+        clock.advance(WonderPushRequestVault.getMaxBackoffDelay(0));
+        vault.wakeUp();
+        sender.next().failWithNetworkError();
+
+        // The second retry waits at least half of the grown delay
+        clock.advance(WonderPushRequestVault.getMaxBackoffDelay(1) / 2 - 1);
+        vault.wakeUp();
+        sender.assertNothingSent(200);
+        clock.advance(WonderPushRequestVault.getMaxBackoffDelay(1) / 2 + 1);
+        vault.wakeUp();
+        Assert.assertEquals("/a", sender.next().getResource());
+    }
+
+    @Test
+    public void attemptsArePersistedInJobHeader() throws Exception {
+        openVault(4);
+        vault.put(job("u", "/a"), 0);
+        sender.next().failWithNetworkError();
+        clock.advance(WonderPushRequestVault.getMaxBackoffDelay(0));
+        vault.wakeUp();
+        sender.next().failWithNetworkError();
+        vault.stop();
+        vault = null;
+
+        WonderPushJobQueue reopened = openQueue(Long.MAX_VALUE, WonderPushJobQueue.DROP_OLDEST_LOWEST_PRIORITY);
+        List<WonderPushJobQueue.Job> jobs = reopened.peekJobs(10);
+        Assert.assertEquals(1, jobs.size());
+        Assert.assertEquals("/a", jobs.get(0).getJobDescription().getString("resource"));
+        Assert.assertEquals(2, jobs.get(0).getAttempts());
+    }
+
+}